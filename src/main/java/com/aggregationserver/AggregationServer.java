@@ -3,8 +3,12 @@ package com.aggregationserver;
 import java.io.*;
 import java.net.ServerSocket;
 import java.net.Socket;
+import java.net.SocketTimeoutException;
+import java.nio.charset.StandardCharsets;
 import java.util.*;
+import java.util.concurrent.ExecutorService;
 import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
 import java.util.concurrent.TimeUnit;
 
 /**
@@ -15,14 +19,90 @@ import java.util.concurrent.TimeUnit;
  */
 public class AggregationServer {
 
-    protected static final String FILE_PATH = "weatherData.json";  // Path to persist weather data
-    protected static final int MAX_ENTRIES = 20;  // Maximum number of weather data entries to store
+    protected static final String FILE_PATH = "weatherData.json";  // Default path to persist weather data
+    protected static final int MAX_ENTRIES = 20;  // Default maximum number of weather data entries to store
     protected static final int EXPIRATION_TIME = 30;  // Time in seconds after which entries expire
+    protected static final int WORKER_THREADS = 16;  // Threads handling client connections
+    protected static final int KEEP_ALIVE_TIMEOUT = 15;  // Seconds an idle keep-alive connection is kept open
+    protected static final int NEAR_DEFAULT_K = 5;  // Stations returned by /weather/near when k is not given
     protected static Map<String, WeatherEntry> weatherData = new LinkedHashMap<>();  // Store weather data with timestamps
-    protected static LamportClock lamportClock = new LamportClock();  // Lamport clock for synchronization
+    protected static int maxEntries = MAX_ENTRIES;  // Stations kept before the oldest is removed, set with --max-entries, or 0 for no limit
+    protected static LamportClock lamportClock = new LamportClock();  // Lamport clock for synchronization; --clock=hybrid follows physical time
+    protected static ChangeFeed changeFeed = new ChangeFeed(ChangeFeed.DEFAULT_CAPACITY);  // Recent changes, for clients mirroring the store
+    protected static Map<String, StationHistory> histories = new HashMap<>();  // Recent observations per station
+    protected static int historyCapacity = StationHistory.DEFAULT_CAPACITY;  // Observations kept per station, or 0 for none
+    protected static long historyMaxAge = 0;  // Milliseconds after which observations leave the history, or 0 for no limit
+    protected static ObservationStore observationStore = new HeapObservationStore();  // Holds the stored observations; --store=offheap keeps them off the heap
+    protected static LamportOrder lamportOrder = new LamportOrder();  // Stations by Lamport time, for saving and paging
+    protected static WeatherAggregates aggregates = new WeatherAggregates();  // Summaries of the stored measurements
+    protected static SpatialIndex spatialIndex = new SpatialIndex(SpatialIndex.DEFAULT_CELL_DEGREES);  // Station positions
+    protected static Map<WeatherObservation.Field, SecondaryIndex> secondaryIndexes =
+            new EnumMap<>(WeatherObservation.Field.class);  // Indexes declared with --index, for filtered queries
+    protected static SubscriptionHub subscriptions = new SubscriptionHub(changeFeed);  // Clients receiving changes as they happen
+    protected static String dataFilePath = FILE_PATH;  // Path to persist weather data on this node
+    protected static RateLimiter stationLimiter = null;  // PUT limit per station, set with --station-rate, or null for none
+    protected static RateLimiter clientLimiter = null;  // PUT limit per client address, set with --client-rate, or null for none
+    protected static long coalesceMillis = 0;  // Window in which saves are coalesced into one, or 0 to save on every change
+    private static boolean savePending = false;  // True while a coalesced save is scheduled
+    private static ScheduledExecutorService saveScheduler = null;  // Runs coalesced saves, created when first needed
+    protected static ClusterManager cluster = null;  // Cluster membership, or null when running standalone
+    protected static ServerMetrics metrics = new ServerMetrics();  // Request latencies and store counters, served at /metrics
 
     public static void main(String[] args) {
-        int port = args.length > 0 ? Integer.parseInt(args[0]) : 4567;
+        int port = 4567;
+        String host = "localhost";
+        List<String> peers = new ArrayList<>();
+
+        // Parse the optional port and cluster options
+        for (String arg : args) {
+            if (arg.startsWith("--peers=")) {
+                peers.addAll(Arrays.asList(arg.substring("--peers=".length()).split(",")));
+            } else if (arg.startsWith("--host=")) {
+                host = arg.substring("--host=".length());
+            } else if (arg.startsWith("--history=")) {
+                historyCapacity = Integer.parseInt(arg.substring("--history=".length()));
+            } else if (arg.startsWith("--station-rate=")) {
+                stationLimiter = RateLimiter.parse(arg.substring("--station-rate=".length()));
+            } else if (arg.startsWith("--client-rate=")) {
+                clientLimiter = RateLimiter.parse(arg.substring("--client-rate=".length()));
+            } else if (arg.startsWith("--coalesce-millis=")) {
+                coalesceMillis = Long.parseLong(arg.substring("--coalesce-millis=".length()));
+            } else if (arg.equals("--clock=hybrid")) {
+                lamportClock = new LamportClock(true);
+            } else if (arg.equals("--store=offheap")) {
+                observationStore = new SlabObservationStore();
+            } else if (arg.startsWith("--index=")) {
+                for (String name : arg.substring("--index=".length()).split(",")) {
+                    WeatherObservation.Field field = WeatherObservation.Field.forName(name.trim());
+                    if (field == null) {
+                        System.err.println("Unknown field to index: " + name);
+                        return;
+                    }
+                    addSecondaryIndex(field);
+                }
+            } else if (arg.startsWith("--max-entries=")) {
+                maxEntries = Integer.parseInt(arg.substring("--max-entries=".length()));
+            } else if (arg.startsWith("--history-minutes=")) {
+                historyMaxAge = TimeUnit.MINUTES.toMillis(Long.parseLong(arg.substring("--history-minutes=".length())));
+            } else {
+                port = Integer.parseInt(arg);
+            }
+        }
+
+        // Run as one shard of a cluster when peers are given
+        if (!peers.isEmpty()) {
+            dataFilePath = "weatherData-" + port + ".json";  // Nodes on the same host keep separate files
+            cluster = new ClusterManager(host + ":" + port, peers);
+            cluster.setMembershipListener(AggregationServer::rebalance);
+            Runtime.getRuntime().addShutdownHook(new Thread(() -> {
+                cluster.leave();
+                rebalance();  // Hand off every station now that this node is off the ring
+            }));
+        }
+
+        if (coalesceMillis > 0) {
+            Runtime.getRuntime().addShutdownHook(new Thread(AggregationServer::savePendingChanges));
+        }
 
         // Schedule periodic removal of expired entries every 30 seconds
         Executors.newScheduledThreadPool(1).scheduleAtFixedRate(() -> {
@@ -35,40 +115,205 @@ public class AggregationServer {
         try (ServerSocket serverSocket = new ServerSocket(port)) {
             System.out.println("Aggregation Server running on port " + port + "...");
 
-            // Continuously accept client connections and handle requests
-            while (true) {
-                try (Socket clientSocket = serverSocket.accept();
-                     BufferedReader in = new BufferedReader(new InputStreamReader(clientSocket.getInputStream()));
-                     PrintWriter out = new PrintWriter(clientSocket.getOutputStream(), true)) {
-
-                    String requestLine = in.readLine();
-                    if (requestLine != null) {
-                        System.out.println("Received request: " + requestLine);  // Log the incoming request
-                    }
+            if (cluster != null) {
+                cluster.start();
+                System.out.println("Cluster node " + cluster.getSelf() + " with peers " + peers);
+                rebalance();  // Hand off stations loaded from file that now belong elsewhere
+            }
 
-                    String stationID = null;  // Initialize station ID as null
+            // Continuously accept client connections and handle each on a worker thread
+            ExecutorService workers = Executors.newFixedThreadPool(WORKER_THREADS);
+            while (true) {
+                Socket clientSocket = serverSocket.accept();
+                workers.execute(() -> handleConnection(clientSocket));
+            }
+        } catch (IOException e) {
+            System.err.println("Server error: " + e.getMessage());
+        }
+    }
 
-                    // Handle GET request
-                    if (requestLine != null && requestLine.startsWith("GET")) {
-                        if (requestLine.contains("/weather/")) {
-                            stationID = extractStationIDFromRequest(requestLine);
-                        }
-                        handleGetRequest(out, stationID);  // Pass PrintWriter and stationID to GET handler
-                    } 
-                    // Handle PUT request
-                    else if (requestLine != null && requestLine.startsWith("PUT")) {
-                        handlePutRequest(in, out);  // Pass input and output streams to PUT handler
-                    } 
-                    // Handle bad request
-                    else {
-                        out.println("HTTP/1.1 400 Bad Request");
-                    }
+    /**
+     * Reads requests from a client connection and handles them. The connection is closed after
+     * the first response unless the client sent "Connection: keep-alive", in which case further
+     * requests are read until the client closes it or stays idle for KEEP_ALIVE_TIMEOUT seconds.
+     * A subscription request hands the connection over to the {@link SubscriptionHub}.
+     *
+     * @param clientSocket The accepted client socket
+     */
+    protected static void handleConnection(Socket clientSocket) {
+        Socket socket = clientSocket;
+        PrintWriter out = null;
+        boolean subscribed = false;  // True once the subscription hub owns the connection
+        try {
+            InputStream in = new BufferedInputStream(socket.getInputStream());
+            OutputStream rawOut = new BufferedOutputStream(socket.getOutputStream());
+            out = new PrintWriter(new OutputStreamWriter(rawOut, StandardCharsets.UTF_8), true);
 
+            String remoteAddress = socket.getInetAddress().getHostAddress();
+            HttpRequest request = HttpRequest.read(in);
+            if (request == null) {
+                out.println("HTTP/1.1 400 Bad Request");
+                return;
+            }
+            socket.setSoTimeout(KEEP_ALIVE_TIMEOUT * 1000);
+            socket.setTcpNoDelay(true);  // Responses are written whole; do not hold them back for the client's ACK
+            while (request != null && request.isKeepAlive()) {
+                request.setRemoteAddress(remoteAddress);
+                System.out.println("Received request: " + request.getRequestLine());
+                if (SubscriptionHub.isSubscription(request)) {
+                    rawOut.flush();  // Answers to requests pipelined before it
+                    subscriptions.subscribe(socket, rawOut, request);
+                    subscribed = true;
+                    return;
+                }
+                StringWriter response = new StringWriter();
+                long start = System.nanoTime();
+                handleRequest(request, new PrintWriter(response));
+                String text = response.toString();  // Copied once, for both the status and the write
+                metrics.recordRequest(request.getMethod(), ServerMetrics.statusOf(text), System.nanoTime() - start);
+                request.discardBody();
+                writeKeepAliveResponse(rawOut, text);
+                if (in.available() == 0) {
+                    rawOut.flush();  // Otherwise the client has pipelined more requests; answer them together
                 }
+                request = HttpRequest.read(in);
+            }
+            if (request != null) {
+                request.setRemoteAddress(remoteAddress);
+                System.out.println("Received request: " + request.getRequestLine());  // Log the incoming request
+                if (SubscriptionHub.isSubscription(request)) {
+                    subscriptions.subscribe(socket, rawOut, request);
+                    subscribed = true;
+                    return;
+                }
+                StringWriter response = new StringWriter();
+                long start = System.nanoTime();
+                handleRequest(request, new PrintWriter(response));
+                String text = response.toString();
+                metrics.recordRequest(request.getMethod(), ServerMetrics.statusOf(text), System.nanoTime() - start);
+                out.print(text);
+            }
+        } catch (SocketTimeoutException e) {
+            // An idle keep-alive connection; nothing more to do
+        } catch (Exception e) {
+            System.err.println("Error handling connection: " + e.getMessage());
+        } finally {
+            if (!subscribed) {
+                if (out != null) {
+                    out.close();  // Sends what is left of the last response
+                }
+                try {
+                    socket.close();
+                } catch (IOException e) {
+                    // Already closed
+                }
+            }
+        }
+    }
+
+    /**
+     * Sends a response produced by a handler on a keep-alive connection. Handlers write
+     * responses for clients that read until the connection closes, so a response may be just
+     * a status line, or end with a line break after its body; the response is therefore given
+     * a Content-Length and a Connection header, and any bytes past Content-Length are dropped.
+     * The response is not flushed, so that responses to pipelined requests can be sent together.
+     *
+     * @param out      The connection's output stream
+     * @param response The response as written by the handler
+     * @throws IOException If the response cannot be sent
+     */
+    protected static void writeKeepAliveResponse(OutputStream out, String response) throws IOException {
+        StringBuilder head = new StringBuilder();
+        int contentLength = -1;
+        int bodyStart = response.length();
+        int pos = 0;
+        while (pos < response.length()) {
+            int eol = response.indexOf('\n', pos);
+            if (eol < 0) {
+                eol = response.length();
+            }
+            String line = response.substring(pos, eol > pos && response.charAt(eol - 1) == '\r' ? eol - 1 : eol);
+            pos = Math.min(eol + 1, response.length());
+            if (line.isEmpty()) {
+                bodyStart = pos;  // End of the headers
+                break;
+            }
+            if (line.regionMatches(true, 0, "Content-Length:", 0, 15)) {
+                contentLength = Integer.parseInt(line.substring(15).trim());
+            }
+            if (!line.regionMatches(true, 0, "Connection:", 0, 11)) {
+                head.append(line).append("\r\n");
             }
-        } catch (IOException e) {
-            System.err.println("Server error: " + e.getMessage());
         }
+
+        byte[] body = response.substring(bodyStart).getBytes(StandardCharsets.UTF_8);
+        if (contentLength < 0) {
+            contentLength = body.length;
+            head.append("Content-Length: ").append(contentLength).append("\r\n");
+        }
+        head.append("Connection: keep-alive\r\n\r\n");
+
+        out.write(head.toString().getBytes(StandardCharsets.UTF_8));
+        out.write(body, 0, Math.min(contentLength, body.length));
+    }
+
+    /**
+     * Dispatches a request to the matching handler.
+     *
+     * @param request The client request
+     * @param out     PrintWriter to send the HTTP response to the client
+     */
+    protected static void handleRequest(HttpRequest request, PrintWriter out) {
+        String method = request.getMethod();
+        String path = request.getPath();
+
+        // Handle cluster membership requests
+        if (path.startsWith("/cluster/")) {
+            handleClusterRequest(request, out);
+        }
+        // Handle a scrape of this node's metrics
+        else if (method.equals("GET") && path.equals("/metrics")) {
+            handleMetricsRequest(out);
+        }
+        // Handle GET request
+        else if (method.equals("GET")) {
+            handleGetRequest(request, out);
+        }
+        // Handle PUT request
+        else if (method.equals("PUT")) {
+            handlePutRequest(request, out);
+        }
+        // Handle bad request
+        else {
+            out.println("HTTP/1.1 400 Bad Request");
+        }
+    }
+
+    /**
+     * Answers GET /metrics with this node's metrics in the Prometheus text format.
+     *
+     * @param out PrintWriter to send the HTTP response to the client
+     */
+    protected static void handleMetricsRequest(PrintWriter out) {
+        String body = metrics.toText(weatherData.size(), lamportClock.getTime());
+        out.println("HTTP/1.1 200 OK");
+        out.println("Content-Type: " + ServerMetrics.CONTENT_TYPE);
+        out.println("Content-Length: " + utf8Length(body));
+        out.println();  // End of headers
+        out.print(body);
+    }
+
+    /**
+     * Returns true if a request was relayed by another node of the cluster, and so is served
+     * here without routing it again. The forwarding marker is only trusted from a peer's host,
+     * since any client could send it to skip routing.
+     *
+     * @param request The client request
+     * @return true for requests forwarded by a peer
+     */
+    protected static boolean isForwardedByPeer(HttpRequest request) {
+        return cluster != null && request.isForwarded()
+                && cluster.isFromPeer(request.getHeader(HttpRequest.FORWARDED_HEADER), request.getRemoteAddress());
     }
 
     /**
@@ -80,6 +325,9 @@ public class AggregationServer {
         String[] requestParts = requestLine.split(" ");
         if (requestParts.length > 1) {
             String path = requestParts[1];  // Example: /weather/IDS60901
+            if (path.indexOf('?') >= 0) {
+                path = path.substring(0, path.indexOf('?'));  // Drop the query string
+            }
             if (path.startsWith("/weather/")) {
                 return path.substring("/weather/".length());  // Extract station ID
             }
@@ -87,6 +335,541 @@ public class AggregationServer {
         return null;
     }
 
+    /**
+     * Handles a GET request from a client connection. In cluster mode, a request for a single
+     * station is forwarded to the node that owns it, and a request for all stations gathers
+     * the data held by every node. Requests forwarded by another node are served locally.
+     * <p>
+     * "?ids=a,b,c" selects several stations at once, and "?fields=air_temp,press" writes only
+     * the named fields of each station. "?filter=state=SA,wind_spd_kmh>50" selects the stations
+     * that satisfy every condition (see {@link StationFilter}), using the secondary indexes
+     * declared at startup where they answer a condition. "?limit=n&cursor=c" returns a page of
+     * stations instead (see {@link #handlePageRequest}).
+     *
+     * @param request The client request
+     * @param out     PrintWriter to send the HTTP response to the client
+     */
+    @SuppressWarnings("unchecked")
+    protected static void handleGetRequest(HttpRequest request, PrintWriter out) {
+        if (request.getPath().equals("/weather/changes")) {
+            handleChangesRequest(request, out);
+            return;
+        }
+        if (request.getPath().equals("/weather/near") || request.getPath().equals("/weather/within")) {
+            handleSpatialRequest(request, out);
+            return;
+        }
+        if (request.getPath().equals("/weather/aggregate")) {
+            handleAggregateRequest(request, out);
+            return;
+        }
+        if (request.getPath().startsWith("/weather/") && request.getPath().endsWith("/history")) {
+            handleHistoryRequest(request, out);
+            return;
+        }
+
+        String stationID = null;
+        if (request.getPath().startsWith("/weather/")) {
+            stationID = extractStationIDFromRequest(request.getRequestLine());
+        }
+        List<String> ids = parseIDs(request.getQueryParameter("ids"));
+        WeatherCodec.Projection projection = WeatherCodec.Projection.parse(request.getQueryParameter("fields"));
+        StationFilter filter;
+        try {
+            filter = StationFilter.parse(request.getQueryParameter("filter"));
+        } catch (IllegalArgumentException e) {
+            out.println("HTTP/1.1 400 Bad Request");
+            return;
+        }
+
+        if (request.getQueryParameter("limit") != null && (stationID == null || stationID.isEmpty())) {
+            handlePageRequest(request, out, projection);
+            return;
+        }
+        if (filter != null && (stationID == null || stationID.isEmpty())) {
+            Map<String, Object> stations = getFilteredWeatherData(filter, ids);
+            if (cluster != null && !isForwardedByPeer(request)) {
+                for (Object response : cluster.gather(request)) {  // Each node filters its own stations
+                    if (response instanceof Map) {
+                        stations.putAll((Map<String, Object>) response);
+                    }
+                }
+            }
+            sendJsonResponse(out, stationsToJson(stations, projection));
+            System.out.println(stations.size() + " stations match the filter. Sending data to client.");
+            return;
+        }
+
+        if (cluster != null && !isForwardedByPeer(request)) {
+            if (stationID != null && !stationID.isEmpty()) {
+                if (!cluster.isLocal(stationID)) {
+                    cluster.forward(cluster.ownerOf(stationID), request, out);
+                    return;
+                }
+            } else {
+                Map<String, Object> gathered = cluster.gather(getAllWeatherData());
+                if (ids != null) {
+                    Map<String, Object> selected = new LinkedHashMap<>();
+                    for (String id : ids) {
+                        if (gathered.containsKey(id)) {
+                            selected.put(id, gathered.get(id));
+                        }
+                    }
+                    gathered = selected;
+                }
+                sendJsonResponse(out, stationsToJson(gathered, projection));
+                System.out.println("Weather data gathered from all cluster nodes. Sending all stations' data to client.");
+                return;
+            }
+        }
+        handleGetRequest(out, stationID, ids, projection);
+    }
+
+    /**
+     * Handles a GET request for a page of stations: "/weather?limit=n" returns the n stations
+     * stored most recently by Lamport time, as {"stations":{...},"lamportTimes":{...},"next":c},
+     * where "lamportTimes" holds each station's Lamport time (stations are ordered by it, newest
+     * first, then by ID) and c is the cursor for the next page, or null after the last page.
+     * "&cursor=c" returns the page after the one c came from. A page costs in proportion to its
+     * size. Cursors remain valid as stations are stored and removed: a station stored after
+     * paging began moves ahead of the pages already read, and no other station is skipped or
+     * repeated. In cluster mode, each node's page is gathered and the pages are merged.
+     *
+     * @param request    The client request
+     * @param out        PrintWriter to send the HTTP response to the client
+     * @param projection The fields to return for each station, or null for all of them
+     */
+    @SuppressWarnings("unchecked")
+    protected static void handlePageRequest(HttpRequest request, PrintWriter out, WeatherCodec.Projection projection) {
+        int limit;
+        LamportOrder.Key after;
+        try {
+            limit = Integer.parseInt(request.getQueryParameter("limit").trim());
+            String cursor = request.getQueryParameter("cursor");
+            after = cursor != null && !cursor.trim().isEmpty() ? LamportOrder.Key.fromCursor(cursor) : null;
+            if (limit <= 0) {
+                throw new IllegalArgumentException("Limit must be positive: " + limit);
+            }
+        } catch (IllegalArgumentException e) {
+            out.println("HTTP/1.1 400 Bad Request");
+            return;
+        }
+
+        List<LamportOrder.Key> page = new ArrayList<>();
+        Map<String, Object> stations = getPage(after, limit + 1, page);  // One more, to tell if a next page exists
+        boolean more = false;
+        if (cluster != null && !isForwardedByPeer(request)) {
+            for (Object response : cluster.gather(request)) {
+                if (!(response instanceof Map) || !(((Map<String, Object>) response).get("lamportTimes") instanceof Map)) {
+                    continue;
+                }
+                Map<String, Object> peerPage = (Map<String, Object>) response;
+                Map<String, Object> peerStations = (Map<String, Object>) peerPage.get("stations");
+                for (Map.Entry<String, Object> time : ((Map<String, Object>) peerPage.get("lamportTimes")).entrySet()) {
+                    page.add(new LamportOrder.Key(((Number) time.getValue()).longValue(), time.getKey()));
+                    stations.put(time.getKey(), peerStations.get(time.getKey()));
+                }
+                more |= peerPage.get("next") != null;
+            }
+            Collections.sort(page);
+        }
+        more |= page.size() > limit;
+        if (page.size() > limit) {
+            page = page.subList(0, limit);
+        }
+
+        StringBuilder json = new StringBuilder();
+        try {
+            JSONWriter writer = new JSONWriter(json);
+            writer.beginObject();
+            writer.name("stations");
+            writer.beginObject();
+            for (LamportOrder.Key key : page) {
+                writer.name(key.id);
+                WeatherCodec.writeStation(stations.get(key.id), writer, projection);
+            }
+            writer.endObject();
+            writer.name("lamportTimes");
+            writer.beginObject();
+            for (LamportOrder.Key key : page) {
+                writer.name(key.id);
+                writer.write(key.lamportTime);
+            }
+            writer.endObject();
+            writer.name("next");
+            writer.write(more && !page.isEmpty() ? page.get(page.size() - 1).toCursor() : null);
+            writer.endObject();
+            writer.flush();
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);  // StringBuilder never throws
+        }
+        sendJsonResponse(out, json.toString());
+        System.out.println("Page of " + page.size() + " stations sent to client.");
+    }
+
+    /**
+     * Retrieves a page of the stations held on this node, in Lamport order.
+     * @param after The position the page starts after, or null for the first page
+     * @param limit The most stations to return
+     * @param keys  Receives the positions of the page's stations, in order
+     * @return A new map of station ID to weather data
+     */
+    protected static synchronized Map<String, Object> getPage(LamportOrder.Key after, int limit, List<LamportOrder.Key> keys) {
+        Map<String, Object> stations = new HashMap<>();
+        for (LamportOrder.Key key : lamportOrder.page(after, limit)) {
+            keys.add(key);
+            stations.put(key.id, weatherData.get(key.id).getJsonValue());
+        }
+        return stations;
+    }
+
+    /**
+     * Handles a GET request for the changes to the store: "/weather/changes?since=V" returns
+     * the stations stored or removed since the client saw version V of the store, as
+     * {"version":W,"full":false,"upserts":{...},"removed":[...]}, where W is the "since" to
+     * send next time. Without "since", or if the changes since V are no longer all recorded,
+     * "full" is true and "upserts" holds every station, replacing what the client had.
+     * "?fields=" writes only the named fields of each upserted station.
+     * <p>
+     * The changes are those of the node serving the request, also in cluster mode.
+     *
+     * @param request The client request
+     * @param out     PrintWriter to send the HTTP response to the client
+     */
+    protected static void handleChangesRequest(HttpRequest request, PrintWriter out) {
+        long since;
+        try {
+            String value = request.getQueryParameter("since");
+            since = value != null ? Long.parseLong(value.trim()) : -1;
+        } catch (NumberFormatException e) {
+            out.println("HTTP/1.1 400 Bad Request");
+            return;
+        }
+        WeatherCodec.Projection projection = WeatherCodec.Projection.parse(request.getQueryParameter("fields"));
+
+        ChangeSet changes = getChangesSince(since);
+        sendJsonResponse(out, changes.toJson(projection));
+        System.out.println("Sent " + (changes.full ? "a full snapshot of " : "") + changes.upserts.size()
+                + " stored and " + changes.removed.size() + " removed stations since " + since + " to client.");
+    }
+
+    /**
+     * Handles a GET request for a station's recent observations: "/weather/{id}/history"
+     * returns {"id":"...","history":[...]}, the kept observations oldest first, each with its
+     * "lastUpdated" and "lamportTime" and the numeric measurements as numbers. "?since=" and
+     * "?until=" limit them to a range of times they were stored at, in milliseconds since the
+     * epoch, inclusive. In cluster mode, the request is forwarded to the node that owns the station.
+     *
+     * @param request The client request
+     * @param out     PrintWriter to send the HTTP response to the client
+     */
+    protected static void handleHistoryRequest(HttpRequest request, PrintWriter out) {
+        String path = request.getPath();
+        String stationID = path.substring("/weather/".length(), path.length() - "/history".length());
+        if (cluster != null && !isForwardedByPeer(request) && !cluster.isLocal(stationID)) {
+            cluster.forward(cluster.ownerOf(stationID), request, out);
+            return;
+        }
+
+        long since;
+        long until;
+        try {
+            String value = request.getQueryParameter("since");
+            since = value != null ? Long.parseLong(value.trim()) : Long.MIN_VALUE;
+            value = request.getQueryParameter("until");
+            until = value != null ? Long.parseLong(value.trim()) : Long.MAX_VALUE;
+        } catch (NumberFormatException e) {
+            out.println("HTTP/1.1 400 Bad Request");
+            return;
+        }
+
+        StationHistory history = getHistory(stationID);
+        StringBuilder json = new StringBuilder();
+        try {
+            JSONWriter writer = new JSONWriter(json);
+            writer.beginObject();
+            writer.name("id");
+            writer.write(stationID);
+            writer.name("history");
+            if (history != null) {
+                history.writeRange(since, until, writer);
+            } else {
+                writer.beginArray();
+                writer.endArray();
+            }
+            writer.endObject();
+            writer.flush();
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);  // StringBuilder never throws
+        }
+        sendJsonResponse(out, json.toString());
+        System.out.println("History of stationID " + stationID + " sent to client.");
+    }
+
+    /**
+     * Handles a GET request for summaries of a measurement: "/weather/aggregate?field=air_temp"
+     * returns the count, min, max, sum and mean of the field over every stored station, and
+     * "&groupBy=state" (or time_zone) returns them per state. The response is
+     * {"field":"air_temp","groupBy":"state","groups":{"SA":{"count":..,"min":..,...}}}, with a
+     * single group "all" when not grouping. The summaries are kept up to date as stations are
+     * stored and removed, so serving them does not scan the store. In cluster mode, the
+     * summaries of every live node are merged.
+     *
+     * @param request The client request
+     * @param out     PrintWriter to send the HTTP response to the client
+     */
+    protected static void handleAggregateRequest(HttpRequest request, PrintWriter out) {
+        String fieldName = request.getQueryParameter("field");
+        String groupByName = request.getQueryParameter("groupBy");
+        WeatherObservation.Field field = fieldName != null ? WeatherObservation.Field.forName(fieldName.trim()) : null;
+        WeatherObservation.Field groupBy = groupByName != null ? WeatherObservation.Field.forName(groupByName.trim()) : null;
+        if (!WeatherAggregates.isMeasurement(field) || (groupByName != null && !WeatherAggregates.isGroupBy(groupBy))) {
+            out.println("HTTP/1.1 400 Bad Request");
+            return;
+        }
+
+        Map<String, WeatherAggregates.Summary> groups = new TreeMap<>(aggregates.summarize(field, groupBy));
+        if (cluster != null && !isForwardedByPeer(request)) {
+            for (Object response : cluster.gather(request)) {
+                mergeAggregates(groups, response);
+            }
+        }
+
+        StringBuilder json = new StringBuilder();
+        try {
+            JSONWriter writer = new JSONWriter(json);
+            writer.beginObject();
+            writer.name("field");
+            writer.write(field.jsonName());
+            writer.name("groupBy");
+            writer.write(groupBy != null ? groupBy.jsonName() : null);
+            writer.name("groups");
+            writer.beginObject();
+            for (Map.Entry<String, WeatherAggregates.Summary> group : groups.entrySet()) {
+                writer.name(group.getKey());
+                group.getValue().writeTo(writer);
+            }
+            writer.endObject();
+            writer.endObject();
+            writer.flush();
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);  // StringBuilder never throws
+        }
+        sendJsonResponse(out, json.toString());
+        System.out.println("Summaries of " + field.jsonName() + " over " + groups.size() + " groups sent to client.");
+    }
+
+    /**
+     * Handles a GET request for stations by position. "/weather/near?lat=&lon=&k=" returns the
+     * k stations (default NEAR_DEFAULT_K) nearest to a point, nearest first, and
+     * "/weather/within?south=&west=&north=&east=" returns the stations inside a bounding box,
+     * which crosses the antimeridian if west is greater than east. Both answer in the format of
+     * GET /weather, with "?fields=" selecting the fields of each station. Stations are found
+     * through the spatial index, without reading the whole store. In cluster mode, the results
+     * of every live node are merged.
+     *
+     * @param request The client request
+     * @param out     PrintWriter to send the HTTP response to the client
+     */
+    @SuppressWarnings("unchecked")
+    protected static void handleSpatialRequest(HttpRequest request, PrintWriter out) {
+        boolean near = request.getPath().equals("/weather/near");
+        double lat;
+        double lon;
+        int k = NEAR_DEFAULT_K;
+        double[] box = new double[4];
+        try {
+            if (near) {
+                lat = Double.parseDouble(request.getQueryParameter("lat").trim());
+                lon = Double.parseDouble(request.getQueryParameter("lon").trim());
+                if (request.getQueryParameter("k") != null) {
+                    k = Integer.parseInt(request.getQueryParameter("k").trim());
+                }
+                if (k < 0 || Double.isNaN(lat) || Double.isNaN(lon)) {
+                    throw new NumberFormatException("Invalid point or k");
+                }
+            } else {
+                lat = 0;
+                lon = 0;
+                String[] names = {"south", "west", "north", "east"};
+                for (int i = 0; i < names.length; i++) {
+                    box[i] = Double.parseDouble(request.getQueryParameter(names[i]).trim());
+                }
+            }
+        } catch (NumberFormatException | NullPointerException e) {
+            out.println("HTTP/1.1 400 Bad Request");
+            return;
+        }
+        WeatherCodec.Projection projection = WeatherCodec.Projection.parse(request.getQueryParameter("fields"));
+
+        Map<String, Object> stations = near ? getNearest(lat, lon, k) : getWithin(box[0], box[1], box[2], box[3]);
+        if (cluster != null && !isForwardedByPeer(request)) {
+            // Peers answer with every field, so that their stations' positions are known here
+            HttpRequest unprojected = new HttpRequest(request.getRequestLine().replaceFirst("([?&])fields=[^& ]*", "$1"),
+                    new LinkedHashMap<>(), new byte[0]);
+            for (Object response : cluster.gather(unprojected)) {
+                if (response instanceof Map) {
+                    stations.putAll((Map<String, Object>) response);
+                }
+            }
+            if (near) {
+                stations = nearestOf(stations, lat, lon, k);
+            }
+        }
+        sendJsonResponse(out, stationsToJson(stations, projection));
+        System.out.println(stations.size() + " stations found by position. Sending data to client.");
+    }
+
+    /**
+     * Retrieves the stations nearest to a point held on this node.
+     * @param lat The latitude in degrees
+     * @param lon The longitude in degrees
+     * @param k   The number of stations to return
+     * @return A new map of station ID to weather data, nearest first
+     */
+    protected static synchronized Map<String, Object> getNearest(double lat, double lon, int k) {
+        return getWeatherData(spatialIndex.nearest(lat, lon, k));
+    }
+
+    /**
+     * Retrieves the stations inside a bounding box held on this node.
+     * @return A new map of station ID to weather data
+     */
+    protected static synchronized Map<String, Object> getWithin(double south, double west, double north, double east) {
+        return getWeatherData(spatialIndex.within(south, west, north, east));
+    }
+
+    /**
+     * Picks the stations nearest to a point from stations gathered across the cluster.
+     * @return A new map of the k nearest stations, nearest first
+     */
+    private static Map<String, Object> nearestOf(Map<String, Object> stations, double lat, double lon, int k) {
+        Map<String, Double> distances = new HashMap<>();
+        for (Map.Entry<String, Object> station : stations.entrySet()) {
+            double stationLat = coordinate(station.getValue(), WeatherObservation.Field.LAT);
+            double stationLon = coordinate(station.getValue(), WeatherObservation.Field.LON);
+            distances.put(station.getKey(), SpatialIndex.distanceKm(lat, lon, stationLat, stationLon));
+        }
+        Map<String, Object> nearest = new LinkedHashMap<>();
+        distances.entrySet().stream()
+                .filter(distance -> !Double.isNaN(distance.getValue()))
+                .sorted(Map.Entry.comparingByValue())
+                .limit(k)
+                .forEach(distance -> nearest.put(distance.getKey(), stations.get(distance.getKey())));
+        return nearest;
+    }
+
+    /**
+     * Reads a coordinate of a station held locally or parsed from a peer's response.
+     * @return The coordinate, or NaN if it is absent or not a number
+     */
+    @SuppressWarnings("unchecked")
+    private static double coordinate(Object station, WeatherObservation.Field field) {
+        if (station instanceof WeatherObservation) {
+            return ((WeatherObservation) station).getDouble(field);
+        }
+        Object value = station instanceof Map ? ((Map<String, Object>) station).get(field.jsonName()) : null;
+        try {
+            return value != null ? Double.parseDouble(value.toString()) : Double.NaN;
+        } catch (NumberFormatException e) {
+            return Double.NaN;
+        }
+    }
+
+    /**
+     * Adds the summaries in another node's aggregate response to this node's.
+     *
+     * @param groups   The summaries so far, by group
+     * @param response The other node's parsed response
+     */
+    @SuppressWarnings("unchecked")
+    private static void mergeAggregates(Map<String, WeatherAggregates.Summary> groups, Object response) {
+        if (!(response instanceof Map) || !(((Map<String, Object>) response).get("groups") instanceof Map)) {
+            return;
+        }
+        Map<String, Object> peerGroups = (Map<String, Object>) ((Map<String, Object>) response).get("groups");
+        for (Map.Entry<String, Object> group : peerGroups.entrySet()) {
+            WeatherAggregates.Summary summary = WeatherAggregates.Summary.fromJson((Map<String, Object>) group.getValue());
+            groups.merge(group.getKey(), summary, WeatherAggregates.Summary::merge);
+        }
+    }
+
+    /**
+     * Looks up the history of a station.
+     * @param stationID The station ID
+     * @return The history, or null if the station has none
+     */
+    protected static synchronized StationHistory getHistory(String stationID) {
+        return histories.get(stationID);
+    }
+
+    /**
+     * Collects the changes to the store since a version, or all of the store if they are no
+     * longer all recorded.
+     *
+     * @param since The version of the store the client last saw, or a negative number if it
+     *              has not seen it
+     * @return The changes
+     */
+    protected static synchronized ChangeSet getChangesSince(long since) {
+        long version = changeFeed.getVersion();
+        Map<String, Boolean> changes = since >= 0 ? changeFeed.since(since) : null;
+        return changes != null ? getChanges(changes, version) : getSnapshot(null);
+    }
+
+    /**
+     * Collects the current data of the listed stations, or all of the store.
+     *
+     * @param ids The station IDs, or null for every station
+     * @return The stations as a full snapshot, at the current version of the store
+     */
+    protected static synchronized ChangeSet getSnapshot(List<String> ids) {
+        Map<String, Object> stations = ids != null ? getWeatherData(ids) : getAllWeatherData();
+        return new ChangeSet(changeFeed.getVersion(), true, stations, new ArrayList<>());
+    }
+
+    /**
+     * Collects the current data of changed stations. Each is reported as it is now: a station
+     * still stored is an upsert, even if its recorded change was a removal, and one no longer
+     * stored is removed.
+     *
+     * @param changes Station ID to true if removed or false if stored, as from {@link ChangeFeed#since(long)}
+     * @param version The version of the store the changes bring the client up to
+     * @return The changes
+     */
+    protected static synchronized ChangeSet getChanges(Map<String, Boolean> changes, long version) {
+        Map<String, Object> upserts = new LinkedHashMap<>();
+        List<String> removed = new ArrayList<>();
+        for (Map.Entry<String, Boolean> change : changes.entrySet()) {
+            WeatherEntry entry = weatherData.get(change.getKey());
+            if (entry == null) {
+                removed.add(change.getKey());
+            } else {
+                upserts.put(change.getKey(), entry.getJsonValue());
+            }
+        }
+        return new ChangeSet(version, false, upserts, removed);
+    }
+
+    /**
+     * Splits the value of an "ids" query parameter into station IDs.
+     *
+     * @param ids The comma-separated station IDs, or null
+     * @return The station IDs in the order given, without duplicates, or null if ids is null
+     */
+    protected static List<String> parseIDs(String ids) {
+        if (ids == null) {
+            return null;
+        }
+        Set<String> unique = new LinkedHashSet<>();
+        for (String id : ids.split(",")) {
+            if (!id.trim().isEmpty()) {
+                unique.add(id.trim());
+            }
+        }
+        return new ArrayList<>(unique);
+    }
+
     /**
      * Handles a GET request by returning weather data.
      * If stationID is provided, returns data for that specific station.
@@ -96,20 +879,49 @@ public class AggregationServer {
      * @param stationID Station ID to retrieve data for (optional)
      */
     protected static void handleGetRequest(PrintWriter out, String stationID) {
+        handleGetRequest(out, stationID, null, null);
+    }
+
+    /**
+     * Handles a GET request by returning the selected weather data.
+     * If stationID is provided, returns data for that specific station; otherwise, if ids is
+     * provided, returns the listed stations that have data; otherwise returns all stations.
+     *
+     * @param out        PrintWriter to send the HTTP response to the client
+     * @param stationID  Station ID to retrieve data for (optional)
+     * @param ids        Station IDs to retrieve data for (optional)
+     * @param projection The fields to return for each station, or null for all of them
+     */
+    protected static void handleGetRequest(PrintWriter out, String stationID, List<String> ids,
+                                           WeatherCodec.Projection projection) {
         try {
             System.out.println("Received GET request for stationID: " + stationID);
             String responseBody;
 
+            Object value = stationID != null ? getWeatherValue(stationID) : null;
+
             // Check if stationID exists in the weather data
-            if (stationID != null && weatherData.containsKey(stationID)) {
-                WeatherEntry entry = weatherData.get(stationID);
-                JSONParser parser = new JSONParser();
-                responseBody = parser.stringify(entry.data);
+            if (value != null) {
+                if (projection == null) {
+                    JSONParser parser = new JSONParser();
+                    responseBody = parser.stringify(value);
+                } else {
+                    StringBuilder json = new StringBuilder();
+                    JSONWriter writer = new JSONWriter(json);
+                    WeatherCodec.writeStation(value, writer, projection);
+                    writer.flush();
+                    responseBody = json.toString();
+                }
                 System.out.println("Weather data for stationID " + stationID + " found. Sending data to client.");
-            } 
+            }
+            // Return the listed stations
+            else if ((stationID == null || stationID.isEmpty()) && ids != null) {
+                responseBody = stationsToJson(getWeatherData(ids), projection);
+                System.out.println("Weather data for " + ids.size() + " requested stations found. Sending data to client.");
+            }
             // Return data for all stations if no specific stationID is requested
             else if (stationID == null || stationID.isEmpty()) {
-                responseBody = getAllWeatherDataAsJson();
+                responseBody = projection == null ? getAllWeatherDataAsJson() : stationsToJson(getAllWeatherData(), projection);
                 System.out.println("All weather data found. Sending all stations' data to client.");
             } 
             // Handle stationID not found
@@ -118,12 +930,7 @@ public class AggregationServer {
                 System.out.println("StationID " + stationID + " not found.");
             }
 
-            // Send the HTTP response
-            out.println("HTTP/1.1 200 OK");
-            out.println("Content-Type: application/json");
-            out.println("Content-Length: " + responseBody.length());
-            out.println();  // End of headers
-            out.println(responseBody);  // Send the body
+            sendJsonResponse(out, responseBody);
 
             System.out.println("Response sent to client for stationID: " + (stationID != null ? stationID : "all stations"));
         } catch (Exception e) {
@@ -133,48 +940,196 @@ public class AggregationServer {
     }
 
     /**
-     * Retrieves all weather data and converts it to a JSON string.
-     * @return JSON string containing all weather data
+     * Sends a 200 OK response with a JSON body.
+     *
+     * @param out          PrintWriter to send the HTTP response to the client
+     * @param responseBody The JSON body
      */
-    protected static String getAllWeatherDataAsJson() {
+    protected static void sendJsonResponse(PrintWriter out, String responseBody) {
+        sendJsonResponse(out, "HTTP/1.1 200 OK", responseBody);
+    }
+
+    /**
+     * Sends a response with a JSON body.
+     *
+     * @param out          PrintWriter to send the HTTP response to the client
+     * @param statusLine   The response status line
+     * @param responseBody The JSON body
+     */
+    protected static void sendJsonResponse(PrintWriter out, String statusLine, String responseBody) {
+        out.println(statusLine);
+        out.println("Content-Type: application/json");
+        out.println("Content-Length: " + utf8Length(responseBody));
+        out.println();  // End of headers
+        out.println(responseBody);  // Send the body
+    }
+
+    /**
+     * Counts the bytes a string takes up in UTF-8, without encoding it.
+     *
+     * @param s The string
+     * @return The UTF-8 length in bytes
+     */
+    protected static int utf8Length(String s) {
+        int bytes = s.length();
+        for (int i = 0; i < s.length(); i++) {
+            char c = s.charAt(i);
+            if (c >= 0x800 && !Character.isSurrogate(c)) {
+                bytes += 2;
+            } else if (c >= 0x80) {
+                bytes += 1;  // Two bytes, or a surrogate pair counted as 2 + 2
+            }
+        }
+        return bytes;
+    }
+
+    /**
+     * Looks up the stored weather data for a station. The data is read under the store's lock,
+     * as an off-heap observation must not be read once its entry has been removed.
+     * @param stationID The station ID
+     * @return The weather data, or null if the station has no data
+     */
+    protected static synchronized Object getWeatherValue(String stationID) {
+        WeatherEntry entry = weatherData.get(stationID);
+        return entry != null ? entry.getJsonValue() : null;
+    }
+
+    /**
+     * Retrieves all weather data held on this node, keyed by station ID.
+     * @return A new map of station ID to weather data
+     */
+    protected static synchronized Map<String, Object> getAllWeatherData() {
         Map<String, Object> allWeatherData = new LinkedHashMap<>();
         for (Map.Entry<String, WeatherEntry> entry : weatherData.entrySet()) {
-            allWeatherData.put(entry.getKey(), entry.getValue().data);
+            allWeatherData.put(entry.getKey(), entry.getValue().getJsonValue());
         }
-        JSONParser parser = new JSONParser();
-        return parser.stringify(allWeatherData);
+        return allWeatherData;
     }
 
     /**
-     * Handles a PUT request to add or update weather data.
-     * 
-     * @param in  BufferedReader to read the incoming data
-     * @param out PrintWriter to send the HTTP response
-     * @throws IOException If an I/O error occurs
+     * Retrieves the weather data of the listed stations held on this node.
+     * @param ids The station IDs
+     * @return A new map of station ID to weather data, in the order listed, without stations that have no data
+     */
+    protected static synchronized Map<String, Object> getWeatherData(List<String> ids) {
+        Map<String, Object> selected = new LinkedHashMap<>();
+        for (String id : ids) {
+            WeatherEntry entry = weatherData.get(id);
+            if (entry != null) {
+                selected.put(id, entry.getJsonValue());
+            }
+        }
+        return selected;
+    }
+
+    /**
+     * Retrieves the stations held on this node that satisfy a filter. If secondary indexes
+     * answer some of its conditions, only the stations found through the most selective of
+     * them are checked against the rest; otherwise every station is checked.
+     * @param filter The filter
+     * @param ids    The station IDs to choose from, or null for all stations
+     * @return A new map of station ID to weather data
+     */
+    protected static synchronized Map<String, Object> getFilteredWeatherData(StationFilter filter, List<String> ids) {
+        Set<String> chosen = ids != null ? new HashSet<>(ids) : null;
+        Collection<String> candidates = ids != null ? ids : weatherData.keySet();
+        for (StationFilter.Condition condition : filter.getConditions()) {
+            SecondaryIndex index = secondaryIndexes.get(condition.field);
+            List<String> found = index != null ? index.lookup(condition) : null;
+            if (found != null && found.size() < candidates.size()) {
+                candidates = found;
+            }
+        }
+        Map<String, Object> selected = new LinkedHashMap<>();
+        for (String id : candidates) {
+            WeatherEntry entry = weatherData.get(id);
+            WeatherObservation observation = entry != null ? entry.getObservation() : null;
+            if (observation != null && filter.matches(observation) && (chosen == null || chosen.contains(id))) {
+                selected.put(id, observation);
+            }
+        }
+        return selected;
+    }
+
+    /**
+     * Declares a secondary index on a field and fills it from the stored stations. The index
+     * is then kept up to date as stations are stored and removed.
+     * @param field The field to index
      */
-    protected static void handlePutRequest(BufferedReader in, PrintWriter out) throws IOException {
-        String line;
-        int contentLength = 0;
-        StringBuilder jsonString = new StringBuilder();
+    protected static synchronized void addSecondaryIndex(WeatherObservation.Field field) {
+        SecondaryIndex index = new SecondaryIndex(field);
+        for (Map.Entry<String, WeatherEntry> entry : weatherData.entrySet()) {
+            index.add(entry.getKey(), entry.getValue().getObservation());
+        }
+        secondaryIndexes.put(field, index);
+    }
 
-        // Read the HTTP headers to find the Content-Length
-        while ((line = in.readLine()) != null && !line.isEmpty()) {
-            if (line.startsWith("Content-Length:")) {
-                contentLength = Integer.parseInt(line.split(":")[1].trim());
+    /**
+     * Converts station data keyed by station ID to a JSON string, keeping only the projected
+     * fields. Unprojected observations are copied from the JSON they were received as.
+     * @param stations   The station data
+     * @param projection The fields to write for each station, or null for all of them
+     * @return JSON string containing the station data
+     */
+    protected static String stationsToJson(Map<String, Object> stations, WeatherCodec.Projection projection) {
+        StringBuilder json = new StringBuilder();
+        try {
+            JSONWriter writer = new JSONWriter(json);
+            writer.beginObject();
+            for (Map.Entry<String, Object> station : stations.entrySet()) {
+                writer.name(station.getKey());
+                WeatherCodec.writeStation(station.getValue(), writer, projection);
             }
+            writer.endObject();
+            writer.flush();
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);  // StringBuilder never throws
         }
+        return json.toString();
+    }
 
-        // Read the body based on Content-Length
-        char[] body = new char[contentLength];
-        in.read(body, 0, contentLength);
-        jsonString.append(body);
+    /**
+     * Retrieves all weather data and converts it to a JSON string.
+     * @return JSON string containing all weather data
+     */
+    protected static String getAllWeatherDataAsJson() {
+        JSONParser parser = new JSONParser();
+        return parser.stringify(getAllWeatherData());
+    }
 
-        if (jsonString.toString().isEmpty()) {
+    /**
+     * Handles a PUT request to add or update weather data.
+     * 
+     * @param request The client request carrying the JSON body
+     * @param out     PrintWriter to send the HTTP response
+     */
+    protected static void handlePutRequest(HttpRequest request, PrintWriter out) {
+        if (request.getContentLength() == 0) {
             out.println("HTTP/1.1 204 No Content");
             return;
         }
 
-        processPutRequest(jsonString.toString(), out);
+        // Limit each client before spending anything on its body; relayed requests were limited by the first node
+        if (clientLimiter != null && !isForwardedByPeer(request) && request.getRemoteAddress() != null
+                && !withinLimit(clientLimiter, request.getRemoteAddress(), out)) {
+            return;
+        }
+
+        WeatherObservation observation;
+        try {
+            // Bind the body straight to the weather schema, from JSON or, if the client sent it, the binary format
+            long start = System.nanoTime();
+            observation = BinaryWeatherCodec.isBinary(request.getHeader("Content-Type"))
+                    ? BinaryWeatherCodec.decode(request.getBody()) : WeatherCodec.decode(request.getBody());
+            metrics.recordPutParse(System.nanoTime() - start);
+        } catch (Exception e) {
+            out.println("HTTP/1.1 500 Internal Server Error");
+            System.err.println("Error processing PUT request: " + e.getMessage());
+            return;
+        }
+
+        // Requests relayed by another node are already at their owner
+        processPutRequest(observation, out, isForwardedByPeer(request) ? null : request);
     }
 
     /**
@@ -185,32 +1140,59 @@ public class AggregationServer {
      * @param out        PrintWriter to send the HTTP response
      */
     protected static void processPutRequest(String jsonString, PrintWriter out) {
+        processPutRequest(jsonString, out, null);
+    }
+
+    /**
+     * Processes the weather data from a PUT request. In cluster mode, data for a station owned
+     * by another node is forwarded to that node instead of being stored here.
+     * 
+     * @param jsonString JSON string representing the new weather data
+     * @param out        PrintWriter to send the HTTP response
+     * @param request    The originating request to forward, or null to always store locally
+     */
+    protected static void processPutRequest(String jsonString, PrintWriter out, HttpRequest request) {
         try {
-            JSONParser parser = new JSONParser();
-            Map<String, Object> newWeatherData = (Map<String, Object>) parser.parse(jsonString);
+            processPutRequest(WeatherCodec.decode(jsonString.getBytes(StandardCharsets.UTF_8)), out, request);
+        } catch (Exception e) {
+            out.println("HTTP/1.1 500 Internal Server Error");
+            System.err.println("Error processing PUT request: " + e.getMessage());
+        }
+    }
 
-            if (!newWeatherData.containsKey("id")) {
+    /**
+     * Stores decoded weather data from a PUT request, or forwards it to the owning cluster node.
+     * 
+     * @param observation The weather data as received
+     * @param out         PrintWriter to send the HTTP response
+     * @param request     The originating request to forward, or null to always store locally
+     */
+    protected static void processPutRequest(WeatherObservation observation, PrintWriter out, HttpRequest request) {
+        try {
+            String id = observation.getId();
+            if (id == null) {
                 out.println("HTTP/1.1 400 Bad Request");
                 return;
             }
 
-            String id = (String) newWeatherData.get("id");
-
-            // Add timestamps and Lamport clock to the new data entry
-            newWeatherData.put("lastUpdated", System.currentTimeMillis());
-
-            boolean isNewEntry = !weatherData.containsKey(id);
-            weatherData.remove(id);  // Remove the old entry if it exists
+            if (request != null && cluster != null && !cluster.isLocal(id)) {
+                cluster.forward(cluster.ownerOf(id), request, out);  // The body is already buffered
+                return;
+            }
 
-            weatherData.put(id, new WeatherEntry(newWeatherData, System.currentTimeMillis(), lamportClock.getTime()));
-            lamportClock.tick();  // Increment Lamport clock after data change
+            // Each station is limited by the node that stores it
+            if (stationLimiter != null && !withinLimit(stationLimiter, id, out)) {
+                return;
+            }
 
-            maintainMaxEntries();  // Ensure no more than MAX_ENTRIES exist
-            saveDataToFile();
+            boolean isNewEntry = storeWeatherData(id, observation);
 
             // Respond with appropriate status code
             out.println(isNewEntry ? "HTTP/1.1 201 Created" : "HTTP/1.1 200 OK");
 
+        } catch (StaleUpdateException e) {
+            // Tell the sender the time it must pass, so that it can catch its clock up
+            sendJsonResponse(out, "HTTP/1.1 409 Conflict", "{\"lamportTime\":" + e.storedTime + "}");
         } catch (Exception e) {
             out.println("HTTP/1.1 500 Internal Server Error");
             System.err.println("Error processing PUT request: " + e.getMessage());
@@ -218,14 +1200,242 @@ public class AggregationServer {
     }
 
     /**
-     * Ensures that the number of weather entries does not exceed the maximum limit.
-     * If the limit is exceeded, the oldest entry is removed.
+     * Takes a token for a source from a rate limiter, or answers 429 Too Many Requests with a
+     * Retry-After header giving the seconds until the source may send again.
+     *
+     * @param limiter The rate limiter
+     * @param source  The station ID or client address
+     * @param out     PrintWriter to send the HTTP response
+     * @return true if the request may proceed
+     */
+    protected static boolean withinLimit(RateLimiter limiter, String source, PrintWriter out) {
+        long wait = limiter.acquire(source);
+        if (wait == 0) {
+            return true;
+        }
+        out.println("HTTP/1.1 429 Too Many Requests");
+        out.println("Retry-After: " + RateLimiter.retryAfterSeconds(wait));
+        out.println();  // End of headers
+        return false;
+    }
+
+    /**
+     * Stores new weather data for a station, replacing any previous entry, and persists the store.
+     * Data stamped by its sender with a Lamport time no later than that of the stored data is
+     * out of date, e.g. a retried or reordered PUT, and is rejected without touching the store.
+     * 
+     * @param id          The station ID
+     * @param observation The station's weather data
+     * @return true if the station had no previous entry
+     * @throws StaleUpdateException If the stored data is at least as recent
+     * @throws Exception If the data cannot be saved
+     */
+    protected static synchronized boolean storeWeatherData(String id, WeatherObservation observation) throws Exception {
+        long senderTime = observation.getLamportTime() != null ? observation.getLamportTime().longValue() : -1;
+        WeatherEntry stored = weatherData.get(id);
+        if (stored != null && senderTime >= 0 && senderTime <= stored.senderTime) {
+            throw new StaleUpdateException(stored.senderTime);
+        }
+
+        // Merge the sender's Lamport time into the clock; the entry is stamped with the receive event
+        long lamportTime = senderTime >= 0 ? lamportClock.update(senderTime) : lamportClock.tick();
+        // A hybrid clock's physical time never steps back, unlike the wall clock
+        observation.setLastUpdated(lamportClock.isHybrid() ? LamportClock.physicalTime(lamportTime) : System.currentTimeMillis());
+
+        WeatherEntry previous = weatherData.remove(id);  // Remove the old entry if it exists
+        boolean isNewEntry = previous == null;
+        if (previous != null) {
+            unindexEntry(id, previous);
+        }
+
+        WeatherEntry entry = new WeatherEntry(observation, lamportTime);
+        weatherData.put(id, entry);
+        indexEntry(id, entry, observation);
+        if (historyCapacity > 0) {
+            histories.computeIfAbsent(id, key -> new StationHistory(historyCapacity, historyMaxAge))
+                    .add(observation, lamportTime);
+        }
+        changeFeed.recordUpsert(id);
+
+        maintainMaxEntries();  // Ensure no more than maxEntries exist
+        persist();
+        return isNewEntry;
+    }
+
+    /**
+     * Persists the store after a change. With a coalescing window, the save is deferred until
+     * the window has passed, and every change made meanwhile is written by that one save, so a
+     * burst of PUTs costs one file write rather than one each.
+     *
+     * @throws IOException If the data cannot be saved
+     */
+    protected static synchronized void persist() throws IOException {
+        if (coalesceMillis <= 0) {
+            saveDataToFile();
+        } else if (!savePending) {
+            savePending = true;
+            saveScheduler().schedule(AggregationServer::savePendingChanges, coalesceMillis, TimeUnit.MILLISECONDS);
+        }
+    }
+
+    /**
+     * Writes the changes held back by {@link #persist()}, if any.
+     */
+    protected static synchronized void savePendingChanges() {
+        if (!savePending) {
+            return;
+        }
+        savePending = false;
+        try {
+            saveDataToFile();
+        } catch (IOException e) {
+            System.err.println("Error saving coalesced changes: " + e.getMessage());
+        }
+    }
+
+    private static synchronized ScheduledExecutorService saveScheduler() {
+        if (saveScheduler == null) {
+            saveScheduler = Executors.newSingleThreadScheduledExecutor(task -> {
+                Thread thread = new Thread(task, "coalesced-save");
+                thread.setDaemon(true);  // Pending changes are saved by the shutdown hook instead
+                return thread;
+            });
+        }
+        return saveScheduler;
+    }
+
+    /**
+     * Thrown when a PUT carries data older than the data already stored for its station.
+     */
+    static class StaleUpdateException extends Exception {
+        final long storedTime;  // The sender's Lamport time of the stored data
+
+        StaleUpdateException(long storedTime) {
+            super("Stored data has Lamport time " + storedTime);
+            this.storedTime = storedTime;
+        }
+    }
+
+    /**
+     * Handles cluster membership requests sent between nodes: health-check pings
+     * and join or leave announcements carrying the sender's address.
+     *
+     * @param request The request from another node
+     * @param out     PrintWriter to send the HTTP response
+     */
+    protected static void handleClusterRequest(HttpRequest request, PrintWriter out) {
+        if (cluster == null) {
+            out.println("HTTP/1.1 404 Not Found");
+            return;
+        }
+
+        String node = request.getHeader("X-Cluster-Node");
+        switch (request.getPath()) {
+            case "/cluster/ping":
+                out.println("HTTP/1.1 200 OK");
+                break;
+            case "/cluster/join":
+                cluster.nodeJoined(node);
+                out.println("HTTP/1.1 200 OK");
+                break;
+            case "/cluster/leave":
+                cluster.markDown(node);
+                out.println("HTTP/1.1 200 OK");
+                break;
+            default:
+                out.println("HTTP/1.1 404 Not Found");
+        }
+    }
+
+    /**
+     * Hands off every station this node no longer owns to its new owner after the cluster
+     * ring changes. A station is removed locally only once its new owner has accepted it.
+     */
+    protected static void rebalance() {
+        if (cluster == null) {
+            return;
+        }
+
+        JSONParser parser = new JSONParser();
+        Map<String, Object> localData = getAllWeatherData();
+        int movedEntries = 0;
+
+        for (Map.Entry<String, Object> entry : localData.entrySet()) {
+            String stationID = entry.getKey();
+            String owner = cluster.ownerOf(stationID);
+            if (!owner.equals(cluster.getSelf()) && cluster.handOff(owner, parser.stringify(entry.getValue()))) {
+                removeWeatherEntry(stationID);
+                movedEntries++;
+            }
+        }
+
+        if (movedEntries > 0) {
+            System.out.println("Handed off " + movedEntries + " stations after cluster change.");
+            try {
+                saveDataToFile();
+            } catch (IOException e) {
+                System.err.println("Error saving data after rebalancing: " + e.getMessage());
+            }
+        }
+    }
+
+    /**
+     * Adds a newly stored observation to the aggregates and indexes. Called with the store locked.
+     * @param stationID   The station ID
+     * @param entry       The stored entry
+     * @param observation The entry's observation, as stored
+     */
+    private static void indexEntry(String stationID, WeatherEntry entry, WeatherObservation observation) {
+        lamportOrder.add(stationID, entry.lamportTime);
+        aggregates.add(observation);
+        spatialIndex.put(stationID, observation);
+        for (SecondaryIndex index : secondaryIndexes.values()) {
+            index.add(stationID, observation);
+        }
+    }
+
+    /**
+     * Removes a replaced or removed entry from the aggregates and indexes, and releases its
+     * observation. Called with the store locked.
+     * @param stationID The station ID
+     * @param entry     The entry that has left the store
+     */
+    private static void unindexEntry(String stationID, WeatherEntry entry) {
+        WeatherObservation observation = entry.getObservation();
+        lamportOrder.remove(stationID, entry.lamportTime);
+        aggregates.remove(observation);
+        spatialIndex.remove(stationID);
+        for (SecondaryIndex index : secondaryIndexes.values()) {
+            index.remove(stationID, observation);
+        }
+        entry.free();
+    }
+
+    /**
+     * Removes the stored entry for a station.
+     * @param stationID The station ID
+     */
+    protected static synchronized void removeWeatherEntry(String stationID) {
+        histories.remove(stationID);
+        WeatherEntry removed = weatherData.remove(stationID);
+        if (removed != null) {
+            unindexEntry(stationID, removed);
+            changeFeed.recordRemoval(stationID);
+        }
+    }
+
+    /**
+     * Ensures that the number of weather entries does not exceed the maximum limit (maxEntries).
+     * If the limit is exceeded, the oldest entry is removed. A limit of 0 keeps every station.
      */
     protected static void maintainMaxEntries() {
-        if (weatherData.size() > MAX_ENTRIES) {
+        if (maxEntries > 0 && weatherData.size() > maxEntries) {
             String oldestEntryId = weatherData.keySet().iterator().next();
             System.out.println("Removing oldest entry: " + oldestEntryId);
-            weatherData.remove(oldestEntryId);
+            unindexEntry(oldestEntryId, weatherData.remove(oldestEntryId));
+            histories.remove(oldestEntryId);
+            changeFeed.recordRemoval(oldestEntryId);
+            metrics.recordEviction();
         }
     }
 
@@ -233,27 +1443,47 @@ public class AggregationServer {
      * Loads weather data from a JSON file into the weatherData map.
      * If the file does not exist or cannot be read, the method logs an error.
      */
-    protected static void loadDataFromFile() {
-        File file = new File(FILE_PATH);
+    protected static synchronized void loadDataFromFile() {
+        File file = new File(dataFilePath);
         if (file.exists()) {
-            try (BufferedReader reader = new BufferedReader(new FileReader(file))) {
-                StringBuilder jsonData = new StringBuilder();
-                String line;
-                while ((line = reader.readLine()) != null) {
-                    jsonData.append(line);
+            try (InputStream in = new FileInputStream(file)) {
+                // Stream the snapshot one station at a time rather than reading the whole file
+                JSONParser parser = new JSONParser(in);
+                if (parser.nextToken() != JSONParser.Token.START_OBJECT) {
+                    throw new Exception("Expected a JSON object in " + dataFilePath);
                 }
 
-                JSONParser parser = new JSONParser();
-                Map<String, Map<String, Object>> rawData = (Map<String, Map<String, Object>>) parser.parse(jsonData.toString());
-
+                for (WeatherEntry entry : weatherData.values()) {
+                    entry.free();
+                }
                 weatherData.clear();  // Clear current data before loading from file
+                histories.clear();
+                lamportOrder.clear();
+                aggregates.clear();
+                spatialIndex.clear();
+                for (SecondaryIndex index : secondaryIndexes.values()) {
+                    index.clear();
+                }
+                changeFeed.reset();  // Clients must take a full snapshot of the loaded data
 
-                for (Map.Entry<String, Map<String, Object>> entry : rawData.entrySet()) {
-                    String stationID = entry.getKey();
-                    Map<String, Object> weatherInfo = entry.getValue();
-                    long lastUpdated = (long) weatherInfo.get("lastUpdated");
-                    int lamportTime = ((Number) weatherInfo.get("lamportTime")).intValue();
-                    weatherData.put(stationID, new WeatherEntry(weatherInfo, lastUpdated, lamportTime));
+                while (parser.nextToken() == JSONParser.Token.FIELD_NAME) {
+                    String stationID = parser.currentString();
+                    if (parser.nextToken() != JSONParser.Token.START_OBJECT) {
+                        throw new Exception("Expected an object for station " + stationID);
+                    }
+                    WeatherObservation observation = WeatherCodec.read(parser);
+                    // The entry is stamped with the server's time; the sender's lamportTime stays
+                    // with the observation, so stale updates are still spotted after a restart
+                    Object serverTime = observation.removeExtra(WeatherCodec.SERVER_TIME);
+                    long lamportTime = serverTime instanceof Number ? ((Number) serverTime).longValue()
+                            : observation.getLamportTime() != null ? observation.getLamportTime().longValue() : 0;  // A file saved without it
+                    lamportClock.updateTime(lamportTime);  // Later updates are ordered after the loaded ones
+                    WeatherEntry entry = new WeatherEntry(observation, lamportTime);
+                    WeatherEntry previous = weatherData.put(stationID, entry);
+                    if (previous != null) {
+                        unindexEntry(stationID, previous);  // A station repeated in the file
+                    }
+                    indexEntry(stationID, entry, observation);
                 }
 
             } catch (Exception e) {
@@ -264,27 +1494,34 @@ public class AggregationServer {
 
     /**
      * Saves weather data to a JSON file, ensuring atomic write with a temporary file.
-     * Data is sorted by Lamport clock values in descending order before saving.
+     * Data is saved in descending order of Lamport clock values, as kept by lamportOrder.
      */
-    protected static void saveDataToFile() throws IOException {
-        File tempFile = new File(FILE_PATH + ".tmp");
-        File originalFile = new File(FILE_PATH);
-
-        // Sort weather data by Lamport timestamp in descending order
-        List<Map.Entry<String, WeatherEntry>> sortedEntries = new ArrayList<>(weatherData.entrySet());
-        sortedEntries.sort((entry1, entry2) -> Integer.compare(entry2.getValue().lamportTime, entry1.getValue().lamportTime));
-
-        // Prepare the data to be saved
-        Map<String, Map<String, Object>> dataToSave = new LinkedHashMap<>();
-        for (Map.Entry<String, WeatherEntry> entry : sortedEntries) {
-            dataToSave.put(entry.getKey(), entry.getValue().data);
+    protected static synchronized void saveDataToFile() throws IOException {
+        long start = System.nanoTime();
+        try {
+            writeDataFile();
+        } finally {
+            metrics.recordSave(System.nanoTime() - start);
         }
+    }
 
-        try (FileWriter fileWriter = new FileWriter(tempFile)) {
-            JSONParser parser = new JSONParser();
-            String jsonString = parser.stringify(dataToSave, 2);  // Pretty print JSON with indentation
-            fileWriter.write(jsonString);
-            fileWriter.flush();
+    // Writes the snapshot to a temporary file and renames it over the data file
+    private static void writeDataFile() throws IOException {
+        File tempFile = new File(dataFilePath + ".tmp");
+        File originalFile = new File(dataFilePath);
+
+        // Stream the snapshot to the file as UTF-8, pretty-printed, without building it as a String,
+        // in descending order of Lamport timestamp; each entry keeps the server's time next to the sender's
+        try (FileOutputStream fileOut = new FileOutputStream(tempFile)) {
+            JSONWriter writer = new JSONWriter(fileOut, true);
+            writer.beginObject();
+            for (String stationID : lamportOrder.ids()) {
+                WeatherEntry entry = weatherData.get(stationID);
+                writer.name(stationID);
+                WeatherCodec.writeStored(entry.getObservation(), entry.lamportTime, writer);
+            }
+            writer.endObject();
+            writer.flush();
         } catch (Exception e) {
             System.err.println("Error saving data to temporary file: " + e.getMessage());
             return;
@@ -305,10 +1542,10 @@ public class AggregationServer {
      * Removes weather data entries that have not been updated within the expiration time (30 seconds).
      * The method checks the timestamps of each entry and deletes expired entries.
      */
-    protected static void removeExpiredEntries() {
+    protected static synchronized void removeExpiredEntries() {
         long currentTime = System.currentTimeMillis();
         Iterator<Map.Entry<String, WeatherEntry>> iterator = weatherData.entrySet().iterator();
-        boolean entriesRemoved = false;
+        int entriesRemoved = 0;
 
         // Iterate over the weather data entries and remove expired ones
         while (iterator.hasNext()) {
@@ -316,30 +1553,95 @@ public class AggregationServer {
             if ((currentTime - entry.getValue().lastUpdated) > EXPIRATION_TIME * 1000) {
                 System.out.println("Removing stale entry for station id: " + entry.getKey());
                 iterator.remove();
-                entriesRemoved = true;
+                unindexEntry(entry.getKey(), entry.getValue());
+                histories.remove(entry.getKey());
+                changeFeed.recordRemoval(entry.getKey());
+                entriesRemoved++;
             }
         }
+        metrics.recordExpirations(entriesRemoved);
 
         // Save updated data to file if any entries were removed
-        if (entriesRemoved) {
+        if (entriesRemoved > 0) {
             try {
-                saveDataToFile();
+                persist();
             } catch (IOException e) {
                 System.err.println("Error saving updated data after removing expired entries: " + e.getMessage());
             }
         }
     }
 
+    // The changes to the store since a client last saw it, as returned by /weather/changes
+    static class ChangeSet {
+        final long version;  // Version of the store the changes bring the client up to
+        final boolean full;  // True if upserts holds the whole store
+        final Map<String, Object> upserts;  // Station ID -> its weather data
+        final List<String> removed;  // Station IDs
+
+        ChangeSet(long version, boolean full, Map<String, Object> upserts, List<String> removed) {
+            this.version = version;
+            this.full = full;
+            this.upserts = upserts;
+            this.removed = removed;
+        }
+
+        String toJson(WeatherCodec.Projection projection) {
+            StringBuilder json = new StringBuilder();
+            try {
+                JSONWriter writer = new JSONWriter(json);
+                writer.beginObject();
+                writer.name("version");
+                writer.write(version);
+                writer.name("full");
+                writer.write(full);
+                writer.name("upserts");
+                writer.beginObject();
+                for (Map.Entry<String, Object> station : upserts.entrySet()) {
+                    writer.name(station.getKey());
+                    WeatherCodec.writeStation(station.getValue(), writer, projection);
+                }
+                writer.endObject();
+                writer.name("removed");
+                writer.write(removed);
+                writer.endObject();
+                writer.flush();
+            } catch (IOException e) {
+                throw new UncheckedIOException(e);  // StringBuilder never throws
+            }
+            return json.toString();
+        }
+    }
+
     // WeatherEntry class representing individual weather data with a timestamp and Lamport clock value
+    // Data received by PUT is kept as a WeatherObservation decoded by WeatherCodec rather than a Map
+    // The observation itself is held by observationStore, on or off the heap, behind a handle
     static class WeatherEntry {
-        Map<String, Object> data;
+        Object handle;
         long lastUpdated;
-        int lamportTime;
+        long lamportTime;
+        long senderTime;  // The sender's Lamport time, or -1 if it sent none; kept to spot stale updates cheaply
 
-        WeatherEntry(Map<String, Object> data, long lastUpdated, int lamportTime) {
-            this.data = data;
-            this.lastUpdated = lastUpdated;
+        WeatherEntry(WeatherObservation observation, long lamportTime) {
+            this.handle = observationStore.put(observation);
+            this.lastUpdated = observation.getLastUpdated();
             this.lamportTime = lamportTime;
+            this.senderTime = observation.getLamportTime() != null ? observation.getLamportTime().longValue() : -1;
+        }
+
+        WeatherObservation getObservation() {
+            WeatherObservation observation = observationStore.get(handle);
+            observation.setLastUpdated(lastUpdated);  // Not kept by the off-heap store
+            return observation;
+        }
+
+        // Releases the observation once the entry has left the store
+        void free() {
+            observationStore.free(handle);
+        }
+
+        // Returns the value to serialize; JSONWriter encodes it with WeatherCodec
+        Object getJsonValue() {
+            return getObservation();
         }
     }
 }
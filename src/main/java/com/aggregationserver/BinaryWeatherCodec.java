@@ -0,0 +1,258 @@
+package com.aggregationserver;
+
+import java.io.ByteArrayOutputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.BufferUnderflowException;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * A compact binary encoding of {@link WeatherObservation}s, an alternative to JSON for PUT
+ * bodies, sent with the Content-Type CONTENT_TYPE. Decoding needs no tokenizing, escaping or
+ * field name lookups: each schema field is found by its position in a bitmap and its text is
+ * copied straight into the observation.
+ * <p>
+ * An observation is one frame, big-endian:
+ * <pre>
+ * u32  length of the rest of the frame
+ * u8   format version (VERSION)
+ * u32  bitmap of the schema fields present, bit n for the field with ordinal n
+ * u32  bitmap of the present fields whose value is a number rather than a string
+ * u8   flags: FLAG_LAMPORT_TIME, FLAG_EXTRA
+ * i64  the sender's Lamport time, if FLAG_LAMPORT_TIME
+ * then for each present field, in ordinal order: u16 length, UTF-8 text (JSON number text if numeric)
+ * then if FLAG_EXTRA: u16 count, and for each field outside the schema:
+ *      u16 length, UTF-8 name, u32 length, the value as UTF-8 JSON
+ * </pre>
+ * A field added to the schema is appended to {@link WeatherObservation.Field} and comes with a
+ * new VERSION, so a decoder reads any frame of its own version or older and rejects newer ones.
+ */
+public class BinaryWeatherCodec {
+
+    protected static final String CONTENT_TYPE = "application/x-weather-observation";  // Content-Type of binary PUT bodies
+    protected static final int VERSION = 1;  // Format version written by this class
+    protected static final int FLAG_LAMPORT_TIME = 1;  // The frame carries the sender's Lamport time
+    protected static final int FLAG_EXTRA = 2;  // The frame carries fields outside the schema
+
+    private static final WeatherObservation.Field[] FIELDS = WeatherObservation.Field.values();
+
+    /**
+     * Returns true if a Content-Type names this encoding, ignoring any parameters.
+     *
+     * @param contentType The Content-Type header value, or null
+     * @return true for binary observations
+     */
+    public static boolean isBinary(String contentType) {
+        if (contentType == null) {
+            return false;
+        }
+        int semicolon = contentType.indexOf(';');
+        return (semicolon < 0 ? contentType : contentType.substring(0, semicolon)).trim().equalsIgnoreCase(CONTENT_TYPE);
+    }
+
+    /**
+     * Encodes weather data, as read from a station file and stamped with a Lamport time, as one
+     * frame. Schema fields with string values are sent as strings and those with numeric values
+     * as numbers; "lamportTime" is sent in its own slot and anything else as an extra field.
+     *
+     * @param weatherData The weather data
+     * @return The frame
+     */
+    public static byte[] encode(Map<String, Object> weatherData) {
+        WeatherObservation observation = new WeatherObservation();
+        for (Map.Entry<String, Object> entry : weatherData.entrySet()) {
+            WeatherObservation.Field field = WeatherObservation.Field.forName(entry.getKey());
+            Object value = entry.getValue();
+            if (field != null && value instanceof String) {
+                observation.set(field, (String) value);
+            } else if (field != null && value instanceof Number && Double.isFinite(((Number) value).doubleValue())) {
+                observation.setNumber(field, value.toString());
+            } else if (entry.getKey().equals(WeatherCodec.LAMPORT_TIME) && value instanceof Number) {
+                observation.setLamportTime(((Number) value).longValue());
+            } else {
+                observation.putExtra(entry.getKey(), value);
+            }
+        }
+        return encode(observation);
+    }
+
+    /**
+     * Encodes an observation as one frame. Its lastUpdated is not sent, as the server sets it.
+     *
+     * @param observation The observation
+     * @return The frame
+     */
+    public static byte[] encode(WeatherObservation observation) {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream(256);
+        try (DataOutputStream out = new DataOutputStream(bytes)) {
+            out.writeInt(0);  // The length, filled in below
+            out.writeByte(VERSION);
+            int present = 0;
+            int numeric = 0;
+            for (WeatherObservation.Field field : FIELDS) {
+                if (observation.get(field) != null) {
+                    present |= 1 << field.ordinal();
+                    numeric |= observation.isNumeric(field) ? 1 << field.ordinal() : 0;
+                }
+            }
+            out.writeInt(present);
+            out.writeInt(numeric);
+            Map<String, Object> extra = observation.getExtra();
+            out.writeByte((observation.getLamportTime() != null ? FLAG_LAMPORT_TIME : 0) | (!extra.isEmpty() ? FLAG_EXTRA : 0));
+            if (observation.getLamportTime() != null) {
+                out.writeLong(observation.getLamportTime().longValue());
+            }
+            for (WeatherObservation.Field field : FIELDS) {
+                if (observation.get(field) != null) {
+                    writeText(out, observation.get(field));
+                }
+            }
+            if (!extra.isEmpty()) {
+                out.writeShort(extra.size());
+                for (Map.Entry<String, Object> entry : extra.entrySet()) {
+                    writeText(out, entry.getKey());
+                    byte[] json = JSONWriter.toJson(entry.getValue(), false).getBytes(StandardCharsets.UTF_8);
+                    out.writeInt(json.length);
+                    out.write(json);
+                }
+            }
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);  // ByteArrayOutputStream never throws
+        }
+        byte[] frame = bytes.toByteArray();
+        ByteBuffer.wrap(frame).putInt(0, frame.length - Integer.BYTES);
+        return frame;
+    }
+
+    /**
+     * Decodes a body holding exactly one frame.
+     *
+     * @param frame The frame
+     * @return The observation
+     * @throws Exception If the frame is truncated, malformed or of a newer version
+     */
+    public static WeatherObservation decode(byte[] frame) throws Exception {
+        ByteBuffer in = ByteBuffer.wrap(frame);
+        try {
+            int length = in.getInt();
+            if (length != in.remaining()) {
+                throw new Exception("Frame length " + length + " does not match the " + in.remaining() + " bytes sent");
+            }
+            int version = in.get() & 0xFF;
+            if (version < 1 || version > VERSION) {
+                throw new Exception("Unsupported binary observation version " + version);
+            }
+            int present = in.getInt();
+            int numeric = in.getInt();
+            int flags = in.get();
+            if ((present >>> FIELDS.length) != 0 || (numeric & ~present) != 0) {
+                throw new Exception("Unknown fields in binary observation");
+            }
+
+            WeatherObservation observation = new WeatherObservation();
+            if ((flags & FLAG_LAMPORT_TIME) != 0) {
+                observation.setLamportTime(in.getLong());
+            }
+            for (WeatherObservation.Field field : FIELDS) {
+                if ((present & (1 << field.ordinal())) == 0) {
+                    continue;
+                }
+                String text = readText(in, in.getShort() & 0xFFFF);
+                if ((numeric & (1 << field.ordinal())) == 0) {
+                    observation.set(field, text);
+                } else if (isJsonNumber(text)) {
+                    observation.setNumber(field, text);
+                } else {
+                    throw new Exception("Invalid number for " + field.jsonName() + ": " + text);
+                }
+            }
+            if ((flags & FLAG_EXTRA) != 0) {
+                Map<String, Object> extra = new LinkedHashMap<>();
+                for (int count = in.getShort() & 0xFFFF; count > 0; count--) {
+                    String name = readText(in, in.getShort() & 0xFFFF);
+                    int jsonLength = in.getInt();
+                    if (jsonLength < 0 || jsonLength > in.remaining()) {
+                        throw new Exception("Truncated binary observation");
+                    }
+                    extra.put(name, new JSONParser().parse(frame, in.position(), jsonLength));
+                    in.position(in.position() + jsonLength);
+                }
+                for (Map.Entry<String, Object> entry : extra.entrySet()) {
+                    observation.putExtra(entry.getKey(), entry.getValue());
+                }
+            }
+            if (in.hasRemaining()) {
+                throw new Exception("Unexpected bytes after binary observation");
+            }
+            return observation;
+        } catch (BufferUnderflowException e) {
+            throw new Exception("Truncated binary observation");
+        }
+    }
+
+    private static void writeText(DataOutputStream out, String text) throws IOException {
+        byte[] utf8 = text.getBytes(StandardCharsets.UTF_8);
+        if (utf8.length > 0xFFFF) {
+            throw new IllegalArgumentException("Value too long for a binary observation: " + utf8.length + " bytes");
+        }
+        out.writeShort(utf8.length);
+        out.write(utf8);
+    }
+
+    private static String readText(ByteBuffer in, int length) throws Exception {
+        if (length > in.remaining()) {
+            throw new Exception("Truncated binary observation");
+        }
+        String text = new String(in.array(), in.position(), length, StandardCharsets.UTF_8);
+        in.position(in.position() + length);
+        return text;
+    }
+
+    /**
+     * Checks text against the JSON number grammar, so that a numeric field is written back as
+     * valid JSON.
+     */
+    private static boolean isJsonNumber(String text) {
+        int i = 0;
+        int n = text.length();
+        if (i < n && text.charAt(i) == '-') {
+            i++;
+        }
+        if (i < n && text.charAt(i) == '0') {
+            i++;
+        } else if (i < n && text.charAt(i) >= '1' && text.charAt(i) <= '9') {
+            while (i < n && text.charAt(i) >= '0' && text.charAt(i) <= '9') {
+                i++;
+            }
+        } else {
+            return false;
+        }
+        if (i < n && text.charAt(i) == '.') {
+            int start = ++i;
+            while (i < n && text.charAt(i) >= '0' && text.charAt(i) <= '9') {
+                i++;
+            }
+            if (i == start) {
+                return false;
+            }
+        }
+        if (i < n && (text.charAt(i) == 'e' || text.charAt(i) == 'E')) {
+            i++;
+            if (i < n && (text.charAt(i) == '+' || text.charAt(i) == '-')) {
+                i++;
+            }
+            int start = i;
+            while (i < n && text.charAt(i) >= '0' && text.charAt(i) <= '9') {
+                i++;
+            }
+            if (i == start) {
+                return false;
+            }
+        }
+        return i == n;
+    }
+}
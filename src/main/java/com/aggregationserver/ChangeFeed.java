@@ -0,0 +1,157 @@
+package com.aggregationserver;
+
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * A bounded, in-memory record of recent changes to the weather store, so that clients mirroring
+ * the store can fetch just what changed since the version they last saw instead of everything.
+ * Each change is a station being stored (an upsert) or removed (e.g. expired).
+ * <p>
+ * Every change advances the feed's version, a logical clock of the store's changes. Unlike the
+ * server's Lamport clock, it also counts removals, so that each version names one state of the
+ * store. It starts at the wall-clock time in microseconds, so that versions keep increasing
+ * across a restart and a client's version from before one is recognised as unknown.
+ * <p>
+ * The changes are kept in a ring of fixed capacity. Once a change has been overwritten, clients
+ * whose version is older than it can no longer be brought up to date incrementally and must
+ * take a full snapshot instead; {@link #since(long)} reports this by returning null.
+ */
+public class ChangeFeed {
+
+    protected static final int DEFAULT_CAPACITY = 4096;  // Changes kept for incremental catch-up
+
+    private final String[] stationIDs;  // Ring of changed station IDs
+    private final long[] versions;  // Ring of change versions, increasing from the oldest
+    private final boolean[] removals;  // Ring of change kinds: true if the station was removed
+    private int next;  // Ring index of the next change
+    private int count;  // Changes in the ring
+    private long version;  // Version of the latest change
+    private long floor;  // Oldest version from which the changes are all recorded
+
+    /**
+     * Creates an empty feed.
+     *
+     * @param capacity The number of changes kept
+     */
+    public ChangeFeed(int capacity) {
+        this.stationIDs = new String[capacity];
+        this.versions = new long[capacity];
+        this.removals = new boolean[capacity];
+        this.version = System.currentTimeMillis() * 1000;
+        this.floor = version;
+    }
+
+    /**
+     * Records that a station was stored.
+     *
+     * @param stationID The station ID
+     */
+    public synchronized void recordUpsert(String stationID) {
+        record(stationID, false);
+    }
+
+    /**
+     * Records that a station was removed.
+     *
+     * @param stationID The station ID
+     */
+    public synchronized void recordRemoval(String stationID) {
+        record(stationID, true);
+    }
+
+    /**
+     * Forgets every recorded change, e.g. after the store was replaced from a file, so that
+     * every client that saw the store before takes a full snapshot.
+     */
+    public synchronized void reset() {
+        count = 0;
+        version++;
+        floor = version;
+        notifyAll();
+    }
+
+    /**
+     * Returns the version of the latest change.
+     *
+     * @return The current version
+     */
+    public synchronized long getVersion() {
+        return version;
+    }
+
+    /**
+     * Waits until there are changes after a version.
+     *
+     * @param since         The version
+     * @param timeoutMillis The longest time to wait, in milliseconds
+     * @return True if the feed has moved past the version, false if the wait timed out
+     * @throws InterruptedException If the waiting thread is interrupted
+     */
+    public synchronized boolean awaitChange(long since, long timeoutMillis) throws InterruptedException {
+        long deadline = System.currentTimeMillis() + timeoutMillis;
+        while (version <= since) {
+            long remaining = deadline - System.currentTimeMillis();
+            if (remaining <= 0) {
+                return false;
+            }
+            wait(remaining);
+        }
+        return true;
+    }
+
+    /**
+     * Returns the stations changed after a version, each with its latest change.
+     *
+     * @param since The version of the store the client last saw
+     * @return Station ID to true if removed or false if stored, in the order of their latest
+     *         changes; or null if some of those changes are no longer recorded, or the version
+     *         is not one this feed has issued
+     */
+    public synchronized Map<String, Boolean> since(long since) {
+        if (since < floor || since > version) {
+            return null;
+        }
+
+        // Versions increase along the ring, so find the first change to return by bisection
+        int low = 0;
+        int high = count;
+        while (low < high) {
+            int middle = (low + high) >>> 1;
+            if (versions[index(middle)] <= since) {
+                low = middle + 1;
+            } else {
+                high = middle;
+            }
+        }
+
+        Map<String, Boolean> changes = new LinkedHashMap<>();
+        for (int i = low; i < count; i++) {
+            int index = index(i);
+            changes.remove(stationIDs[index]);  // Re-insert so that the latest change sets the order
+            changes.put(stationIDs[index], removals[index]);
+        }
+        return changes;
+    }
+
+    /**
+     * Returns the ring index of the i-th oldest change.
+     */
+    private int index(int i) {
+        return (next - count + i + versions.length) % versions.length;
+    }
+
+    private void record(String stationID, boolean removed) {
+        if (count == versions.length) {
+            floor = versions[next];  // Overwriting the oldest change
+        } else {
+            count++;
+        }
+        version++;
+        stationIDs[next] = stationID;
+        versions[next] = version;
+        removals[next] = removed;
+        next = (next + 1) % versions.length;
+        notifyAll();
+    }
+}
@@ -0,0 +1,369 @@
+package com.aggregationserver;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.PrintWriter;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.Socket;
+import java.net.UnknownHostException;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * The ClusterManager runs an AggregationServer as one shard of a station-partitioned cluster.
+ * Station IDs are assigned to nodes with a consistent-hash ring. Requests for stations owned
+ * by another node are forwarded to it, GET /weather is answered by gathering every shard,
+ * and the ring is rebuilt (and stations handed off) whenever a node joins or leaves.
+ */
+public class ClusterManager {
+
+    protected static final int HEALTH_CHECK_INTERVAL = 5;  // Seconds between peer health checks
+    protected static final int CONNECT_TIMEOUT = 2000;  // Milliseconds to wait when connecting to a peer
+    protected static final int READ_TIMEOUT = 5000;  // Milliseconds to wait for a peer's response
+
+    private final String self;  // This node's address in the form "host:port"
+    private final Set<String> peers = ConcurrentHashMap.newKeySet();  // Every other known node
+    private final ConsistentHashRing ring = new ConsistentHashRing();  // Live nodes, including this one
+    private Runnable membershipListener = () -> { };  // Called after the ring changes
+    private final ExecutorService rebalancer = Executors.newSingleThreadExecutor();  // Runs the listener off request threads
+    private ScheduledExecutorService healthChecker;
+
+    /**
+     * Creates a cluster manager. All peers start out as live members of the ring.
+     *
+     * @param self  This node's address in the form "host:port"
+     * @param peers Addresses of the other nodes in the cluster
+     */
+    public ClusterManager(String self, List<String> peers) {
+        this.self = self;
+        ring.addNode(self);
+        for (String peer : peers) {
+            if (!peer.equals(self)) {
+                this.peers.add(peer);
+                ring.addNode(peer);
+            }
+        }
+    }
+
+    /**
+     * Sets the callback invoked after the ring changes, used to hand off stations to their new owners.
+     * The callback runs on a dedicated thread so that a join announcement can be answered
+     * before stations are handed off to the joining node.
+     *
+     * @param listener The callback
+     */
+    public void setMembershipListener(Runnable listener) {
+        this.membershipListener = listener;
+    }
+
+    /**
+     * Announces this node to its peers and starts the periodic health checks.
+     */
+    public void start() {
+        for (String peer : peers) {
+            if (!sendControl(peer, "/cluster/join")) {
+                markDown(peer);
+            }
+        }
+        healthChecker = Executors.newSingleThreadScheduledExecutor();
+        healthChecker.scheduleAtFixedRate(this::checkPeers, HEALTH_CHECK_INTERVAL, HEALTH_CHECK_INTERVAL, TimeUnit.SECONDS);
+    }
+
+    /**
+     * Removes this node from the ring and tells its peers it is leaving, so that the
+     * caller can hand off its stations before shutting down.
+     */
+    public void leave() {
+        if (healthChecker != null) {
+            healthChecker.shutdownNow();
+        }
+        ring.removeNode(self);
+        for (String peer : peers) {
+            if (ring.containsNode(peer)) {
+                sendControl(peer, "/cluster/leave");
+            }
+        }
+    }
+
+    /**
+     * Pings every known peer and updates the ring when a peer goes down or comes back.
+     */
+    protected void checkPeers() {
+        for (String peer : peers) {
+            boolean alive = sendControl(peer, "/cluster/ping");
+            if (alive && ring.addNode(peer)) {
+                System.out.println("Cluster node " + peer + " is back up.");
+                rebalancer.execute(membershipListener);
+            } else if (!alive) {
+                markDown(peer);
+            }
+        }
+    }
+
+    /**
+     * Adds a node that announced itself with /cluster/join.
+     *
+     * @param node The joining node's address
+     */
+    public void nodeJoined(String node) {
+        if (node.equals(self)) {
+            return;
+        }
+        peers.add(node);
+        if (ring.addNode(node)) {
+            System.out.println("Cluster node " + node + " joined.");
+            rebalancer.execute(membershipListener);
+        }
+    }
+
+    /**
+     * Removes a node that announced it is leaving, or that failed a health check.
+     * The node stays in the peer set so that it is re-added once it answers pings again.
+     *
+     * @param node The departed node's address
+     */
+    public void markDown(String node) {
+        if (ring.removeNode(node)) {
+            System.out.println("Cluster node " + node + " left the ring.");
+            rebalancer.execute(membershipListener);
+        }
+    }
+
+    public String getSelf() {
+        return self;
+    }
+
+    /**
+     * Returns the node that owns a station.
+     *
+     * @param stationID The station ID
+     * @return The owner's address
+     */
+    public String ownerOf(String stationID) {
+        String owner = ring.ownerOf(stationID);
+        return owner != null ? owner : self;
+    }
+
+    /**
+     * Returns true if this node owns the station.
+     *
+     * @param stationID The station ID
+     * @return true if the station belongs on this node
+     */
+    public boolean isLocal(String stationID) {
+        return self.equals(ownerOf(stationID));
+    }
+
+    /**
+     * Returns true if a request marked as forwarded came from a peer: the node named by the
+     * marker must be a known peer, and the connection must come from that node's host. Any
+     * client can send the marker, so a request that fails this check is treated as a client's.
+     *
+     * @param forwardedBy   The node named by the request's forwarding marker
+     * @param remoteAddress The address the request's connection came from
+     * @return true if the request can be served as relayed by a peer
+     */
+    public boolean isFromPeer(String forwardedBy, String remoteAddress) {
+        if (forwardedBy == null || remoteAddress == null || !peers.contains(forwardedBy)) {
+            return false;
+        }
+        try {
+            InetAddress remote = InetAddress.getByName(remoteAddress);  // A literal address, so no lookup
+            for (InetAddress address : InetAddress.getAllByName(forwardedBy.substring(0, forwardedBy.lastIndexOf(':')))) {
+                if (address.equals(remote) || (address.isLoopbackAddress() && remote.isLoopbackAddress())) {
+                    return true;
+                }
+            }
+        } catch (UnknownHostException e) {
+            // A peer whose host cannot be resolved cannot be recognised
+        }
+        return false;
+    }
+
+    /**
+     * Returns the live nodes other than this one.
+     *
+     * @return The live peer addresses
+     */
+    public List<String> getLivePeers() {
+        List<String> live = new ArrayList<>();
+        for (String node : ring.getNodes()) {
+            if (!node.equals(self)) {
+                live.add(node);
+            }
+        }
+        return live;
+    }
+
+    /**
+     * Forwards a client request to another node and relays the node's response back to the client.
+     *
+     * @param node    The node to forward to
+     * @param request The original client request
+     * @param out     PrintWriter for the client's response
+     */
+    public void forward(String node, HttpRequest request, PrintWriter out) {
+        System.out.println("Forwarding " + request.getRequestLine() + " to " + node);
+        try {
+            out.print(exchange(node, request));
+            out.flush();
+        } catch (IOException e) {
+            System.err.println("Error forwarding request to " + node + ": " + e.getMessage());
+            markDown(node);
+            out.println("HTTP/1.1 503 Service Unavailable");
+        }
+    }
+
+    /**
+     * Collects the station data held by every live peer (scatter-gather) and merges it into
+     * the given map. Peers that cannot be reached are skipped, so the result may be partial.
+     *
+     * @param allWeatherData This node's station data, to which the peers' data is added
+     * @return The merged station data
+     */
+    @SuppressWarnings("unchecked")
+    public Map<String, Object> gather(Map<String, Object> allWeatherData) {
+        HttpRequest request = new HttpRequest("GET /weather HTTP/1.1", new LinkedHashMap<>(), new byte[0]);
+        for (String peer : getLivePeers()) {
+            try {
+                Object peerData = parseResponseBody(exchange(peer, request));
+                if (peerData instanceof Map) {
+                    allWeatherData.putAll((Map<String, Object>) peerData);
+                }
+            } catch (Exception e) {
+                System.err.println("Error gathering weather data from " + peer + ": " + e.getMessage());
+            }
+        }
+        return allWeatherData;
+    }
+
+    /**
+     * Sends a request to every live peer (scatter-gather) and collects their parsed JSON
+     * responses, e.g. to merge summaries computed by each node. Peers that cannot be reached
+     * or do not answer with JSON are skipped, so the result may be partial.
+     *
+     * @param request The request to send, which each peer serves locally
+     * @return The peers' parsed response bodies
+     */
+    public List<Object> gather(HttpRequest request) {
+        List<Object> responses = new ArrayList<>();
+        for (String peer : getLivePeers()) {
+            try {
+                responses.add(parseResponseBody(exchange(peer, request)));
+            } catch (Exception e) {
+                System.err.println("Error gathering " + request.getRequestLine() + " from " + peer + ": " + e.getMessage());
+            }
+        }
+        return responses;
+    }
+
+    /**
+     * Stores a station's data on another node, used when handing off stations after a ring change.
+     *
+     * @param node     The new owner
+     * @param jsonData The station data as JSON
+     * @return true if the node accepted the data or already holds newer data for the station
+     */
+    public boolean handOff(String node, String jsonData) {
+        Map<String, String> headers = new LinkedHashMap<>();
+        headers.put("Content-Type", "application/json");
+        headers.put("Content-Length", String.valueOf(jsonData.getBytes(StandardCharsets.UTF_8).length));
+        HttpRequest request = new HttpRequest("PUT /weather.json HTTP/1.1", headers, jsonData.getBytes(StandardCharsets.UTF_8));
+        try {
+            String statusLine = exchange(node, request).split("\n", 2)[0];
+            return statusLine.contains(" 200 ") || statusLine.contains(" 201 ") || statusLine.contains(" 409 ");
+        } catch (IOException e) {
+            System.err.println("Error handing off station data to " + node + ": " + e.getMessage());
+            return false;
+        }
+    }
+
+    /**
+     * Sends a body-less control request (ping, join or leave) carrying this node's address.
+     *
+     * @param node The node to contact
+     * @param path The control path
+     * @return true if the node answered with 200 OK
+     */
+    private boolean sendControl(String node, String path) {
+        Map<String, String> headers = new LinkedHashMap<>();
+        headers.put("X-Cluster-Node", self);
+        HttpRequest request = new HttpRequest((path.equals("/cluster/ping") ? "GET " : "PUT ") + path + " HTTP/1.1", headers, new byte[0]);
+        try {
+            return exchange(node, request).startsWith("HTTP/1.1 200");
+        } catch (IOException e) {
+            return false;
+        }
+    }
+
+    /**
+     * Sends a request to a node, marked as forwarded so the node serves it locally,
+     * and reads the complete response (the request asks the node to close the connection after responding).
+     *
+     * @param node    The node address in the form "host:port"
+     * @param request The request to send
+     * @return The raw response text
+     * @throws IOException If the node cannot be reached
+     */
+    protected String exchange(String node, HttpRequest request) throws IOException {
+        String[] hostPort = node.split(":");
+        try (Socket socket = new Socket()) {
+            socket.connect(new InetSocketAddress(hostPort[0], Integer.parseInt(hostPort[1])), CONNECT_TIMEOUT);
+            socket.setSoTimeout(READ_TIMEOUT);
+
+            Map<String, String> extraHeaders = new LinkedHashMap<>();
+            extraHeaders.put(HttpRequest.FORWARDED_HEADER, self);
+            extraHeaders.put("Connection", "close");  // The response is read until the node closes; a client's keep-alive would leave it open
+            request.writeTo(socket.getOutputStream(), extraHeaders);
+
+            InputStream in = socket.getInputStream();
+            ByteArrayOutputStream response = new ByteArrayOutputStream();
+            byte[] buffer = new byte[8192];
+            int n;
+            while ((n = in.read(buffer)) != -1) {
+                response.write(buffer, 0, n);
+            }
+            return response.toString(StandardCharsets.UTF_8);
+        }
+    }
+
+    /**
+     * Parses the JSON body of a raw HTTP response with the streaming parser. A parser is created
+     * per call, since parsers keep state and gathers run on many request threads at once.
+     *
+     * @param response The raw response text
+     * @return The parsed body
+     * @throws Exception If the body is not valid JSON
+     */
+    protected static Object parseResponseBody(String response) throws Exception {
+        return new JSONParser().parse(responseBody(response).getBytes(StandardCharsets.UTF_8));
+    }
+
+    /**
+     * Extracts the body from a raw HTTP response.
+     *
+     * @param response The raw response text
+     * @return The text after the blank line that ends the headers
+     */
+    protected static String responseBody(String response) {
+        int end = response.indexOf("\n\n");
+        int skip = 2;
+        int crlfEnd = response.indexOf("\r\n\r\n");
+        if (crlfEnd >= 0 && (end < 0 || crlfEnd < end)) {
+            end = crlfEnd;
+            skip = 4;
+        }
+        return end >= 0 ? response.substring(end + skip) : "";
+    }
+}
@@ -0,0 +1,146 @@
+package com.aggregationserver;
+
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.SortedMap;
+import java.util.TreeMap;
+import java.util.TreeSet;
+
+/**
+ * A consistent-hash ring mapping station IDs to the cluster node that owns them.
+ * Each node is placed on the ring several times (virtual nodes) so that station IDs are
+ * spread evenly, and adding or removing a node only moves the stations next to its points.
+ */
+public class ConsistentHashRing {
+
+    protected static final int DEFAULT_VIRTUAL_NODES = 128;  // Ring points per physical node
+
+    private final int virtualNodes;
+    private final TreeMap<Long, String> ring = new TreeMap<>();  // Ring position -> node address
+    private final TreeSet<String> nodes = new TreeSet<>();  // Physical nodes currently on the ring
+
+    /**
+     * Creates an empty ring with the default number of virtual nodes per node.
+     */
+    public ConsistentHashRing() {
+        this(DEFAULT_VIRTUAL_NODES);
+    }
+
+    /**
+     * Creates an empty ring.
+     *
+     * @param virtualNodes The number of ring points each node occupies
+     */
+    public ConsistentHashRing(int virtualNodes) {
+        if (virtualNodes < 1) {
+            throw new IllegalArgumentException("virtualNodes must be at least 1");
+        }
+        this.virtualNodes = virtualNodes;
+    }
+
+    /**
+     * Adds a node to the ring.
+     *
+     * @param node The node address in the form "host:port"
+     * @return true if the node was not already on the ring
+     */
+    public synchronized boolean addNode(String node) {
+        if (!nodes.add(node)) {
+            return false;
+        }
+        for (int i = 0; i < virtualNodes; i++) {
+            ring.put(hash(node + "#" + i), node);
+        }
+        return true;
+    }
+
+    /**
+     * Removes a node and all of its virtual nodes from the ring.
+     *
+     * @param node The node address in the form "host:port"
+     * @return true if the node was on the ring
+     */
+    public synchronized boolean removeNode(String node) {
+        if (!nodes.remove(node)) {
+            return false;
+        }
+        for (int i = 0; i < virtualNodes; i++) {
+            long point = hash(node + "#" + i);
+            if (node.equals(ring.get(point))) {
+                ring.remove(point);
+            }
+        }
+        return true;
+    }
+
+    /**
+     * Finds the node owning a key: the first ring point at or after the key's hash,
+     * wrapping around to the start of the ring.
+     *
+     * @param key The station ID to look up
+     * @return The owning node address, or null if the ring is empty
+     */
+    public synchronized String ownerOf(String key) {
+        if (ring.isEmpty()) {
+            return null;
+        }
+        SortedMap<Long, String> tail = ring.tailMap(hash(key));
+        return tail.isEmpty() ? ring.firstEntry().getValue() : tail.get(tail.firstKey());
+    }
+
+    /**
+     * Returns true if the node is currently on the ring.
+     *
+     * @param node The node address in the form "host:port"
+     * @return true if the node is on the ring
+     */
+    public synchronized boolean containsNode(String node) {
+        return nodes.contains(node);
+    }
+
+    /**
+     * Returns the physical nodes on the ring in sorted order.
+     *
+     * @return A copy of the node list
+     */
+    public synchronized List<String> getNodes() {
+        return new ArrayList<>(nodes);
+    }
+
+    /**
+     * Counts how many ring points each node holds; used to check the spread of the ring.
+     *
+     * @return Map of node address to number of ring points
+     */
+    protected synchronized Map<String, Integer> pointsPerNode() {
+        Map<String, Integer> counts = new TreeMap<>();
+        for (String node : ring.values()) {
+            counts.merge(node, 1, Integer::sum);
+        }
+        return counts;
+    }
+
+    /**
+     * Hashes a string to a ring position using 64-bit FNV-1a followed by a
+     * finalizing mix so that similar keys (e.g. "IDS60901", "IDS60902") land far apart.
+     *
+     * @param key The string to hash
+     * @return The ring position
+     */
+    protected static long hash(String key) {
+        long h = 0xcbf29ce484222325L;  // FNV-1a offset basis
+        for (byte b : key.getBytes(StandardCharsets.UTF_8)) {
+            h ^= (b & 0xff);
+            h *= 0x100000001b3L;  // FNV-1a prime
+        }
+        // Finalizer from MurmurHash3 to spread the bits
+        h ^= (h >>> 33);
+        h *= 0xff51afd7ed558ccdL;
+        h ^= (h >>> 33);
+        h *= 0xc4ceb9fe1a85ec53L;
+        h ^= (h >>> 33);
+        return h;
+    }
+}
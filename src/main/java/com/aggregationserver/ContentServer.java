@@ -1,12 +1,10 @@
 package com.aggregationserver;
 
-import java.io.BufferedReader;
 import java.io.File;
 import java.io.FileNotFoundException;
 import java.io.IOException;
-import java.io.InputStreamReader;
 import java.io.PrintWriter;
-import java.net.Socket;
+import java.nio.charset.StandardCharsets;
 import java.util.HashMap;
 import java.util.Map;
 import java.util.Scanner;
@@ -15,8 +13,8 @@ import java.util.concurrent.ScheduledExecutorService;
 import java.util.concurrent.TimeUnit;
 
 /**
- * The ContentServer reads weather data from a file and sends it to an AggregationServer periodically.
- * It maintains a connection with the server and ensures that data is sent every 20 seconds.
+ * The ContentServer reads weather data from a file and sends it to an AggregationServer whenever the
+ * file changes. It also re-sends unchanged data every 20 seconds so that the server keeps it.
  */
 public class ContentServer {
 
@@ -24,73 +22,252 @@ public class ContentServer {
     private static Map<String, String> dataStore = new HashMap<>();  // Store weather data
     private static JSONParser jsonParser = new JSONParser();  // Utility to handle JSON conversion
     private static boolean isFirstConnection = true;  // Track first connection for a custom message
+    private static volatile long lastSent;  // Time of the last upload attempt, in milliseconds
+    protected static boolean sendBinary = false;  // Send observations in the binary format rather than JSON; set with --binary
+
+    protected static final int HEARTBEAT_INTERVAL = 20;  // Seconds between uploads of unchanged data, below the server's 30 s expiry
+    protected static final long HEARTBEAT_CHECK = 1000;  // Milliseconds between checks whether a heartbeat is due
 
     public static void main(String[] args) {
         if (args.length < 2) {
-            System.out.println("Usage: ContentServer <serverHostPort> <dataFilePath>");
+            System.out.println("Usage: ContentServer <serverHostPort> <dataFilePath> [--heartbeat=seconds] [--spool=file] [--binary]");
+            System.out.println("       ContentServer <serverHostPort> <stationDirectory | --manifest=file> [--threads=N] [--heartbeat=seconds] [--spool=file] [--binary]");
             return;
         }
 
         String serverHostPort = args[0];  // Host and port of the AggregationServer
         String filePath = args[1];  // Path to the file containing weather data
 
+        // Feed many stations from one process when given a directory or manifest of station files
+        if (filePath.startsWith("--manifest=") || new File(filePath).isDirectory()) {
+            startMultiStation(serverHostPort, args);
+            return;
+        }
+
         System.out.println("Starting ContentServer... Host: " + serverHostPort + ", File: " + filePath);
 
+        int heartbeat = HEARTBEAT_INTERVAL;
+        File spoolFile = null;
+        for (int i = 2; i < args.length; i++) {
+            if (args[i].startsWith("--heartbeat=")) {
+                heartbeat = Integer.parseInt(args[i].substring("--heartbeat=".length()));
+            } else if (args[i].startsWith("--spool=")) {
+                spoolFile = new File(args[i].substring("--spool=".length()));
+            } else if (args[i].equals("--binary")) {
+                sendBinary = true;
+            }
+        }
+        if (spoolFile == null) {
+            spoolFile = defaultSpoolFile(filePath);
+        }
+
         try {
-            // Maintain connection and send data to the AggregationServer every 20 seconds
-            maintainConnectionAndSendData(serverHostPort, filePath);
+            // Send data to the AggregationServer when the file changes, and at least every heartbeat
+            maintainConnectionAndSendData(serverHostPort, filePath, heartbeat, spoolFile);
         } catch (IOException e) {
             System.err.println("Error: " + e.getMessage());
         }
     }
 
     /**
-     * This method keeps the connection alive and sends weather data to the AggregationServer every 20 seconds.
-     * It uses a scheduled executor service to handle periodic data transmissions.
-     * 
+     * Starts feeding every station listed by a directory or manifest, with the options
+     * given after the server address.
+     *
+     * @param serverHostPort The server host and port in the format "host:port"
+     * @param args           The command line arguments
+     */
+    protected static void startMultiStation(String serverHostPort, String[] args) {
+        File source = null;
+        int threads = MultiStationContentServer.DEFAULT_THREADS;
+        int heartbeat = HEARTBEAT_INTERVAL;
+        File spoolFile = null;
+        boolean binary = false;
+        for (int i = 1; i < args.length; i++) {
+            String arg = args[i];
+            if (arg.startsWith("--manifest=")) {
+                source = new File(arg.substring("--manifest=".length()));
+            } else if (arg.startsWith("--threads=")) {
+                threads = Integer.parseInt(arg.substring("--threads=".length()));
+            } else if (arg.startsWith("--heartbeat=")) {
+                heartbeat = Integer.parseInt(arg.substring("--heartbeat=".length()));
+            } else if (arg.startsWith("--spool=")) {
+                spoolFile = new File(arg.substring("--spool=".length()));
+            } else if (arg.equals("--binary")) {
+                binary = true;
+            } else {
+                source = new File(arg);
+            }
+        }
+
+        String[] hostPort = serverHostPort.split(":");
+        System.out.println("Starting ContentServer... Host: " + serverHostPort + ", Stations: " + source
+                + ", Threads: " + threads);
+        new MultiStationContentServer(hostPort[0], Integer.parseInt(hostPort[1]), source, threads, heartbeat,
+                spoolFile != null ? spoolFile : MultiStationContentServer.defaultSpoolFile(source, binary), binary).start();
+    }
+
+    /**
+     * Sends the weather data to the AggregationServer whenever the file changes, and at least
+     * once per heartbeat interval so that the server does not expire it.
+     *
      * @param serverHostPort The server host and port in the format "host:port"
      * @param filePath The file path to the weather data
      * @throws IOException If an I/O error occurs while establishing the connection
      */
     public static void maintainConnectionAndSendData(String serverHostPort, String filePath) throws IOException {
+        maintainConnectionAndSendData(serverHostPort, filePath, HEARTBEAT_INTERVAL);
+    }
+
+    /**
+     * This method sends weather data to the AggregationServer as soon as the data file changes.
+     * The file's directory is watched, and the file is parsed and sent once it has been quiet for
+     * a short debounce period. While the file is unchanged, the last data is sent again once per
+     * heartbeat interval to refresh the server's expiry timer, without reading the file again.
+     * 
+     * @param serverHostPort The server host and port in the format "host:port"
+     * @param filePath The file path to the weather data
+     * @param heartbeatSeconds Seconds between uploads while the file is unchanged
+     * @throws IOException If an I/O error occurs while establishing the connection
+     */
+    public static void maintainConnectionAndSendData(String serverHostPort, String filePath, int heartbeatSeconds) throws IOException {
+        maintainConnectionAndSendData(serverHostPort, filePath, heartbeatSeconds, defaultSpoolFile(filePath));
+    }
+
+    /**
+     * Sends weather data as above, keeping updates the server cannot take in a spool file and
+     * replaying them when it comes back.
+     *
+     * @param serverHostPort The server host and port in the format "host:port"
+     * @param filePath The file path to the weather data
+     * @param heartbeatSeconds Seconds between uploads while the file is unchanged
+     * @param spoolFile The file holding updates while the server cannot take them
+     * @throws IOException If an I/O error occurs while establishing the connection
+     */
+    public static void maintainConnectionAndSendData(String serverHostPort, String filePath, int heartbeatSeconds,
+                                                     File spoolFile) throws IOException {
         String[] hostPort = serverHostPort.split(":");
         String host = hostPort[0];
         int port = Integer.parseInt(hostPort[1]);
+        StationFile station = new StationFile(filePath);
+        long heartbeatMillis = heartbeatSeconds * 1000L;
 
-        // Scheduled task to send data every 20 seconds
+        // One thread sends every update, so that updates leave in the order of their Lamport times
         ScheduledExecutorService scheduler = Executors.newScheduledThreadPool(1);
-        scheduler.scheduleAtFixedRate(() -> {
-            try {
-                // Open a new connection for each PUT request
-                try (Socket socket = new Socket(host, port);
-                     PrintWriter out = new PrintWriter(socket.getOutputStream(), true);
-                     BufferedReader in = new BufferedReader(new InputStreamReader(socket.getInputStream()))) {
-
-                    // Custom message for the first connection
-                    if (isFirstConnection) {
-                        System.out.println("Connected to server, sending data...");
-                        isFirstConnection = false;
-                    } else {
-                        System.out.println("Sending data to server...");
-                    }
+        HttpConnectionPool pool = new HttpConnectionPool(host, port);
+        OfflineSpool spool = new OfflineSpool(spoolFile, OfflineSpool.DEFAULT_CAPACITY, pool, scheduler, sendBinary);
+        scheduler.scheduleWithFixedDelay(() -> {
+            if (System.currentTimeMillis() - lastSent >= heartbeatMillis) {
+                sendStation(spool, station, false);
+            }
+        }, 0, HEARTBEAT_CHECK, TimeUnit.MILLISECONDS);
 
-                    // Read weather data from the file and send it to the server
-                    Map<String, Object> weatherData = readFileToJSON(filePath);
-                    sendPutRequest(out, weatherData);
+        try {
+            FileChangeWatcher watcher = new FileChangeWatcher(path -> {
+                if (path.equals(station.getPath()) || path.equals(station.getPath().getParent())) {
+                    scheduler.execute(() -> sendStation(spool, station, true));
+                }
+            });
+            watcher.watchDirectory(station.getPath().getParent());
+            watcher.start();
+        } catch (IOException e) {
+            System.err.println("Cannot watch " + filePath + " for changes (" + e.getMessage()
+                    + "); sending every " + heartbeatSeconds + " s instead");
+        }
+    }
 
-                    // Read and print server responses
-                    String responseLine;
-                    while ((responseLine = in.readLine()) != null) {
-                        System.out.println("Response from server: " + responseLine);
-                    }
+    /**
+     * Returns the default spool file for a data file: one in the working directory named after
+     * it, kept out of the data file's directory so that writing it is not taken for a change.
+     * Binary updates are spooled to a file of their own, so that one format is never read as the other.
+     *
+     * @param filePath The file path to the weather data
+     * @return The spool file
+     */
+    protected static File defaultSpoolFile(String filePath) {
+        return new File("spool-" + new File(filePath).getName() + (sendBinary ? ".bin" : ".jsonl"));
+    }
 
-                } catch (IOException e) {
-                    System.err.println("Error during PUT request: " + e.getMessage());
+    /**
+     * Sends the station's data in a PUT request over a keep-alive connection and prints the
+     * response. Data the server cannot take is spooled, and data it rejects as older than what
+     * it holds is sent once more after the station's clock has caught up.
+     *
+     * @param spool   The spool that sends updates
+     * @param station The station file
+     * @param changed True if the file was reported as changed and must be parsed again
+     */
+    private static void sendStation(OfflineSpool spool, StationFile station, boolean changed) {
+        lastSent = System.currentTimeMillis();  // A failed attempt is retried at the next heartbeat or change
+        try {
+            // Parse the file only if it has changed; otherwise re-send the last data as a heartbeat
+            boolean parsed = station.refresh(changed);
+            Map<String, Object> weatherData = station.snapshot(lamportClock);
+
+            // Custom message for the first connection
+            if (isFirstConnection) {
+                System.out.println("Connected to server, sending data...");
+                isFirstConnection = false;
+            } else {
+                System.out.println(parsed ? "Data changed, sending data to server..." : "Sending data to server...");
+            }
+
+            try {
+                HttpConnectionPool.Response response = spool.send(encodeBody(weatherData, sendBinary), parsed);
+                if (response != null && catchUpClock(lamportClock, response)) {
+                    System.out.println("Server holds newer data for this station; sending it again with a later Lamport time");
+                    lamportClock.tick();  // Past the server's time, so the data is taken this time
+                    response = spool.send(encodeBody(station.snapshot(lamportClock), sendBinary), parsed);
                 }
-            } catch (Exception e) { // Handle file reading or other exceptions
-                System.err.println("Error reading weather data file: " + e.getMessage());
+                if (response == null) {
+                    System.out.println(parsed ? "Server unavailable; update spooled behind " + (spool.size() - 1) + " others"
+                            : "Server unavailable; heartbeat skipped while " + spool.size() + " updates are spooled");
+                } else {
+                    System.out.println("Response from server: " + response.getStatusLine());
+                }
+            } catch (IOException e) {
+                System.err.println("Error during PUT request: " + e.getMessage() + (parsed ? "; update spooled" : ""));
+            } finally {
+                lamportClock.tick();  // Increment Lamport clock after the data change
             }
-        }, 0, 20, TimeUnit.SECONDS);
+        } catch (Exception e) { // Handle file reading or other exceptions
+            System.err.println("Error reading weather data file: " + e.getMessage());
+        }
+    }
+
+    /**
+     * Encodes weather data as the body of a PUT.
+     *
+     * @param weatherData The weather data, stamped with its Lamport time
+     * @param binary      True for the binary observation format, false for JSON
+     * @return The body
+     */
+    protected static byte[] encodeBody(Map<String, Object> weatherData, boolean binary) {
+        return binary ? BinaryWeatherCodec.encode(weatherData)
+                : JSONWriter.toJson(weatherData, false).getBytes(StandardCharsets.UTF_8);
+    }
+
+    /**
+     * Moves a station's clock past the Lamport time the server holds for it, if the server
+     * rejected an upload as stale with 409 Conflict. This happens when the content server
+     * restarts with its clock back at zero, or an upload was overtaken by a later one.
+     *
+     * @param lamportClock The clock of the station the upload was for
+     * @param response     The server's response to the upload
+     * @return true if the upload was rejected as stale
+     */
+    public static boolean catchUpClock(LamportClock lamportClock, HttpConnectionPool.Response response) {
+        if (response.getStatus() != 409) {
+            return false;
+        }
+        try {
+            Object body = new JSONParser().parse(response.getBody());
+            if (body instanceof Map && ((Map<?, ?>) body).get("lamportTime") instanceof Number) {
+                lamportClock.updateTime(((Number) ((Map<?, ?>) body).get("lamportTime")).longValue());
+            }
+        } catch (Exception e) {
+            System.err.println("Unreadable 409 response: " + e.getMessage());
+        }
+        return true;
     }
 
     /**
@@ -102,6 +279,34 @@ public class ContentServer {
      * @throws FileNotFoundException If the file cannot be found
      */
     public static Map<String, Object> readFileToJSON(String filePath) throws FileNotFoundException {
+        return readFileToJSON(filePath, lamportClock);
+    }
+
+    /**
+     * Reads the weather data from a file, stamping it with the time of the given Lamport clock,
+     * e.g. the clock of one station among many fed by the same process.
+     *
+     * @param filePath     The file path to the weather data
+     * @param lamportClock The clock of the station the file belongs to
+     * @return A Map containing the weather data
+     * @throws FileNotFoundException If the file cannot be found
+     */
+    public static Map<String, Object> readFileToJSON(String filePath, LamportClock lamportClock) throws FileNotFoundException {
+        Map<String, Object> weatherData = parseWeatherFile(filePath);
+
+        // Add Lamport time to synchronize the data
+        weatherData.put("lamportTime", lamportClock.getTime());
+        return weatherData;
+    }
+
+    /**
+     * Reads the weather data from a file without stamping it with a Lamport time.
+     *
+     * @param filePath The file path to the weather data
+     * @return A Map containing the weather data
+     * @throws FileNotFoundException If the file cannot be found
+     */
+    public static Map<String, Object> parseWeatherFile(String filePath) throws FileNotFoundException {
         File file = new File(filePath);
         Map<String, Object> weatherData = new HashMap<>();
         boolean idFound = false;  // Track if 'id' field is found
@@ -128,9 +333,6 @@ public class ContentServer {
             if (!idFound) {
                 throw new IllegalArgumentException("Error: No 'id' field found.");
             }
-
-            // Add Lamport time to synchronize the data
-            weatherData.put("lamportTime", lamportClock.getTime());
         }
 
         return weatherData;
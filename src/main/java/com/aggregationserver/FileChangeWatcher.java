@@ -0,0 +1,129 @@
+package com.aggregationserver;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.nio.file.ClosedWatchServiceException;
+import java.nio.file.FileSystems;
+import java.nio.file.Path;
+import java.nio.file.StandardWatchEventKinds;
+import java.nio.file.WatchEvent;
+import java.nio.file.WatchKey;
+import java.nio.file.WatchService;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+import java.util.function.Consumer;
+
+/**
+ * Watches directories for files being created, modified or deleted, and reports each changed
+ * file once it has been quiet for a short debounce period. An editor or a feed that writes a
+ * file in several steps (truncate, write, rename) thus causes one notification rather than
+ * several, and the file is read only once it is complete.
+ * <p>
+ * If the operating system drops events because too many arrived at once, the watched
+ * directory itself is reported, and the listener should check every file in it.
+ */
+public class FileChangeWatcher implements Closeable {
+
+    protected static final long DEBOUNCE_MILLIS = 250;  // Quiet time after the last event before a file is reported
+
+    private final WatchService watchService;
+    private final Consumer<Path> listener;
+    private final Map<Path, WatchKey> directories = new ConcurrentHashMap<>();  // Watched directory -> its key
+    private final Map<Path, Long> pending = new LinkedHashMap<>();  // Changed path -> time of its last event; watcher thread only
+    private final Thread thread;
+
+    /**
+     * Creates a watcher; call {@link #watchDirectory(Path)} and {@link #start()} to begin.
+     *
+     * @param listener Called with the absolute path of each changed file, on the watcher thread
+     * @throws IOException If the file system does not support watching
+     */
+    public FileChangeWatcher(Consumer<Path> listener) throws IOException {
+        this.watchService = FileSystems.getDefault().newWatchService();
+        this.listener = listener;
+        this.thread = new Thread(this::run, "FileChangeWatcher");
+        this.thread.setDaemon(true);
+    }
+
+    /**
+     * Starts watching a directory, unless it is already watched.
+     *
+     * @param directory The directory
+     * @throws IOException If the directory cannot be watched
+     */
+    public void watchDirectory(Path directory) throws IOException {
+        Path dir = directory.toAbsolutePath().normalize();
+        if (!directories.containsKey(dir)) {
+            directories.put(dir, dir.register(watchService, StandardWatchEventKinds.ENTRY_CREATE,
+                    StandardWatchEventKinds.ENTRY_MODIFY, StandardWatchEventKinds.ENTRY_DELETE));
+        }
+    }
+
+    /**
+     * Starts delivering changes on a background thread.
+     */
+    public void start() {
+        thread.start();
+    }
+
+    /**
+     * Stops watching.
+     */
+    @Override
+    public void close() {
+        try {
+            watchService.close();
+        } catch (IOException e) {
+            // Already closed
+        }
+    }
+
+    private void run() {
+        try {
+            while (true) {
+                // Sleep until the next event, or until the oldest pending change has been quiet long enough
+                WatchKey key;
+                if (pending.isEmpty()) {
+                    key = watchService.take();
+                } else {
+                    long wait = pending.values().iterator().next() + DEBOUNCE_MILLIS - System.currentTimeMillis();
+                    key = watchService.poll(Math.max(wait, 0), TimeUnit.MILLISECONDS);
+                }
+
+                while (key != null) {
+                    Path dir = (Path) key.watchable();
+                    for (WatchEvent<?> event : key.pollEvents()) {
+                        Path changed = event.kind() == StandardWatchEventKinds.OVERFLOW
+                                ? dir : dir.resolve((Path) event.context());
+                        pending.remove(changed);  // Re-insert so that the map stays ordered by last event
+                        pending.put(changed, System.currentTimeMillis());
+                    }
+                    if (!key.reset()) {
+                        directories.remove(dir);  // The directory is gone
+                    }
+                    key = watchService.poll();
+                }
+
+                long now = System.currentTimeMillis();
+                Iterator<Map.Entry<Path, Long>> entries = pending.entrySet().iterator();
+                while (entries.hasNext()) {
+                    Map.Entry<Path, Long> entry = entries.next();
+                    if (now - entry.getValue() < DEBOUNCE_MILLIS) {
+                        break;
+                    }
+                    entries.remove();
+                    try {
+                        listener.accept(entry.getKey());
+                    } catch (RuntimeException e) {
+                        System.err.println("Error handling change to " + entry.getKey() + ": " + e.getMessage());
+                    }
+                }
+            }
+        } catch (InterruptedException | ClosedWatchServiceException e) {
+            // Closed
+        }
+    }
+}
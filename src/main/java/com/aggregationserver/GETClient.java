@@ -5,28 +5,123 @@ import java.io.IOException;
 import java.io.InputStreamReader;
 import java.io.PrintWriter;
 import java.net.Socket;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.List;
 import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
 import java.util.regex.Matcher;
 import java.util.regex.Pattern;
 
 /**
  * GETClient connects to the AggregationServer to retrieve weather data.
  * It sends GET requests for all weather data or specific station data and processes the JSON response.
+ * <p>
+ * Besides the one-shot static methods used by the command line, a GETClient created for a server
+ * is a reusable client for embedding: it keeps a pool of keep-alive connections, reads responses
+ * by Content-Length, and offers an asynchronous API. Many stations are fetched in parallel, each
+ * connection pipelining a batch of requests. A client is safe to share between threads and
+ * should be closed when no longer needed.
+ * <p>
+ * In sync mode, a client keeps a local mirror of every station, which {@link #syncAsync()}
+ * brings up to date by fetching only the changes since the previous sync from the server's
+ * change feed, "/weather/changes".
  */
 public class GETClient {
 
+    protected static final int DEFAULT_CONNECTIONS = 8;  // Requests in flight at once, one per connection
+    protected static final int PIPELINE_DEPTH = 16;  // Station requests pipelined per connection at a time
+    protected static final int SYNC_INTERVAL = 5;  // Seconds between syncs in the command line sync mode
+    protected static final String[] GET_HEADERS = {"User-Agent: GETClient/1.0"};
+    private static final Pattern HOST_PORT = Pattern.compile("(http://)?([^:/]+)(:(\\d+))?");
+
     private static LamportClock lamportClock = new LamportClock();
 
+    private final HttpConnectionPool pool;  // Null for a client that only uses the static methods
+    private final ExecutorService executor;
+    private final Map<String, Map<String, Object>> mirror = new ConcurrentHashMap<>();  // Station ID -> data, in sync mode
+    private long mirrorVersion = -1;  // Version of the server's store the mirror is up to date with, or -1; guarded by mirror
+
+    /**
+     * Creates a client for the static, one-shot request methods.
+     */
+    public GETClient() {
+        this.pool = null;
+        this.executor = null;
+    }
+
+    /**
+     * Creates a reusable client for a server, with DEFAULT_CONNECTIONS connections.
+     *
+     * @param serverHostPort The server host and port in the form "host:port"
+     */
+    public GETClient(String serverHostPort) {
+        this(serverHostPort, DEFAULT_CONNECTIONS);
+    }
+
+    /**
+     * Creates a reusable client for a server.
+     *
+     * @param serverHostPort The server host and port in the form "host:port"
+     * @param connections    The maximum number of requests in flight at once
+     */
+    public GETClient(String serverHostPort, int connections) {
+        Matcher matcher = matchHostPort(serverHostPort);
+        this.pool = new HttpConnectionPool(matcher.group(2), port(matcher));
+        this.executor = Executors.newFixedThreadPool(connections, runnable -> {
+            Thread thread = new Thread(runnable, "GETClient");
+            thread.setDaemon(true);  // Do not keep an embedding application alive
+            return thread;
+        });
+    }
+
     public static void main(String[] args) {
         // Check for proper argument usage
         if (args.length < 1) {
-            System.out.println("Usage: GETClient <serverHostPort> [stationID]");
+            System.out.println("Usage: GETClient <serverHostPort> [stationID... | --sync[=<seconds>]]");
             return;
         }
 
         String serverHostPort = args[0];  // Server host and port in the form of "host:port"
+
+        // Keep a mirror of every station up to date, printing the changes
+        if (args.length > 1 && (args[1].equals("--sync") || args[1].startsWith("--sync="))) {
+            int interval = args[1].startsWith("--sync=") ? Integer.parseInt(args[1].substring("--sync=".length())) : SYNC_INTERVAL;
+            GETClient client = new GETClient(serverHostPort, 1);
+            try {
+                runSync(client, interval);
+            } finally {
+                client.close();
+            }
+            return;
+        }
+
         String stationID = args.length > 1 ? args[1] : null;  // Optional station ID for specific weather data
 
+        // Fetch several stations in parallel over pooled connections
+        if (args.length > 2) {
+            GETClient client = new GETClient(serverHostPort);
+            try {
+                Map<String, Object> stations = new LinkedHashMap<>(
+                        client.fetchStationsAsync(Arrays.asList(args).subList(1, args.length)).join());
+                displayWeatherData(JSONWriter.toJson(stations, false));
+            } catch (CompletionException e) {
+                System.err.println("Error: " + e.getCause().getMessage());
+            } finally {
+                client.close();
+            }
+            return;
+        }
+
         try {
             // Send GET request to server and get response
             String[] responseParts = sendGetRequest(serverHostPort, stationID);
@@ -44,6 +139,41 @@ public class GETClient {
         }
     }
 
+    /**
+     * Syncs a client's mirror every interval until interrupted, printing the stations that changed.
+     *
+     * @param client          The client
+     * @param intervalSeconds Seconds between syncs
+     */
+    private static void runSync(GETClient client, int intervalSeconds) {
+        while (!Thread.currentThread().isInterrupted()) {
+            try {
+                Map<String, Map<String, Object>> changes = client.syncAsync().join();
+                Map<String, Object> updated = new LinkedHashMap<>();
+                for (Map.Entry<String, Map<String, Object>> change : changes.entrySet()) {
+                    if (change.getValue() != null) {
+                        updated.put(change.getKey(), change.getValue());
+                    } else {
+                        System.out.println("Station ID: " + change.getKey() + " removed");
+                        System.out.println();
+                    }
+                }
+                if (!updated.isEmpty()) {
+                    displayWeatherData(JSONWriter.toJson(updated, false));
+                }
+                System.out.println("Mirror holds " + client.getMirror().size() + " stations at version "
+                        + client.getMirrorVersion() + ".");
+            } catch (CompletionException e) {
+                System.err.println("Error: " + e.getCause().getMessage());
+            }
+            try {
+                Thread.sleep(intervalSeconds * 1000L);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+        }
+    }
+
     /**
      * Sends a GET request to the specified server for weather data.
      * @param serverHostPort The server host and port in the form "host:port"
@@ -52,19 +182,10 @@ public class GETClient {
      * @throws IOException If an I/O error occurs during the network communication
      */
     public static String[] sendGetRequest(String serverHostPort, String stationID) throws IOException {
-        String host;
-        int port;
-
         // Extract the host and port using regex
-        String regex = "(http://)?([^:/]+)(:(\\d+))?";
-        Matcher matcher = Pattern.compile(regex).matcher(serverHostPort);
-
-        if (matcher.find()) {
-            host = matcher.group(2);  // Extract the host (e.g., example.com)
-            port = matcher.group(4) != null ? Integer.parseInt(matcher.group(4)) : 80;  // Default to port 80 if not provided
-        } else {
-            throw new IllegalArgumentException("Invalid serverHostPort format.");
-        }
+        Matcher matcher = matchHostPort(serverHostPort);
+        String host = matcher.group(2);  // Extract the host (e.g., example.com)
+        int port = port(matcher);
 
         // Open a socket to the server and send the GET request
         try (Socket socket = new Socket(host, port);
@@ -169,6 +290,205 @@ public class GETClient {
         return responseParts != null ? responseParts[1] : null;
     }
 
+    /**
+     * Fetches one station's data.
+     *
+     * @param stationID The station ID
+     * @return A future for the station's data, or for null if the server has none
+     */
+    public CompletableFuture<Map<String, Object>> fetchStationAsync(String stationID) {
+        return CompletableFuture.supplyAsync(() -> fetch(List.of(stationID)).get(0), executor);
+    }
+
+    /**
+     * Fetches the data of every station.
+     *
+     * @return A future for the data of every station, keyed by station ID
+     */
+    public CompletableFuture<Map<String, Object>> fetchAllAsync() {
+        return CompletableFuture.supplyAsync(() -> {
+            Map<String, Object> stations = fetch(List.of("")).get(0);
+            return stations != null ? stations : new LinkedHashMap<>();
+        }, executor);
+    }
+
+    /**
+     * Fetches many stations in parallel. The requests are split into batches of PIPELINE_DEPTH,
+     * and each batch is pipelined on one pooled connection.
+     *
+     * @param stationIDs The station IDs
+     * @return A future for the data of the stations the server has, keyed by station ID in the
+     *         order requested; it fails if any batch fails
+     */
+    public CompletableFuture<Map<String, Map<String, Object>>> fetchStationsAsync(Collection<String> stationIDs) {
+        List<String> ids = new ArrayList<>(stationIDs);
+        List<CompletableFuture<List<Map<String, Object>>>> batches = new ArrayList<>();
+        for (int start = 0; start < ids.size(); start += PIPELINE_DEPTH) {
+            List<String> batch = ids.subList(start, Math.min(start + PIPELINE_DEPTH, ids.size()));
+            batches.add(CompletableFuture.supplyAsync(() -> fetch(batch), executor));
+        }
+
+        return CompletableFuture.allOf(batches.toArray(new CompletableFuture<?>[0])).thenApply(done -> {
+            Map<String, Map<String, Object>> stations = new LinkedHashMap<>();
+            for (int b = 0; b < batches.size(); b++) {
+                List<Map<String, Object>> results = batches.get(b).join();
+                for (int i = 0; i < results.size(); i++) {
+                    if (results.get(i) != null) {
+                        stations.put(ids.get(b * PIPELINE_DEPTH + i), results.get(i));
+                    }
+                }
+            }
+            return stations;
+        });
+    }
+
+    /**
+     * Brings the mirror up to date with the server. The first sync fetches every station; later
+     * syncs fetch only the stations stored or removed since, unless the server no longer has all
+     * those changes and sends every station again.
+     *
+     * @return A future for the stations that changed, keyed by station ID, with null for each
+     *         station removed from the mirror
+     */
+    public CompletableFuture<Map<String, Map<String, Object>>> syncAsync() {
+        return CompletableFuture.supplyAsync(this::sync, executor);
+    }
+
+    /**
+     * Returns the mirror kept up to date by {@link #syncAsync()}.
+     *
+     * @return A read-only view of the mirrored data, keyed by station ID
+     */
+    public Map<String, Map<String, Object>> getMirror() {
+        return Collections.unmodifiableMap(mirror);
+    }
+
+    /**
+     * Returns the version of the mirror: the version of the server's store at the last sync.
+     *
+     * @return The version, or -1 before the first sync
+     */
+    public long getMirrorVersion() {
+        synchronized (mirror) {
+            return mirrorVersion;
+        }
+    }
+
+    /**
+     * Closes the pooled connections and stops the client's threads.
+     */
+    public void close() {
+        if (executor != null) {
+            executor.shutdown();
+            pool.close();
+        }
+    }
+
+    /**
+     * Sends pipelined GET requests for stations on one pooled connection and parses the responses.
+     *
+     * @param stationIDs The station IDs; an empty ID requests all stations
+     * @return The parsed data per station, null where the server has none
+     * @throws CompletionException Wrapping the error if a request fails
+     */
+    @SuppressWarnings("unchecked")
+    private List<Map<String, Object>> fetch(List<String> stationIDs) {
+        if (pool == null) {
+            throw new IllegalStateException("This client was not created for a server.");
+        }
+        List<String> requestLines = new ArrayList<>(stationIDs.size());
+        for (String stationID : stationIDs) {
+            requestLines.add(stationID.isEmpty() ? "GET /weather HTTP/1.1" : "GET /weather/" + stationID + " HTTP/1.1");
+        }
+
+        try {
+            List<HttpConnectionPool.Response> responses = pool.sendAll(requestLines, GET_HEADERS);
+            lamportClock.tick();  // Increment Lamport clock for this batch of GET requests
+
+            List<Map<String, Object>> results = new ArrayList<>(responses.size());
+            JSONParser parser = new JSONParser();
+            for (HttpConnectionPool.Response response : responses) {
+                if (response.getStatus() != 200) {
+                    throw new IOException("Unexpected response: " + response.getStatusLine());
+                }
+                // A station the server does not have is answered with a plain message rather than an object
+                byte[] body = response.getBody();
+                Object data = body.length > 0 && body[0] == '{' ? parser.parse(body) : null;
+                results.add(data instanceof Map ? (Map<String, Object>) data : null);
+            }
+            return results;
+        } catch (Exception e) {
+            throw new CompletionException(e);
+        }
+    }
+
+    /**
+     * Fetches the changes since the mirror's version and applies them. Syncs run one at a time,
+     * so that the changes are applied in order.
+     *
+     * @return The stations that changed, with null for removed ones
+     * @throws CompletionException Wrapping the error if the request fails
+     */
+    @SuppressWarnings("unchecked")
+    private Map<String, Map<String, Object>> sync() {
+        if (pool == null) {
+            throw new IllegalStateException("This client was not created for a server.");
+        }
+        synchronized (mirror) {
+            try {
+                String requestLine = "GET /weather/changes" + (mirrorVersion >= 0 ? "?since=" + mirrorVersion : "") + " HTTP/1.1";
+                HttpConnectionPool.Response response = pool.send(requestLine, GET_HEADERS, new byte[0]);
+                lamportClock.tick();  // Increment Lamport clock for this GET request
+                if (response.getStatus() != 200) {
+                    throw new IOException("Unexpected response: " + response.getStatusLine());
+                }
+
+                Map<String, Object> feed = (Map<String, Object>) new JSONParser().parse(response.getBody());
+                Map<String, Object> upserts = (Map<String, Object>) feed.get("upserts");
+                Map<String, Map<String, Object>> changes = new LinkedHashMap<>();
+                if (Boolean.TRUE.equals(feed.get("full"))) {
+                    Set<String> dropped = new HashSet<>(mirror.keySet());
+                    dropped.removeAll(upserts.keySet());
+                    for (String stationID : dropped) {
+                        mirror.remove(stationID);
+                        changes.put(stationID, null);
+                    }
+                }
+                for (Map.Entry<String, Object> station : upserts.entrySet()) {
+                    mirror.put(station.getKey(), (Map<String, Object>) station.getValue());
+                    changes.put(station.getKey(), (Map<String, Object>) station.getValue());
+                }
+                for (Object stationID : (List<Object>) feed.get("removed")) {
+                    if (mirror.remove((String) stationID) != null) {
+                        changes.put((String) stationID, null);
+                    }
+                }
+                mirrorVersion = ((Number) feed.get("version")).longValue();
+                return changes;
+            } catch (Exception e) {
+                throw new CompletionException(e);
+            }
+        }
+    }
+
+    /**
+     * Matches a server address in the form "[http://]host[:port]".
+     */
+    private static Matcher matchHostPort(String serverHostPort) {
+        Matcher matcher = HOST_PORT.matcher(serverHostPort);
+        if (!matcher.find()) {
+            throw new IllegalArgumentException("Invalid serverHostPort format.");
+        }
+        return matcher;
+    }
+
+    /**
+     * Returns the port of a matched server address, defaulting to port 80 if not provided.
+     */
+    private static int port(Matcher matcher) {
+        return matcher.group(4) != null ? Integer.parseInt(matcher.group(4)) : 80;
+    }
+
     /**
      * Retrieves the current Lamport clock instance.
      * @return The LamportClock instance used by this client
@@ -0,0 +1,23 @@
+package com.aggregationserver;
+
+/**
+ * Keeps observations on the Java heap as they are: the handle is the observation itself.
+ * This is the default store, and the fastest while the store fits comfortably in the heap.
+ */
+public class HeapObservationStore implements ObservationStore {
+
+    @Override
+    public Object put(WeatherObservation observation) {
+        return observation;
+    }
+
+    @Override
+    public WeatherObservation get(Object handle) {
+        return (WeatherObservation) handle;
+    }
+
+    @Override
+    public void free(Object handle) {
+        // Collected with the entry
+    }
+}
@@ -0,0 +1,278 @@
+package com.aggregationserver;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.InetSocketAddress;
+import java.net.Socket;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.ConcurrentLinkedDeque;
+
+/**
+ * A pool of keep-alive HTTP connections to one server, so that many requests can share a
+ * few sockets instead of opening a connection each. Requests are sent with
+ * "Connection: keep-alive" and each response is read up to its Content-Length, leaving the
+ * connection ready for the next request. Several requests can also be pipelined, i.e. written
+ * together before their responses are read, saving a round trip per request. A connection is
+ * borrowed by one thread at a time; the pool never holds more idle connections than were in
+ * use at once.
+ */
+public class HttpConnectionPool {
+
+    protected static final int CONNECT_TIMEOUT = 2000;  // Milliseconds to wait when connecting
+    protected static final int READ_TIMEOUT = 10000;  // Milliseconds to wait for a response
+
+    private final String host;
+    private final int port;
+    private final ConcurrentLinkedDeque<Connection> idle = new ConcurrentLinkedDeque<>();
+
+    /**
+     * Creates a pool for a server.
+     *
+     * @param host The server host
+     * @param port The server port
+     */
+    public HttpConnectionPool(String host, int port) {
+        this.host = host;
+        this.port = port;
+    }
+
+    /**
+     * Sends a request on a pooled connection and reads the response. A request that fails on a
+     * reused connection (e.g. one the server has since closed for being idle) is retried once
+     * on a new connection.
+     * <p>
+     * The failure may come after the server has handled the request, e.g. when the connection
+     * drops before the response arrives, so the retry can deliver a request twice. PUTs are
+     * re-sent like any other request, so callers must be able to absorb a duplicate. An upload
+     * stamped with its Lamport time can: the server rejects the second copy with 409 Conflict,
+     * and ContentServer catches its clock up and re-sends the same data with a later time,
+     * which stores nothing new.
+     *
+     * @param requestLine The request line, e.g. "PUT /weather.json HTTP/1.1"
+     * @param headers     Additional header lines without line terminators (may be empty)
+     * @param body        The request body (may be empty)
+     * @return The response
+     * @throws IOException If the server cannot be reached or the response is malformed
+     */
+    public Response send(String requestLine, String[] headers, byte[] body) throws IOException {
+        Connection connection = idle.pollFirst();
+        if (connection != null) {
+            try {
+                Response response = connection.exchange(requestLine, headers, body);
+                idle.offerFirst(connection);  // Most recently used first, so surplus connections time out
+                return response;
+            } catch (IOException e) {
+                connection.close();  // Stale; fall through to a fresh connection
+            }
+        }
+        connection = new Connection();
+        try {
+            Response response = connection.exchange(requestLine, headers, body);
+            idle.offerFirst(connection);
+            return response;
+        } catch (IOException e) {
+            connection.close();
+            throw e;
+        }
+    }
+
+    /**
+     * Sends several requests with the same request line and headers on one pooled connection,
+     * writing them all before reading the responses. Like {@link #send}, a batch that fails on
+     * a reused connection is retried once on a new connection; requests the server had already
+     * handled are then sent again, so the requests must be safe to repeat.
+     *
+     * @param requestLine The request line, e.g. "PUT /weather.json HTTP/1.1"
+     * @param headers     Additional header lines without line terminators (may be empty)
+     * @param bodies      The request bodies, one per request
+     * @return The responses, in the order of the requests
+     * @throws IOException If the server cannot be reached or a response is malformed
+     */
+    public List<Response> sendAll(String requestLine, String[] headers, List<byte[]> bodies) throws IOException {
+        return sendAll(Collections.nCopies(bodies.size(), requestLine), headers, bodies);
+    }
+
+    /**
+     * Sends several requests without bodies, e.g. GET requests for different paths, pipelined
+     * on one pooled connection as in {@link #sendAll(String, String[], List)}.
+     *
+     * @param requestLines The request lines, one per request
+     * @param headers      Additional header lines without line terminators (may be empty)
+     * @return The responses, in the order of the requests
+     * @throws IOException If the server cannot be reached or a response is malformed
+     */
+    public List<Response> sendAll(List<String> requestLines, String[] headers) throws IOException {
+        return sendAll(requestLines, headers, Collections.nCopies(requestLines.size(), new byte[0]));
+    }
+
+    private List<Response> sendAll(List<String> requestLines, String[] headers, List<byte[]> bodies) throws IOException {
+        Connection connection = idle.pollFirst();
+        if (connection != null) {
+            try {
+                List<Response> responses = connection.exchangeAll(requestLines, headers, bodies);
+                idle.offerFirst(connection);
+                return responses;
+            } catch (IOException e) {
+                connection.close();  // Stale; fall through to a fresh connection
+            }
+        }
+        connection = new Connection();
+        try {
+            List<Response> responses = connection.exchangeAll(requestLines, headers, bodies);
+            idle.offerFirst(connection);
+            return responses;
+        } catch (IOException e) {
+            connection.close();
+            throw e;
+        }
+    }
+
+    /**
+     * Returns the number of connections currently idle in the pool.
+     *
+     * @return The idle connection count
+     */
+    public int idleConnections() {
+        return idle.size();
+    }
+
+    /**
+     * Closes every idle connection.
+     */
+    public void close() {
+        Connection connection;
+        while ((connection = idle.pollFirst()) != null) {
+            connection.close();
+        }
+    }
+
+    /**
+     * A response read from a pooled connection.
+     */
+    public static class Response {
+        private final int status;
+        private final String statusLine;
+        private final byte[] body;
+
+        Response(String statusLine, byte[] body) {
+            this.statusLine = statusLine;
+            String[] parts = statusLine.split(" ");
+            this.status = parts.length > 1 ? Integer.parseInt(parts[1]) : 0;
+            this.body = body;
+        }
+
+        public int getStatus() {
+            return status;
+        }
+
+        public String getStatusLine() {
+            return statusLine;
+        }
+
+        public byte[] getBody() {
+            return body;
+        }
+
+        public String getBodyAsString() {
+            return new String(body, StandardCharsets.UTF_8);
+        }
+    }
+
+    /**
+     * One keep-alive socket to the server.
+     */
+    private class Connection {
+        private final Socket socket;
+        private final InputStream in;
+        private final OutputStream out;
+
+        Connection() throws IOException {
+            socket = new Socket();
+            try {
+                socket.connect(new InetSocketAddress(host, port), CONNECT_TIMEOUT);
+                socket.setSoTimeout(READ_TIMEOUT);
+                socket.setTcpNoDelay(true);  // Requests are written in one piece; do not wait to coalesce
+                in = new BufferedInputStream(socket.getInputStream());
+                out = new BufferedOutputStream(socket.getOutputStream());
+            } catch (IOException e) {
+                socket.close();
+                throw e;
+            }
+        }
+
+        Response exchange(String requestLine, String[] headers, byte[] body) throws IOException {
+            write(requestLine, headers, body);
+            out.flush();
+            return read();
+        }
+
+        List<Response> exchangeAll(List<String> requestLines, String[] headers, List<byte[]> bodies) throws IOException {
+            for (int i = 0; i < bodies.size(); i++) {
+                write(requestLines.get(i), headers, bodies.get(i));
+            }
+            out.flush();  // The whole batch goes out before the first response is awaited
+            List<Response> responses = new ArrayList<>(bodies.size());
+            for (int i = 0; i < bodies.size(); i++) {
+                responses.add(read());
+            }
+            return responses;
+        }
+
+        private void write(String requestLine, String[] headers, byte[] body) throws IOException {
+            StringBuilder head = new StringBuilder(requestLine).append("\r\n");
+            head.append("Host: ").append(host).append(':').append(port).append("\r\n");
+            for (String header : headers) {
+                head.append(header).append("\r\n");
+            }
+            head.append("Content-Length: ").append(body.length).append("\r\n");
+            head.append("Connection: keep-alive\r\n\r\n");
+            out.write(head.toString().getBytes(StandardCharsets.UTF_8));
+            out.write(body);
+        }
+
+        private Response read() throws IOException {
+            // Skip blank lines left over from the previous response, then read the status line
+            String statusLine;
+            do {
+                statusLine = HttpRequest.readLine(in);
+                if (statusLine == null) {
+                    throw new IOException("Connection closed by server");
+                }
+            } while (statusLine.isEmpty());
+
+            int contentLength = -1;
+            boolean keepAlive = false;
+            String line;
+            while ((line = HttpRequest.readLine(in)) != null && !line.isEmpty()) {
+                if (line.regionMatches(true, 0, "Content-Length:", 0, 15)) {
+                    contentLength = Integer.parseInt(line.substring(15).trim());
+                } else if (line.regionMatches(true, 0, "Connection:", 0, 11)) {
+                    keepAlive = line.substring(11).trim().equalsIgnoreCase("keep-alive");
+                }
+            }
+            if (!keepAlive || contentLength < 0) {
+                throw new IOException("Server does not support keep-alive connections");
+            }
+
+            byte[] responseBody = in.readNBytes(contentLength);
+            if (responseBody.length < contentLength) {
+                throw new IOException("Response body ended after " + responseBody.length + " of " + contentLength + " bytes");
+            }
+            return new Response(statusLine, responseBody);
+        }
+
+        void close() {
+            try {
+                socket.close();
+            } catch (IOException e) {
+                // Already closed
+            }
+        }
+    }
+}
@@ -0,0 +1,314 @@
+package com.aggregationserver;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.URLDecoder;
+import java.nio.charset.StandardCharsets;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * Represents a single HTTP request read from a client connection.
+ * Keeps the request line and headers so that handlers can inspect the request and the
+ * cluster code can replay it to another node. The body is left on the connection and
+ * can either be streamed ({@link #getBodyStream()}) or buffered ({@link #getBody()}).
+ */
+public class HttpRequest {
+
+    protected static final String FORWARDED_HEADER = "X-Cluster-Forwarded";  // Marks requests relayed between nodes
+
+    private final String requestLine;
+    private final String method;
+    private final String path;  // The request target without its query string
+    private final String query;  // The query string after '?', or null if there is none
+    private final Map<String, String> headers;  // Header name (as sent) -> value
+    private final int contentLength;
+    private InputStream bodyStream;  // Unread body on the connection, or null once buffered
+    private byte[] body;  // Buffered body, or null while still on the connection
+    private String remoteAddress;  // The client's IP address, or null if not read from a socket
+
+    /**
+     * Creates a request from its parts.
+     *
+     * @param requestLine The full request line, e.g. "GET /weather HTTP/1.1"
+     * @param headers     The request headers
+     * @param body        The request body (may be empty)
+     */
+    public HttpRequest(String requestLine, Map<String, String> headers, byte[] body) {
+        this(requestLine, headers, body.length);
+        this.body = body;
+    }
+
+    private HttpRequest(String requestLine, Map<String, String> headers, int contentLength) {
+        this.requestLine = requestLine;
+        String[] parts = requestLine.split(" ");
+        this.method = parts[0];
+        String target = parts.length > 1 ? parts[1] : "";
+        int queryStart = target.indexOf('?');
+        this.path = queryStart >= 0 ? target.substring(0, queryStart) : target;
+        this.query = queryStart >= 0 ? target.substring(queryStart + 1) : null;
+        this.headers = headers;
+        this.contentLength = contentLength;
+    }
+
+    /**
+     * Reads the request line and headers of one request from a stream. The body of
+     * Content-Length bytes is not read yet; it stays available through getBodyStream().
+     *
+     * @param in The stream to read from
+     * @return The request, or null if the stream ended before a request line was read
+     * @throws IOException If an I/O error occurs
+     */
+    public static HttpRequest read(InputStream in) throws IOException {
+        String requestLine = readLine(in);
+        if (requestLine == null || requestLine.isEmpty()) {
+            return null;
+        }
+
+        Map<String, String> headers = new LinkedHashMap<>();
+        String line;
+        while ((line = readLine(in)) != null && !line.isEmpty()) {
+            int colon = line.indexOf(':');
+            if (colon > 0) {
+                headers.put(line.substring(0, colon).trim(), line.substring(colon + 1).trim());
+            }
+        }
+
+        int contentLength = 0;
+        String lengthHeader = findHeader(headers, "Content-Length");
+        if (lengthHeader != null) {
+            contentLength = Integer.parseInt(lengthHeader);
+        }
+
+        HttpRequest request = new HttpRequest(requestLine, headers, contentLength);
+        request.bodyStream = new BodyInputStream(in, contentLength);
+        return request;
+    }
+
+    /**
+     * Reads a CRLF or LF terminated line as ISO-8859-1 text.
+     *
+     * @param in The stream to read from
+     * @return The line without its terminator, or null at end of stream
+     * @throws IOException If an I/O error occurs
+     */
+    protected static String readLine(InputStream in) throws IOException {
+        ByteArrayOutputStream line = new ByteArrayOutputStream(64);
+        int b;
+        while ((b = in.read()) != -1) {
+            if (b == '\n') {
+                break;
+            }
+            if (b != '\r') {
+                line.write(b);
+            }
+        }
+        if (b == -1 && line.size() == 0) {
+            return null;
+        }
+        return line.toString(StandardCharsets.ISO_8859_1);
+    }
+
+    private static String findHeader(Map<String, String> headers, String name) {
+        for (Map.Entry<String, String> header : headers.entrySet()) {
+            if (header.getKey().equalsIgnoreCase(name)) {
+                return header.getValue();
+            }
+        }
+        return null;
+    }
+
+    /**
+     * Writes the request to a stream in HTTP wire format, adding extra headers.
+     *
+     * @param out          The stream to write to
+     * @param extraHeaders Headers to add or replace (e.g. the cluster forwarding marker)
+     * @throws IOException If an I/O error occurs or the body is truncated
+     */
+    public void writeTo(OutputStream out, Map<String, String> extraHeaders) throws IOException {
+        StringBuilder head = new StringBuilder();
+        head.append(requestLine).append("\r\n");
+        for (Map.Entry<String, String> header : headers.entrySet()) {
+            if (findHeader(extraHeaders, header.getKey()) == null) {
+                head.append(header.getKey()).append(": ").append(header.getValue()).append("\r\n");
+            }
+        }
+        for (Map.Entry<String, String> header : extraHeaders.entrySet()) {
+            head.append(header.getKey()).append(": ").append(header.getValue()).append("\r\n");
+        }
+        head.append("\r\n");
+        out.write(head.toString().getBytes(StandardCharsets.ISO_8859_1));
+        out.write(getBody());
+        out.flush();
+    }
+
+    public String getRequestLine() {
+        return requestLine;
+    }
+
+    public String getMethod() {
+        return method;
+    }
+
+    public String getPath() {
+        return path;
+    }
+
+    /**
+     * Looks up a parameter of the query string, e.g. "ids" in "/weather?ids=a,b".
+     *
+     * @param name The parameter name
+     * @return The URL-decoded value of the first parameter with that name, "" if it has no
+     *         value, or null if it is absent
+     */
+    public String getQueryParameter(String name) {
+        if (query == null) {
+            return null;
+        }
+        for (String parameter : query.split("&")) {
+            int equals = parameter.indexOf('=');
+            String key = URLDecoder.decode(equals >= 0 ? parameter.substring(0, equals) : parameter, StandardCharsets.UTF_8);
+            if (key.equals(name)) {
+                return equals >= 0 ? URLDecoder.decode(parameter.substring(equals + 1), StandardCharsets.UTF_8) : "";
+            }
+        }
+        return null;
+    }
+
+    /**
+     * Looks up a header value, ignoring the case of the header name.
+     *
+     * @param name The header name
+     * @return The header value, or null if the header is absent
+     */
+    public String getHeader(String name) {
+        return findHeader(headers, name);
+    }
+
+    public Map<String, String> getHeaders() {
+        return headers;
+    }
+
+    public int getContentLength() {
+        return contentLength;
+    }
+
+    public String getRemoteAddress() {
+        return remoteAddress;
+    }
+
+    public void setRemoteAddress(String remoteAddress) {
+        this.remoteAddress = remoteAddress;
+    }
+
+    /**
+     * Returns a stream over the body that ends after Content-Length bytes, without buffering it.
+     * The body can be consumed only once, either through this stream or through getBody().
+     *
+     * @return The body stream
+     */
+    public InputStream getBodyStream() {
+        if (bodyStream == null) {
+            bodyStream = new ByteArrayInputStream(body);
+        }
+        return bodyStream;
+    }
+
+    /**
+     * Reads the whole body into memory (once) and returns it.
+     *
+     * @return The body bytes
+     * @throws IOException If an I/O error occurs or the body is truncated
+     */
+    public byte[] getBody() throws IOException {
+        if (body == null) {
+            byte[] read = bodyStream.readAllBytes();
+            if (read.length < contentLength) {
+                throw new IOException("Request body ended after " + read.length + " of " + contentLength + " bytes");
+            }
+            body = read;
+            bodyStream = null;
+        }
+        return body;
+    }
+
+    /**
+     * Returns the body decoded as UTF-8 text.
+     *
+     * @return The body as a string
+     * @throws IOException If an I/O error occurs or the body is truncated
+     */
+    public String getBodyAsString() throws IOException {
+        return new String(getBody(), StandardCharsets.UTF_8);
+    }
+
+    /**
+     * Returns true if the client asked to keep the connection open for further requests
+     * ("Connection: keep-alive"). Other clients read the response until the connection closes.
+     *
+     * @return true for keep-alive requests
+     */
+    public boolean isKeepAlive() {
+        String connection = getHeader("Connection");
+        return connection != null && connection.equalsIgnoreCase("keep-alive");
+    }
+
+    /**
+     * Skips any part of the body a handler did not read, so that the next request on the
+     * connection starts at the right place.
+     *
+     * @throws IOException If an I/O error occurs
+     */
+    public void discardBody() throws IOException {
+        if (bodyStream != null) {
+            bodyStream.skip(Long.MAX_VALUE);
+        }
+    }
+
+    /**
+     * Returns true if this request carries the marker of a request relayed by another cluster
+     * node. Any client can send the marker, so it only counts once the sender is known to be a
+     * peer (see {@link ClusterManager#isFromPeer}).
+     *
+     * @return true for requests marked as forwarded
+     */
+    public boolean isForwarded() {
+        return getHeader(FORWARDED_HEADER) != null;
+    }
+
+    /**
+     * An InputStream over the next Content-Length bytes of a connection.
+     */
+    private static class BodyInputStream extends InputStream {
+        private final InputStream in;
+        private int remaining;
+
+        BodyInputStream(InputStream in, int length) {
+            this.in = in;
+            this.remaining = length;
+        }
+
+        @Override
+        public int read() throws IOException {
+            if (remaining <= 0) {
+                return -1;
+            }
+            int b = in.read();
+            remaining = b < 0 ? 0 : remaining - 1;
+            return b;
+        }
+
+        @Override
+        public int read(byte[] b, int off, int len) throws IOException {
+            if (remaining <= 0) {
+                return -1;
+            }
+            int n = in.read(b, off, Math.min(len, remaining));
+            remaining = n < 0 ? 0 : remaining - n;
+            return n;
+        }
+    }
+}
@@ -1,6 +1,12 @@
 package com.aggregationserver;
 
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.Reader;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
 import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.HashMap;
 import java.util.List;
 import java.util.Map;
@@ -8,15 +14,97 @@ import java.util.Map;
 /**
  * A simple JSON parser capable of parsing JSON strings into Java objects (Map,
  * List, String, Number, etc.).
+ * <p>
+ * A parser created over a Reader or InputStream also offers a streaming, pull-style
+ * token API ({@link #nextToken()}, {@link #currentString()}, {@link #currentNumber()})
+ * that reads the input through a small fixed buffer, so large documents can be
+ * processed without holding the whole text in memory.
+ * <p>
+ * UTF-8 input (an InputStream, byte array or ByteBuffer) is tokenized directly on the
+ * bytes without decoding it to characters. Strings are only turned into Java Strings
+ * when {@link #currentString()} asks for them, and ASCII field names are served from
+ * a small cache so that repeated keys do not allocate.
  */
 public class JSONParser {
 
+    /**
+     * Tokens returned by the streaming API.
+     */
+    public enum Token {
+        START_OBJECT, END_OBJECT, START_ARRAY, END_ARRAY, FIELD_NAME,
+        STRING, NUMBER, TRUE, FALSE, NULL, END_DOCUMENT
+    }
+
+    protected static final int STREAM_BUFFER_SIZE = 1024;  // Characters or bytes read from the stream at a time
+    protected static final int NAME_CACHE_SIZE = 256;  // Slots in the ASCII field name cache (power of two)
+    protected static final int MAX_CACHED_NAME_LENGTH = 32;  // Longer field names are not cached
+    protected static final int INDEXED_PARSE_THRESHOLD = 1024 * 1024;  // Byte documents at least this long use StructuralIndex
+
+    // Parser states of the streaming API: what may follow the token under the cursor
+    private static final int EXPECT_VALUE = 0;  // A value: at the top level, after ':' or after ',' in an array
+    private static final int EXPECT_VALUE_OR_END = 1;  // After '[': a value or ']'
+    private static final int EXPECT_NAME = 2;  // After ',' in an object: a field name
+    private static final int EXPECT_NAME_OR_END = 3;  // After '{': a field name or '}'
+    private static final int EXPECT_COLON = 4;  // After a field name: ':'
+    private static final int EXPECT_COMMA_OR_END = 5;  // After a value in an object or array: ',' or its closing bracket
+
+    // Recently seen ASCII field names, indexed by hash and shared by all parsers. Racing
+    // writes are harmless: a slot only ever holds a complete String, checked before use.
+    private static final String[] NAME_CACHE = new String[NAME_CACHE_SIZE];
+    private static final int REPLACEMENT_CHARACTER = 0xFFFD;  // Stands in for an unpaired surrogate in UTF-8 input
+
     // Current index in the JSON string being parsed
     private int index;
 
     // The JSON string being parsed
     private String json;
 
+    // Streaming state: the source, its fixed read buffer and the token under the cursor
+    private Reader reader;
+    private char[] buffer;  // Character buffer when reading from a Reader
+    private InputStream input;
+    private ByteBuffer inputBuffer;
+    private byte[] bytes;  // UTF-8 buffer when reading bytes; null when reading characters
+    private int bufferPos;
+    private int bufferLimit;
+    private Token currentToken;
+    private final StringBuilder tokenText = new StringBuilder();  // Text of the current token when reading characters
+    private byte[] tokenBytes = new byte[64];  // UTF-8 text of the current token when reading bytes
+    private int tokenLength;
+    private boolean tokenAscii;  // True if tokenBytes holds only ASCII
+    private String tokenString;  // The current token's text once materialized
+    private boolean[] inObject = new boolean[16];  // Per nesting level: true inside an object, false inside an array
+    private int depth;
+    private int expected = EXPECT_VALUE;  // What the grammar allows next, one of the EXPECT_ states
+    private int tokenStart;  // Index of the current token's first byte, for byte array input
+    private int tokenEnd;  // Index just after the current value token's last byte, for byte array input
+
+    /**
+     * Creates a parser for whole JSON strings; see {@link #parse(String)}.
+     */
+    public JSONParser() {
+    }
+
+    /**
+     * Creates a streaming parser that pulls tokens from a Reader.
+     *
+     * @param reader The source of the JSON text
+     */
+    public JSONParser(Reader reader) {
+        this.reader = reader;
+        this.buffer = new char[STREAM_BUFFER_SIZE];
+    }
+
+    /**
+     * Creates a streaming parser that pulls tokens from a UTF-8 encoded InputStream.
+     *
+     * @param in The source of the JSON text
+     */
+    public JSONParser(InputStream in) {
+        this.input = in;
+        this.bytes = new byte[STREAM_BUFFER_SIZE];
+    }
+
     /**
      * Parses a JSON string and returns the corresponding Java object (Map,
      * List, String, Number, etc.).
@@ -31,6 +119,97 @@ public class JSONParser {
         return parseValue();  // Start parsing from the root value
     }
 
+    /**
+     * Parses a UTF-8 encoded JSON document directly from its bytes, without decoding
+     * it to characters first.
+     *
+     * @param utf8Json The UTF-8 JSON bytes.
+     * @return The parsed Java object representation of the JSON.
+     * @throws Exception If an error occurs during parsing.
+     */
+    public Object parse(byte[] utf8Json) throws Exception {
+        return parse(utf8Json, 0, utf8Json.length);
+    }
+
+    /**
+     * Parses a UTF-8 encoded JSON document from a region of a byte array. Large documents
+     * are parsed through a {@link StructuralIndex} when SIMD classification is available.
+     *
+     * @param utf8Json The array holding the UTF-8 JSON bytes.
+     * @param offset   The index of the first byte of the document.
+     * @param length   The number of bytes in the document.
+     * @return The parsed Java object representation of the JSON.
+     * @throws Exception If an error occurs during parsing.
+     */
+    public Object parse(byte[] utf8Json, int offset, int length) throws Exception {
+        if (length >= INDEXED_PARSE_THRESHOLD && StructuralIndex.isVectorized()) {
+            return StructuralIndex.build(utf8Json, offset, length).parse();
+        }
+        reset(utf8Json, offset, length);
+        return readDocument();
+    }
+
+    /**
+     * Points the streaming token API at a UTF-8 encoded JSON document held in a region of
+     * a byte array, so that it can be read with {@link #nextToken()} without copying it.
+     *
+     * @param utf8Json The array holding the UTF-8 JSON bytes.
+     * @param offset   The index of the first byte of the document.
+     * @param length   The number of bytes in the document.
+     */
+    public void reset(byte[] utf8Json, int offset, int length) {
+        resetStream();
+        bytes = utf8Json;  // Tokenize in place; the array is never refilled
+        bufferPos = offset;
+        bufferLimit = offset + length;
+    }
+
+    /**
+     * Parses the remaining bytes of a ByteBuffer as a UTF-8 encoded JSON document.
+     * Heap buffers are parsed in place; direct buffers are copied through the fixed
+     * stream buffer. The buffer's position is moved to its limit.
+     *
+     * @param utf8Json The buffer holding the UTF-8 JSON bytes.
+     * @return The parsed Java object representation of the JSON.
+     * @throws Exception If an error occurs during parsing.
+     */
+    public Object parse(ByteBuffer utf8Json) throws Exception {
+        if (utf8Json.hasArray()) {
+            Object result = parse(utf8Json.array(), utf8Json.arrayOffset() + utf8Json.position(), utf8Json.remaining());
+            utf8Json.position(utf8Json.limit());
+            return result;
+        }
+        resetStream();
+        inputBuffer = utf8Json;
+        bytes = new byte[STREAM_BUFFER_SIZE];
+        return readDocument();
+    }
+
+    /**
+     * Reads the single value making up a document from the streaming source.
+     */
+    private Object readDocument() throws Exception {
+        if (nextToken() == Token.END_DOCUMENT) {
+            throw new Exception("Empty JSON input");
+        }
+        return readValue();
+    }
+
+    /**
+     * Clears the streaming source and position before parsing a new document.
+     */
+    private void resetStream() {
+        reader = null;
+        buffer = null;
+        input = null;
+        inputBuffer = null;
+        bufferPos = 0;
+        bufferLimit = 0;
+        depth = 0;
+        expected = EXPECT_VALUE;
+        currentToken = null;
+    }
+
     /**
      * Parses the next value in the JSON string, which can be an object, array,
      * string, number, boolean, or null.
@@ -141,23 +320,7 @@ public class JSONParser {
             index++;
         }
 
-        String numberString = sb.toString();
-
-        try {
-            if (numberString.contains(".")) {
-                return Double.parseDouble(numberString);  // Return as double if it has a decimal point
-            } else {
-                // Return as long if it's a large number, otherwise int
-                long longValue = Long.parseLong(numberString);
-                if (longValue <= Integer.MAX_VALUE && longValue >= Integer.MIN_VALUE) {
-                    return (int) longValue;  // Use int for smaller numbers
-                } else {
-                    return longValue;  // Use long for larger numbers
-                }
-            }
-        } catch (NumberFormatException e) {
-            throw new Exception("Invalid number format: " + numberString);
-        }
+        return toNumber(sb.toString());
     }
 
     /**
@@ -200,6 +363,672 @@ public class JSONParser {
         }
     }
 
+    /**
+     * Advances the stream to the next token. Commas and colons are consumed as separators,
+     * and must appear exactly where JSON puts them: a missing, doubled or trailing separator
+     * is an error.
+     *
+     * @return The token now under the cursor; END_DOCUMENT once the input is exhausted.
+     * @throws Exception If the input cannot be read or is not valid JSON.
+     */
+    public Token nextToken() throws Exception {
+        int c = readNonWhitespace();
+        if (expected == EXPECT_COLON) {
+            if (c != ':') {
+                throw new Exception("Expected ':' after a field name in JSON input");
+            }
+            c = readNonWhitespace();
+            expected = EXPECT_VALUE;
+        } else if (expected == EXPECT_COMMA_OR_END && c == ',') {
+            c = readNonWhitespace();
+            expected = inObject[depth - 1] ? EXPECT_NAME : EXPECT_VALUE;
+        } else if (expected == EXPECT_COMMA_OR_END && c != '}' && c != ']' && c != -1) {
+            throw new Exception("Expected ',' between values in JSON input");
+        }
+
+        tokenStart = bufferPos - 1;
+        switch (c) {
+            case -1:
+                if (depth > 0) {
+                    throw new Exception("Unexpected end of JSON input");
+                }
+                currentToken = Token.END_DOCUMENT;
+                return currentToken;
+            case '{':
+                expectValue(c);
+                pushContext(true);
+                expected = EXPECT_NAME_OR_END;
+                return currentToken = Token.START_OBJECT;
+            case '[':
+                expectValue(c);
+                pushContext(false);
+                expected = EXPECT_VALUE_OR_END;
+                return currentToken = Token.START_ARRAY;
+            case '}':
+            case ']':
+                boolean object = c == '}';
+                if (depth == 0 || inObject[depth - 1] != object
+                        || expected != EXPECT_COMMA_OR_END && expected != (object ? EXPECT_NAME_OR_END : EXPECT_VALUE_OR_END)) {
+                    throw new Exception("Unexpected '" + (char) c + "' in JSON input");
+                }
+                depth--;
+                currentToken = object ? Token.END_OBJECT : Token.END_ARRAY;
+                break;
+            case '"':
+                readStreamString();
+                if (expected == EXPECT_NAME || expected == EXPECT_NAME_OR_END) {
+                    expected = EXPECT_COLON;
+                    return currentToken = Token.FIELD_NAME;
+                }
+                expectValue(c);
+                currentToken = Token.STRING;
+                break;
+            case 't':
+                expectValue(c);
+                expectLiteral("rue");
+                currentToken = Token.TRUE;
+                break;
+            case 'f':
+                expectValue(c);
+                expectLiteral("alse");
+                currentToken = Token.FALSE;
+                break;
+            case 'n':
+                expectValue(c);
+                expectLiteral("ull");
+                currentToken = Token.NULL;
+                break;
+            default:
+                if (c != '-' && (c < '0' || c > '9')) {
+                    throw new Exception("Unexpected character '" + (char) c + "' in JSON input");
+                }
+                expectValue(c);
+                readStreamNumber(c);
+                currentToken = Token.NUMBER;
+        }
+        tokenEnd = bufferPos;
+        expected = depth > 0 ? EXPECT_COMMA_OR_END : EXPECT_VALUE;  // A value is complete
+        return currentToken;
+    }
+
+    /**
+     * Checks that a value may start here, rather than a field name or a separator.
+     *
+     * @param c The value's first character
+     * @throws Exception If the grammar does not allow a value here
+     */
+    private void expectValue(int c) throws Exception {
+        if (expected != EXPECT_VALUE && expected != EXPECT_VALUE_OR_END) {
+            throw new Exception("Unexpected '" + (char) c + "' in JSON input"
+                    + (expected == EXPECT_COMMA_OR_END ? "" : "; expected a field name"));
+        }
+    }
+
+    /**
+     * Returns the token under the cursor.
+     *
+     * @return The current token, or null before the first call to nextToken().
+     */
+    public Token currentToken() {
+        return currentToken;
+    }
+
+    /**
+     * Returns where the current STRING or NUMBER token starts in the array given to
+     * {@link #reset(byte[], int, int)}; a string starts at its opening quote. Tokens read from
+     * a stream have no position in the input.
+     *
+     * @return The index of the token's first byte.
+     */
+    public int currentTokenStart() {
+        return tokenStart;
+    }
+
+    /**
+     * Returns where the current STRING or NUMBER token ends in the array given to
+     * {@link #reset(byte[], int, int)}; a string ends after its closing quote.
+     *
+     * @return The index just after the token's last byte.
+     */
+    public int currentTokenEnd() {
+        return tokenEnd;
+    }
+
+    /**
+     * Returns the text of the current FIELD_NAME, STRING or NUMBER token.
+     *
+     * @return The token text.
+     */
+    public String currentString() {
+        if (bytes == null) {
+            return tokenText.toString();
+        }
+        if (tokenString == null) {
+            if (currentToken == Token.FIELD_NAME && tokenAscii && tokenLength <= MAX_CACHED_NAME_LENGTH) {
+                tokenString = cachedName();
+            } else {
+                tokenString = new String(tokenBytes, 0, tokenLength, tokenAscii ? StandardCharsets.ISO_8859_1 : StandardCharsets.UTF_8);
+            }
+        }
+        return tokenString;
+    }
+
+    /**
+     * Compares the text of the current token with a string. For UTF-8 input and an
+     * ASCII string (such as a field name) the bytes are compared without creating a String.
+     *
+     * @param text The string to compare with.
+     * @return true if the token text equals the string.
+     */
+    public boolean currentStringEquals(String text) {
+        if (bytes == null || !tokenAscii) {
+            return currentString().equals(text);
+        }
+        if (text.length() != tokenLength) {
+            return false;
+        }
+        for (int i = 0; i < tokenLength; i++) {
+            if (tokenBytes[i] != text.charAt(i)) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * Returns the current ASCII field name from the name cache, adding it on a miss.
+     */
+    private String cachedName() {
+        return cachedName(tokenBytes, 0, tokenLength);
+    }
+
+    /**
+     * Returns an ASCII field name held in a byte array from the name cache, adding it on a miss.
+     *
+     * @param ascii  The array holding the name.
+     * @param offset The index of the name's first byte.
+     * @param length The length of the name (at most MAX_CACHED_NAME_LENGTH).
+     * @return The name.
+     */
+    protected static String cachedName(byte[] ascii, int offset, int length) {
+        int hash = 0;
+        for (int i = 0; i < length; i++) {
+            hash = 31 * hash + ascii[offset + i];
+        }
+        int slot = (hash ^ (hash >>> 16)) & (NAME_CACHE_SIZE - 1);
+        String cached = NAME_CACHE[slot];
+        if (cached == null || !asciiEquals(cached, ascii, offset, length)) {
+            cached = new String(ascii, offset, length, StandardCharsets.ISO_8859_1);
+            NAME_CACHE[slot] = cached;
+        }
+        return cached;
+    }
+
+    private static boolean asciiEquals(String text, byte[] ascii, int offset, int length) {
+        if (text.length() != length) {
+            return false;
+        }
+        for (int i = 0; i < length; i++) {
+            if (ascii[offset + i] != text.charAt(i)) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * Returns the value of the current NUMBER token as an int, long or double,
+     * following the same rules as {@link #parse(String)}.
+     *
+     * @return The parsed number.
+     * @throws Exception If the current token is not a valid number.
+     */
+    public Number currentNumber() throws Exception {
+        if (currentToken != Token.NUMBER) {
+            throw new Exception("Current token is not a number: " + currentToken);
+        }
+        if (bytes != null && tokenLength <= 18) {
+            // Fast path: plain integers are converted straight from the bytes
+            boolean negative = tokenBytes[0] == '-';
+            int start = negative ? 1 : 0;
+            long value = 0;
+            int i = start;
+            while (i < tokenLength && tokenBytes[i] >= '0' && tokenBytes[i] <= '9') {
+                value = value * 10 + (tokenBytes[i] - '0');
+                i++;
+            }
+            if (i == tokenLength && i > start) {
+                value = negative ? -value : value;
+                if (value <= Integer.MAX_VALUE && value >= Integer.MIN_VALUE) {
+                    return (int) value;
+                }
+                return value;
+            }
+        }
+        return toNumber(currentString());
+    }
+
+    /**
+     * Materializes the value starting at the current token into Java objects
+     * (Map, List, String, Number, Boolean or null). Afterwards the cursor is on the
+     * value's last token, so nextToken() continues with whatever follows the value.
+     *
+     * @return The value.
+     * @throws Exception If the input is not valid JSON.
+     */
+    public Object readValue() throws Exception {
+        switch (currentToken) {
+            case START_OBJECT: {
+                Map<String, Object> obj = new HashMap<>();
+                while (nextToken() == Token.FIELD_NAME) {
+                    String key = currentString();
+                    nextToken();
+                    obj.put(key, readValue());
+                }
+                if (currentToken != Token.END_OBJECT) {
+                    throw new Exception("Expected a field name but found " + currentToken);
+                }
+                return obj;
+            }
+            case START_ARRAY: {
+                List<Object> array = new ArrayList<>();
+                while (nextToken() != Token.END_ARRAY) {
+                    array.add(readValue());
+                }
+                return array;
+            }
+            case STRING:
+                return currentString();
+            case NUMBER:
+                return currentNumber();
+            case TRUE:
+                return true;
+            case FALSE:
+                return false;
+            case NULL:
+                return null;
+            default:
+                throw new Exception("Expected a value but found " + currentToken);
+        }
+    }
+
+    /**
+     * Skips the object or array starting at the current token without materializing it.
+     * Does nothing if the current token is a scalar.
+     *
+     * @throws Exception If the input is not valid JSON.
+     */
+    public void skipChildren() throws Exception {
+        if (currentToken != Token.START_OBJECT && currentToken != Token.START_ARRAY) {
+            return;
+        }
+        int targetDepth = depth - 1;
+        while (depth > targetDepth) {
+            if (nextToken() == Token.END_DOCUMENT) {
+                throw new Exception("Unexpected end of JSON input");
+            }
+        }
+    }
+
+    /**
+     * Records entry into an object or array, growing the context stack if needed.
+     */
+    private void pushContext(boolean object) {
+        if (depth == inObject.length) {
+            inObject = Arrays.copyOf(inObject, depth * 2);
+        }
+        inObject[depth++] = object;
+    }
+
+    /**
+     * Reads the next character from the stream buffer, refilling it when empty.
+     *
+     * @return The character, or -1 at end of input.
+     */
+    private int readChar() throws IOException {
+        if (bufferPos == bufferLimit && !fillBuffer()) {
+            return -1;
+        }
+        return bytes != null ? bytes[bufferPos++] & 0xff : buffer[bufferPos++];
+    }
+
+    /**
+     * Refills the stream buffer from the source.
+     *
+     * @return false at end of input.
+     */
+    private boolean fillBuffer() throws IOException {
+        int n;
+        if (reader != null) {
+            n = reader.read(buffer, 0, buffer.length);
+        } else if (input != null) {
+            n = input.read(bytes, 0, bytes.length);
+        } else if (inputBuffer != null) {
+            n = Math.min(bytes.length, inputBuffer.remaining());
+            inputBuffer.get(bytes, 0, n);
+        } else if (bytes == null) {
+            throw new IllegalStateException("Streaming API requires a parser created over a Reader or InputStream");
+        } else {
+            n = -1;  // A byte array being parsed in place has no more input
+        }
+        if (n <= 0) {
+            return false;
+        }
+        bufferPos = 0;
+        bufferLimit = n;
+        return true;
+    }
+
+    /**
+     * Looks at the next character without consuming it.
+     *
+     * @return The character, or -1 at end of input.
+     */
+    private int peekChar() throws IOException {
+        int c = readChar();
+        if (c != -1) {
+            bufferPos--;
+        }
+        return c;
+    }
+
+    /**
+     * Reads the next character that is not JSON whitespace.
+     *
+     * @return The character, or -1 at end of input.
+     */
+    private int readNonWhitespace() throws IOException {
+        int c;
+        do {
+            c = readChar();
+        } while (c == ' ' || c == '\n' || c == '\r' || c == '\t');
+        return c;
+    }
+
+    /**
+     * Reads a string token (after its opening quote) into tokenText, decoding escapes.
+     */
+    private void readStreamString() throws Exception {
+        if (bytes != null) {
+            readStreamBytes();
+            return;
+        }
+        tokenText.setLength(0);
+        while (true) {
+            int c = readChar();
+            if (c == -1) {
+                throw new Exception("Unterminated JSON string");
+            }
+            if (c == '"') {
+                return;
+            }
+            if (c == '\\') {
+                c = readChar();
+                switch (c) {
+                    case 'b': tokenText.append('\b'); break;
+                    case 'f': tokenText.append('\f'); break;
+                    case 'n': tokenText.append('\n'); break;
+                    case 'r': tokenText.append('\r'); break;
+                    case 't': tokenText.append('\t'); break;
+                    case 'u': {
+                        int code = 0;
+                        for (int i = 0; i < 4; i++) {
+                            int digit = Character.digit(readChar(), 16);
+                            if (digit < 0) {
+                                throw new Exception("Invalid unicode escape in JSON string");
+                            }
+                            code = (code << 4) | digit;
+                        }
+                        tokenText.append((char) code);
+                        break;
+                    }
+                    case -1:
+                        throw new Exception("Unterminated JSON string");
+                    default:
+                        tokenText.append((char) c);  // \" \\ and \/
+                }
+            } else {
+                tokenText.append((char) c);
+            }
+        }
+    }
+
+    /**
+     * Reads a string token (after its opening quote) from UTF-8 input into tokenBytes.
+     * Runs of plain bytes are copied in bulk; escapes are re-encoded as UTF-8.
+     */
+    private void readStreamBytes() throws Exception {
+        tokenLength = 0;
+        tokenAscii = true;
+        tokenString = null;
+        while (true) {
+            if (bufferPos == bufferLimit && !fillBuffer()) {
+                throw new Exception("Unterminated JSON string");
+            }
+
+            // Copy everything up to the next quote or backslash in one go
+            int start = bufferPos;
+            int highBits = 0;
+            while (bufferPos < bufferLimit) {
+                byte b = bytes[bufferPos];
+                if (b == '"' || b == '\\') {
+                    break;
+                }
+                highBits |= b;
+                bufferPos++;
+            }
+            appendTokenBytes(bytes, start, bufferPos - start);
+            if (highBits < 0) {
+                tokenAscii = false;  // A byte with the high bit set is part of a multi-byte character
+            }
+            if (bufferPos == bufferLimit) {
+                continue;
+            }
+
+            if (bytes[bufferPos++] == '"') {
+                return;
+            }
+            appendEscape(readChar());
+        }
+    }
+
+    /**
+     * Appends the character written by an escape to tokenBytes.
+     *
+     * @param c The character after the backslash
+     */
+    private void appendEscape(int c) throws Exception {
+        switch (c) {
+            case 'b': appendTokenByte('\b'); break;
+            case 'f': appendTokenByte('\f'); break;
+            case 'n': appendTokenByte('\n'); break;
+            case 'r': appendTokenByte('\r'); break;
+            case 't': appendTokenByte('\t'); break;
+            case 'u': appendUnicodeEscape(); break;
+            case -1:
+                throw new Exception("Unterminated JSON string");
+            default:
+                appendTokenByte(c);  // \" \\ and \/
+        }
+    }
+
+    /**
+     * Appends the character of a \\uXXXX escape (after the 'u'), combining a surrogate pair
+     * written as two escapes. A surrogate without its other half cannot be encoded in UTF-8,
+     * so it becomes U+FFFD, whatever follows it; an escape that follows is still decoded.
+     */
+    private void appendUnicodeEscape() throws Exception {
+        int code = readHex4();
+        while (Character.isHighSurrogate((char) code) && peekChar() == '\\') {
+            readChar();
+            int c = readChar();
+            if (c != 'u') {
+                appendCodePoint(REPLACEMENT_CHARACTER);  // Unpaired, before another kind of escape
+                appendEscape(c);
+                return;
+            }
+            int low = readHex4();
+            if (Character.isLowSurrogate((char) low)) {
+                appendCodePoint(Character.toCodePoint((char) code, (char) low));
+                return;
+            }
+            appendCodePoint(REPLACEMENT_CHARACTER);  // Unpaired; the next escape may start a pair of its own
+            code = low;
+        }
+        appendCodePoint(Character.isSurrogate((char) code) ? REPLACEMENT_CHARACTER : code);
+    }
+
+    private int readHex4() throws Exception {
+        int code = 0;
+        for (int i = 0; i < 4; i++) {
+            int digit = Character.digit(readChar(), 16);
+            if (digit < 0) {
+                throw new Exception("Invalid unicode escape in JSON string");
+            }
+            code = (code << 4) | digit;
+        }
+        return code;
+    }
+
+    /**
+     * Appends a code point to tokenBytes in UTF-8.
+     */
+    private void appendCodePoint(int codePoint) {
+        if (codePoint < 0x80) {
+            appendTokenByte(codePoint);
+            return;
+        }
+        tokenAscii = false;
+        if (codePoint < 0x800) {
+            appendTokenByte(0xc0 | (codePoint >> 6));
+        } else {
+            if (codePoint < 0x10000) {
+                appendTokenByte(0xe0 | (codePoint >> 12));
+            } else {
+                appendTokenByte(0xf0 | (codePoint >> 18));
+                appendTokenByte(0x80 | ((codePoint >> 12) & 0x3f));
+            }
+            appendTokenByte(0x80 | ((codePoint >> 6) & 0x3f));
+        }
+        appendTokenByte(0x80 | (codePoint & 0x3f));
+    }
+
+    private void appendTokenByte(int b) {
+        if (tokenLength == tokenBytes.length) {
+            tokenBytes = Arrays.copyOf(tokenBytes, tokenLength * 2);
+        }
+        tokenBytes[tokenLength++] = (byte) b;
+    }
+
+    private void appendTokenBytes(byte[] source, int offset, int length) {
+        if (tokenLength + length > tokenBytes.length) {
+            tokenBytes = Arrays.copyOf(tokenBytes, Math.max(tokenBytes.length * 2, tokenLength + length));
+        }
+        System.arraycopy(source, offset, tokenBytes, tokenLength, length);
+        tokenLength += length;
+    }
+
+    /**
+     * Reads a number token starting with the given character into tokenText
+     * (or tokenBytes for UTF-8 input), following the JSON number grammar: an optional minus,
+     * an integer part without leading zeros, then an optional fraction and exponent.
+     *
+     * @throws Exception If the number is not well formed, e.g. "1.2.3", "-" or "1e"
+     */
+    private void readStreamNumber(int first) throws Exception {
+        tokenText.setLength(0);
+        tokenLength = 0;
+        tokenAscii = true;
+        tokenString = null;
+        int c = first;
+        if (c == '-') {
+            appendNumberChar(c);
+            c = readChar();
+        }
+        if (c == '0') {
+            appendNumberChar(c);
+        } else if (c >= '1' && c <= '9') {
+            appendNumberChar(c);
+            readDigits(false);
+        } else {
+            throw new Exception("Invalid JSON number");
+        }
+        if (peekChar() == '.') {
+            appendNumberChar(readChar());
+            readDigits(true);
+        }
+        c = peekChar();
+        if (c == 'e' || c == 'E') {
+            appendNumberChar(readChar());
+            c = peekChar();
+            if (c == '+' || c == '-') {
+                appendNumberChar(readChar());
+            }
+            readDigits(true);
+        }
+        c = peekChar();
+        if ((c >= '0' && c <= '9') || c == '.' || c == '-' || c == '+' || c == 'e' || c == 'E') {
+            throw new Exception("Invalid JSON number");  // e.g. a leading zero or a second fraction
+        }
+    }
+
+    // Reads a run of digits into the number token, requiring at least one if asked to
+    private void readDigits(boolean required) throws Exception {
+        int c;
+        int count = 0;
+        while ((c = peekChar()) >= '0' && c <= '9') {
+            appendNumberChar(readChar());
+            count++;
+        }
+        if (required && count == 0) {
+            throw new Exception("Invalid JSON number");
+        }
+    }
+
+    private void appendNumberChar(int c) {
+        if (bytes != null) {
+            appendTokenByte(c);
+        } else {
+            tokenText.append((char) c);
+        }
+    }
+
+    /**
+     * Consumes the rest of a true, false or null literal.
+     */
+    private void expectLiteral(String rest) throws Exception {
+        for (int i = 0; i < rest.length(); i++) {
+            if (readChar() != rest.charAt(i)) {
+                throw new Exception("Invalid JSON literal");
+            }
+        }
+    }
+
+    /**
+     * Converts number text to an int, long or double.
+     *
+     * @param numberString The number text.
+     * @return The parsed number.
+     * @throws Exception If the text is not a valid number.
+     */
+    protected static Number toNumber(String numberString) throws Exception {
+        try {
+            if (numberString.contains(".") || numberString.contains("e") || numberString.contains("E")) {
+                return Double.parseDouble(numberString);  // Return as double if it has a fraction or exponent
+            } else {
+                // Return as long if it's a large number, otherwise int
+                long longValue = Long.parseLong(numberString);
+                if (longValue <= Integer.MAX_VALUE && longValue >= Integer.MIN_VALUE) {
+                    return (int) longValue;  // Use int for smaller numbers
+                } else {
+                    return longValue;  // Use long for larger numbers
+                }
+            }
+        } catch (NumberFormatException e) {
+            throw new Exception("Invalid number format: " + numberString);
+        }
+    }
+
     /**
      * Main method for testing the JSONParser functionality.
      */
@@ -225,47 +1054,16 @@ public class JSONParser {
     }
 
     /**
-     * Converts a Java object (Map, List, String, Number, etc.) into a
-     * pretty-printed JSON string with the specified level of indentation.
+     * Converts a Java object (Map, List, String, Number, etc.) into a JSON string.
+     * An indentation level of 0 gives compact output; any other level pretty-prints with
+     * two spaces per level. The text is produced in one pass by a {@link JSONWriter}.
      *
      * @param obj The Java object to convert to JSON.
-     * @param indentLevel The current indentation level for pretty-printing.
+     * @param indentLevel 0 for compact output, otherwise pretty-print.
      * @return The JSON string representation of the object.
      */
     public String stringify(Object obj, int indentLevel) {
-        StringBuilder sb = new StringBuilder();
-        String indent = "  ".repeat(indentLevel);  // Use 2 spaces for each level of indentation
-
-        if (obj instanceof Map) {
-            sb.append("{\n");
-            Map<String, Object> map = (Map<String, Object>) obj;
-            for (String key : map.keySet()) {
-                sb.append(indent).append("  \"").append(key).append("\": ")
-                        .append(stringify(map.get(key), indentLevel + 1)).append(",\n");
-            }
-            if (!map.isEmpty()) {
-                sb.setLength(sb.length() - 2);  // Remove trailing comma and newline
-
-            }
-            sb.append("\n").append(indent).append("}");
-        } else if (obj instanceof List) {
-            sb.append("[\n");
-            List<Object> list = (List<Object>) obj;
-            for (Object value : list) {
-                sb.append(indent).append("  ").append(stringify(value, indentLevel + 1)).append(",\n");
-            }
-            if (!list.isEmpty()) {
-                sb.setLength(sb.length() - 2);  // Remove trailing comma and newline
-
-            }
-            sb.append("\n").append(indent).append("]");
-        } else if (obj instanceof String) {
-            sb.append("\"").append(obj.toString()).append("\"");
-        } else {
-            sb.append(obj.toString());  // For numbers, booleans, and null
-        }
-
-        return sb.toString();
+        return JSONWriter.toJson(obj, indentLevel > 0);
     }
 
 }
@@ -0,0 +1,578 @@
+package com.aggregationserver;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.UncheckedIOException;
+import java.nio.ByteBuffer;
+import java.nio.CharBuffer;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Writes Java objects (Map, List, String, Number, Boolean, null and WeatherObservation) as
+ * JSON in a single pass, straight into an Appendable, an OutputStream or a ByteBuffer. No
+ * intermediate Strings are built for nested values: keys and strings are escaped character
+ * by character, and integers are written digit by digit.
+ * <p>
+ * Output is compact by default; pretty output puts one member per line, indented by two
+ * spaces per level. Output is staged in a small buffer, so {@link #flush()} must be called
+ * once writing is done. A writer is not thread-safe, but can be reused for many documents.
+ */
+public class JSONWriter {
+
+    protected static final int STREAM_BUFFER_SIZE = 8192;  // Bytes buffered before writing to an OutputStream
+    protected static final int CHAR_BUFFER_SIZE = 1024;  // Characters buffered before appending to an Appendable
+    private static final char[] HEX_DIGITS = "0123456789abcdef".toCharArray();
+
+    private final Appendable appendable;  // Character sink, or null when writing bytes
+    private final char[] chars;  // Characters not yet appended to the Appendable
+    private int charCount;
+    private final OutputStream stream;  // Byte sink that staged bytes are drained to, or null
+    private ByteBuffer target;  // The caller's ByteBuffer, or null
+    private byte[] bytes;  // Where bytes are written: the target's array, or a staging array
+    private int base;  // Index in bytes of the first output byte
+    private int pos;  // Index in bytes of the next byte to write
+    private int end;  // Index in bytes just past the usable space
+    private final boolean pretty;
+    private int depth;  // Current nesting level, used for indentation
+    private boolean afterValue;  // True if the next member of the current object needs a comma
+    private final char[] digits = new char[20];  // Scratch space for formatting integers
+
+    /**
+     * Creates a compact writer that appends characters to an Appendable (e.g. a StringBuilder).
+     *
+     * @param out The destination.
+     */
+    public JSONWriter(Appendable out) {
+        this(out, false);
+    }
+
+    /**
+     * Creates a writer that appends characters to an Appendable.
+     *
+     * @param out    The destination.
+     * @param pretty true to indent the output, false for compact output.
+     */
+    public JSONWriter(Appendable out, boolean pretty) {
+        this.appendable = out;
+        this.chars = new char[CHAR_BUFFER_SIZE];
+        this.stream = null;
+        this.pretty = pretty;
+    }
+
+    /**
+     * Creates a writer that encodes UTF-8 into an internal buffer and writes it to a stream
+     * when the buffer fills up and on {@link #flush()}.
+     *
+     * @param out    The destination.
+     * @param pretty true to indent the output, false for compact output.
+     */
+    public JSONWriter(OutputStream out, boolean pretty) {
+        this.appendable = null;
+        this.chars = null;
+        this.stream = out;
+        this.bytes = new byte[STREAM_BUFFER_SIZE];
+        this.end = bytes.length;
+        this.pretty = pretty;
+    }
+
+    /**
+     * Creates a writer that encodes UTF-8 into a ByteBuffer, starting at its position.
+     * If the buffer fills up it is replaced by a larger copy, so callers should fetch the
+     * result with {@link #getByteBuffer()} and can pass that buffer (cleared) to the next writer.
+     *
+     * @param out    The destination.
+     * @param pretty true to indent the output, false for compact output.
+     */
+    public JSONWriter(ByteBuffer out, boolean pretty) {
+        this.appendable = null;
+        this.chars = null;
+        this.stream = null;
+        this.target = out;
+        if (out.hasArray()) {
+            // Write straight into the buffer's array
+            this.bytes = out.array();
+            this.base = out.arrayOffset();
+            this.pos = base + out.position();
+            this.end = base + out.limit();
+        } else {
+            this.bytes = new byte[STREAM_BUFFER_SIZE];  // Staged, then copied into the direct buffer
+            this.end = bytes.length;
+        }
+        this.pretty = pretty;
+    }
+
+    /**
+     * Writes a value as JSON.
+     *
+     * @param value The value to write.
+     * @return This writer.
+     * @throws IOException If the destination cannot be written to.
+     */
+    public JSONWriter write(Object value) throws IOException {
+        if (value == null) {
+            writeAscii("null");
+        } else if (value instanceof String) {
+            writeString((String) value);
+        } else if (value instanceof Map) {
+            writeObject((Map<?, ?>) value);
+        } else if (value instanceof List) {
+            writeArray((List<?>) value);
+        } else if (value instanceof WeatherObservation) {
+            WeatherCodec.write((WeatherObservation) value, this);
+        } else if (value instanceof Integer || value instanceof Long || value instanceof Short || value instanceof Byte) {
+            writeLong(((Number) value).longValue());
+        } else if (value instanceof Double || value instanceof Float) {
+            double d = ((Number) value).doubleValue();
+            writeAscii(Double.isFinite(d) ? value.toString() : "null");  // JSON has no NaN or Infinity
+        } else if (value instanceof Number || value instanceof Boolean) {
+            writeAscii(value.toString());
+        } else {
+            writeString(value.toString());
+        }
+        afterValue = true;
+        return this;
+    }
+
+    /**
+     * Starts an object whose members are written with {@link #name(String)} followed by a
+     * value, for callers that write their own types without building a Map.
+     *
+     * @throws IOException If the destination cannot be written to.
+     */
+    public void beginObject() throws IOException {
+        writeChar('{');
+        depth++;
+        afterValue = false;
+    }
+
+    /**
+     * Writes a member name; the member's value must be written next.
+     *
+     * @param key The member name.
+     * @throws IOException If the destination cannot be written to.
+     */
+    public void name(String key) throws IOException {
+        if (afterValue) {
+            writeChar(',');
+        }
+        newLine();
+        writeString(key);
+        writeChar(':');
+        if (pretty) {
+            writeChar(' ');
+        }
+        afterValue = false;
+    }
+
+    /**
+     * Ends the object started by {@link #beginObject()}.
+     *
+     * @throws IOException If the destination cannot be written to.
+     */
+    public void endObject() throws IOException {
+        depth--;
+        if (afterValue) {
+            newLine();  // Only non-empty objects are spread over several lines
+        }
+        writeChar('}');
+        afterValue = true;
+    }
+
+    /**
+     * Starts an array whose elements are written with {@link #element()} followed by a value,
+     * for callers that stream their elements without building a List.
+     *
+     * @throws IOException If the destination cannot be written to.
+     */
+    public void beginArray() throws IOException {
+        writeChar('[');
+        depth++;
+        afterValue = false;
+    }
+
+    /**
+     * Starts an array element; the element's value must be written next.
+     *
+     * @throws IOException If the destination cannot be written to.
+     */
+    public void element() throws IOException {
+        if (afterValue) {
+            writeChar(',');
+        }
+        newLine();
+        afterValue = false;
+    }
+
+    /**
+     * Ends the array started by {@link #beginArray()}.
+     *
+     * @throws IOException If the destination cannot be written to.
+     */
+    public void endArray() throws IOException {
+        depth--;
+        if (afterValue) {
+            newLine();  // Only non-empty arrays are spread over several lines
+        }
+        writeChar(']');
+        afterValue = true;
+    }
+
+    /**
+     * Writes a number from its JSON text, e.g. as it appeared in a parsed document.
+     *
+     * @param numberText A valid JSON number.
+     * @throws IOException If the destination cannot be written to.
+     */
+    public void writeNumber(String numberText) throws IOException {
+        writeAscii(numberText);
+        afterValue = true;
+    }
+
+    /**
+     * Writes bytes that already hold valid UTF-8 JSON, e.g. an unmodified stored document.
+     *
+     * @param utf8   The array holding the JSON.
+     * @param offset The index of the first byte.
+     * @param length The number of bytes.
+     * @throws IOException If the destination cannot be written to.
+     */
+    public void writeRaw(byte[] utf8, int offset, int length) throws IOException {
+        if (appendable == null) {
+            if (stream != null && length > bytes.length) {
+                drain();
+                stream.write(utf8, offset, length);
+            } else if (stream == null && !target.hasArray() && length > bytes.length) {
+                drain();
+                putToTarget(utf8, offset, length);  // Larger than the staging array
+            } else {
+                ensureCapacity(length);
+                System.arraycopy(utf8, offset, bytes, pos, length);
+                pos += length;
+            }
+            afterValue = true;
+            return;
+        }
+
+        // Decode into the character buffer
+        int p = offset;
+        int limit = offset + length;
+        while (p < limit) {
+            int b = utf8[p] & 0xff;
+            if (b < 0x80) {
+                writeChar((char) b);
+                p++;
+                continue;
+            }
+            int codePoint;
+            int extra;
+            if (b >= 0xf0) {
+                codePoint = b & 0x07;
+                extra = 3;
+            } else if (b >= 0xe0) {
+                codePoint = b & 0x0f;
+                extra = 2;
+            } else {
+                codePoint = b & 0x1f;
+                extra = 1;
+            }
+            for (int i = 1; i <= extra && p + i < limit; i++) {
+                codePoint = (codePoint << 6) | (utf8[p + i] & 0x3f);
+            }
+            p += extra + 1;
+            writeCodePoint(codePoint);
+        }
+        afterValue = true;
+    }
+
+    /**
+     * Passes any buffered output on to the Appendable or OutputStream (flushing the stream).
+     *
+     * @throws IOException If the destination cannot be written to.
+     */
+    public void flush() throws IOException {
+        if (appendable != null) {
+            drainChars();
+        } else if (stream != null) {
+            drain();
+            stream.flush();
+        } else {
+            getByteBuffer();
+        }
+    }
+
+    /**
+     * Returns the buffer holding the output of a ByteBuffer writer, which may be a larger
+     * replacement for the buffer passed to the constructor. Its position is the end of the output.
+     *
+     * @return The output buffer.
+     */
+    public ByteBuffer getByteBuffer() {
+        if (target != null) {
+            if (target.hasArray() && target.array() == bytes) {
+                target.position(pos - base);
+            } else {
+                drainToTarget();
+            }
+        }
+        return target;
+    }
+
+    /**
+     * Converts a value to a JSON string.
+     *
+     * @param value  The value to convert.
+     * @param pretty true to indent the output, false for compact output.
+     * @return The JSON text.
+     */
+    public static String toJson(Object value, boolean pretty) {
+        StringBuilder sb = new StringBuilder();
+        try {
+            new JSONWriter(sb, pretty).write(value).flush();
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);  // StringBuilder never throws
+        }
+        return sb.toString();
+    }
+
+    private void writeObject(Map<?, ?> map) throws IOException {
+        beginObject();
+        for (Map.Entry<?, ?> entry : map.entrySet()) {
+            name(String.valueOf(entry.getKey()));
+            write(entry.getValue());
+        }
+        endObject();
+    }
+
+    private void writeArray(List<?> list) throws IOException {
+        writeChar('[');
+        depth++;
+        boolean first = true;
+        for (Object value : list) {
+            if (!first) {
+                writeChar(',');
+            }
+            first = false;
+            newLine();
+            write(value);
+        }
+        depth--;
+        if (!list.isEmpty()) {
+            newLine();
+        }
+        writeChar(']');
+    }
+
+    private void newLine() throws IOException {
+        if (pretty) {
+            writeChar('\n');
+            for (int i = 0; i < depth; i++) {
+                writeAscii("  ");
+            }
+        }
+    }
+
+    /**
+     * Writes a quoted string, escaping quotes, backslashes and control characters.
+     */
+    private void writeString(String s) throws IOException {
+        writeChar('"');
+        int length = s.length();
+        for (int i = writePlainRun(s, 0); i < length; i++) {
+            char c = s.charAt(i);
+            if (isPlain(c)) {
+                writeChar(c);
+                continue;
+            }
+            switch (c) {
+                case '"': writeAscii("\\\""); break;
+                case '\\': writeAscii("\\\\"); break;
+                case '\n': writeAscii("\\n"); break;
+                case '\r': writeAscii("\\r"); break;
+                case '\t': writeAscii("\\t"); break;
+                case '\b': writeAscii("\\b"); break;
+                case '\f': writeAscii("\\f"); break;
+                default:
+                    if (c < 0x20) {
+                        writeAscii("\\u00");
+                        writeChar(HEX_DIGITS[c >> 4]);
+                        writeChar(HEX_DIGITS[c & 0xf]);
+                    } else if (Character.isHighSurrogate(c) && i + 1 < length && Character.isLowSurrogate(s.charAt(i + 1))) {
+                        writeCodePoint(Character.toCodePoint(c, s.charAt(++i)));
+                    } else {
+                        writeCodePoint(Character.isSurrogate(c) ? '?' : c);  // Unpaired surrogates cannot be encoded
+                    }
+            }
+        }
+        writeChar('"');
+    }
+
+    /**
+     * Copies the run of plain ASCII characters (nothing to escape) at the start of a string
+     * straight into the output array, which covers most strings entirely.
+     *
+     * @return The index of the first character not copied.
+     */
+    private int writePlainRun(String s, int from) throws IOException {
+        int length = s.length();
+        int limit;
+        if (appendable != null) {
+            if (charCount == chars.length) {
+                drainChars();
+            }
+            limit = Math.min(length, from + chars.length - charCount);
+            int i = from;
+            while (i < limit && isPlain(s.charAt(i))) {
+                chars[charCount++] = s.charAt(i++);
+            }
+            return i;
+        }
+        ensureCapacity(Math.min(length - from, STREAM_BUFFER_SIZE));
+        limit = Math.min(length, from + end - pos);
+        int i = from;
+        while (i < limit && isPlain(s.charAt(i))) {
+            bytes[pos++] = (byte) s.charAt(i++);
+        }
+        return i;
+    }
+
+    private static boolean isPlain(char c) {
+        return c >= 0x20 && c < 0x80 && c != '"' && c != '\\';
+    }
+
+    private void writeLong(long value) throws IOException {
+        if (value == Long.MIN_VALUE) {
+            writeAscii("-9223372036854775808");
+            return;
+        }
+        if (value < 0) {
+            writeChar('-');
+            value = -value;
+        }
+        int p = digits.length;
+        do {
+            digits[--p] = (char) ('0' + value % 10);
+            value /= 10;
+        } while (value != 0);
+        while (p < digits.length) {
+            writeChar(digits[p++]);
+        }
+    }
+
+    private void writeAscii(String s) throws IOException {
+        for (int i = 0; i < s.length(); i++) {
+            writeChar(s.charAt(i));
+        }
+    }
+
+    /**
+     * Writes a single ASCII character.
+     */
+    private void writeChar(char c) throws IOException {
+        if (appendable != null) {
+            if (charCount == chars.length) {
+                drainChars();
+            }
+            chars[charCount++] = c;
+        } else {
+            if (pos == end) {
+                ensureCapacity(1);
+            }
+            bytes[pos++] = (byte) c;
+        }
+    }
+
+    /**
+     * Writes a Unicode code point, encoding it as UTF-8 for byte destinations.
+     */
+    private void writeCodePoint(int codePoint) throws IOException {
+        if (appendable != null) {
+            if (codePoint >= Character.MIN_SUPPLEMENTARY_CODE_POINT) {
+                writeChar(Character.highSurrogate(codePoint));
+                writeChar(Character.lowSurrogate(codePoint));
+            } else {
+                writeChar((char) codePoint);
+            }
+            return;
+        }
+        ensureCapacity(4);
+        if (codePoint < 0x80) {
+            bytes[pos++] = (byte) codePoint;
+        } else if (codePoint < 0x800) {
+            bytes[pos++] = (byte) (0xc0 | (codePoint >> 6));
+            bytes[pos++] = (byte) (0x80 | (codePoint & 0x3f));
+        } else if (codePoint < 0x10000) {
+            bytes[pos++] = (byte) (0xe0 | (codePoint >> 12));
+            bytes[pos++] = (byte) (0x80 | ((codePoint >> 6) & 0x3f));
+            bytes[pos++] = (byte) (0x80 | (codePoint & 0x3f));
+        } else {
+            bytes[pos++] = (byte) (0xf0 | (codePoint >> 18));
+            bytes[pos++] = (byte) (0x80 | ((codePoint >> 12) & 0x3f));
+            bytes[pos++] = (byte) (0x80 | ((codePoint >> 6) & 0x3f));
+            bytes[pos++] = (byte) (0x80 | (codePoint & 0x3f));
+        }
+    }
+
+    /**
+     * Makes room for at least the given number of bytes, draining staged bytes to the
+     * stream (or direct buffer) or replacing the caller's heap buffer with a larger one.
+     */
+    private void ensureCapacity(int n) throws IOException {
+        if (end - pos >= n) {
+            return;
+        }
+        if (target == null || !target.hasArray()) {
+            drain();
+            return;
+        }
+        byte[] larger = new byte[Math.max((end - base) * 2, pos - base + n)];
+        System.arraycopy(bytes, base, larger, 0, pos - base);
+        pos -= base;
+        base = 0;
+        bytes = larger;
+        end = larger.length;
+        target = ByteBuffer.wrap(larger);
+    }
+
+    private void drainChars() throws IOException {
+        if (appendable instanceof StringBuilder) {
+            ((StringBuilder) appendable).append(chars, 0, charCount);
+        } else {
+            appendable.append(CharBuffer.wrap(chars, 0, charCount));
+        }
+        charCount = 0;
+    }
+
+    /**
+     * Passes staged bytes on to the stream or the caller's direct buffer.
+     */
+    private void drain() throws IOException {
+        if (stream != null) {
+            stream.write(bytes, base, pos - base);
+            pos = base;
+        } else {
+            drainToTarget();
+        }
+    }
+
+    /**
+     * Copies staged bytes into the caller's direct buffer.
+     */
+    private void drainToTarget() {
+        putToTarget(bytes, base, pos - base);
+        pos = base;
+    }
+
+    /**
+     * Copies bytes into the caller's direct buffer, replacing it with a larger one if needed.
+     */
+    private void putToTarget(byte[] src, int offset, int length) {
+        if (target.remaining() < length) {
+            ByteBuffer larger = ByteBuffer.allocateDirect(Math.max(target.capacity() * 2, target.position() + length));
+            target.flip();
+            larger.put(target);
+            target = larger;
+        }
+        target.put(src, offset, length);
+    }
+}
@@ -1,54 +1,126 @@
 package com.aggregationserver;
 
+import java.util.concurrent.atomic.AtomicLong;
+
 /**
  * Represents a Lamport Clock for maintaining logical time in distributed systems.
  * Provides methods for ticking, updating based on received timestamps, and retrieving the current time.
+ * <p>
+ * The time is a 64-bit value held in an AtomicLong and advanced with compare-and-set, so threads
+ * ticking the clock concurrently never block one another and the time does not wrap around.
+ * <p>
+ * A hybrid clock also follows physical time: the upper bits of the time are milliseconds since
+ * the epoch and the lower LOGICAL_BITS count events within a millisecond. Its times still obey
+ * the Lamport rules, and also never run behind the wall clock, so the physical part of a time
+ * serves as a timestamp that does not go backwards when the wall clock is stepped back.
  */
 public class LamportClock {
 
+    protected static final int LOGICAL_BITS = 16;  // Low bits of a hybrid time counting events within a millisecond
+
     // Logical clock value
-    private int clock;
+    private final AtomicLong clock = new AtomicLong();
+    private final boolean hybrid;
 
     /**
      * Initializes the Lamport clock to zero.
      */
     public LamportClock() {
-        this.clock = 0;
+        this(false);
+    }
+
+    /**
+     * Initializes a Lamport clock, or a hybrid logical clock that also follows physical time.
+     *
+     * @param hybrid true for a hybrid logical clock
+     */
+    public LamportClock(boolean hybrid) {
+        this.hybrid = hybrid;
+    }
+
+    public boolean isHybrid() {
+        return hybrid;
     }
 
     /**
      * Increments the clock by 1, representing the passage of a local event.
      * This method should be called before each event in a process.
+     *
+     * @return The time of the event
      */
-    public synchronized void tick() {
-        clock++;
+    public long tick() {
+        if (!hybrid) {
+            return clock.incrementAndGet();
+        }
+        long time;
+        long next;
+        do {
+            time = clock.get();
+            next = Math.max(time + 1, physicalNow());
+        } while (!clock.compareAndSet(time, next));
+        return next;
     }
 
     /**
      * Updates the clock based on a received clock value from another process.
      * The clock is set to the maximum of the local clock and the received clock, plus one.
-     * 
+     *
      * @param receivedClock The clock value from the received message or event.
+     * @return The time of the receive event
+     */
+    public long update(long receivedClock) {
+        long time;
+        long next;
+        do {
+            time = clock.get();
+            next = Math.max(time, receivedClock) + 1;
+            if (hybrid) {
+                next = Math.max(next, physicalNow());
+            }
+        } while (!clock.compareAndSet(time, next));
+        return next;
+    }
+
+    /**
+     * Moves the clock forward to a time seen elsewhere, without counting an event of its own,
+     * so that later events are ordered after it. A time behind the clock leaves it unchanged.
+     *
+     * @param time The time seen
      */
-    public synchronized void update(int receivedClock) {
-        clock = Math.max(clock, receivedClock) + 1;
+    public void updateTime(long time) {
+        clock.accumulateAndGet(time, Math::max);
     }
 
     /**
      * Retrieves the current clock time.
-     * 
+     *
      * @return The current logical clock time.
      */
-    public synchronized int getTime() {
-        return clock;
+    public long getTime() {
+        return clock.get();
     }
 
     /**
      * Sets the clock time manually to a specified value.
-     * 
+     *
      * @param time The new logical clock time to set.
      */
-    public synchronized void setTime(int time) {
-        this.clock = time;
+    public void setTime(long time) {
+        clock.set(time);
+    }
+
+    /**
+     * Returns the physical part of a hybrid clock time.
+     *
+     * @param time A time from a hybrid clock
+     * @return Milliseconds since the epoch
+     */
+    public static long physicalTime(long time) {
+        return time >>> LOGICAL_BITS;
+    }
+
+    // The hybrid time of the wall clock, with no events counted yet
+    private static long physicalNow() {
+        return System.currentTimeMillis() << LOGICAL_BITS;
     }
 }
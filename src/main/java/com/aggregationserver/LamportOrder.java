@@ -0,0 +1,126 @@
+package com.aggregationserver;
+
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Base64;
+import java.util.List;
+import java.util.TreeSet;
+
+/**
+ * The stored stations in the order they are saved and paged in: by the Lamport time they
+ * were stored at, newest first, and by station ID among equal times. Keeping them sorted as
+ * they are stored and removed means a page costs a lookup and a walk over its own stations,
+ * rather than sorting the store for every request.
+ * <p>
+ * A page ends with an opaque cursor naming the last station's position; the next page starts
+ * just after that position. Positions are not invalidated by later writes: a station stored
+ * while a client is paging moves to the front and does not reappear on later pages, and the
+ * other stations are neither skipped nor repeated.
+ */
+public class LamportOrder {
+
+    private final TreeSet<Key> keys = new TreeSet<>();
+
+    /**
+     * A station's position: its Lamport time and ID.
+     */
+    public static class Key implements Comparable<Key> {
+        final long lamportTime;
+        final String id;
+
+        Key(long lamportTime, String id) {
+            this.lamportTime = lamportTime;
+            this.id = id;
+        }
+
+        @Override
+        public int compareTo(Key other) {
+            int byTime = Long.compare(other.lamportTime, lamportTime);  // Newest first
+            return byTime != 0 ? byTime : id.compareTo(other.id);
+        }
+
+        /**
+         * Encodes the position as a cursor for the page after it.
+         *
+         * @return The cursor, safe to use in a URL
+         */
+        public String toCursor() {
+            return Base64.getUrlEncoder().withoutPadding()
+                    .encodeToString((lamportTime + ":" + id).getBytes(StandardCharsets.UTF_8));
+        }
+
+        /**
+         * Decodes a cursor returned by {@link #toCursor()}.
+         *
+         * @param cursor The cursor
+         * @return The position
+         * @throws IllegalArgumentException If the cursor is not one this class issued
+         */
+        public static Key fromCursor(String cursor) {
+            String text = new String(Base64.getUrlDecoder().decode(cursor.trim()), StandardCharsets.UTF_8);
+            int colon = text.indexOf(':');
+            if (colon < 0) {
+                throw new IllegalArgumentException("Invalid cursor: " + cursor);
+            }
+            return new Key(Long.parseLong(text.substring(0, colon)), text.substring(colon + 1));
+        }
+    }
+
+    /**
+     * Adds a stored station.
+     *
+     * @param id          The station ID
+     * @param lamportTime The Lamport time it was stored at
+     */
+    public synchronized void add(String id, long lamportTime) {
+        keys.add(new Key(lamportTime, id));
+    }
+
+    /**
+     * Removes a station that has been replaced or removed.
+     *
+     * @param id          The station ID
+     * @param lamportTime The Lamport time it was added with
+     */
+    public synchronized void remove(String id, long lamportTime) {
+        keys.remove(new Key(lamportTime, id));
+    }
+
+    /**
+     * Forgets every station.
+     */
+    public synchronized void clear() {
+        keys.clear();
+    }
+
+    /**
+     * Returns a page of stations.
+     *
+     * @param after The position the page starts after, or null for the first page
+     * @param limit The most stations to return
+     * @return The positions of the page's stations, in order
+     */
+    public synchronized List<Key> page(Key after, int limit) {
+        List<Key> page = new ArrayList<>(Math.min(limit, keys.size()));
+        for (Key key : after != null ? keys.tailSet(after, false) : keys) {
+            if (page.size() >= limit) {
+                break;
+            }
+            page.add(key);
+        }
+        return page;
+    }
+
+    /**
+     * Returns every station ID, in order.
+     *
+     * @return The station IDs
+     */
+    public synchronized List<String> ids() {
+        List<String> ids = new ArrayList<>(keys.size());
+        for (Key key : keys) {
+            ids.add(key.id);
+        }
+        return ids;
+    }
+}
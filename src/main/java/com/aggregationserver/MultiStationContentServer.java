@@ -0,0 +1,409 @@
+package com.aggregationserver;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.ScheduledThreadPoolExecutor;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Feeds many stations to an AggregationServer from one process. The station files are
+ * listed by a directory (every regular file in it) or by a manifest file (one path per line,
+ * relative to the manifest; blank lines and lines starting with '#' are ignored), which is
+ * re-read when it changes and once per heartbeat so that stations can be added and removed
+ * while running.
+ * <p>
+ * The directories of the station files are watched, and a station is uploaded as soon as its
+ * file changes. Otherwise every station is uploaded once per heartbeat interval so that the
+ * server does not expire it; these heartbeats re-send the last parsed data and parse the
+ * file only if its modification time or size has changed. The first upload of each station
+ * is placed at a random point within the interval and every later one is jittered, so that
+ * the load is spread evenly instead of arriving in bursts. Uploads run on a shared scheduler
+ * with a few threads and share a small pool of keep-alive connections, and each station keeps
+ * its own Lamport clock, as a separate ContentServer per station would. Updates the server
+ * cannot take are kept in an {@link OfflineSpool} and replayed when it comes back.
+ */
+public class MultiStationContentServer {
+
+    protected static final double JITTER = 0.1;  // Maximum random change to each interval, as a fraction
+    protected static final int DEFAULT_THREADS = 4;  // Scheduler threads, and so at most this many connections
+
+    private final File source;  // The station directory or manifest file
+    private final HttpConnectionPool pool;
+    private final long intervalMillis;
+    private final ScheduledThreadPoolExecutor scheduler;
+    private final OfflineSpool spool;  // Updates waiting for the server to come back
+    private final boolean binary;  // True to send observations in the binary format rather than JSON
+    private final Map<String, Station> stations = new ConcurrentHashMap<>();  // File path -> station
+    private final AtomicInteger uploads = new AtomicInteger();  // Successful uploads since the last report
+    private final AtomicInteger changes = new AtomicInteger();  // Uploads of changed files since the last report
+    private final AtomicInteger failures = new AtomicInteger();  // Failed uploads since the last report
+    private final AtomicInteger spooled = new AtomicInteger();  // Uploads queued behind the spool since the last report
+    private volatile String lastError;  // The most recent failure since the last report
+    private FileChangeWatcher watcher;  // Null if the file system cannot be watched
+
+    /**
+     * Creates a feeder; call {@link #start()} to begin uploading.
+     *
+     * @param host            The AggregationServer host
+     * @param port            The AggregationServer port
+     * @param source          A directory of station files, or a manifest listing them
+     * @param threads         Number of scheduler threads
+     * @param intervalSeconds Seconds between uploads of each unchanged station
+     */
+    public MultiStationContentServer(String host, int port, File source, int threads, int intervalSeconds) {
+        this(host, port, source, threads, intervalSeconds, defaultSpoolFile(source));
+    }
+
+    /**
+     * Creates a feeder that spools undelivered updates to the given file; call {@link #start()}
+     * to begin uploading.
+     *
+     * @param host            The AggregationServer host
+     * @param port            The AggregationServer port
+     * @param source          A directory of station files, or a manifest listing them
+     * @param threads         Number of scheduler threads
+     * @param intervalSeconds Seconds between uploads of each unchanged station
+     * @param spoolFile       The file holding updates while the server cannot take them
+     */
+    public MultiStationContentServer(String host, int port, File source, int threads, int intervalSeconds,
+                                     File spoolFile) {
+        this(host, port, source, threads, intervalSeconds, spoolFile, false);
+    }
+
+    /**
+     * Creates a feeder as above that sends observations as JSON, or in the compact format of
+     * {@link BinaryWeatherCodec}.
+     *
+     * @param host            The AggregationServer host
+     * @param port            The AggregationServer port
+     * @param source          A directory of station files, or a manifest listing them
+     * @param threads         Number of scheduler threads
+     * @param intervalSeconds Seconds between uploads of each unchanged station
+     * @param spoolFile       The file holding updates while the server cannot take them
+     * @param binary          True to send binary observations
+     */
+    public MultiStationContentServer(String host, int port, File source, int threads, int intervalSeconds,
+                                     File spoolFile, boolean binary) {
+        this.source = source;
+        this.binary = binary;
+        this.pool = new HttpConnectionPool(host, port);
+        this.intervalMillis = intervalSeconds * 1000L;
+        this.scheduler = new ScheduledThreadPoolExecutor(threads);
+        this.scheduler.setRemoveOnCancelPolicy(true);  // Removed stations should not linger in the queue
+        this.spool = new OfflineSpool(spoolFile, OfflineSpool.DEFAULT_CAPACITY, pool, scheduler, binary);
+    }
+
+    /**
+     * Returns the default spool file for a station directory or manifest: one in the working
+     * directory named after it, kept out of the station directory so it is not taken for a station.
+     *
+     * @param source A directory of station files, or a manifest listing them
+     * @return The spool file
+     */
+    protected static File defaultSpoolFile(File source) {
+        return defaultSpoolFile(source, false);
+    }
+
+    /**
+     * Returns the default spool file for a station directory or manifest, as above, with a name
+     * of its own for binary updates.
+     *
+     * @param source A directory of station files, or a manifest listing them
+     * @param binary True for a spool of binary updates
+     * @return The spool file
+     */
+    protected static File defaultSpoolFile(File source, boolean binary) {
+        return new File("spool-" + source.getAbsoluteFile().toPath().normalize().getFileName() + (binary ? ".bin" : ".jsonl"));
+    }
+
+    /**
+     * Loads the station list, starts watching for changes and starts uploading. Also re-reads
+     * the station list and prints a summary once per interval.
+     */
+    public void start() {
+        try {
+            watcher = new FileChangeWatcher(this::fileChanged);
+            if (!source.isDirectory()) {
+                watcher.watchDirectory(source.getAbsoluteFile().getParentFile().toPath());  // For the manifest
+            }
+            watcher.start();
+        } catch (IOException e) {
+            System.err.println("Cannot watch station files for changes (" + e.getMessage()
+                    + "); uploading every " + intervalMillis / 1000 + " s instead");
+        }
+        refreshStations();
+        scheduler.scheduleAtFixedRate(() -> {
+            refreshStations();
+            report();
+        }, intervalMillis, intervalMillis, TimeUnit.MILLISECONDS);
+    }
+
+    /**
+     * Stops all uploads and closes the pooled connections.
+     */
+    public void stop() {
+        if (watcher != null) {
+            watcher.close();
+        }
+        scheduler.shutdownNow();
+        pool.close();
+    }
+
+    /**
+     * Returns the number of stations currently being fed.
+     *
+     * @return The station count
+     */
+    public int getStationCount() {
+        return stations.size();
+    }
+
+    /**
+     * Returns the spool of updates waiting for the server.
+     *
+     * @return The spool
+     */
+    public OfflineSpool getSpool() {
+        return spool;
+    }
+
+    /**
+     * Returns the pool used for uploads.
+     *
+     * @return The connection pool
+     */
+    public HttpConnectionPool getPool() {
+        return pool;
+    }
+
+    /**
+     * Lists the station files named by the source directory or manifest.
+     *
+     * @return The file paths
+     * @throws IOException If the source cannot be read
+     */
+    protected List<String> listStationFiles() throws IOException {
+        List<String> files = new ArrayList<>();
+        if (source.isDirectory()) {
+            File[] entries = source.listFiles();
+            if (entries != null) {
+                for (File entry : entries) {
+                    if (entry.isFile() && !entry.isHidden()) {
+                        files.add(entry.toPath().toAbsolutePath().normalize().toString());
+                    }
+                }
+            }
+        } else {
+            File base = source.getAbsoluteFile().getParentFile();
+            for (String line : Files.readAllLines(source.toPath(), StandardCharsets.UTF_8)) {
+                line = line.trim();
+                if (!line.isEmpty() && !line.startsWith("#")) {
+                    File file = new File(line);
+                    files.add((file.isAbsolute() ? file : new File(base, line)).toPath().normalize().toString());
+                }
+            }
+        }
+        return files;
+    }
+
+    /**
+     * Starts feeding stations that have appeared in the source and stops those that have gone.
+     */
+    protected void refreshStations() {
+        List<String> files;
+        try {
+            files = listStationFiles();
+        } catch (IOException e) {
+            System.err.println("Error reading station list " + source + ": " + e.getMessage());
+            return;
+        }
+
+        Set<String> current = new HashSet<>(files);
+        stations.entrySet().removeIf(entry -> {
+            if (current.contains(entry.getKey())) {
+                return false;
+            }
+            entry.getValue().cancel();
+            return true;
+        });
+
+        int added = 0;
+        for (String file : files) {
+            if (!stations.containsKey(file)) {
+                Station station = new Station(file);
+                stations.put(file, station);
+                watch(station);
+                station.schedule(ThreadLocalRandom.current().nextLong(intervalMillis));  // Spread first uploads over the interval
+                added++;
+            }
+        }
+        if (added > 0) {
+            System.out.println("Feeding " + stations.size() + " stations (" + added + " new) from " + source);
+        }
+    }
+
+    /**
+     * Starts watching the directory of a station's file, if it is not watched already.
+     */
+    private void watch(Station station) {
+        if (watcher != null) {
+            try {
+                watcher.watchDirectory(station.file.getPath().getParent());
+            } catch (IOException e) {
+                System.err.println("Cannot watch " + station.file.getFilePath() + " for changes: " + e.getMessage());
+            }
+        }
+    }
+
+    /**
+     * Handles a change reported by the watcher: uploads a changed or new station at once, and
+     * re-reads the station list when the manifest or the station directory changes.
+     *
+     * @param path The changed file, or a directory whose changes were lost
+     */
+    protected void fileChanged(Path path) {
+        Station station = stations.get(path.toString());
+        if (station != null && Files.exists(path)) {
+            station.uploadNow(true, false);
+        } else if (Files.isDirectory(path)) {
+            // Events were dropped: check every station in the directory for changes
+            scheduler.execute(this::refreshStations);
+            for (Station candidate : stations.values()) {
+                if (path.equals(candidate.file.getPath().getParent())) {
+                    candidate.uploadNow(false, true);
+                }
+            }
+        } else if (path.equals(source.toPath().toAbsolutePath().normalize())
+                || (source.isDirectory() && path.getParent().equals(source.toPath().toAbsolutePath().normalize()))) {
+            scheduler.execute(() -> {
+                refreshStations();
+                Station added = stations.get(path.toString());
+                if (added != null) {
+                    added.uploadNow(true, false);  // A new station file is sent at once, like a changed one
+                }
+            });
+        }
+    }
+
+    /**
+     * Prints and resets the upload counts for the last interval.
+     */
+    private void report() {
+        int succeeded = uploads.getAndSet(0);
+        int changed = changes.getAndSet(0);
+        int failed = failures.getAndSet(0);
+        int queued = spooled.getAndSet(0);
+        String error = lastError;
+        lastError = null;
+        System.out.println("Uploaded " + succeeded + " station updates (" + changed + " changed) in the last "
+                + intervalMillis / 1000 + " s"
+                + (failed > 0 ? " (" + failed + " failed, last error: " + error + ")" : "")
+                + (queued > 0 ? ", " + queued + " queued behind " + spool.size() + " spooled updates" : ""));
+    }
+
+    /**
+     * Returns the delay before a station's next upload: the interval, plus or minus the jitter.
+     */
+    private long jitteredInterval() {
+        double factor = 1 + (ThreadLocalRandom.current().nextDouble() * 2 - 1) * JITTER;
+        return (long) (intervalMillis * factor);
+    }
+
+    /**
+     * One station file, with its own Lamport clock and its next scheduled upload.
+     */
+    private class Station {
+        private final StationFile file;
+        private final LamportClock lamportClock = new LamportClock();
+        private ScheduledFuture<?> nextUpload;  // Guarded by this
+        private volatile boolean cancelled;
+
+        Station(String filePath) {
+            this.file = new StationFile(filePath);
+        }
+
+        synchronized void schedule(long delayMillis) {
+            if (!cancelled && !scheduler.isShutdown()) {
+                nextUpload = scheduler.schedule(() -> upload(false, false), delayMillis, TimeUnit.MILLISECONDS);
+            }
+        }
+
+        synchronized void cancel() {
+            cancelled = true;
+            if (nextUpload != null) {
+                nextUpload.cancel(false);
+            }
+        }
+
+        /**
+         * Uploads the station on the scheduler now rather than at its next heartbeat.
+         */
+        void uploadNow(boolean changed, boolean onlyIfChanged) {
+            if (!scheduler.isShutdown()) {
+                scheduler.execute(() -> upload(changed, onlyIfChanged));
+            }
+        }
+
+        /**
+         * Uploads the station and schedules its next heartbeat. Synchronized so that a change
+         * and a heartbeat cannot send the same station's updates out of Lamport order.
+         *
+         * @param changed       True if the file was reported as changed and must be parsed again
+         * @param onlyIfChanged True to upload only if the file has changed since it was last parsed
+         */
+        synchronized void upload(boolean changed, boolean onlyIfChanged) {
+            if (cancelled) {
+                return;
+            }
+            try {
+                boolean parsed = file.refresh(changed);  // Parse only if the file has changed
+                if (!parsed && onlyIfChanged) {
+                    return;
+                }
+                HttpConnectionPool.Response response;
+                try {
+                    // New data is spooled if it cannot be delivered; a repeated heartbeat is not
+                    response = spool.send(ContentServer.encodeBody(file.snapshot(lamportClock), binary), parsed);
+                    if (response != null && ContentServer.catchUpClock(lamportClock, response)) {
+                        lamportClock.tick();  // Past the server's time, so the data is taken when sent again
+                        response = spool.send(ContentServer.encodeBody(file.snapshot(lamportClock), binary), parsed);
+                    }
+                } finally {
+                    lamportClock.tick();  // Increment Lamport clock after the data change
+                }
+
+                if (response == null) {
+                    spooled.incrementAndGet();
+                } else if (response.getStatus() == 200 || response.getStatus() == 201) {
+                    uploads.incrementAndGet();
+                    if (parsed) {
+                        changes.incrementAndGet();
+                    }
+                } else {
+                    failures.incrementAndGet();
+                    lastError = file.getFilePath() + ": " + response.getStatusLine();
+                }
+            } catch (Exception e) {
+                failures.incrementAndGet();
+                lastError = file.getFilePath() + ": " + e.getMessage();
+            }
+            // The next heartbeat is due one interval after this upload, whatever caused it
+            if (nextUpload != null) {
+                nextUpload.cancel(false);
+            }
+            schedule(jitteredInterval());
+        }
+    }
+}
@@ -0,0 +1,36 @@
+package com.aggregationserver;
+
+/**
+ * Holds the observations of the stored stations on behalf of the server's store, which keeps
+ * only a handle per station. {@link HeapObservationStore} keeps the observations as objects;
+ * {@link SlabObservationStore} keeps them encoded outside the Java heap, so that a store of
+ * millions of stations does not lengthen garbage collection.
+ * <p>
+ * A handle is valid from put until free, and must not be used after it has been freed.
+ */
+public interface ObservationStore {
+
+    /**
+     * Stores an observation. The store may keep the observation itself, which must then not
+     * be changed until it is freed.
+     *
+     * @param observation The observation
+     * @return The handle to read or free it with
+     */
+    Object put(WeatherObservation observation);
+
+    /**
+     * Reads a stored observation.
+     *
+     * @param handle The handle returned by put
+     * @return The observation, which may be shared with the store and must not be changed
+     */
+    WeatherObservation get(Object handle);
+
+    /**
+     * Releases a stored observation.
+     *
+     * @param handle The handle returned by put
+     */
+    void free(Object handle);
+}
@@ -0,0 +1,359 @@
+package com.aggregationserver;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Sends weather updates to the AggregationServer, keeping the ones that could not be delivered
+ * in a bounded spool on disk instead of losing them while the server is down or overloaded.
+ * <p>
+ * Once anything is spooled, later updates are queued behind it so that every station's
+ * updates still arrive in Lamport order. The spool is replayed in batches of pipelined PUT
+ * requests over a keep-alive connection. A failed replay is retried after an exponential
+ * backoff with full jitter (a random delay up to the backoff), so that content servers that
+ * lost the same server do not all return at the same moment when it restarts.
+ * <p>
+ * The spool file is appended to as updates are spooled and removed once the spool has been
+ * replayed, and is read back when the content server restarts. Updates that were delivered
+ * just before a restart may therefore be sent twice, which the server treats as a repeat.
+ * When the spool is full, the oldest updates are dropped.
+ * <p>
+ * Updates are JSON, one per line of the spool file, or binary frames from
+ * {@link BinaryWeatherCodec}, which carry their own length and are stored back to back.
+ */
+public class OfflineSpool {
+
+    protected static final int DEFAULT_CAPACITY = 10000;  // Updates kept before the oldest are dropped
+    protected static final int BATCH_SIZE = 32;  // Updates pipelined per replay
+    protected static final long INITIAL_BACKOFF = 1000;  // Milliseconds; the limit of the first retry delay
+    protected static final long MAX_BACKOFF = 60000;  // Milliseconds; the limit of any retry delay
+    protected static final String REQUEST_LINE = "PUT /weather.json HTTP/1.1";
+    protected static final String[] PUT_HEADERS = {"User-Agent: ContentServer/1.0", "Content-Type: application/json"};
+    protected static final String[] BINARY_PUT_HEADERS = {"User-Agent: ContentServer/1.0",
+            "Content-Type: " + BinaryWeatherCodec.CONTENT_TYPE};
+
+    private final File file;
+    private final int capacity;
+    private final HttpConnectionPool pool;
+    private final ScheduledExecutorService scheduler;
+    private final boolean binary;  // True if updates are binary frames rather than JSON
+    private final String[] headers;
+    private final ArrayDeque<Entry> pending = new ArrayDeque<>();  // Guarded by this
+    private long nextSequence;  // Sequence number of the next spooled update
+    private OutputStream log;  // Appends to the spool file; null while the file is empty
+    private int logged;  // Updates in the spool file, including dropped and replayed ones
+    private int failedReplays;  // Replays that failed in a row
+    private int replayed;  // Updates replayed since the spool was last empty
+    private int dropped;  // Updates dropped since the spool was last empty
+    private boolean replayScheduled;  // True from scheduling a replay until the spool is empty
+
+    /**
+     * Creates a spool, loading any updates left in its file by a previous run and scheduling
+     * their replay. If the file cannot be read, the spool starts empty.
+     *
+     * @param file      The spool file
+     * @param capacity  The maximum number of updates kept
+     * @param pool      The connections to the AggregationServer
+     * @param scheduler The scheduler that runs replays
+     */
+    public OfflineSpool(File file, int capacity, HttpConnectionPool pool, ScheduledExecutorService scheduler) {
+        this(file, capacity, pool, scheduler, false);
+    }
+
+    /**
+     * Creates a spool for JSON or binary updates, as above.
+     *
+     * @param file      The spool file
+     * @param capacity  The maximum number of updates kept
+     * @param pool      The connections to the AggregationServer
+     * @param scheduler The scheduler that runs replays
+     * @param binary    True if updates are binary frames from {@link BinaryWeatherCodec}
+     */
+    public OfflineSpool(File file, int capacity, HttpConnectionPool pool, ScheduledExecutorService scheduler,
+                        boolean binary) {
+        this.file = file;
+        this.capacity = capacity;
+        this.pool = pool;
+        this.scheduler = scheduler;
+        this.binary = binary;
+        this.headers = binary ? BINARY_PUT_HEADERS : PUT_HEADERS;
+        if (file.exists()) {
+            try {
+                for (byte[] body : binary ? readFrames() : readLines()) {
+                    pending.add(new Entry(nextSequence++, body));
+                    logged++;
+                    if (pending.size() > capacity) {
+                        pending.removeFirst();
+                    }
+                }
+            } catch (IOException e) {
+                System.err.println("Error reading spool file " + file + ": " + e.getMessage());
+            }
+            if (!pending.isEmpty()) {
+                System.out.println("Replaying " + pending.size() + " spooled updates from " + file);
+                scheduleReplay(0);
+            }
+        }
+    }
+
+    private List<byte[]> readLines() throws IOException {
+        List<byte[]> bodies = new ArrayList<>();
+        try (BufferedReader reader = new BufferedReader(new InputStreamReader(Files.newInputStream(file.toPath()),
+                StandardCharsets.UTF_8))) {
+            String line;
+            while ((line = reader.readLine()) != null) {
+                if (!line.isEmpty()) {
+                    bodies.add(line.getBytes(StandardCharsets.UTF_8));
+                }
+            }
+        }
+        return bodies;
+    }
+
+    // Reads frames up to the end of the file, or up to a frame cut short by a crash while it was written
+    private List<byte[]> readFrames() throws IOException {
+        List<byte[]> bodies = new ArrayList<>();
+        ByteBuffer frames = ByteBuffer.wrap(Files.readAllBytes(file.toPath()));
+        while (frames.remaining() >= Integer.BYTES) {
+            int length = frames.getInt(frames.position());
+            if (length < 0 || length > frames.remaining() - Integer.BYTES) {
+                break;
+            }
+            byte[] body = new byte[Integer.BYTES + length];
+            frames.get(body);
+            bodies.add(body);
+        }
+        return bodies;
+    }
+
+    /**
+     * Sends an update, or spools it if the server cannot take it now. An update is spooled
+     * without being sent if earlier updates are still waiting in the spool.
+     *
+     * @param body        The update as JSON, or as a binary frame for a binary spool
+     * @param observation True for new data, which is spooled on failure; false for a heartbeat
+     *                    repeating data already delivered, which is dropped instead
+     * @return The server's response, or null if the update was queued behind the spool
+     * @throws IOException If the server cannot be reached; the update has been spooled
+     */
+    public HttpConnectionPool.Response send(byte[] body, boolean observation) throws IOException {
+        synchronized (this) {
+            if (!pending.isEmpty()) {
+                if (observation) {
+                    add(body);
+                }
+                return null;
+            }
+        }
+        HttpConnectionPool.Response response;
+        try {
+            response = pool.send(REQUEST_LINE, headers, body);
+        } catch (IOException e) {
+            if (observation) {
+                spool(body);
+            }
+            throw e;
+        }
+        if (isRetryable(response.getStatus()) && observation) {
+            spool(body);
+        }
+        return response;
+    }
+
+    /**
+     * Returns the number of updates waiting in the spool.
+     *
+     * @return The spooled update count
+     */
+    public synchronized int size() {
+        return pending.size();
+    }
+
+    /**
+     * Returns whether a response means that the server could not take the update now, so that
+     * it should be sent again later: the server is overloaded, failing or timed out.
+     *
+     * @param status The response status code
+     * @return True if the update should be retried
+     */
+    protected static boolean isRetryable(int status) {
+        return status >= 500 || status == 429 || status == 408;
+    }
+
+    /**
+     * Returns the delay before a replay after the given number of failed replays in a row:
+     * a random time up to INITIAL_BACKOFF doubled per failure, at most MAX_BACKOFF.
+     *
+     * @param failures The number of failed replays in a row
+     * @return The delay in milliseconds
+     */
+    protected static long backoff(int failures) {
+        long limit = Math.min(MAX_BACKOFF, INITIAL_BACKOFF << Math.min(failures - 1, 20));
+        return ThreadLocalRandom.current().nextLong(limit + 1);
+    }
+
+    private synchronized void spool(byte[] body) {
+        add(body);
+        if (!replayScheduled) {
+            failedReplays = 1;  // The send that failed counts as the first attempt
+            scheduleReplay(backoff(failedReplays));
+        }
+    }
+
+    private void add(byte[] body) {
+        pending.add(new Entry(nextSequence++, body));
+        if (pending.size() > capacity) {
+            pending.removeFirst();
+            dropped++;
+        }
+        try {
+            if (log == null) {
+                log = new FileOutputStream(file, true);
+            }
+            log.write(body);
+            if (!binary) {
+                log.write('\n');
+            }
+            log.flush();
+            logged++;
+            if (logged > 2 * capacity) {
+                rewrite();  // Drop the updates that have left the spool from the file
+            }
+        } catch (IOException e) {
+            System.err.println("Error writing spool file " + file + ": " + e.getMessage());
+        }
+    }
+
+    private void rewrite() throws IOException {
+        closeLog();
+        if (pending.isEmpty()) {
+            Files.deleteIfExists(file.toPath());
+            logged = 0;
+            return;
+        }
+        try (OutputStream out = new FileOutputStream(file, false)) {
+            for (Entry entry : pending) {
+                out.write(entry.body);
+                if (!binary) {
+                    out.write('\n');
+                }
+            }
+        }
+        logged = pending.size();
+    }
+
+    private void closeLog() throws IOException {
+        if (log != null) {
+            log.close();
+            log = null;
+        }
+    }
+
+    private synchronized void scheduleReplay(long delayMillis) {
+        if (!scheduler.isShutdown()) {
+            replayScheduled = true;
+            scheduler.schedule(this::replay, delayMillis, TimeUnit.MILLISECONDS);
+        }
+    }
+
+    /**
+     * Sends the oldest batch of spooled updates and schedules the next replay: at once while
+     * the server accepts them, otherwise after a backoff.
+     */
+    private void replay() {
+        List<Entry> batch = new ArrayList<>(BATCH_SIZE);
+        synchronized (this) {
+            for (Entry entry : pending) {
+                if (batch.size() == BATCH_SIZE) {
+                    break;
+                }
+                batch.add(entry);
+            }
+        }
+        if (batch.isEmpty()) {
+            synchronized (this) {
+                replayScheduled = false;
+            }
+            return;
+        }
+
+        // Updates up to the first one the server could not take are done, including rejected ones
+        long doneThrough = -1;
+        String error = null;
+        try {
+            List<byte[]> bodies = new ArrayList<>(batch.size());
+            for (Entry entry : batch) {
+                bodies.add(entry.body);
+            }
+            List<HttpConnectionPool.Response> responses = pool.sendAll(REQUEST_LINE, headers, bodies);
+            for (int i = 0; i < responses.size(); i++) {
+                HttpConnectionPool.Response response = responses.get(i);
+                if (isRetryable(response.getStatus())) {
+                    error = response.getStatusLine();
+                    break;
+                }
+                if (response.getStatus() >= 300) {
+                    System.err.println("Server rejected spooled update: " + response.getStatusLine());
+                }
+                doneThrough = batch.get(i).sequence;
+            }
+        } catch (IOException e) {
+            error = e.getMessage();
+        }
+
+        synchronized (this) {
+            while (!pending.isEmpty() && pending.peekFirst().sequence <= doneThrough) {
+                pending.removeFirst();
+                replayed++;
+            }
+            if (pending.isEmpty()) {
+                replayScheduled = false;
+                System.out.println("Replayed " + replayed + " spooled updates"
+                        + (dropped > 0 ? " (" + dropped + " dropped while the spool was full)" : ""));
+                replayed = 0;
+                dropped = 0;
+                failedReplays = 0;
+                try {
+                    rewrite();  // Remove the file
+                } catch (IOException e) {
+                    System.err.println("Error removing spool file " + file + ": " + e.getMessage());
+                }
+            } else if (error == null) {
+                failedReplays = 0;
+                scheduleReplay(0);
+            } else {
+                failedReplays++;
+                long delay = backoff(failedReplays);
+                System.err.println("Replay of " + pending.size() + " spooled updates failed (" + error
+                        + "); retrying in " + delay + " ms");
+                scheduleReplay(delay);
+            }
+        }
+    }
+
+    /**
+     * A spooled update and its position in the spool.
+     */
+    private static class Entry {
+        final long sequence;
+        final byte[] body;
+
+        Entry(long sequence, byte[] body) {
+            this.sequence = sequence;
+            this.body = body;
+        }
+    }
+}
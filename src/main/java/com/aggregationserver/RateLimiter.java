@@ -0,0 +1,89 @@
+package com.aggregationserver;
+
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * Token-bucket rate limits for many sources at once, such as every station or every client
+ * address sending PUTs. Each source may send a burst of requests at once, and after that one
+ * request per 1 / rate seconds.
+ * <p>
+ * A bucket is kept as a single long, the time at which it will next be full (the generic cell
+ * rate algorithm), so a request costs a hash, a read and a compare-and-set, with no locking
+ * and no allocation. The buckets live in a fixed-size table indexed by a hash of the source,
+ * so the limiter's memory does not grow with the number of sources a client can make up; in
+ * return, sources whose hashes collide share a bucket, which only ever makes their limit
+ * stricter.
+ */
+public class RateLimiter {
+
+    protected static final int DEFAULT_SLOTS = 4096;  // Buckets in the table; a power of two
+
+    private final long intervalNanos;  // Time for one token to refill
+    private final long burstNanos;  // Time for a whole burst to refill
+    private final AtomicLongArray fullAt;  // Per slot, the time the bucket is next full, relative to origin
+    private final long origin = System.nanoTime() - 1;  // So that an unused slot, at 0, is full
+
+    /**
+     * Creates a limiter with every bucket full.
+     *
+     * @param ratePerSecond The sustained rate each source may send at
+     * @param burst         The number of requests a source with a full bucket may send at once
+     * @param slots         The number of buckets, rounded up to a power of two
+     */
+    public RateLimiter(double ratePerSecond, int burst, int slots) {
+        if (!(ratePerSecond > 0) || burst < 1) {
+            throw new IllegalArgumentException("Rate and burst must be positive");
+        }
+        this.intervalNanos = Math.max(1, (long) (1e9 / ratePerSecond));
+        this.burstNanos = intervalNanos * burst;
+        this.fullAt = new AtomicLongArray(Integer.highestOneBit(Math.max(1, slots - 1)) << 1);
+    }
+
+    /**
+     * Parses a limit given as "rate" or "rate:burst", in requests per second; the burst
+     * defaults to the rate, rounded up.
+     *
+     * @param limit The limit, e.g. "5:20"
+     * @return A limiter with DEFAULT_SLOTS buckets
+     * @throws IllegalArgumentException If the limit is not valid
+     */
+    public static RateLimiter parse(String limit) {
+        int colon = limit.indexOf(':');
+        double rate = Double.parseDouble(colon < 0 ? limit : limit.substring(0, colon));
+        int burst = colon < 0 ? (int) Math.ceil(rate) : Integer.parseInt(limit.substring(colon + 1));
+        return new RateLimiter(rate, burst, DEFAULT_SLOTS);
+    }
+
+    /**
+     * Takes a token from a source's bucket, if it has one.
+     *
+     * @param source The source, e.g. a station ID or client address
+     * @return 0 if the request may proceed, otherwise the nanoseconds until the bucket has a token
+     */
+    public long acquire(String source) {
+        int h = source.hashCode();
+        int slot = (h ^ (h >>> 16)) & (fullAt.length() - 1);
+        long now = System.nanoTime() - origin;
+        while (true) {
+            long full = fullAt.get(slot);
+            long next = Math.max(full, now) + intervalNanos;  // Full again once this token has refilled
+            long wait = next - burstNanos - now;
+            if (wait > 0) {
+                return wait;  // Taking a token would leave fewer than none
+            }
+            if (fullAt.compareAndSet(slot, full, next)) {
+                return 0;
+            }
+        }
+    }
+
+    /**
+     * Converts a wait from {@link #acquire(String)} into a Retry-After value.
+     *
+     * @param waitNanos The wait in nanoseconds
+     * @return The wait in whole seconds, rounded up, and at least 1
+     */
+    public static long retryAfterSeconds(long waitNanos) {
+        return Math.max(1, (waitNanos + 999_999_999) / 1_000_000_000);
+    }
+}
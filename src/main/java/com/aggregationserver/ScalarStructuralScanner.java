@@ -0,0 +1,38 @@
+package com.aggregationserver;
+
+/**
+ * Classifies JSON blocks one byte at a time. Used when the Vector API is not available.
+ */
+public class ScalarStructuralScanner implements StructuralScanner {
+
+    @Override
+    public void classify(byte[] json, int offset, long[] masks) {
+        long backslash = 0;
+        long quote = 0;
+        long operator = 0;
+        for (int i = 0; i < 64; i++) {
+            long bit = 1L << i;
+            switch (json[offset + i]) {
+                case '\\':
+                    backslash |= bit;
+                    break;
+                case '"':
+                    quote |= bit;
+                    break;
+                case '{':
+                case '}':
+                case '[':
+                case ']':
+                case ':':
+                case ',':
+                    operator |= bit;
+                    break;
+                default:
+                    break;
+            }
+        }
+        masks[BACKSLASH] = backslash;
+        masks[QUOTE] = quote;
+        masks[OPERATOR] = operator;
+    }
+}
@@ -0,0 +1,141 @@
+package com.aggregationserver;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.NavigableMap;
+import java.util.Set;
+import java.util.TreeMap;
+
+/**
+ * An index of the stations by the value of one schema field, for answering
+ * {@link StationFilter} conditions without reading every station. Text fields such as state
+ * and time zone get a hash index, which answers equality; numeric fields (the measurements,
+ * lat and lon) get a sorted index, which also answers ranges. Stations whose field is absent,
+ * or not numeric for a sorted index, are not indexed, as no condition the index answers
+ * could match them.
+ * <p>
+ * The index is updated with each stored and removed observation, under the store's lock.
+ * It covers the stations the server stores, at most 20 unless the server is started with a
+ * larger --max-entries, so it only saves work over a scan for a large store.
+ */
+public class SecondaryIndex {
+
+    private final WeatherObservation.Field field;
+    private final Map<String, Set<String>> byText;  // Hash index: field text -> station IDs, or null if sorted
+    private final TreeMap<Double, Set<String>> byNumber;  // Sorted index: field value -> station IDs, or null if hashed
+
+    /**
+     * Creates an empty index, sorted for numeric fields and hashed otherwise.
+     *
+     * @param field The field to index
+     */
+    public SecondaryIndex(WeatherObservation.Field field) {
+        this.field = field;
+        boolean numeric = WeatherAggregates.isMeasurement(field)
+                || field == WeatherObservation.Field.LAT || field == WeatherObservation.Field.LON;
+        this.byText = numeric ? null : new HashMap<>();
+        this.byNumber = numeric ? new TreeMap<>() : null;
+    }
+
+    public WeatherObservation.Field getField() {
+        return field;
+    }
+
+    public boolean isSorted() {
+        return byNumber != null;
+    }
+
+    /**
+     * Adds a stored station.
+     *
+     * @param id          The station ID
+     * @param observation The station's observation
+     */
+    public synchronized void add(String id, WeatherObservation observation) {
+        if (byNumber != null) {
+            double value = observation.getDouble(field);
+            if (!Double.isNaN(value)) {
+                byNumber.computeIfAbsent(value, key -> new HashSet<>()).add(id);
+            }
+        } else if (observation.get(field) != null) {
+            byText.computeIfAbsent(observation.get(field), key -> new HashSet<>()).add(id);
+        }
+    }
+
+    /**
+     * Removes a station that has been replaced or removed.
+     *
+     * @param id          The station ID
+     * @param observation The observation it was added with
+     */
+    public synchronized void remove(String id, WeatherObservation observation) {
+        if (byNumber != null) {
+            double value = observation.getDouble(field);
+            if (!Double.isNaN(value)) {
+                byNumber.computeIfPresent(value, (key, ids) -> ids.remove(id) && ids.isEmpty() ? null : ids);
+            }
+        } else if (observation.get(field) != null) {
+            byText.computeIfPresent(observation.get(field), (key, ids) -> ids.remove(id) && ids.isEmpty() ? null : ids);
+        }
+    }
+
+    /**
+     * Forgets every station.
+     */
+    public synchronized void clear() {
+        if (byNumber != null) {
+            byNumber.clear();
+        } else {
+            byText.clear();
+        }
+    }
+
+    /**
+     * Finds the stations that satisfy a condition on the indexed field. A hash index answers
+     * equality with text; a sorted index answers numeric equality and ranges. Inequality is
+     * not answered, as it matches most stations.
+     *
+     * @param condition The condition, which must be on the indexed field
+     * @return The matching station IDs, or null if the index cannot answer the condition
+     */
+    public synchronized List<String> lookup(StationFilter.Condition condition) {
+        if (byText != null) {
+            if (!condition.operator.equals("=") || condition.isNumeric()) {
+                return null;
+            }
+            Set<String> ids = byText.get(condition.text);
+            return ids != null ? new ArrayList<>(ids) : new ArrayList<>();
+        }
+        if (!condition.isNumeric()) {
+            return null;
+        }
+        NavigableMap<Double, Set<String>> range;
+        switch (condition.operator) {
+            case "=":
+                range = byNumber.subMap(condition.number, true, condition.number, true);
+                break;
+            case "<":
+                range = byNumber.headMap(condition.number, false);
+                break;
+            case "<=":
+                range = byNumber.headMap(condition.number, true);
+                break;
+            case ">":
+                range = byNumber.tailMap(condition.number, false);
+                break;
+            case ">=":
+                range = byNumber.tailMap(condition.number, true);
+                break;
+            default:
+                return null;
+        }
+        List<String> ids = new ArrayList<>();
+        for (Set<String> stations : range.values()) {
+            ids.addAll(stations);
+        }
+        return ids;
+    }
+}
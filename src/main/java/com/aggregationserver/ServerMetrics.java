@@ -0,0 +1,206 @@
+package com.aggregationserver;
+
+import java.util.concurrent.atomic.AtomicReferenceArray;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Counters and latency histograms for the AggregationServer, written out in the Prometheus text
+ * format by GET /metrics.
+ * <p>
+ * Recording is meant for the request path, so it allocates nothing and takes no locks: counts
+ * are LongAdders, which spread concurrent increments over striped cells, and each histogram has
+ * a fixed set of buckets chosen up front. A histogram for a method and status is created the
+ * first time that pair is seen, and reused from then on.
+ * <p>
+ * Persistence is measured by the save histogram alone: the store is saved as a snapshot file
+ * and has no write-ahead log, so there are no log appends to time.
+ */
+public class ServerMetrics {
+
+    protected static final String CONTENT_TYPE = "text/plain; version=0.0.4; charset=utf-8";  // Prometheus text format
+    protected static final long[] LATENCY_BUCKETS = {100_000, 250_000, 500_000, 1_000_000, 2_500_000, 5_000_000,
+            10_000_000, 25_000_000, 50_000_000, 100_000_000, 250_000_000, 500_000_000, 1_000_000_000,
+            2_500_000_000L};  // Upper bounds in nanoseconds, from 0.1 ms to 2.5 s; slower events fall in +Inf
+
+    private static final String[] METHODS = {"GET", "PUT", "other"};
+    private static final int MIN_STATUS = 100;
+    private static final int STATUSES = 500;  // Status codes 100 to 599
+
+    private final AtomicReferenceArray<Histogram> requests = new AtomicReferenceArray<>(METHODS.length * STATUSES);
+    private final Histogram putParse = new Histogram();
+    private final Histogram save = new Histogram();
+    private final LongAdder expirations = new LongAdder();
+    private final LongAdder evictions = new LongAdder();
+
+    /**
+     * Records a request that has been answered.
+     *
+     * @param method      The request method
+     * @param status      The response status code; requests without a valid one are not recorded
+     * @param nanoseconds The time taken to handle it
+     */
+    public void recordRequest(String method, int status, long nanoseconds) {
+        if (status < MIN_STATUS || status >= MIN_STATUS + STATUSES) {
+            return;
+        }
+        int m = method.equals("GET") ? 0 : method.equals("PUT") ? 1 : 2;
+        int slot = m * STATUSES + status - MIN_STATUS;
+        Histogram histogram = requests.get(slot);
+        if (histogram == null) {
+            requests.compareAndSet(slot, null, new Histogram());
+            histogram = requests.get(slot);
+        }
+        histogram.observe(nanoseconds);
+    }
+
+    /**
+     * Records the time taken to decode the body of a PUT.
+     *
+     * @param nanoseconds The time taken
+     */
+    public void recordPutParse(long nanoseconds) {
+        putParse.observe(nanoseconds);
+    }
+
+    /**
+     * Records the time taken to save the store to its file.
+     *
+     * @param nanoseconds The time taken
+     */
+    public void recordSave(long nanoseconds) {
+        save.observe(nanoseconds);
+    }
+
+    /**
+     * Counts stations removed because they were not updated in time.
+     *
+     * @param stations The number removed
+     */
+    public void recordExpirations(int stations) {
+        expirations.add(stations);
+    }
+
+    /**
+     * Counts a station removed to keep the store within its maximum size.
+     */
+    public void recordEviction() {
+        evictions.increment();
+    }
+
+    /**
+     * Returns the status code of a response as written by a handler.
+     *
+     * @param response The response, starting with its status line
+     * @return The status code, or 0 if the response has no valid status line
+     */
+    public static int statusOf(String response) {
+        if (!response.startsWith("HTTP/1.1 ") || response.length() < 12) {
+            return 0;
+        }
+        int status = 0;
+        for (int i = 9; i < 12; i++) {
+            char c = response.charAt(i);
+            if (c < '0' || c > '9') {
+                return 0;
+            }
+            status = status * 10 + (c - '0');
+        }
+        return status;
+    }
+
+    /**
+     * Writes every metric in the Prometheus text format, together with gauges of the store's
+     * current state, which the server reads when it is scraped.
+     *
+     * @param stations    The number of stations stored
+     * @param lamportTime The current time of the server's Lamport clock
+     * @return The metrics
+     */
+    public String toText(int stations, long lamportTime) {
+        StringBuilder text = new StringBuilder(4096);
+        help(text, "aggregation_http_request_duration_seconds", "histogram",
+                "Time taken to handle a request, by method and status; _count is the number of requests");
+        for (int slot = 0; slot < requests.length(); slot++) {
+            Histogram histogram = requests.get(slot);
+            if (histogram != null) {
+                String labels = "method=\"" + METHODS[slot / STATUSES] + "\",status=\"" + (MIN_STATUS + slot % STATUSES) + "\"";
+                histogram.write(text, "aggregation_http_request_duration_seconds", labels);
+            }
+        }
+        help(text, "aggregation_put_parse_duration_seconds", "histogram", "Time taken to decode a PUT body");
+        putParse.write(text, "aggregation_put_parse_duration_seconds", "");
+        help(text, "aggregation_save_duration_seconds", "histogram", "Time taken to save the store to its file");
+        save.write(text, "aggregation_save_duration_seconds", "");
+        help(text, "aggregation_expirations_total", "counter", "Stations removed because they were not updated in time");
+        text.append("aggregation_expirations_total ").append(expirations.sum()).append('\n');
+        help(text, "aggregation_evictions_total", "counter", "Stations removed to keep the store within its maximum size");
+        text.append("aggregation_evictions_total ").append(evictions.sum()).append('\n');
+        help(text, "aggregation_stations", "gauge", "Stations currently stored");
+        text.append("aggregation_stations ").append(stations).append('\n');
+        help(text, "aggregation_lamport_time", "gauge", "Current time of the server's Lamport clock");
+        text.append("aggregation_lamport_time ").append(lamportTime).append('\n');
+        return text.toString();
+    }
+
+    private static void help(StringBuilder text, String name, String type, String help) {
+        text.append("# HELP ").append(name).append(' ').append(help).append('\n');
+        text.append("# TYPE ").append(name).append(' ').append(type).append('\n');
+    }
+
+    /**
+     * A histogram of durations over the fixed LATENCY_BUCKETS. Each bucket counts the events
+     * that fell in it alone; the cumulative counts Prometheus expects are summed when written.
+     */
+    static class Histogram {
+        private final LongAdder[] buckets = new LongAdder[LATENCY_BUCKETS.length + 1];  // The last is +Inf
+        private final LongAdder sumNanos = new LongAdder();
+
+        Histogram() {
+            for (int i = 0; i < buckets.length; i++) {
+                buckets[i] = new LongAdder();
+            }
+        }
+
+        /**
+         * Records one event.
+         *
+         * @param nanoseconds Its duration
+         */
+        void observe(long nanoseconds) {
+            int i = 0;
+            while (i < LATENCY_BUCKETS.length && nanoseconds > LATENCY_BUCKETS[i]) {
+                i++;
+            }
+            buckets[i].increment();
+            sumNanos.add(nanoseconds);
+        }
+
+        /**
+         * Returns the number of events recorded.
+         *
+         * @return The count
+         */
+        long count() {
+            long count = 0;
+            for (LongAdder bucket : buckets) {
+                count += bucket.sum();
+            }
+            return count;
+        }
+
+        // Writes the _bucket, _sum and _count lines of the histogram with the given labels
+        void write(StringBuilder text, String name, String labels) {
+            String separator = labels.isEmpty() ? "" : ",";
+            long cumulative = 0;
+            for (int i = 0; i < buckets.length; i++) {
+                cumulative += buckets[i].sum();
+                String le = i < LATENCY_BUCKETS.length ? Double.toString(LATENCY_BUCKETS[i] / 1e9) : "+Inf";
+                text.append(name).append("_bucket{").append(labels).append(separator)
+                        .append("le=\"").append(le).append("\"} ").append(cumulative).append('\n');
+            }
+            String braces = labels.isEmpty() ? "" : "{" + labels + "}";
+            text.append(name).append("_sum").append(braces).append(' ').append(sumNanos.sum() / 1e9).append('\n');
+            text.append(name).append("_count").append(braces).append(' ').append(cumulative).append('\n');
+        }
+    }
+}
@@ -0,0 +1,170 @@
+package com.aggregationserver;
+
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * Keeps observations outside the Java heap, encoded as JSON in direct ByteBuffer slabs, so
+ * that the garbage collector never has to trace them. Only a boxed 64-bit handle per station
+ * stays on the heap; an observation is decoded again each time it is read.
+ * <p>
+ * Blocks are allocated by size class, in powers of two from MIN_BLOCK up to SLAB_SIZE: each
+ * class carves blocks from its own slabs and keeps a free list of released blocks for reuse,
+ * so allocation and release are constant time and slabs never need compacting. An
+ * observation too large for a slab gets a direct buffer of its own, released when freed.
+ * A block holds the length of the JSON followed by the JSON itself.
+ */
+public class SlabObservationStore implements ObservationStore {
+
+    protected static final int SLAB_SIZE = 1 << 20;  // Bytes per slab
+    protected static final int MIN_BLOCK = 64;  // Smallest block, in bytes
+    private static final int CLASSES = Integer.numberOfTrailingZeros(SLAB_SIZE / MIN_BLOCK) + 1;
+    private static final int HEADER = Integer.BYTES;  // The JSON length, before the JSON
+
+    private final List<ByteBuffer> slabs = new ArrayList<>();  // Indexed by the high half of a handle; null once released
+    private final int[] currentSlab = new int[CLASSES];  // Per class, the slab blocks are carved from, or -1
+    private final int[] nextOffset = new int[CLASSES];  // Per class, where the next block is carved
+    private final long[][] freeBlocks = new long[CLASSES][];  // Per class, a stack of released handles
+    private final int[] freeCounts = new int[CLASSES];
+    private long usedBytes;  // Bytes in blocks in use, headers and rounding included
+
+    /**
+     * Creates an empty store; slabs are allocated as they are needed.
+     */
+    public SlabObservationStore() {
+        Arrays.fill(currentSlab, -1);
+        for (int c = 0; c < CLASSES; c++) {
+            freeBlocks[c] = new long[16];
+        }
+    }
+
+    @Override
+    public synchronized Object put(WeatherObservation observation) {
+        byte[] json = encode(observation);
+        int size = HEADER + json.length;
+        long handle;
+        if (size > SLAB_SIZE) {
+            slabs.add(ByteBuffer.allocateDirect(size));
+            handle = handle(slabs.size() - 1, 0);
+        } else {
+            handle = allocate(sizeClass(size));
+        }
+        ByteBuffer slab = slabs.get(slabOf(handle));
+        slab.putInt(offsetOf(handle), json.length);
+        slab.put(offsetOf(handle) + HEADER, json);
+        usedBytes += blockSize(size);
+        return handle;
+    }
+
+    @Override
+    public WeatherObservation get(Object handle) {
+        byte[] json;
+        long observation = (Long) handle;
+        synchronized (this) {
+            ByteBuffer slab = slabs.get(slabOf(observation));
+            json = new byte[slab.getInt(offsetOf(observation))];
+            slab.get(offsetOf(observation) + HEADER, json);
+        }
+        try {
+            return WeatherCodec.decode(json);
+        } catch (Exception e) {
+            throw new IllegalStateException("Corrupt observation in slab store", e);  // Only the store writes blocks
+        }
+    }
+
+    @Override
+    public synchronized void free(Object handle) {
+        long block = (Long) handle;
+        ByteBuffer slab = slabs.get(slabOf(block));
+        int size = HEADER + slab.getInt(offsetOf(block));
+        usedBytes -= blockSize(size);
+        if (size > SLAB_SIZE) {
+            slabs.set(slabOf(block), null);  // Its own buffer, released with it
+            return;
+        }
+        int c = sizeClass(size);
+        if (freeCounts[c] == freeBlocks[c].length) {
+            freeBlocks[c] = Arrays.copyOf(freeBlocks[c], freeCounts[c] * 2);
+        }
+        freeBlocks[c][freeCounts[c]++] = block;
+    }
+
+    /**
+     * Returns the bytes in blocks in use, including block headers and rounding up to a size class.
+     *
+     * @return The bytes in use
+     */
+    public synchronized long getUsedBytes() {
+        return usedBytes;
+    }
+
+    /**
+     * Returns the off-heap bytes held in slabs, whether in use or free.
+     *
+     * @return The bytes allocated
+     */
+    public synchronized long getAllocatedBytes() {
+        long bytes = 0;
+        for (ByteBuffer slab : slabs) {
+            bytes += slab != null ? slab.capacity() : 0;
+        }
+        return bytes;
+    }
+
+    private long allocate(int c) {
+        if (freeCounts[c] > 0) {
+            return freeBlocks[c][--freeCounts[c]];
+        }
+        int block = MIN_BLOCK << c;
+        if (currentSlab[c] < 0 || nextOffset[c] + block > SLAB_SIZE) {
+            slabs.add(ByteBuffer.allocateDirect(SLAB_SIZE));
+            currentSlab[c] = slabs.size() - 1;
+            nextOffset[c] = 0;
+        }
+        long handle = handle(currentSlab[c], nextOffset[c]);
+        nextOffset[c] += block;
+        return handle;
+    }
+
+    /**
+     * Encodes an observation without its lastUpdated, which the server keeps in the entry
+     * itself, so that the decoded observation keeps its JSON for writing back out.
+     */
+    private static byte[] encode(WeatherObservation observation) {
+        byte[] source = observation.getSource();
+        if (source != null) {
+            return Arrays.copyOfRange(source, observation.getSourceStart(), observation.getSourceEnd());
+        }
+        long lastUpdated = observation.getLastUpdated();
+        observation.setLastUpdated(0);
+        try {
+            return JSONWriter.toJson(observation, false).getBytes(StandardCharsets.UTF_8);
+        } finally {
+            observation.setLastUpdated(lastUpdated);
+        }
+    }
+
+    private static int sizeClass(int size) {
+        int block = Math.max(MIN_BLOCK, Integer.highestOneBit(size - 1) << 1);
+        return Integer.numberOfTrailingZeros(block / MIN_BLOCK);
+    }
+
+    private static int blockSize(int size) {
+        return size > SLAB_SIZE ? size : MIN_BLOCK << sizeClass(size);
+    }
+
+    private static long handle(int slab, int offset) {
+        return ((long) slab << 32) | offset;
+    }
+
+    private static int slabOf(long handle) {
+        return (int) (handle >>> 32);
+    }
+
+    private static int offsetOf(long handle) {
+        return (int) handle;
+    }
+}
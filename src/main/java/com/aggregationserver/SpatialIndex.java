@@ -0,0 +1,310 @@
+package com.aggregationserver;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.PriorityQueue;
+
+/**
+ * An index of station positions for nearest-station and bounding-box queries. Stations are
+ * bucketed into a grid of fixed-size latitude/longitude cells, so adding, moving or removing a
+ * station costs a hash lookup, and a query only reads the cells around the point or inside the
+ * box rather than every station.
+ * <p>
+ * A nearest query visits rings of cells around the point, nearest first, and stops once the
+ * closest a station outside the visited rings could be is further than the k-th best found.
+ * Distances are great-circle distances on a spherical Earth. Longitude wraps around at the
+ * antimeridian; stations without a valid lat and lon are not indexed.
+ * <p>
+ * The index holds the stations the server stores, which is at most 20 unless the server is
+ * started with a larger --max-entries (or 0 for no limit). Only then does the grid save much
+ * over reading every station; figures for large stores come from the index on its own.
+ */
+public class SpatialIndex {
+
+    protected static final double DEFAULT_CELL_DEGREES = 1.0;  // Cell size; about 111 km north to south
+    protected static final double EARTH_RADIUS_KM = 6371.0088;  // Mean radius
+
+    private final double cellDegrees;
+    private final int latCells;
+    private final int lonCells;
+    private final Map<Long, List<Point>> cells = new HashMap<>();  // Cell key -> stations in it
+    private final Map<String, Point> points = new HashMap<>();  // Station ID -> position
+
+    /**
+     * Creates an empty index.
+     *
+     * @param cellDegrees The width and height of a grid cell in degrees
+     */
+    public SpatialIndex(double cellDegrees) {
+        this.cellDegrees = cellDegrees;
+        this.latCells = (int) Math.ceil(180 / cellDegrees);
+        this.lonCells = (int) Math.ceil(360 / cellDegrees);
+    }
+
+    /**
+     * Adds a station, or moves it if it is already indexed. A station whose observation has no
+     * valid position is removed.
+     *
+     * @param id          The station ID
+     * @param observation The station's observation
+     */
+    public synchronized void put(String id, WeatherObservation observation) {
+        double lat = observation.getDouble(WeatherObservation.Field.LAT);
+        double lon = observation.getDouble(WeatherObservation.Field.LON);
+        if (!(lat >= -90 && lat <= 90 && lon >= -180 && lon <= 180)) {  // Also rejects NaN
+            remove(id);
+            return;
+        }
+        Point point = points.get(id);
+        if (point != null) {
+            if (cellOf(point.lat, point.lon) == cellOf(lat, lon)) {
+                point.lat = lat;
+                point.lon = lon;
+                return;
+            }
+            remove(id);
+        }
+        point = new Point(id, lat, lon);
+        List<Point> cell = cells.computeIfAbsent(cellOf(lat, lon), key -> new ArrayList<>());
+        point.slot = cell.size();
+        cell.add(point);
+        points.put(id, point);
+    }
+
+    /**
+     * Removes a station.
+     *
+     * @param id The station ID
+     */
+    public synchronized void remove(String id) {
+        Point point = points.remove(id);
+        if (point == null) {
+            return;
+        }
+        long key = cellOf(point.lat, point.lon);
+        List<Point> cell = cells.get(key);
+        Point last = cell.remove(cell.size() - 1);  // Fill the gap with the last station, without shifting
+        if (last != point) {
+            last.slot = point.slot;
+            cell.set(point.slot, last);
+        }
+        if (cell.isEmpty()) {
+            cells.remove(key);
+        }
+    }
+
+    /**
+     * Forgets every station.
+     */
+    public synchronized void clear() {
+        cells.clear();
+        points.clear();
+    }
+
+    /**
+     * Returns the number of stations indexed.
+     *
+     * @return The station count
+     */
+    public synchronized int size() {
+        return points.size();
+    }
+
+    /**
+     * Finds the stations nearest to a point.
+     *
+     * @param lat The latitude in degrees
+     * @param lon The longitude in degrees
+     * @param k   The number of stations to find
+     * @return Up to k station IDs, nearest first
+     */
+    public synchronized List<String> nearest(double lat, double lon, int k) {
+        PriorityQueue<Candidate> best = new PriorityQueue<>((a, b) -> Double.compare(b.distanceKm, a.distanceKm));  // Furthest on top
+        int centerLat = latIndex(lat);
+        int centerLon = lonIndex(lon);
+        int maxRing = Math.max(latCells, lonCells / 2);
+        for (int ring = 0; ring <= maxRing && k > 0; ring++) {
+            if ((long) (2 * ring + 1) * (2 * ring + 1) > cells.size()) {
+                // Reading every occupied cell is now cheaper than the ring's empty cells
+                best.clear();
+                for (List<Point> cell : cells.values()) {
+                    offer(best, cell, lat, lon, k);
+                }
+                break;
+            }
+            for (int i = centerLat - ring; i <= centerLat + ring; i++) {
+                if (i < 0 || i >= latCells) {
+                    continue;
+                }
+                boolean edgeRow = i == centerLat - ring || i == centerLat + ring;
+                for (int offset = -ring; offset <= ring; offset += edgeRow ? 1 : 2 * ring) {
+                    int half = (lonCells - 1) / 2;
+                    if (Math.floorMod(offset + half, lonCells) - half != offset) {
+                        continue;  // The ring has wrapped around onto a column already visited
+                    }
+                    List<Point> cell = cells.get(key(i, Math.floorMod(centerLon + offset, lonCells)));
+                    if (cell != null) {
+                        offer(best, cell, lat, lon, k);
+                    }
+                }
+            }
+            if (best.size() == k && best.peek().distanceKm <= outsideRingKm(lat, lon, ring, best.peek().distanceKm)) {
+                break;
+            }
+        }
+        List<String> ids = new ArrayList<>(best.size());
+        while (!best.isEmpty()) {
+            ids.add(best.poll().id);
+        }
+        Collections.reverse(ids);
+        return ids;
+    }
+
+    /**
+     * Finds the stations inside a bounding box. If west is greater than east, the box crosses
+     * the antimeridian.
+     *
+     * @param south The southern latitude in degrees
+     * @param west  The western longitude in degrees
+     * @param north The northern latitude in degrees
+     * @param east  The eastern longitude in degrees
+     * @return The station IDs inside the box, edges included, in no particular order
+     */
+    public synchronized List<String> within(double south, double west, double north, double east) {
+        List<String> ids = new ArrayList<>();
+        if (south > north) {
+            return ids;
+        }
+        int firstLat = latIndex(Math.max(south, -90));
+        int lastLat = latIndex(Math.min(north, 90));
+        int firstLon = lonIndex(west);
+        int lonSpan = Math.floorMod(lonIndex(east) - firstLon, lonCells) + 1;
+        if (west <= east && east - west >= 360 - cellDegrees) {
+            lonSpan = lonCells;
+        }
+        if ((long) (lastLat - firstLat + 1) * lonSpan > cells.size()) {
+            for (List<Point> cell : cells.values()) {  // Fewer occupied cells than cells in the box
+                collect(ids, cell, south, west, north, east);
+            }
+            return ids;
+        }
+        for (int i = firstLat; i <= lastLat; i++) {
+            for (int j = 0; j < lonSpan; j++) {
+                List<Point> cell = cells.get(key(i, (firstLon + j) % lonCells));
+                if (cell != null) {
+                    collect(ids, cell, south, west, north, east);
+                }
+            }
+        }
+        return ids;
+    }
+
+    /**
+     * Returns the great-circle distance between two points.
+     *
+     * @param lat1 The first latitude in degrees
+     * @param lon1 The first longitude in degrees
+     * @param lat2 The second latitude in degrees
+     * @param lon2 The second longitude in degrees
+     * @return The distance in kilometres
+     */
+    public static double distanceKm(double lat1, double lon1, double lat2, double lon2) {
+        double sinLat = Math.sin(Math.toRadians(lat2 - lat1) / 2);
+        double sinLon = Math.sin(Math.toRadians(lon2 - lon1) / 2);
+        double h = sinLat * sinLat + Math.cos(Math.toRadians(lat1)) * Math.cos(Math.toRadians(lat2)) * sinLon * sinLon;
+        return 2 * EARTH_RADIUS_KM * Math.asin(Math.min(1, Math.sqrt(h)));
+    }
+
+    private static void offer(PriorityQueue<Candidate> best, List<Point> cell, double lat, double lon, int k) {
+        for (Point point : cell) {
+            double distance = distanceKm(lat, lon, point.lat, point.lon);
+            if (best.size() < k) {
+                best.add(new Candidate(point.id, distance));
+            } else if (distance < best.peek().distanceKm) {
+                best.poll();
+                best.add(new Candidate(point.id, distance));
+            }
+        }
+    }
+
+    private static void collect(List<String> ids, List<Point> cell, double south, double west, double north, double east) {
+        for (Point point : cell) {
+            boolean inLon = west <= east ? point.lon >= west && point.lon <= east : point.lon >= west || point.lon <= east;
+            if (point.lat >= south && point.lat <= north && inLon) {
+                ids.add(point.id);
+            }
+        }
+    }
+
+    /**
+     * Returns a lower bound on the distance from a point to any station outside the rings of
+     * cells visited so far. Such a station is either further north or south than the visited
+     * rows, or further east or west than the visited columns. The second case only gets closer
+     * towards the poles, so it is bounded using the latitude furthest from the equator that a
+     * station within the given distance could have.
+     *
+     * @param withinKm The distance of interest, used to bound the latitude
+     */
+    private double outsideRingKm(double lat, double lon, int ring, double withinKm) {
+        int centerLat = latIndex(lat);
+        int centerLon = lonIndex(lon);
+        double south = (centerLat - ring) * cellDegrees - 90;
+        double north = (centerLat + ring + 1) * cellDegrees - 90;
+        double latGap = Math.min(south > -90 ? lat - south : Double.POSITIVE_INFINITY,
+                north < 90 ? north - lat : Double.POSITIVE_INFINITY);
+        if (2 * ring + 1 >= lonCells) {
+            return EARTH_RADIUS_KM * Math.toRadians(latGap);  // Every column has been visited
+        }
+        double inCell = ((lon + 180) % 360 + 360) % 360 - centerLon * cellDegrees;  // Degrees east of the cell's west edge
+        double lonGap = Math.min(ring * cellDegrees + inCell, (ring + 1) * cellDegrees - inCell);
+        double maxLat = Math.min(90, Math.abs(lat) + Math.toDegrees(withinKm / EARTH_RADIUS_KM));
+        double lonGapKm = 2 * EARTH_RADIUS_KM * Math.asin(Math.min(1,
+                Math.cos(Math.toRadians(maxLat)) * Math.sin(Math.toRadians(lonGap) / 2)));
+        return Math.min(EARTH_RADIUS_KM * Math.toRadians(latGap), lonGapKm);
+    }
+
+    private long cellOf(double lat, double lon) {
+        return key(latIndex(lat), lonIndex(lon));
+    }
+
+    private int latIndex(double lat) {
+        return Math.min(latCells - 1, Math.max(0, (int) Math.floor((lat + 90) / cellDegrees)));
+    }
+
+    private int lonIndex(double lon) {
+        return Math.floorMod((int) Math.floor((lon + 180) / cellDegrees), lonCells);
+    }
+
+    private static long key(int latIndex, int lonIndex) {
+        return ((long) latIndex << 32) | lonIndex;
+    }
+
+    /**
+     * An indexed station and its slot in its cell's list.
+     */
+    private static class Point {
+        final String id;
+        double lat;
+        double lon;
+        int slot;
+
+        Point(String id, double lat, double lon) {
+            this.id = id;
+            this.lat = lat;
+            this.lon = lon;
+        }
+    }
+
+    private static class Candidate {
+        final String id;
+        final double distanceKm;
+
+        Candidate(String id, double distanceKm) {
+            this.id = id;
+            this.distanceKm = distanceKm;
+        }
+    }
+}
@@ -0,0 +1,98 @@
+package com.aggregationserver;
+
+import java.io.FileNotFoundException;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * A station data file together with its last parsed contents. The file is parsed again only
+ * when its modification time or size has changed, so that a heartbeat can re-send unchanged
+ * data for the cost of one file status check.
+ */
+public class StationFile {
+
+    private final String filePath;
+    private long lastModified = -1;  // Modification time of the parsed contents, in nanoseconds
+    private long size = -1;  // Size of the parsed contents, in bytes
+    private Map<String, Object> data;  // The parsed contents, without a Lamport time
+
+    /**
+     * Creates a station file; nothing is read until {@link #refresh(boolean)} is called.
+     *
+     * @param filePath The file path to the weather data
+     */
+    public StationFile(String filePath) {
+        this.filePath = filePath;
+    }
+
+    /**
+     * Returns the file path.
+     *
+     * @return The file path
+     */
+    public String getFilePath() {
+        return filePath;
+    }
+
+    /**
+     * Parses the file if it has changed since it was last parsed. If parsing fails, the
+     * previous contents are kept and the file is parsed again on the next call.
+     *
+     * @param force Parse even if the modification time and size are unchanged, e.g. after
+     *              a change was reported for a file rewritten within the time resolution
+     * @return True if the file was parsed
+     * @throws FileNotFoundException If the file cannot be found
+     */
+    public synchronized boolean refresh(boolean force) throws FileNotFoundException {
+        BasicFileAttributes attributes;
+        try {
+            attributes = Files.readAttributes(Paths.get(filePath), BasicFileAttributes.class);
+        } catch (NoSuchFileException e) {
+            throw new FileNotFoundException(filePath + " (No such file or directory)");
+        } catch (IOException e) {
+            throw new FileNotFoundException(filePath + " (" + e.getMessage() + ")");
+        }
+
+        // Read the status before parsing, so that a write during parsing is seen next time
+        long modified = attributes.lastModifiedTime().to(TimeUnit.NANOSECONDS);
+        if (!force && data != null && modified == lastModified && attributes.size() == size) {
+            return false;
+        }
+        data = ContentServer.parseWeatherFile(filePath);
+        lastModified = modified;
+        size = attributes.size();
+        return true;
+    }
+
+    /**
+     * Returns the last parsed contents, stamped with the current time of a Lamport clock.
+     *
+     * @param lamportClock The clock of the station
+     * @return A new Map containing the weather data
+     * @throws IllegalStateException If the file has not been parsed yet
+     */
+    public synchronized Map<String, Object> snapshot(LamportClock lamportClock) {
+        if (data == null) {
+            throw new IllegalStateException("Error: " + filePath + " has not been read.");
+        }
+        Map<String, Object> weatherData = new HashMap<>(data);
+        weatherData.put("lamportTime", lamportClock.getTime());
+        return weatherData;
+    }
+
+    /**
+     * Returns the absolute, normalized path of the file, as reported by {@link FileChangeWatcher}.
+     *
+     * @return The path
+     */
+    public Path getPath() {
+        return Paths.get(filePath).toAbsolutePath().normalize();
+    }
+}
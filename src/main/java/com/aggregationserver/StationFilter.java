@@ -0,0 +1,160 @@
+package com.aggregationserver;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Set;
+
+/**
+ * A filter on station fields, as given in "GET /weather?filter=...": comma-separated
+ * conditions that must all hold, each a schema field, an operator and a value, e.g.
+ * "state=SA,wind_spd_kmh>50". The operators are =, !=, &lt;, &lt;=, &gt; and &gt;=. A value that
+ * is a number is compared with the field as a number, so a station whose field is absent or
+ * not numeric never matches; any other value is compared with the field's text.
+ */
+public class StationFilter {
+
+    private static final Set<String> OPERATORS = Set.of("=", "!=", "<", "<=", ">", ">=");
+
+    /**
+     * One condition of a filter.
+     */
+    public static class Condition {
+        final WeatherObservation.Field field;
+        final String operator;
+        final String text;
+        final double number;  // The value as a number, or NaN if it is text
+
+        Condition(WeatherObservation.Field field, String operator, String text) {
+            this.field = field;
+            this.operator = operator;
+            this.text = text;
+            this.number = parseNumber(text);
+        }
+
+        /**
+         * Returns true if the value is a number, so that the field is compared numerically.
+         *
+         * @return true for numeric conditions
+         */
+        public boolean isNumeric() {
+            return !Double.isNaN(number);
+        }
+
+        /**
+         * Checks the condition against an observation.
+         *
+         * @param observation The observation
+         * @return true if the condition holds
+         */
+        public boolean matches(WeatherObservation observation) {
+            int comparison;
+            if (isNumeric()) {
+                double value = observation.getDouble(field);
+                if (Double.isNaN(value)) {
+                    return false;
+                }
+                comparison = Double.compare(value, number);
+            } else {
+                String value = observation.get(field);
+                if (value == null) {
+                    return false;
+                }
+                comparison = value.compareTo(text);
+            }
+            switch (operator) {
+                case "=":
+                    return comparison == 0;
+                case "!=":
+                    return comparison != 0;
+                case "<":
+                    return comparison < 0;
+                case "<=":
+                    return comparison <= 0;
+                case ">":
+                    return comparison > 0;
+                default:
+                    return comparison >= 0;
+            }
+        }
+    }
+
+    private final List<Condition> conditions;
+
+    private StationFilter(List<Condition> conditions) {
+        this.conditions = conditions;
+    }
+
+    /**
+     * Parses a filter.
+     *
+     * @param filter The filter text, e.g. "state=SA,wind_spd_kmh>50"
+     * @return The filter, or null if the text is null or has no conditions
+     * @throws IllegalArgumentException If a condition has no valid operator or names a field outside the schema
+     */
+    public static StationFilter parse(String filter) {
+        if (filter == null) {
+            return null;
+        }
+        List<Condition> conditions = new ArrayList<>();
+        for (String condition : filter.split(",")) {
+            if (condition.trim().isEmpty()) {
+                continue;
+            }
+            conditions.add(parseCondition(condition.trim()));
+        }
+        return conditions.isEmpty() ? null : new StationFilter(conditions);
+    }
+
+    private static Condition parseCondition(String condition) {
+        int position = 1;  // A field name comes first
+        while (position < condition.length() && "=!<>".indexOf(condition.charAt(position)) < 0) {
+            position++;
+        }
+        int end = position + 1 < condition.length() && condition.charAt(position + 1) == '=' ? position + 2 : position + 1;
+        String operator = condition.substring(Math.min(position, condition.length()), Math.min(end, condition.length()));
+        String value = condition.substring(Math.min(end, condition.length())).trim();
+        if (!OPERATORS.contains(operator) || (!value.isEmpty() && "=!<>".indexOf(value.charAt(0)) >= 0)) {
+            throw new IllegalArgumentException("Invalid operator in condition: " + condition);
+        }
+        String name = condition.substring(0, position).trim();
+        WeatherObservation.Field field = WeatherObservation.Field.forName(name);
+        if (field == null) {
+            throw new IllegalArgumentException("Unknown field in condition: " + name);
+        }
+        return new Condition(field, operator, value);
+    }
+
+    /**
+     * Returns the conditions of the filter.
+     *
+     * @return The conditions, in the order given
+     */
+    public List<Condition> getConditions() {
+        return Collections.unmodifiableList(conditions);
+    }
+
+    /**
+     * Checks every condition against an observation.
+     *
+     * @param observation The observation
+     * @return true if all conditions hold
+     */
+    public boolean matches(WeatherObservation observation) {
+        for (Condition condition : conditions) {
+            if (!condition.matches(observation)) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    private static double parseNumber(String text) {
+        try {
+            double number = Double.parseDouble(text);
+            return Double.isFinite(number) ? number : Double.NaN;
+        } catch (NumberFormatException e) {
+            return Double.NaN;
+        }
+    }
+}
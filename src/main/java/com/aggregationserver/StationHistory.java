@@ -0,0 +1,142 @@
+package com.aggregationserver;
+
+import java.io.IOException;
+
+/**
+ * The recent observations of one station, kept in a ring of fixed capacity so that its memory
+ * is allocated once and never grows. Each row holds the time the server stored the
+ * observation, its Lamport time and the numeric measurements of the weather schema; rows are
+ * stored column by column in primitive arrays, a float per measurement, NaN where absent.
+ * Text fields (name, cloud, wind direction, ...) are kept only with the latest observation.
+ * <p>
+ * Rows are kept in the order they were stored, so a time range is found by bisection and
+ * reading it costs in proportion to the rows returned. Rows older than the maximum age, if
+ * one is set, are dropped as new rows arrive and are never returned.
+ */
+public class StationHistory {
+
+    protected static final int DEFAULT_CAPACITY = 720;  // Observations kept per station; 6 hours at one per 30 seconds
+    private static final WeatherObservation.Field[] MEASUREMENTS = WeatherObservation.MEASUREMENTS;
+
+    private final long[] times;  // Milliseconds since the epoch when each row was stored, not decreasing
+    private final long[] lamportTimes;
+    private final float[][] measurements;  // [measurement][row]
+    private final long maxAgeMillis;  // Rows older than this are dropped, or 0 to keep rows until overwritten
+    private int first;  // Ring index of the oldest row
+    private int count;  // Rows in the ring
+
+    /**
+     * Creates an empty history.
+     *
+     * @param capacity     The number of rows kept
+     * @param maxAgeMillis The age after which rows are dropped, or 0 for no limit
+     */
+    public StationHistory(int capacity, long maxAgeMillis) {
+        this.times = new long[capacity];
+        this.lamportTimes = new long[capacity];
+        this.measurements = new float[MEASUREMENTS.length][capacity];
+        this.maxAgeMillis = maxAgeMillis;
+    }
+
+    /**
+     * Adds an observation as the newest row, overwriting the oldest if the ring is full.
+     *
+     * @param observation The observation, with the time it was stored as its last update time
+     * @param lamportTime The Lamport time it was stored at
+     */
+    public synchronized void add(WeatherObservation observation, long lamportTime) {
+        long time = observation.getLastUpdated();
+        if (count > 0) {
+            time = Math.max(time, times[index(count - 1)]);  // Keep the rows ordered if the clock steps back
+        }
+        if (count == times.length) {
+            first = (first + 1) % times.length;
+            count--;
+        }
+        int row = index(count);
+        times[row] = time;
+        lamportTimes[row] = lamportTime;
+        for (int m = 0; m < MEASUREMENTS.length; m++) {
+            measurements[m][row] = (float) observation.getDouble(MEASUREMENTS[m]);
+        }
+        count++;
+        dropOlderThan(time);
+    }
+
+    /**
+     * Returns the number of rows kept.
+     *
+     * @return The row count
+     */
+    public synchronized int size() {
+        return count;
+    }
+
+    /**
+     * Writes the rows stored within a time range as a JSON array, oldest first. Each row is an
+     * object with "lastUpdated", "lamportTime" and the measurements present as numbers.
+     *
+     * @param since  The earliest time to include, in milliseconds since the epoch
+     * @param until  The latest time to include, in milliseconds since the epoch
+     * @param writer The writer
+     * @throws IOException If the writer fails
+     */
+    public synchronized void writeRange(long since, long until, JSONWriter writer) throws IOException {
+        if (maxAgeMillis > 0) {
+            since = Math.max(since, System.currentTimeMillis() - maxAgeMillis);  // Rows past their age are not returned
+        }
+        writer.beginArray();
+        for (int i = firstAtOrAfter(since); i < count && times[index(i)] <= until; i++) {
+            int row = index(i);
+            writer.element();
+            writer.beginObject();
+            writer.name("lastUpdated");
+            writer.write(times[row]);
+            writer.name("lamportTime");
+            writer.write(lamportTimes[row]);
+            for (int m = 0; m < MEASUREMENTS.length; m++) {
+                float value = measurements[m][row];
+                if (!Float.isNaN(value)) {
+                    writer.name(MEASUREMENTS[m].jsonName());
+                    writer.writeNumber(Float.isInfinite(value) ? "null" : Float.toString(value));
+                }
+            }
+            writer.endObject();
+        }
+        writer.endArray();
+    }
+
+    /**
+     * Finds the first row stored at or after a time by bisection.
+     *
+     * @return The position of the row from the oldest, or count if there is none
+     */
+    private int firstAtOrAfter(long time) {
+        int low = 0;
+        int high = count;
+        while (low < high) {
+            int middle = (low + high) >>> 1;
+            if (times[index(middle)] < time) {
+                low = middle + 1;
+            } else {
+                high = middle;
+            }
+        }
+        return low;
+    }
+
+    private void dropOlderThan(long now) {
+        if (maxAgeMillis > 0) {
+            int expired = firstAtOrAfter(now - maxAgeMillis);
+            first = (first + expired) % times.length;
+            count -= expired;
+        }
+    }
+
+    /**
+     * Returns the ring index of the i-th oldest row.
+     */
+    private int index(int i) {
+        return (first + i) % times.length;
+    }
+}
@@ -0,0 +1,411 @@
+package com.aggregationserver;
+
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * A two-stage parser for large UTF-8 JSON documents held in a byte array.
+ * <p>
+ * Stage 1 finds the position of every structural character ({@code { } [ ] : ,} and the
+ * quotes around strings) 64 bytes at a time. A {@link StructuralScanner} turns each block into
+ * bit masks of backslashes, quotes and operators, and the masks are then combined with plain
+ * long arithmetic: backslash runs decide which quotes are escaped, a prefix XOR over the
+ * remaining quotes marks the bytes inside strings, and operators inside strings are dropped.
+ * When the JVM is started with {@code --add-modules jdk.incubator.vector} the blocks are
+ * classified with SIMD compares; otherwise a scalar scanner is used automatically.
+ * <p>
+ * Stage 2 walks the positions to build the same Map, List, String, Number, Boolean and null
+ * values as {@link JSONParser#parse(byte[])}, jumping straight from one structural character to
+ * the next instead of examining every byte in between.
+ */
+public class StructuralIndex {
+
+    protected static final int BLOCK_SIZE = 64;  // Bytes classified per scanner call, one bit each in a long
+
+    private static final long ODD_BITS = 0xAAAAAAAAAAAAAAAAL;
+    private static final StructuralScanner DEFAULT_SCANNER = loadScanner();
+
+    private final byte[] json;
+    private final int start;
+    private final int end;
+    private int[] positions;  // Indexes in json of the structural characters, in order
+    private int count;  // Number of entries used in positions
+    private long prevEscaped;  // 1 if the first byte of the next block to scan is escaped
+    private long prevInString;  // All ones if the next block to scan starts inside a string
+    private int cursor;  // Next entry of positions to be consumed by stage 2
+    private int valueEnd;  // Index just after the value last read by stage 2
+    private JSONParser escapeParser;  // Decodes strings containing escapes
+
+    private StructuralIndex(byte[] json, int start, int end) {
+        this.json = json;
+        this.start = start;
+        this.end = end;
+    }
+
+    /**
+     * Returns true if blocks are classified with the Vector API rather than the scalar fallback.
+     *
+     * @return true when SIMD classification is in use
+     */
+    public static boolean isVectorized() {
+        return !(DEFAULT_SCANNER instanceof ScalarStructuralScanner);
+    }
+
+    /**
+     * Indexes the structural characters of a UTF-8 JSON document held in a region of a byte array.
+     *
+     * @param json   The array holding the document; it must not be modified while the index is in use
+     * @param offset The index of the first byte of the document
+     * @param length The number of bytes in the document
+     * @return The index
+     * @throws Exception If a string is not terminated
+     */
+    public static StructuralIndex build(byte[] json, int offset, int length) throws Exception {
+        return build(json, offset, length, DEFAULT_SCANNER);
+    }
+
+    /**
+     * Indexes a document using the given scanner, e.g. to compare scanners.
+     */
+    static StructuralIndex build(byte[] json, int offset, int length, StructuralScanner scanner) throws Exception {
+        StructuralIndex index = new StructuralIndex(json, offset, offset + length);
+        index.scan(scanner);
+        return index;
+    }
+
+    /**
+     * Loads the SIMD scanner if the Vector API module is present at runtime, else the scalar one.
+     */
+    private static StructuralScanner loadScanner() {
+        try {
+            StructuralScanner scanner = (StructuralScanner) Class.forName("com.aggregationserver.VectorStructuralScanner")
+                    .getDeclaredConstructor().newInstance();
+            scanner.classify(new byte[BLOCK_SIZE], 0, new long[3]);  // Fails here if the module cannot be linked
+            return scanner;
+        } catch (Throwable e) {
+            return new ScalarStructuralScanner();
+        }
+    }
+
+    /**
+     * Stage 1: records the position of every structural character.
+     */
+    private void scan(StructuralScanner scanner) throws Exception {
+        positions = new int[Math.max(BLOCK_SIZE, (end - start) / 4)];  // About one structural character per 4-5 bytes in weather JSON
+        long[] masks = new long[3];
+        int base = start;
+        for (; end - base >= BLOCK_SIZE; base += BLOCK_SIZE) {
+            scanBlock(scanner, json, base, base, masks);
+        }
+        if (base < end) {
+            byte[] tail = new byte[BLOCK_SIZE];  // The last partial block, padded with spaces
+            Arrays.fill(tail, (byte) ' ');
+            System.arraycopy(json, base, tail, 0, end - base);
+            scanBlock(scanner, tail, 0, base, masks);
+        }
+        if (prevInString != 0) {
+            throw new Exception("Unterminated string in JSON input");
+        }
+    }
+
+    /**
+     * Classifies one block and records its structural characters. Kept out of the loop in
+     * scan() so that the JIT compiles it as a method of its own: a document is scanned by a
+     * single call, and a loop compiled on-stack optimizes the vector operations poorly.
+     */
+    private void scanBlock(StructuralScanner scanner, byte[] block, int blockOffset, int base, long[] masks) {
+        scanner.classify(block, blockOffset, masks);
+
+        // Bytes preceded by an odd number of backslashes are escaped
+        long backslash = masks[StructuralScanner.BACKSLASH];
+        long escaped = prevEscaped;
+        if (backslash != 0) {
+            long potential = backslash & ~prevEscaped;
+            long escapeAndTerminal = (((potential << 1) | ODD_BITS) - potential) ^ ODD_BITS;
+            escaped = escapeAndTerminal ^ (backslash | prevEscaped);
+            prevEscaped = (escapeAndTerminal & backslash) >>> 63;
+        } else {
+            prevEscaped = 0;
+        }
+
+        // Bytes from an opening quote up to (not including) its closing quote are inside a string
+        long quotes = masks[StructuralScanner.QUOTE] & ~escaped;
+        long inString = prefixXor(quotes) ^ prevInString;
+        prevInString = inString >> 63;
+
+        long structural = (masks[StructuralScanner.OPERATOR] & ~inString) | quotes;
+        if (count + BLOCK_SIZE > positions.length) {
+            positions = Arrays.copyOf(positions, positions.length * 2);
+        }
+        int[] out = positions;
+        int n = count;
+        while (structural != 0) {
+            out[n++] = base + Long.numberOfTrailingZeros(structural);
+            structural &= structural - 1;
+        }
+        count = n;
+    }
+
+    /**
+     * Returns a mask with bit i set if an odd number of bits at or below i are set in bits.
+     */
+    private static long prefixXor(long bits) {
+        bits ^= bits << 1;
+        bits ^= bits << 2;
+        bits ^= bits << 4;
+        bits ^= bits << 8;
+        bits ^= bits << 16;
+        bits ^= bits << 32;
+        return bits;
+    }
+
+    /**
+     * Returns the number of structural characters found.
+     *
+     * @return The count
+     */
+    public int size() {
+        return count;
+    }
+
+    /**
+     * Returns the position of a structural character in the array the document was given in.
+     *
+     * @param i The character's number, from 0 to size() - 1
+     * @return Its index in the array
+     */
+    public int position(int i) {
+        return positions[i];
+    }
+
+    /**
+     * Stage 2: builds the document's value from the index.
+     *
+     * @return The parsed Java object representation of the JSON
+     * @throws Exception If the document is not valid JSON
+     */
+    public Object parse() throws Exception {
+        cursor = 0;
+        if (skipWhitespace(start) == end) {
+            throw new Exception("Empty JSON input");
+        }
+        Object value = readValue(start);
+        if (cursor != count || skipWhitespace(valueEnd) != end) {
+            throw new Exception("Unexpected content after JSON value");
+        }
+        return value;
+    }
+
+    /**
+     * Reads the value starting at or after index from, leaving valueEnd just after it.
+     */
+    private Object readValue(int from) throws Exception {
+        int at = skipWhitespace(from);
+        if (cursor < count && positions[cursor] == at) {
+            switch (json[at]) {
+                case '{':
+                    cursor++;
+                    return readObject(at + 1);
+                case '[':
+                    cursor++;
+                    return readArray(at + 1);
+                case '"':
+                    return readString(false);
+                default:
+                    throw new Exception("Unexpected character in JSON input: " + (char) json[at]);
+            }
+        }
+        int limit = cursor < count ? positions[cursor] : end;
+        int last = limit;
+        while (last > at && isWhitespace(json[last - 1])) {
+            last--;
+        }
+        valueEnd = last;
+        return readScalar(at, last);
+    }
+
+    private Map<String, Object> readObject(int from) throws Exception {
+        Map<String, Object> obj = new HashMap<>();
+        if (peekStructural(from) == '}') {
+            cursor++;
+            valueEnd = positions[cursor - 1] + 1;
+            return obj;
+        }
+        while (true) {
+            if (peekStructural(from) != '"') {
+                throw new Exception("Expected a field name in JSON object");
+            }
+            String key = readString(true);
+            expect(valueEnd, ':');
+            obj.put(key, readValue(positions[cursor - 1] + 1));
+            int next = peekStructural(valueEnd);
+            cursor++;
+            if (next == '}') {
+                valueEnd = positions[cursor - 1] + 1;
+                return obj;
+            }
+            if (next != ',') {
+                throw new Exception("Expected ',' or '}' in JSON object");
+            }
+            from = positions[cursor - 1] + 1;
+        }
+    }
+
+    private List<Object> readArray(int from) throws Exception {
+        List<Object> array = new ArrayList<>();
+        if (cursor < count && positions[cursor] == skipWhitespace(from) && json[positions[cursor]] == ']') {
+            cursor++;
+            valueEnd = positions[cursor - 1] + 1;
+            return array;
+        }
+        while (true) {
+            array.add(readValue(from));
+            int next = peekStructural(valueEnd);
+            cursor++;
+            if (next == ']') {
+                valueEnd = positions[cursor - 1] + 1;
+                return array;
+            }
+            if (next != ',') {
+                throw new Exception("Expected ',' or ']' in JSON array");
+            }
+            from = positions[cursor - 1] + 1;
+        }
+    }
+
+    /**
+     * Returns the next structural character without consuming it, checking that only
+     * whitespace lies between index from and it.
+     */
+    private int peekStructural(int from) throws Exception {
+        if (cursor >= count) {
+            throw new Exception("Unexpected end of JSON input");
+        }
+        int at = positions[cursor];
+        if (skipWhitespace(from) != at) {
+            throw new Exception("Unexpected character in JSON input: " + (char) json[skipWhitespace(from)]);
+        }
+        return json[at];
+    }
+
+    private void expect(int from, char c) throws Exception {
+        if (peekStructural(from) != c) {
+            throw new Exception("Expected '" + c + "' in JSON input");
+        }
+        cursor++;
+    }
+
+    /**
+     * Reads the string whose opening quote is the next structural character.
+     * Short ASCII field names are served from the parser's name cache.
+     */
+    private String readString(boolean name) throws Exception {
+        int open = positions[cursor];
+        int close = positions[cursor + 1];  // Always present: unterminated strings fail in stage 1
+        cursor += 2;
+        valueEnd = close + 1;
+        int length = close - open - 1;
+
+        boolean ascii = true;
+        boolean escapes = false;
+        for (int i = open + 1; i < close; i++) {
+            byte b = json[i];
+            if (b < 0) {
+                ascii = false;
+            } else if (b == '\\') {
+                escapes = true;
+                break;
+            } else if (b < 0x20) {
+                throw new Exception("Unescaped control character in JSON string");
+            }
+        }
+        if (escapes) {
+            if (escapeParser == null) {
+                escapeParser = new JSONParser();
+            }
+            escapeParser.reset(json, open, length + 2);
+            escapeParser.nextToken();
+            return escapeParser.currentString();
+        }
+        if (name && ascii && length <= JSONParser.MAX_CACHED_NAME_LENGTH) {
+            return JSONParser.cachedName(json, open + 1, length);
+        }
+        return new String(json, open + 1, length, ascii ? StandardCharsets.ISO_8859_1 : StandardCharsets.UTF_8);
+    }
+
+    /**
+     * Reads a number, true, false or null from the bytes between from and to.
+     */
+    private Object readScalar(int from, int to) throws Exception {
+        int length = to - from;
+        if (length == 0) {
+            throw new Exception("Expected a value in JSON input");
+        }
+        byte first = json[from];
+        if (first == 't' && matches(from, length, "true")) {
+            return true;
+        }
+        if (first == 'f' && matches(from, length, "false")) {
+            return false;
+        }
+        if (first == 'n' && matches(from, length, "null")) {
+            return null;
+        }
+        if (first != '-' && (first < '0' || first > '9')) {
+            throw new Exception("Unexpected character in JSON input: " + (char) first);
+        }
+
+        // Fast path for integers that fit in a long
+        boolean negative = first == '-';
+        int i = negative ? from + 1 : from;
+        if (to - i > 0 && to - i <= 18) {
+            long value = 0;
+            while (i < to && json[i] >= '0' && json[i] <= '9') {
+                value = value * 10 + (json[i] - '0');
+                i++;
+            }
+            if (i == to) {
+                value = negative ? -value : value;
+                if (value <= Integer.MAX_VALUE && value >= Integer.MIN_VALUE) {
+                    return (int) value;
+                }
+                return value;
+            }
+        }
+
+        for (i = from; i < to; i++) {
+            byte b = json[i];
+            if ((b < '0' || b > '9') && b != '.' && b != '-' && b != '+' && b != 'e' && b != 'E') {
+                throw new Exception("Invalid number format: " + new String(json, from, length, StandardCharsets.UTF_8));
+            }
+        }
+        return JSONParser.toNumber(new String(json, from, length, StandardCharsets.ISO_8859_1));
+    }
+
+    private boolean matches(int from, int length, String literal) throws Exception {
+        if (length != literal.length()) {
+            throw new Exception("Invalid JSON literal");
+        }
+        for (int i = 0; i < length; i++) {
+            if (json[from + i] != literal.charAt(i)) {
+                throw new Exception("Invalid JSON literal");
+            }
+        }
+        return true;
+    }
+
+    private int skipWhitespace(int from) {
+        while (from < end && isWhitespace(json[from])) {
+            from++;
+        }
+        return from;
+    }
+
+    private static boolean isWhitespace(byte b) {
+        return b == ' ' || b == '\n' || b == '\r' || b == '\t';
+    }
+}
@@ -0,0 +1,22 @@
+package com.aggregationserver;
+
+/**
+ * Classifies a 64-byte block of JSON for {@link StructuralIndex}: which bytes are
+ * backslashes, which are double quotes, and which are the operators {}[]:, (whether or
+ * not they are inside strings). Implementations differ only in how fast they do it.
+ */
+public interface StructuralScanner {
+
+    int BACKSLASH = 0;  // Index in masks of the backslash bits
+    int QUOTE = 1;  // Index in masks of the double-quote bits
+    int OPERATOR = 2;  // Index in masks of the {}[]:, bits
+
+    /**
+     * Classifies the 64 bytes starting at offset, setting bit i of each mask for byte offset + i.
+     *
+     * @param json   The array holding the block; at least 64 bytes must follow offset
+     * @param offset The index of the block's first byte
+     * @param masks  Receives the BACKSLASH, QUOTE and OPERATOR bit masks
+     */
+    void classify(byte[] json, int offset, long[] masks);
+}
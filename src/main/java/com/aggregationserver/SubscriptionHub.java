@@ -0,0 +1,401 @@
+package com.aggregationserver;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.net.Socket;
+import java.nio.charset.StandardCharsets;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+/**
+ * Pushes changes to the weather store to subscribed clients as Server-Sent Events, so that
+ * dashboards see each update and expiry as it happens instead of polling.
+ * <p>
+ * A client subscribes with "GET /weather/subscribe", optionally with "?ids=a,b,c" to follow
+ * only those stations and "?fields=" to receive only those fields. The connection is taken
+ * over by the hub and answered with a "text/event-stream": first a full snapshot of the
+ * followed stations, then an event for each batch of changes. Each event carries the same
+ * JSON as "/weather/changes", and its id is the version of the store, so that a client that
+ * reconnects with "Last-Event-ID" (or "?since=") receives only what it missed.
+ * <p>
+ * Subscribers do not hold a worker thread. A single dispatcher thread waits on the
+ * {@link ChangeFeed}, reads each batch of changes once and marks them pending on every
+ * interested subscriber; a small pool of sender threads then writes each subscriber's pending
+ * changes. A subscriber that is still receiving an earlier event does not queue further
+ * events: its pending changes are merged, keeping one entry per station, so a slow subscriber
+ * costs at most one entry per station and gets the latest data when it catches up.
+ * Subscribers that follow every station with all fields and keep up share one encoding of
+ * each event. A subscriber that does not accept an event within SEND_TIMEOUT is disconnected.
+ */
+public class SubscriptionHub {
+
+    protected static final String PATH = "/weather/subscribe";
+    protected static final int SENDER_THREADS = 8;  // Threads writing events to subscribers
+    protected static final long HEARTBEAT_MILLIS = 15000;  // Idle time after which a comment is sent, to detect closed subscribers
+    protected static final long SEND_TIMEOUT = 10000;  // Milliseconds a subscriber may take to accept an event
+    protected static final long CHECK_MILLIS = 1000;  // Milliseconds between checks for stuck or idle subscribers
+    private static final byte[] HEARTBEAT = ": keep-alive\n\n".getBytes(StandardCharsets.UTF_8);
+
+    private final ChangeFeed feed;
+    private final Set<Subscriber> allStations = ConcurrentHashMap.newKeySet();  // Subscribers following every station
+    private final Map<String, Set<Subscriber>> byStation = new ConcurrentHashMap<>();  // Station ID -> subscribers following it
+    private ExecutorService senders;  // Started with the first subscriber
+    private long dispatched;  // Version up to which changes have been marked pending; guarded by this
+
+    /**
+     * Creates a hub for the changes recorded in a feed. Its threads start with the first subscriber.
+     *
+     * @param feed The change feed of the store
+     */
+    public SubscriptionHub(ChangeFeed feed) {
+        this.feed = feed;
+    }
+
+    /**
+     * Returns whether a request is a subscription.
+     *
+     * @param request The client request
+     * @return True for "GET /weather/subscribe"
+     */
+    public static boolean isSubscription(HttpRequest request) {
+        return request.getMethod().equals("GET") && request.getPath().equals(PATH);
+    }
+
+    /**
+     * Takes over a connection that requested a subscription: sends the event stream headers
+     * and schedules the first event. The hub closes the connection when the subscriber goes away.
+     *
+     * @param socket  The client connection
+     * @param out     The connection's output stream
+     * @param request The subscription request
+     * @throws IOException If the headers cannot be sent; the connection is not taken over
+     */
+    public void subscribe(Socket socket, OutputStream out, HttpRequest request) throws IOException {
+        List<String> ids = AggregationServer.parseIDs(request.getQueryParameter("ids"));
+        WeatherCodec.Projection projection = WeatherCodec.Projection.parse(request.getQueryParameter("fields"));
+        long since = -1;
+        String lastEventID = request.getHeader("Last-Event-ID") != null
+                ? request.getHeader("Last-Event-ID") : request.getQueryParameter("since");
+        if (lastEventID != null) {
+            try {
+                since = Long.parseLong(lastEventID.trim());
+            } catch (NumberFormatException e) {
+                // Not an id this server sent; start with a snapshot
+            }
+        }
+
+        out.write(("HTTP/1.1 200 OK\r\nContent-Type: text/event-stream\r\nCache-Control: no-cache\r\n"
+                + "Connection: keep-alive\r\n\r\n").getBytes(StandardCharsets.UTF_8));
+        out.flush();
+
+        Subscriber subscriber = new Subscriber(socket, out, ids, projection);
+        synchronized (this) {
+            start();
+            // Changes up to the dispatched version are caught up here; later ones arrive by dispatch
+            Map<String, Boolean> missed = since >= 0 ? feed.since(since) : null;
+            synchronized (subscriber) {
+                if (missed == null) {
+                    subscriber.full = true;
+                } else {
+                    for (Map.Entry<String, Boolean> change : missed.entrySet()) {
+                        if (ids == null || ids.contains(change.getKey())) {
+                            subscriber.pending.put(change.getKey(), change.getValue());
+                        }
+                    }
+                    subscriber.heartbeat = subscriber.pending.isEmpty();  // Confirm the subscription at once
+                }
+                subscriber.version = Math.max(dispatched, feed.getVersion());
+            }
+            if (ids == null) {
+                allStations.add(subscriber);
+            } else {
+                for (String id : ids) {
+                    byStation.computeIfAbsent(id, key -> ConcurrentHashMap.newKeySet()).add(subscriber);
+                }
+            }
+        }
+        schedule(subscriber);
+        System.out.println("Subscribed " + socket.getRemoteSocketAddress() + " to "
+                + (ids == null ? "all stations" : ids.size() + " stations") + " (" + size() + " subscribers)");
+    }
+
+    /**
+     * Returns the number of subscribers.
+     *
+     * @return The subscriber count
+     */
+    public int size() {
+        return subscribers().size();
+    }
+
+    private synchronized void start() {
+        if (senders != null) {
+            return;
+        }
+        dispatched = feed.getVersion();
+        senders = Executors.newFixedThreadPool(SENDER_THREADS, runnable -> {
+            Thread thread = new Thread(runnable, "SubscriptionSender");
+            thread.setDaemon(true);
+            return thread;
+        });
+        Thread dispatcher = new Thread(this::run, "SubscriptionDispatcher");
+        dispatcher.setDaemon(true);
+        dispatcher.start();
+    }
+
+    /**
+     * Waits for changes and marks them pending on the interested subscribers, checking the
+     * subscribers for stuck sends and idle connections in between.
+     */
+    private void run() {
+        long lastCheck = System.currentTimeMillis();
+        try {
+            while (true) {
+                long since;
+                synchronized (this) {
+                    since = dispatched;
+                }
+                if (feed.awaitChange(since, CHECK_MILLIS)) {
+                    dispatch();
+                }
+                long now = System.currentTimeMillis();
+                if (now - lastCheck >= CHECK_MILLIS) {
+                    check(now);
+                    lastCheck = now;
+                }
+            }
+        } catch (InterruptedException e) {
+            // Stopped
+        }
+    }
+
+    private synchronized void dispatch() {
+        Map<String, Boolean> changes;
+        long version;
+        synchronized (feed) {
+            version = feed.getVersion();
+            changes = feed.since(dispatched);
+        }
+        dispatched = version;
+
+        if (changes == null) {
+            // Changes were lost (the store was reloaded, or the feed overran): send everyone a snapshot
+            for (Subscriber subscriber : subscribers()) {
+                synchronized (subscriber) {
+                    subscriber.full = true;
+                    subscriber.pending.clear();
+                    subscriber.version = version;
+                    subscriber.batch = null;
+                }
+                schedule(subscriber);
+            }
+            return;
+        }
+
+        Batch batch = new Batch(changes, version);
+        for (Subscriber subscriber : allStations) {
+            synchronized (subscriber) {
+                // The shared encoding fits only a subscriber with nothing else pending
+                subscriber.batch = subscriber.pending.isEmpty() && !subscriber.full ? batch : null;
+                subscriber.pending.putAll(changes);
+                subscriber.version = version;
+            }
+            schedule(subscriber);
+        }
+        Set<Subscriber> notified = new HashSet<>();
+        for (String stationID : changes.keySet()) {
+            Set<Subscriber> followers = byStation.get(stationID);
+            if (followers == null) {
+                continue;
+            }
+            for (Subscriber subscriber : followers) {
+                synchronized (subscriber) {
+                    subscriber.pending.put(stationID, changes.get(stationID));
+                    subscriber.version = version;
+                }
+                notified.add(subscriber);
+            }
+        }
+        for (Subscriber subscriber : notified) {
+            schedule(subscriber);
+        }
+    }
+
+    /**
+     * Disconnects subscribers stuck in a send, and sends a heartbeat to idle ones so that
+     * closed connections are noticed.
+     */
+    private void check(long now) {
+        for (Subscriber subscriber : subscribers()) {
+            long started = subscriber.sendStarted;
+            if (started != 0 && now - started > SEND_TIMEOUT) {
+                System.out.println("Dropping subscriber " + subscriber.socket.getRemoteSocketAddress()
+                        + ": no event accepted for " + (now - started) + " ms");
+                unsubscribe(subscriber);  // Closing the socket fails the blocked send
+            } else if (now - subscriber.lastSent >= HEARTBEAT_MILLIS) {
+                synchronized (subscriber) {
+                    subscriber.heartbeat = true;
+                }
+                schedule(subscriber);
+            }
+        }
+    }
+
+    private Set<Subscriber> subscribers() {
+        Set<Subscriber> subscribers = new HashSet<>(allStations);
+        for (Set<Subscriber> followers : byStation.values()) {
+            subscribers.addAll(followers);
+        }
+        return subscribers;
+    }
+
+    private void schedule(Subscriber subscriber) {
+        synchronized (subscriber) {
+            if (subscriber.scheduled || subscriber.closed) {
+                return;  // The pending changes go out with the send already scheduled
+            }
+            subscriber.scheduled = true;
+        }
+        senders.execute(() -> send(subscriber));
+    }
+
+    /**
+     * Writes a subscriber's pending changes as one event, or a heartbeat if none are pending.
+     */
+    private void send(Subscriber subscriber) {
+        Map<String, Boolean> changes;
+        boolean full;
+        boolean heartbeat;
+        long version;
+        Batch batch;
+        synchronized (subscriber) {
+            changes = subscriber.pending;
+            subscriber.pending = new LinkedHashMap<>();
+            full = subscriber.full;
+            subscriber.full = false;
+            heartbeat = subscriber.heartbeat;
+            subscriber.heartbeat = false;
+            version = subscriber.version;
+            batch = subscriber.batch;
+            subscriber.batch = null;
+        }
+
+        try {
+            byte[] event;
+            if (full) {
+                event = encode(AggregationServer.getSnapshot(subscriber.ids), subscriber.projection);
+            } else if (!changes.isEmpty()) {
+                event = batch != null && subscriber.projection == null
+                        ? batch.encode() : encode(AggregationServer.getChanges(changes, version), subscriber.projection);
+            } else {
+                event = heartbeat ? HEARTBEAT : null;
+            }
+            if (event != null) {
+                subscriber.sendStarted = System.currentTimeMillis();
+                subscriber.out.write(event);
+                subscriber.out.flush();
+                subscriber.lastSent = System.currentTimeMillis();
+                subscriber.sendStarted = 0;
+            }
+        } catch (IOException | RuntimeException e) {
+            unsubscribe(subscriber);
+            return;
+        }
+
+        synchronized (subscriber) {
+            subscriber.scheduled = false;
+            if (subscriber.full || !subscriber.pending.isEmpty()) {
+                schedule(subscriber);  // Changes arrived during the send
+            }
+        }
+    }
+
+    private void unsubscribe(Subscriber subscriber) {
+        synchronized (subscriber) {
+            if (subscriber.closed) {
+                return;
+            }
+            subscriber.closed = true;
+        }
+        if (subscriber.ids == null) {
+            allStations.remove(subscriber);
+        } else {
+            for (String id : subscriber.ids) {
+                Set<Subscriber> followers = byStation.get(id);
+                if (followers != null) {
+                    followers.remove(subscriber);
+                    if (followers.isEmpty()) {
+                        byStation.remove(id, followers);
+                    }
+                }
+            }
+        }
+        try {
+            subscriber.socket.close();
+        } catch (IOException e) {
+            // Already closed
+        }
+        System.out.println("Unsubscribed " + subscriber.socket.getRemoteSocketAddress());
+    }
+
+    /**
+     * Formats changes as a Server-Sent Event whose id is their version.
+     */
+    private static byte[] encode(AggregationServer.ChangeSet changes, WeatherCodec.Projection projection) {
+        return ("id: " + changes.version + "\nevent: changes\ndata: " + changes.toJson(projection) + "\n\n")
+                .getBytes(StandardCharsets.UTF_8);
+    }
+
+    /**
+     * A batch of changes read from the feed, encoded once for the subscribers it suits.
+     */
+    private static class Batch {
+        final Map<String, Boolean> changes;
+        final long version;
+        private byte[] encoded;
+
+        Batch(Map<String, Boolean> changes, long version) {
+            this.changes = changes;
+            this.version = version;
+        }
+
+        synchronized byte[] encode() {
+            if (encoded == null) {
+                encoded = SubscriptionHub.encode(AggregationServer.getChanges(changes, version), null);
+            }
+            return encoded;
+        }
+    }
+
+    /**
+     * A subscribed connection and the changes it has yet to receive.
+     */
+    private static class Subscriber {
+        final Socket socket;
+        final OutputStream out;
+        final List<String> ids;  // Followed stations, or null for all
+        final WeatherCodec.Projection projection;  // Fields sent, or null for all
+        Map<String, Boolean> pending = new LinkedHashMap<>();  // Station ID -> removed, latest change only
+        boolean full;  // True if a full snapshot is due
+        boolean heartbeat;  // True if a heartbeat is due
+        long version;  // Version the pending changes bring the subscriber up to
+        Batch batch;  // The batch that is the whole of the pending changes, or null
+        boolean scheduled;  // True while a send is scheduled or running
+        boolean closed;
+        volatile long sendStarted;  // Start of the send in progress, or 0
+        volatile long lastSent = System.currentTimeMillis();
+
+        Subscriber(Socket socket, OutputStream out, List<String> ids, WeatherCodec.Projection projection) {
+            this.socket = socket;
+            this.out = out;
+            this.ids = ids;
+            this.projection = projection;
+        }
+    }
+}
@@ -0,0 +1,78 @@
+package com.aggregationserver;
+
+import jdk.incubator.vector.ByteVector;
+import jdk.incubator.vector.LongVector;
+import jdk.incubator.vector.VectorMask;
+import jdk.incubator.vector.VectorOperators;
+import jdk.incubator.vector.VectorSpecies;
+
+/**
+ * Classifies JSON blocks with SIMD compares from the incubating Vector API, comparing as many
+ * bytes at once as the CPU's preferred vector width allows (e.g. 32 with AVX2, 64 with AVX-512).
+ * This class is only loaded when the JVM is started with {@code --add-modules jdk.incubator.vector}.
+ * <p>
+ * {@code VectorMask.toLong()} is not compiled to a single instruction on JDK 17, so compare
+ * results are turned into bits with vector operations that are: each matching byte is replaced
+ * by its bit within its group of eight, each long lane's eight bytes are summed into its top byte
+ * by a multiplication, and the lanes are shifted into place and ORed together.
+ */
+public class VectorStructuralScanner implements StructuralScanner {
+
+    private static final VectorSpecies<Byte> SPECIES = ByteVector.SPECIES_PREFERRED;
+    private static final VectorSpecies<Long> LONG_SPECIES = SPECIES.withLanes(long.class);
+    private static final int LANES = Math.min(SPECIES.length(), 64);
+
+    // Operands are kept in constant vectors rather than broadcast from scalars: each extra level
+    // of calls inside the Vector API can push an operation past C2's inlining depth limit, and
+    // an operation that is not inlined boxes its vectors on the heap.
+    private static final ByteVector ZERO = ByteVector.zero(SPECIES);
+    private static final ByteVector BIT_WEIGHTS;  // 1, 2, 4, ..., 128, repeated
+    private static final LongVector BYTE_SUM = LongVector.broadcast(LONG_SPECIES, 0x0101010101010101L);  // Sums a long's bytes into its top byte
+    private static final LongVector TOP_BYTE_SHIFT = LongVector.broadcast(LONG_SPECIES, 56);
+    private static final LongVector GROUP_SHIFTS;  // 0, 8, 16, ... : where each lane's byte of bits goes
+
+    static {
+        byte[] weights = new byte[SPECIES.length()];
+        for (int i = 0; i < weights.length; i++) {
+            weights[i] = (byte) (1 << (i % 8));
+        }
+        BIT_WEIGHTS = ByteVector.fromArray(SPECIES, weights, 0);
+        long[] shifts = new long[LONG_SPECIES.length()];
+        for (int i = 0; i < shifts.length; i++) {
+            shifts[i] = 8L * i;
+        }
+        GROUP_SHIFTS = LongVector.fromArray(LONG_SPECIES, shifts, 0);
+    }
+
+    @Override
+    public void classify(byte[] json, int offset, long[] masks) {
+        long backslash = 0;
+        long quote = 0;
+        long operator = 0;
+        for (int i = 0; i < 64; i += LANES) {
+            ByteVector bytes = ByteVector.fromArray(SPECIES, json, offset + i);
+            ByteVector folded = bytes.or((byte) 0x20);  // Folds '[' onto '{' and ']' onto '}'
+            VectorMask<Byte> operators = folded.eq((byte) '{')
+                    .or(folded.eq((byte) '}'))
+                    .or(bytes.eq((byte) ':'))
+                    .or(bytes.eq((byte) ','));
+            backslash |= toBits(bytes.eq((byte) '\\')) << i;
+            quote |= toBits(bytes.eq((byte) '"')) << i;
+            operator |= toBits(operators) << i;
+        }
+        masks[BACKSLASH] = backslash;
+        masks[QUOTE] = quote;
+        masks[OPERATOR] = operator;
+    }
+
+    /**
+     * Returns a long with bit i set if lane i of the mask is set.
+     */
+    private static long toBits(VectorMask<Byte> mask) {
+        LongVector groups = (LongVector) ZERO.blend(BIT_WEIGHTS, mask).reinterpretAsLongs();
+        return groups.mul(BYTE_SUM)
+                .lanewise(VectorOperators.LSHR, TOP_BYTE_SHIFT)
+                .lanewise(VectorOperators.LSHL, GROUP_SHIFTS)
+                .reduceLanes(VectorOperators.OR);
+    }
+}
@@ -0,0 +1,248 @@
+package com.aggregationserver;
+
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.TreeMap;
+
+/**
+ * Summaries (count, min, max, sum and mean) of each numeric measurement over the stored
+ * observations, for all stations and grouped by state and by time zone. They are kept up to
+ * date as observations are added and removed, so that serving them never scans the store.
+ * <p>
+ * Count and sum are updated in constant time. Min and max must survive the removal of the
+ * current extreme, so each summary also counts its distinct values in a sorted map, which
+ * costs a logarithmic update in the number of distinct values (at most the number of stations).
+ * Observations must not change while they are counted; a replaced observation is removed
+ * before its successor is added.
+ */
+public class WeatherAggregates {
+
+    protected static final WeatherObservation.Field[] GROUP_BY = {
+            WeatherObservation.Field.STATE, WeatherObservation.Field.TIME_ZONE};
+    protected static final String ALL = "all";  // The only group when not grouping
+    private static final WeatherObservation.Field[] MEASUREMENTS = WeatherObservation.MEASUREMENTS;
+
+    @SuppressWarnings("unchecked")
+    private final Map<String, Group>[] groupings = new Map[GROUP_BY.length + 1];  // Per GROUP_BY field, then all stations
+
+    /**
+     * Creates empty aggregates.
+     */
+    public WeatherAggregates() {
+        for (int g = 0; g < groupings.length; g++) {
+            groupings[g] = new HashMap<>();
+        }
+    }
+
+    /**
+     * Returns whether a field can be aggregated.
+     *
+     * @param field The field
+     * @return True for the numeric measurements
+     */
+    public static boolean isMeasurement(WeatherObservation.Field field) {
+        return measurementIndex(field) >= 0;
+    }
+
+    /**
+     * Returns whether aggregates can be grouped by a field.
+     *
+     * @param field The field
+     * @return True for the fields in GROUP_BY
+     */
+    public static boolean isGroupBy(WeatherObservation.Field field) {
+        return groupingIndex(field) < GROUP_BY.length;
+    }
+
+    /**
+     * Counts a stored observation.
+     *
+     * @param observation The observation
+     */
+    public synchronized void add(WeatherObservation observation) {
+        update(observation, true);
+    }
+
+    /**
+     * Stops counting an observation that has been replaced or removed.
+     *
+     * @param observation The observation, as it was added
+     */
+    public synchronized void remove(WeatherObservation observation) {
+        update(observation, false);
+    }
+
+    /**
+     * Forgets every observation.
+     */
+    public synchronized void clear() {
+        for (Map<String, Group> groups : groupings) {
+            groups.clear();
+        }
+    }
+
+    /**
+     * Returns the summaries of a measurement, for all stations or per group.
+     *
+     * @param measurement The measurement
+     * @param groupBy     The field to group by, or null for one group, ALL, of every station
+     * @return Group value to summary, sorted by group value; groups without the measurement
+     *         are left out, as are stations without the group field
+     */
+    public synchronized Map<String, Summary> summarize(WeatherObservation.Field measurement, WeatherObservation.Field groupBy) {
+        int m = measurementIndex(measurement);
+        Map<String, Summary> summaries = new LinkedHashMap<>();
+        for (Map.Entry<String, Group> group : new TreeMap<>(groupings[groupingIndex(groupBy)]).entrySet()) {
+            Accumulator accumulator = group.getValue().measurements[m];
+            if (accumulator.count > 0) {
+                summaries.put(group.getKey(), new Summary(accumulator.count, accumulator.sum,
+                        accumulator.values.firstKey(), accumulator.values.lastKey()));
+            }
+        }
+        return summaries;
+    }
+
+    private void update(WeatherObservation observation, boolean add) {
+        for (int g = 0; g < groupings.length; g++) {
+            String key = g < GROUP_BY.length ? observation.get(GROUP_BY[g]) : ALL;
+            if (key == null) {
+                continue;
+            }
+            Group group = groupings[g].computeIfAbsent(key, k -> new Group());
+            group.stations += add ? 1 : -1;
+            for (int m = 0; m < MEASUREMENTS.length; m++) {
+                double value = observation.getDouble(MEASUREMENTS[m]);
+                if (Double.isFinite(value)) {  // An infinite value would leave the sum NaN once removed
+                    if (add) {
+                        group.measurements[m].add(value);
+                    } else {
+                        group.measurements[m].remove(value);
+                    }
+                }
+            }
+            if (group.stations <= 0) {
+                groupings[g].remove(key);
+            }
+        }
+    }
+
+    private static int measurementIndex(WeatherObservation.Field field) {
+        for (int m = 0; m < MEASUREMENTS.length; m++) {
+            if (MEASUREMENTS[m] == field) {
+                return m;
+            }
+        }
+        return -1;
+    }
+
+    /**
+     * Returns the index in groupings of a GROUP_BY field, GROUP_BY.length for null (all
+     * stations), or GROUP_BY.length + 1 for any other field.
+     */
+    private static int groupingIndex(WeatherObservation.Field field) {
+        if (field == null) {
+            return GROUP_BY.length;
+        }
+        for (int g = 0; g < GROUP_BY.length; g++) {
+            if (GROUP_BY[g] == field) {
+                return g;
+            }
+        }
+        return GROUP_BY.length + 1;
+    }
+
+    /**
+     * The summary of one measurement over a group of stations.
+     */
+    public static class Summary {
+        final long count;
+        final double sum;
+        final double min;
+        final double max;
+
+        Summary(long count, double sum, double min, double max) {
+            this.count = count;
+            this.sum = sum;
+            this.min = min;
+            this.max = max;
+        }
+
+        /**
+         * Combines this summary with one over other stations, e.g. from another cluster node.
+         *
+         * @param other The other summary
+         * @return The summary over the stations of both
+         */
+        public Summary merge(Summary other) {
+            return new Summary(count + other.count, sum + other.sum, Math.min(min, other.min), Math.max(max, other.max));
+        }
+
+        /**
+         * Writes the summary as a JSON object with count, min, max, sum and mean.
+         *
+         * @param writer The writer
+         * @throws java.io.IOException If the writer fails
+         */
+        public void writeTo(JSONWriter writer) throws java.io.IOException {
+            writer.beginObject();
+            writer.name("count");
+            writer.write(count);
+            writer.name("min");
+            writer.write(min);
+            writer.name("max");
+            writer.write(max);
+            writer.name("sum");
+            writer.write(sum);
+            writer.name("mean");
+            writer.write(sum / count);
+            writer.endObject();
+        }
+
+        /**
+         * Reads a summary written by {@link #writeTo(JSONWriter)}.
+         *
+         * @param json The parsed JSON object
+         * @return The summary
+         */
+        public static Summary fromJson(Map<String, Object> json) {
+            return new Summary(((Number) json.get("count")).longValue(), ((Number) json.get("sum")).doubleValue(),
+                    ((Number) json.get("min")).doubleValue(), ((Number) json.get("max")).doubleValue());
+        }
+    }
+
+    /**
+     * The observations of one group: how many stations it has and the running summary of each measurement.
+     */
+    private static class Group {
+        int stations;
+        final Accumulator[] measurements = new Accumulator[MEASUREMENTS.length];
+
+        Group() {
+            for (int m = 0; m < measurements.length; m++) {
+                measurements[m] = new Accumulator();
+            }
+        }
+    }
+
+    /**
+     * The running count and sum of a measurement, with its values counted for min and max.
+     */
+    private static class Accumulator {
+        long count;
+        double sum;
+        final TreeMap<Double, Integer> values = new TreeMap<>();  // Value -> number of stations with it
+
+        void add(double value) {
+            count++;
+            sum += value;
+            values.merge(value, 1, Integer::sum);
+        }
+
+        void remove(double value) {
+            count--;
+            sum = count == 0 ? 0 : sum - value;  // Do not let rounding errors outlive the values
+            values.computeIfPresent(value, (v, n) -> n > 1 ? n - 1 : null);
+        }
+    }
+}
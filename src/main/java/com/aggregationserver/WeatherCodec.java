@@ -0,0 +1,335 @@
+package com.aggregationserver;
+
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.util.HashSet;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * Reads and writes {@link WeatherObservation}s directly as JSON, specialized for the weather
+ * schema. Decoding pulls tokens from a {@link JSONParser} and stores each known field's text
+ * straight into the observation, so no Map or List is built for a regular observation; only
+ * fields outside the schema fall back to the parser's generic values. Decoding bytes goes
+ * further: apart from the ID, each known field is only indexed by the offsets of its value,
+ * and is decoded from the bytes when first read. Encoding streams the
+ * fields through a {@link JSONWriter}, or copies the bytes an observation was decoded from
+ * when it has not been changed since, so that storing and re-serializing a PUT is cheap.
+ * A {@link Projection} writes only selected members instead.
+ */
+public class WeatherCodec {
+
+    protected static final String LAMPORT_TIME = "lamportTime";
+    protected static final String LAST_UPDATED = "lastUpdated";
+    protected static final String SERVER_TIME = "serverLamportTime";  // Written to the server's snapshot file only
+
+    private static final WeatherObservation.Field[] FIELDS = WeatherObservation.Field.values();
+    private static final byte[] LAST_UPDATED_MEMBER = ",\"lastUpdated\":".getBytes(StandardCharsets.US_ASCII);
+    private static final byte[] SERVER_TIME_MEMBER = ",\"serverLamportTime\":".getBytes(StandardCharsets.US_ASCII);
+    private static final byte[] OBJECT_END = {'}'};
+
+    /**
+     * Decodes an observation from UTF-8 JSON bytes.
+     *
+     * @param json The UTF-8 bytes of a JSON object
+     * @return The observation
+     * @throws Exception If the bytes are not a JSON object
+     */
+    public static WeatherObservation decode(byte[] json) throws Exception {
+        return decode(json, 0, json.length);
+    }
+
+    /**
+     * Decodes an observation from a region of a byte array holding UTF-8 JSON.
+     *
+     * @param json   The array holding the object
+     * @param offset The index of the first byte
+     * @param length The number of bytes
+     * @return The observation
+     * @throws Exception If the bytes are not a JSON object
+     */
+    public static WeatherObservation decode(byte[] json, int offset, int length) throws Exception {
+        JSONParser parser = new JSONParser();
+        parser.reset(json, offset, length);
+        if (parser.nextToken() != JSONParser.Token.START_OBJECT) {
+            throw new Exception("Expected a JSON object");
+        }
+        WeatherObservation observation = read(parser, json);
+        if (parser.nextToken() != JSONParser.Token.END_DOCUMENT) {
+            throw new Exception("Unexpected content after JSON object");
+        }
+
+        // Keep the original bytes for writing back, unless lastUpdated would then be repeated
+        if (observation.getLastUpdated() == 0 && !observation.getExtra().containsKey(LAST_UPDATED)) {
+            int start = offset;
+            int end = offset + length;
+            while (json[start] != '{') {
+                start++;
+            }
+            while (json[end - 1] != '}') {
+                end--;
+            }
+            observation.setSource(json, start, end);
+        }
+        return observation;
+    }
+
+    /**
+     * Reads an observation from a streaming parser positioned on the object's START_OBJECT token,
+     * e.g. one station inside a snapshot file. The parser is left on the matching END_OBJECT.
+     *
+     * @param parser The parser
+     * @return The observation
+     * @throws Exception If the object is malformed
+     */
+    public static WeatherObservation read(JSONParser parser) throws Exception {
+        return read(parser, null);
+    }
+
+    /**
+     * Reads an observation, leaving the values of schema fields other than the ID in the given
+     * array, which the parser was reset onto, to be decoded when first read.
+     */
+    private static WeatherObservation read(JSONParser parser, byte[] lazy) throws Exception {
+        WeatherObservation observation = new WeatherObservation();
+        JSONParser.Token token;
+        while ((token = parser.nextToken()) == JSONParser.Token.FIELD_NAME) {
+            String name = parser.currentString();  // Served from the parser's name cache
+            token = parser.nextToken();
+            WeatherObservation.Field field = WeatherObservation.Field.forName(name);
+
+            if (lazy != null && field != null && field != WeatherObservation.Field.ID
+                    && (token == JSONParser.Token.STRING || token == JSONParser.Token.NUMBER)) {
+                observation.setLazy(field, lazy, parser.currentTokenStart(), parser.currentTokenEnd(),
+                        token == JSONParser.Token.NUMBER);
+            } else if (field != null && token == JSONParser.Token.STRING) {
+                observation.set(field, parser.currentString());
+            } else if (field != null && token == JSONParser.Token.NUMBER) {
+                observation.setNumber(field, parser.currentString());
+            } else if (token == JSONParser.Token.NUMBER && name.equals(LAMPORT_TIME)) {
+                observation.setLamportTime(parser.currentNumber());
+            } else if (token == JSONParser.Token.NUMBER && name.equals(LAST_UPDATED)) {
+                observation.setLastUpdated(parser.currentNumber().longValue());
+            } else {
+                observation.putExtra(name, parser.readValue());  // Generic fallback
+            }
+        }
+        if (token != JSONParser.Token.END_OBJECT) {
+            throw new Exception("Expected a field name or '}' but found " + token);
+        }
+        return observation;
+    }
+
+    /**
+     * Writes an observation as a JSON object: the schema fields in schema order, then any
+     * other fields, then the Lamport time and the time it was stored.
+     *
+     * @param observation The observation
+     * @param writer      The writer
+     * @throws IOException If the writer's destination cannot be written to
+     */
+    public static void write(WeatherObservation observation, JSONWriter writer) throws IOException {
+        write(observation, -1, writer);
+    }
+
+    /**
+     * Writes an observation as it is kept in the server's snapshot file: as by
+     * {@link #write(WeatherObservation, JSONWriter)}, followed by the server's Lamport time for
+     * the entry, which differs from the sender's lamportTime and is restored when the file is loaded.
+     *
+     * @param observation The observation
+     * @param serverTime  The server's Lamport time for the entry
+     * @param writer      The writer
+     * @throws IOException If the writer's destination cannot be written to
+     */
+    public static void writeStored(WeatherObservation observation, long serverTime, JSONWriter writer) throws IOException {
+        write(observation, serverTime, writer);
+    }
+
+    // Writes an observation, with the server's Lamport time unless it is negative
+    private static void write(WeatherObservation observation, long serverTime, JSONWriter writer) throws IOException {
+        byte[] source = observation.getSource();
+        if (source != null) {
+            writeSource(observation, source, serverTime, writer);
+            return;
+        }
+
+        writer.beginObject();
+        for (WeatherObservation.Field field : FIELDS) {
+            String value = observation.get(field);
+            if (value != null) {
+                writer.name(field.jsonName());
+                if (observation.isNumeric(field)) {
+                    writer.writeNumber(value);
+                } else {
+                    writer.write(value);
+                }
+            }
+        }
+        for (Map.Entry<String, Object> entry : observation.getExtra().entrySet()) {
+            writer.name(entry.getKey());
+            writer.write(entry.getValue());
+        }
+        if (observation.getLamportTime() != null) {
+            writer.name(LAMPORT_TIME);
+            writer.write(observation.getLamportTime());
+        }
+        if (observation.getLastUpdated() != 0) {
+            writer.name(LAST_UPDATED);
+            writer.write(observation.getLastUpdated());
+        }
+        if (serverTime >= 0) {
+            writer.name(SERVER_TIME);
+            writer.write(serverTime);
+        }
+        writer.endObject();
+    }
+
+    /**
+     * Writes only the members of an observation selected by a projection, in the usual order.
+     *
+     * @param observation The observation
+     * @param writer      The writer
+     * @param projection  The members to write, or null for all of them
+     * @throws IOException If the writer's destination cannot be written to
+     */
+    public static void write(WeatherObservation observation, JSONWriter writer, Projection projection) throws IOException {
+        if (projection == null) {
+            write(observation, writer);
+            return;
+        }
+
+        writer.beginObject();
+        for (WeatherObservation.Field field : FIELDS) {
+            String value = observation.get(field);
+            if (value != null && projection.schemaFields[field.ordinal()]) {
+                writer.name(field.jsonName());
+                if (observation.isNumeric(field)) {
+                    writer.writeNumber(value);
+                } else {
+                    writer.write(value);
+                }
+            }
+        }
+        for (Map.Entry<String, Object> entry : observation.getExtra().entrySet()) {
+            if (projection.includes(entry.getKey())) {
+                writer.name(entry.getKey());
+                writer.write(entry.getValue());
+            }
+        }
+        if (observation.getLamportTime() != null && projection.includes(LAMPORT_TIME)) {
+            writer.name(LAMPORT_TIME);
+            writer.write(observation.getLamportTime());
+        }
+        if (observation.getLastUpdated() != 0 && projection.includes(LAST_UPDATED)) {
+            writer.name(LAST_UPDATED);
+            writer.write(observation.getLastUpdated());
+        }
+        writer.endObject();
+    }
+
+    /**
+     * Writes one station's data, either an observation or a generic object (e.g. data gathered
+     * from another cluster node), keeping only the members selected by a projection.
+     *
+     * @param value      The station's data
+     * @param writer     The writer
+     * @param projection The members to write, or null for all of them
+     * @throws IOException If the writer's destination cannot be written to
+     */
+    public static void writeStation(Object value, JSONWriter writer, Projection projection) throws IOException {
+        if (value instanceof WeatherObservation) {
+            write((WeatherObservation) value, writer, projection);
+        } else if (value instanceof Map && projection != null) {
+            writer.beginObject();
+            for (Map.Entry<?, ?> entry : ((Map<?, ?>) value).entrySet()) {
+                String name = String.valueOf(entry.getKey());
+                if (projection.includes(name)) {
+                    writer.name(name);
+                    writer.write(entry.getValue());
+                }
+            }
+            writer.endObject();
+        } else {
+            writer.write(value);
+        }
+    }
+
+    /**
+     * A selection of the members to write for each station, e.g. from a "fields" query
+     * parameter. Names outside the schema select fields a client sent beyond it.
+     */
+    public static class Projection {
+        private final Set<String> names;
+        private final boolean[] schemaFields = new boolean[FIELDS.length];  // By Field ordinal, to skip the set lookup
+
+        private Projection(Set<String> names) {
+            this.names = names;
+            for (String name : names) {
+                WeatherObservation.Field field = WeatherObservation.Field.forName(name);
+                if (field != null) {
+                    schemaFields[field.ordinal()] = true;
+                }
+            }
+        }
+
+        /**
+         * Parses a comma-separated list of member names.
+         *
+         * @param fields The list, e.g. "air_temp,press"
+         * @return The projection, or null if the list is null or names nothing (all members)
+         */
+        public static Projection parse(String fields) {
+            if (fields == null) {
+                return null;
+            }
+            Set<String> names = new HashSet<>();
+            for (String name : fields.split(",")) {
+                if (!name.trim().isEmpty()) {
+                    names.add(name.trim());
+                }
+            }
+            return names.isEmpty() ? null : new Projection(names);
+        }
+
+        /**
+         * Returns true if the projection selects a member.
+         *
+         * @param name The member name
+         * @return true if the member is written
+         */
+        public boolean includes(String name) {
+            return names.contains(name);
+        }
+    }
+
+    /**
+     * Copies an unchanged observation's original JSON, adding lastUpdated (and the server's
+     * Lamport time, unless it is negative) before the closing brace.
+     */
+    private static void writeSource(WeatherObservation observation, byte[] source, long serverTime, JSONWriter writer) throws IOException {
+        int start = observation.getSourceStart();
+        int close = observation.getSourceEnd() - 1;  // Index of the closing '}'
+        if (observation.getLastUpdated() == 0 && serverTime < 0) {
+            writer.writeRaw(source, start, close + 1 - start);
+            return;
+        }
+
+        int last = close - 1;
+        while (source[last] == ' ' || source[last] == '\n' || source[last] == '\r' || source[last] == '\t') {
+            last--;
+        }
+        boolean empty = source[last] == '{';
+        writer.writeRaw(source, start, last + 1 - start);
+        if (observation.getLastUpdated() != 0) {
+            writer.writeRaw(LAST_UPDATED_MEMBER, empty ? 1 : 0, LAST_UPDATED_MEMBER.length - (empty ? 1 : 0));
+            writer.write(observation.getLastUpdated());
+            empty = false;
+        }
+        if (serverTime >= 0) {
+            writer.writeRaw(SERVER_TIME_MEMBER, empty ? 1 : 0, SERVER_TIME_MEMBER.length - (empty ? 1 : 0));
+            writer.write(serverTime);
+        }
+        writer.writeRaw(OBJECT_END, 0, 1);
+    }
+}
@@ -0,0 +1,351 @@
+package com.aggregationserver;
+
+import java.nio.charset.StandardCharsets;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * One station's weather observation, bound to the BoM weather schema.
+ * Known fields are held in a fixed array indexed by {@link Field}, as the text they had in
+ * the JSON (ContentServer sends every value as a string, but numbers are accepted too and
+ * written back as numbers). Fields outside the schema, and known fields whose value is not
+ * a string or number, are kept in a generic map so that nothing sent by a client is lost.
+ * Instances are created and written by {@link WeatherCodec}, which also keeps the JSON an
+ * observation was decoded from so that it can be written back out as is until a field changes.
+ * <p>
+ * A decoded field may also be left in those bytes: the codec records where its value lies, and
+ * the text is only decoded, once, when the field is first read. Most PUTs are stored and written
+ * back without any field but the ID being read, so they never create a String per field.
+ */
+public class WeatherObservation {
+
+    /**
+     * The fields of the weather schema, in the order they are written.
+     */
+    public enum Field {
+        ID("id"),
+        NAME("name"),
+        STATE("state"),
+        TIME_ZONE("time_zone"),
+        LAT("lat"),
+        LON("lon"),
+        LOCAL_DATE_TIME("local_date_time"),
+        LOCAL_DATE_TIME_FULL("local_date_time_full"),
+        AIR_TEMP("air_temp"),
+        APPARENT_T("apparent_t"),
+        CLOUD("cloud"),
+        DEWPT("dewpt"),
+        PRESS("press"),
+        REL_HUM("rel_hum"),
+        WIND_DIR("wind_dir"),
+        WIND_SPD_KMH("wind_spd_kmh"),
+        WIND_SPD_KT("wind_spd_kt");
+
+        private static final Map<String, Field> BY_NAME = new HashMap<>();
+
+        static {
+            for (Field field : values()) {
+                BY_NAME.put(field.jsonName, field);
+            }
+        }
+
+        private final String jsonName;
+
+        Field(String jsonName) {
+            this.jsonName = jsonName;
+        }
+
+        public String jsonName() {
+            return jsonName;
+        }
+
+        /**
+         * Looks up a field by its JSON member name.
+         *
+         * @param name The member name
+         * @return The field, or null if the name is not part of the schema
+         */
+        public static Field forName(String name) {
+            return BY_NAME.get(name);
+        }
+    }
+
+    /**
+     * The numeric measurements of the schema, which are kept in station histories and aggregated.
+     */
+    public static final Field[] MEASUREMENTS = {Field.AIR_TEMP, Field.APPARENT_T, Field.DEWPT, Field.PRESS,
+            Field.REL_HUM, Field.WIND_SPD_KMH, Field.WIND_SPD_KT};
+
+    private static final Field[] FIELDS = Field.values();
+
+    private final String[] values = new String[FIELDS.length];  // Field text, or null if absent
+    private int numericFields;  // Bit per field: set if the value was a JSON number rather than a string
+    private Map<String, Object> extra;  // Fields outside the schema, or null if there are none
+    private Number lamportTime;  // The sender's Lamport time, or null if not sent
+    private long lastUpdated;  // Set by the server when stored; 0 if never stored
+    private byte[] source;  // The JSON object this was decoded from, or null once a field has changed
+    private int sourceStart;  // Index in source of the opening '{'
+    private int sourceEnd;  // Index in source just after the closing '}'
+    private byte[] lazySource;  // The bytes holding values that have not been decoded yet
+    private int[] spans;  // Per field, the start and end in lazySource of its undecoded value; end 0 if none
+
+    /**
+     * Returns the text of a schema field.
+     *
+     * @param field The field
+     * @return The value as text, or null if the field is absent
+     */
+    public String get(Field field) {
+        return value(field.ordinal());
+    }
+
+    // Returns a field's text, decoding it from lazySource on first use
+    private String value(int ordinal) {
+        String value = values[ordinal];
+        if (value == null && spans != null && spans[2 * ordinal + 1] != 0) {
+            value = decodeSpan(spans[2 * ordinal], spans[2 * ordinal + 1], isNumeric(FIELDS[ordinal]));
+            values[ordinal] = value;  // Readers racing here decode equal Strings, so no lock is needed
+        }
+        return value;
+    }
+
+    private String decodeSpan(int start, int end, boolean numeric) {
+        if (numeric) {
+            return new String(lazySource, start, end - start, StandardCharsets.ISO_8859_1);
+        }
+        for (int i = start + 1; i < end - 1; i++) {
+            if (lazySource[i] == '\\') {
+                try {
+                    JSONParser parser = new JSONParser();  // Escaped strings are rare; let the parser undo them
+                    parser.reset(lazySource, start, end - start);
+                    parser.nextToken();
+                    return parser.currentString();
+                } catch (Exception e) {
+                    throw new IllegalStateException("Invalid string in decoded JSON", e);  // Checked when decoded
+                }
+            }
+        }
+        return new String(lazySource, start + 1, end - start - 2, StandardCharsets.UTF_8);
+    }
+
+    /**
+     * Sets a schema field to a value that is decoded from its JSON token when first read.
+     * The array must not be modified.
+     *
+     * @param field   The field
+     * @param json    The bytes holding the token
+     * @param start   The index of the token's first byte; a string's opening quote
+     * @param end     The index just after the token's last byte
+     * @param numeric true for a JSON number, false for a string
+     */
+    void setLazy(Field field, byte[] json, int start, int end, boolean numeric) {
+        if (spans == null) {
+            spans = new int[2 * FIELDS.length];
+        }
+        lazySource = json;
+        int ordinal = field.ordinal();
+        values[ordinal] = null;
+        spans[2 * ordinal] = start;
+        spans[2 * ordinal + 1] = end;
+        if (numeric) {
+            numericFields |= 1 << ordinal;
+        } else {
+            numericFields &= ~(1 << ordinal);
+        }
+        source = null;
+        if (extra != null) {
+            extra.remove(field.jsonName());
+        }
+    }
+
+    // Forgets a field's undecoded value once the field is set another way
+    private void clearSpan(int ordinal) {
+        if (spans != null) {
+            spans[2 * ordinal + 1] = 0;
+        }
+    }
+
+    /**
+     * Returns a schema field as a number, whether it was sent as a string or a number.
+     *
+     * @param field The field
+     * @return The numeric value, or NaN if the field is absent or not numeric
+     */
+    public double getDouble(Field field) {
+        String text = value(field.ordinal());
+        if (text == null) {
+            return Double.NaN;
+        }
+        try {
+            return Double.parseDouble(text);
+        } catch (NumberFormatException e) {
+            return Double.NaN;
+        }
+    }
+
+    /**
+     * Returns true if a schema field's value was a JSON number rather than a string.
+     *
+     * @param field The field
+     * @return true for numeric values
+     */
+    public boolean isNumeric(Field field) {
+        return (numericFields & (1 << field.ordinal())) != 0;
+    }
+
+    /**
+     * Sets a schema field to a string value.
+     *
+     * @param field The field
+     * @param value The value, or null to remove the field
+     */
+    public void set(Field field, String value) {
+        values[field.ordinal()] = value;
+        clearSpan(field.ordinal());
+        numericFields &= ~(1 << field.ordinal());
+        source = null;
+        if (extra != null) {
+            extra.remove(field.jsonName());
+        }
+    }
+
+    /**
+     * Sets a schema field to a numeric value given as JSON number text.
+     *
+     * @param field      The field
+     * @param numberText A valid JSON number
+     */
+    public void setNumber(Field field, String numberText) {
+        values[field.ordinal()] = numberText;
+        clearSpan(field.ordinal());
+        numericFields |= 1 << field.ordinal();
+        source = null;
+        if (extra != null) {
+            extra.remove(field.jsonName());
+        }
+    }
+
+    public String getId() {
+        return value(Field.ID.ordinal());
+    }
+
+    public Number getLamportTime() {
+        return lamportTime;
+    }
+
+    public void setLamportTime(Number lamportTime) {
+        this.lamportTime = lamportTime;
+        source = null;
+    }
+
+    public long getLastUpdated() {
+        return lastUpdated;
+    }
+
+    public void setLastUpdated(long lastUpdated) {
+        this.lastUpdated = lastUpdated;
+    }
+
+    /**
+     * Returns the fields that are not part of the schema.
+     *
+     * @return Map of field name to value (empty if there are none)
+     */
+    public Map<String, Object> getExtra() {
+        return extra != null ? extra : Map.of();
+    }
+
+    /**
+     * Keeps a field that is not part of the schema, or a schema field with an unexpected value type.
+     *
+     * @param name  The field name
+     * @param value The parsed value
+     */
+    public void putExtra(String name, Object value) {
+        Field field = Field.forName(name);
+        if (field != null) {
+            values[field.ordinal()] = null;  // The generic value replaces the typed one
+            clearSpan(field.ordinal());
+        }
+        if (extra == null) {
+            extra = new LinkedHashMap<>();
+        }
+        extra.put(name, value);
+        source = null;
+    }
+
+    /**
+     * Removes a field that is not part of the schema.
+     *
+     * @param name The field name
+     * @return The removed value, or null if there was none
+     */
+    public Object removeExtra(String name) {
+        if (extra == null || !extra.containsKey(name)) {
+            return null;
+        }
+        source = null;
+        return extra.remove(name);
+    }
+
+    /**
+     * Records the JSON object this observation was decoded from. The array must not be modified.
+     * The source must not contain lastUpdated, which is written after it.
+     */
+    void setSource(byte[] json, int start, int end) {
+        this.source = json;
+        this.sourceStart = start;
+        this.sourceEnd = end;
+    }
+
+    byte[] getSource() {
+        return source;
+    }
+
+    int getSourceStart() {
+        return sourceStart;
+    }
+
+    int getSourceEnd() {
+        return sourceEnd;
+    }
+
+    /**
+     * Converts the observation to a generic Map, e.g. for code that works on parsed JSON.
+     *
+     * @return The observation as a Map, in the order it is written
+     */
+    public Map<String, Object> toMap() {
+        Map<String, Object> map = new LinkedHashMap<>();
+        for (Field field : FIELDS) {
+            String value = value(field.ordinal());
+            if (value != null) {
+                map.put(field.jsonName(), isNumeric(field) ? toNumber(value) : value);
+            }
+        }
+        if (extra != null) {
+            map.putAll(extra);
+        }
+        if (lamportTime != null) {
+            map.put("lamportTime", lamportTime);
+        }
+        if (lastUpdated != 0) {
+            map.put("lastUpdated", lastUpdated);
+        }
+        return map;
+    }
+
+    private static Object toNumber(String numberText) {
+        try {
+            return JSONParser.toNumber(numberText);
+        } catch (Exception e) {
+            return numberText;  // Not reachable for text accepted by the parser
+        }
+    }
+
+    @Override
+    public String toString() {
+        return JSONWriter.toJson(this, false);
+    }
+}
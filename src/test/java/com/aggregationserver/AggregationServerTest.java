@@ -6,13 +6,21 @@ import java.io.ByteArrayOutputStream;
 import java.io.File;
 import java.io.PrintWriter;
 import java.io.StringReader;
+import java.io.StringWriter;
+import java.net.InetAddress;
 import java.net.Socket;
 import java.nio.charset.StandardCharsets;
 import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
 
 import static org.junit.jupiter.api.Assertions.assertEquals;
 import static org.junit.jupiter.api.Assertions.assertNotNull;
 import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assertions.assertTrue;
 import org.junit.jupiter.api.BeforeEach;
 import org.junit.jupiter.api.Test;
 import static org.mockito.ArgumentMatchers.contains;
@@ -130,7 +138,7 @@ public class AggregationServerTest {
     // Test Lamport clock ticks after PUT requests
     @Test
     public void testLamportClockTicksAfterPutRequest() throws Exception {
-        int initialTime = AggregationServer.lamportClock.getTime();
+        long initialTime = AggregationServer.lamportClock.getTime();
 
         // Add mock weather data
         String stationData1 = "{\"id\":\"IDS60901\", \"temperature\":\"25.0\", \"humidity\":\"60\"}";
@@ -139,4 +147,481 @@ public class AggregationServerTest {
         // Verify that the Lamport clock has ticked
         assertEquals(initialTime + 1, AggregationServer.lamportClock.getTime());
     }
+
+    // Test that a PUT carrying the sender's Lamport time moves the clock past it
+    @Test
+    public void testLamportClockMergesSenderTime() throws Exception {
+        long senderTime = AggregationServer.lamportClock.getTime() + 1000;
+        aggregationServer.processPutRequest("{\"id\":\"IDS60901\", \"lamportTime\":" + senderTime + "}", mockOut);
+
+        assertEquals(senderTime + 1, AggregationServer.lamportClock.getTime());
+        assertEquals(senderTime + 1, AggregationServer.weatherData.get("IDS60901").lamportTime);
+    }
+
+    // Test that a PUT no newer than the stored data is rejected with the stored time
+    @Test
+    public void testStaleUpdateRejected() throws Exception {
+        aggregationServer.processPutRequest("{\"id\":\"IDL00001\", \"air_temp\":\"10.0\", \"lamportTime\":5}", new PrintWriter(new StringWriter()));
+
+        StringWriter response = new StringWriter();
+        aggregationServer.processPutRequest("{\"id\":\"IDL00001\", \"air_temp\":\"20.0\", \"lamportTime\":3}", new PrintWriter(response));
+        assertTrue(response.toString().startsWith("HTTP/1.1 409 Conflict"));
+        assertTrue(response.toString().contains("{\"lamportTime\":5}"));
+
+        response = new StringWriter();
+        aggregationServer.processPutRequest("{\"id\":\"IDL00001\", \"air_temp\":\"20.0\", \"lamportTime\":5}", new PrintWriter(response));
+        assertTrue(response.toString().startsWith("HTTP/1.1 409 Conflict"));  // A repeated PUT
+        assertEquals("10.0", AggregationServer.weatherData.get("IDL00001").getObservation().get(WeatherObservation.Field.AIR_TEMP));
+
+        response = new StringWriter();
+        aggregationServer.processPutRequest("{\"id\":\"IDL00001\", \"air_temp\":\"30.0\", \"lamportTime\":6}", new PrintWriter(response));
+        assertTrue(response.toString().startsWith("HTTP/1.1 200 OK"));
+        assertEquals("30.0", AggregationServer.weatherData.get("IDL00001").getObservation().get(WeatherObservation.Field.AIR_TEMP));
+
+        AggregationServer.removeWeatherEntry("IDL00001");
+    }
+
+    // Test that the station limit can be lifted, so that no station is removed for exceeding it
+    @Test
+    public void testMaxEntriesCanBeLifted() throws Exception {
+        AggregationServer.maxEntries = 0;
+        try {
+            for (int i = 0; i < AggregationServer.MAX_ENTRIES + 5; i++) {
+                aggregationServer.processPutRequest("{\"id\":\"IDM" + (10000 + i) + "\", \"air_temp\":\"1.0\"}", mockOut);
+            }
+            for (int i = 0; i < AggregationServer.MAX_ENTRIES + 5; i++) {
+                assertTrue(AggregationServer.weatherData.containsKey("IDM" + (10000 + i)));
+            }
+        } finally {
+            AggregationServer.maxEntries = AggregationServer.MAX_ENTRIES;
+            for (int i = 0; i < AggregationServer.MAX_ENTRIES + 5; i++) {
+                AggregationServer.removeWeatherEntry("IDM" + (10000 + i));
+            }
+        }
+    }
+
+    // Test that reloading the data file restores each entry's server time and its sender's time
+    @Test
+    public void testReloadKeepsServerAndSenderTimes() throws Exception {
+        String savedDataFilePath = AggregationServer.dataFilePath;
+        AggregationServer.dataFilePath = Files.createTempDirectory("reload").resolve("weatherData.json").toString();
+        try {
+            AggregationServer.lamportClock.updateTime(AggregationServer.lamportClock.getTime() + 100);  // Well past the sender's time
+            aggregationServer.processPutRequest("{\"id\":\"IDT00001\", \"air_temp\":\"10.0\", \"lamportTime\":5}", mockOut);
+            long serverTime = AggregationServer.weatherData.get("IDT00001").lamportTime;
+            assertTrue(serverTime > 6);
+
+            AggregationServer.saveDataToFile();
+            AggregationServer.loadDataFromFile();
+
+            AggregationServer.WeatherEntry loaded = AggregationServer.weatherData.get("IDT00001");
+            assertEquals(serverTime, loaded.lamportTime);
+            assertEquals(5, loaded.senderTime);
+            assertEquals(5, loaded.getObservation().getLamportTime().longValue());
+            assertTrue(loaded.getObservation().getExtra().isEmpty());  // The server's time is not served as a field
+            assertTrue(AggregationServer.lamportClock.getTime() >= serverTime);
+
+            StringWriter response = new StringWriter();
+            aggregationServer.processPutRequest("{\"id\":\"IDT00001\", \"air_temp\":\"20.0\", \"lamportTime\":5}", new PrintWriter(response));
+            assertTrue(response.toString().startsWith("HTTP/1.1 409 Conflict"));  // Still stale after the reload
+        } finally {
+            AggregationServer.removeWeatherEntry("IDT00001");
+            AggregationServer.dataFilePath = savedDataFilePath;
+        }
+    }
+
+    // Test that a PUT in the binary format is stored like the same observation sent as JSON
+    @Test
+    public void testBinaryPut() throws Exception {
+        Map<String, Object> data = new LinkedHashMap<>();
+        data.put("id", "IDB00001");
+        data.put("air_temp", "12.5");
+        data.put("rel_hum", 60);
+        data.put("lamportTime", 7);
+        Map<String, String> headers = new LinkedHashMap<>();
+        headers.put("Content-Type", BinaryWeatherCodec.CONTENT_TYPE);
+        StringWriter response = new StringWriter();
+        AggregationServer.handleRequest(new HttpRequest("PUT /weather.json HTTP/1.1", headers, BinaryWeatherCodec.encode(data)),
+                new PrintWriter(response, true));
+
+        assertTrue(response.toString().startsWith("HTTP/1.1 201 Created"));
+        WeatherObservation stored = AggregationServer.weatherData.get("IDB00001").getObservation();
+        assertEquals("12.5", stored.get(WeatherObservation.Field.AIR_TEMP));
+        assertEquals("60", stored.get(WeatherObservation.Field.REL_HUM));
+        assertTrue(stored.isNumeric(WeatherObservation.Field.REL_HUM));
+
+        response = new StringWriter();
+        AggregationServer.handleRequest(new HttpRequest("PUT /weather.json HTTP/1.1", headers, new byte[] {0, 0, 0, 9, 1}),
+                new PrintWriter(response, true));
+        assertTrue(response.toString().startsWith("HTTP/1.1 500"));  // A truncated frame
+
+        AggregationServer.removeWeatherEntry("IDB00001");
+    }
+
+    // Test that /metrics reports requests handled on a connection, PUT parsing and the store's state
+    @Test
+    public void testMetrics() throws Exception {
+        AggregationServer.metrics = new ServerMetrics();
+        try {
+            Socket socket = mock(Socket.class);
+            when(socket.getInputStream()).thenReturn(new ByteArrayInputStream("GET /weather/IDM00001 HTTP/1.1\r\n\r\n".getBytes()));
+            when(socket.getOutputStream()).thenReturn(new ByteArrayOutputStream());
+            when(socket.getInetAddress()).thenReturn(InetAddress.getLoopbackAddress());
+            AggregationServer.handleConnection(socket);
+
+            AggregationServer.handlePutRequest(new HttpRequest("PUT /weather.json HTTP/1.1", new LinkedHashMap<>(),
+                    "{\"id\":\"IDM00001\", \"air_temp\":\"10.0\"}".getBytes(StandardCharsets.UTF_8)), new PrintWriter(new StringWriter()));
+
+            StringWriter response = new StringWriter();
+            AggregationServer.handleRequest(new HttpRequest("GET /metrics HTTP/1.1", new LinkedHashMap<>(), new byte[0]),
+                    new PrintWriter(response, true));
+            String metrics = response.toString();
+            assertTrue(metrics.startsWith("HTTP/1.1 200 OK"));
+            assertTrue(metrics.contains("Content-Type: text/plain; version=0.0.4"));
+            assertTrue(metrics.contains("aggregation_http_request_duration_seconds_count{method=\"GET\",status=\"200\"} 1"));  // Unknown stations are answered with 200
+            assertTrue(metrics.contains("aggregation_put_parse_duration_seconds_count 1"));
+            assertTrue(metrics.contains("aggregation_stations " + AggregationServer.weatherData.size()));
+            assertTrue(metrics.contains("aggregation_lamport_time " + AggregationServer.lamportClock.getTime()));
+        } finally {
+            AggregationServer.metrics = new ServerMetrics();
+            AggregationServer.removeWeatherEntry("IDM00001");
+        }
+    }
+
+    // Test that a client cannot skip routing to a station's owner by marking its request as forwarded
+    @Test
+    public void testSpoofedForwardIsRouted() throws Exception {
+        AggregationServer.cluster = new ClusterManager("localhost:4567", List.of("localhost:1"));
+        try {
+            String stationID = "IDS60000";
+            for (int i = 1; AggregationServer.cluster.isLocal(stationID); i++) {
+                stationID = "IDS" + (60000 + i);  // A station owned by the unreachable peer
+            }
+            Map<String, String> headers = new LinkedHashMap<>();
+            headers.put(HttpRequest.FORWARDED_HEADER, "localhost:1");
+            HttpRequest request = new HttpRequest("GET /weather/" + stationID + " HTTP/1.1", headers, new byte[0]);
+            request.setRemoteAddress("192.0.2.1");
+            StringWriter response = new StringWriter();
+            AggregationServer.handleRequest(request, new PrintWriter(response, true));
+
+            assertTrue(response.toString().startsWith("HTTP/1.1 503 Service Unavailable"));  // Sent on to the owner, not served here
+        } finally {
+            AggregationServer.cluster = null;
+        }
+    }
+
+    // Test that PUTs for a station over its rate limit get 429 with Retry-After
+    @Test
+    public void testPutRateLimited() throws Exception {
+        AggregationServer.stationLimiter = new RateLimiter(0.1, 2, 16);  // A token every 10 s
+        try {
+            for (int i = 0; i < 2; i++) {
+                StringWriter response = new StringWriter();
+                aggregationServer.processPutRequest("{\"id\":\"IDR00001\", \"air_temp\":\"10.0\"}", new PrintWriter(response));
+                assertTrue(response.toString().startsWith("HTTP/1.1 20"));
+            }
+            StringWriter response = new StringWriter();
+            aggregationServer.processPutRequest("{\"id\":\"IDR00001\", \"air_temp\":\"10.0\"}", new PrintWriter(response));
+            assertTrue(response.toString().startsWith("HTTP/1.1 429 Too Many Requests"));
+            assertTrue(response.toString().contains("Retry-After: 10\n\n"));  // The headers are ended
+
+            response = new StringWriter();
+            aggregationServer.processPutRequest("{\"id\":\"IDR00002\", \"air_temp\":\"10.0\"}", new PrintWriter(response));
+            assertTrue(response.toString().startsWith("HTTP/1.1 201 Created"));  // Another station is not held back
+        } finally {
+            AggregationServer.stationLimiter = null;
+            AggregationServer.removeWeatherEntry("IDR00001");
+            AggregationServer.removeWeatherEntry("IDR00002");
+        }
+    }
+
+    // Test that a client marking its PUTs as forwarded is still held to the client limit
+    @Test
+    public void testSpoofedForwardIsRateLimited() throws Exception {
+        AggregationServer.clientLimiter = new RateLimiter(0.1, 1, 16);
+        try {
+            Map<String, String> headers = new LinkedHashMap<>();
+            headers.put(HttpRequest.FORWARDED_HEADER, "localhost:4568");
+            String[] statuses = new String[2];
+            for (int i = 0; i < 2; i++) {
+                HttpRequest request = new HttpRequest("PUT /weather.json HTTP/1.1", headers,
+                        "{\"id\":\"IDR00003\", \"air_temp\":\"10.0\"}".getBytes(StandardCharsets.UTF_8));
+                request.setRemoteAddress("192.0.2.1");
+                StringWriter response = new StringWriter();
+                AggregationServer.handleRequest(request, new PrintWriter(response, true));
+                statuses[i] = response.toString().split("\n", 2)[0];
+            }
+            assertTrue(statuses[0].startsWith("HTTP/1.1 20"));
+            assertEquals("HTTP/1.1 429 Too Many Requests", statuses[1]);
+        } finally {
+            AggregationServer.clientLimiter = null;
+            AggregationServer.removeWeatherEntry("IDR00003");
+        }
+    }
+
+    // Test that a burst of PUTs within the coalescing window is saved by one write
+    @Test
+    @SuppressWarnings("unchecked")
+    public void testCoalescedSaves() throws Exception {
+        String savedDataFilePath = AggregationServer.dataFilePath;
+        File dataFile = Files.createTempDirectory("coalesce").resolve("weatherData.json").toFile();
+        AggregationServer.dataFilePath = dataFile.getPath();
+        AggregationServer.coalesceMillis = 60_000;  // Longer than the test, so only the explicit save runs
+        try {
+            for (int i = 1; i <= 3; i++) {
+                aggregationServer.processPutRequest("{\"id\":\"IDK00001\", \"air_temp\":\"" + i + ".0\"}", mockOut);
+            }
+            assertTrue(!dataFile.exists());
+
+            AggregationServer.savePendingChanges();
+            Map<String, Object> saved = (Map<String, Object>) new JSONParser().parse(Files.readAllBytes(dataFile.toPath()));
+            assertEquals("3.0", ((Map<String, Object>) saved.get("IDK00001")).get("air_temp"));
+        } finally {
+            AggregationServer.coalesceMillis = 0;
+            AggregationServer.removeWeatherEntry("IDK00001");
+            AggregationServer.dataFilePath = savedDataFilePath;
+        }
+    }
+
+    // Test that responses on keep-alive connections are delimited by Content-Length
+    @Test
+    public void testWriteKeepAliveResponse() throws Exception {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        AggregationServer.writeKeepAliveResponse(out, "HTTP/1.1 201 Created\n");
+        assertEquals("HTTP/1.1 201 Created\r\nContent-Length: 0\r\nConnection: keep-alive\r\n\r\n",
+                out.toString(StandardCharsets.UTF_8));
+
+        // The line break println adds after a body is not part of the response
+        out.reset();
+        AggregationServer.writeKeepAliveResponse(out, "HTTP/1.1 200 OK\nContent-Type: application/json\n"
+                + "Content-Length: 10\n\n{\"a\":\"\u00b0\"}\n");
+        assertEquals("HTTP/1.1 200 OK\r\nContent-Type: application/json\r\nContent-Length: 10\r\n"
+                + "Connection: keep-alive\r\n\r\n{\"a\":\"\u00b0\"}", out.toString(StandardCharsets.UTF_8));
+    }
+
+    // Test selecting several stations and projecting their fields with query parameters
+    @Test
+    @SuppressWarnings("unchecked")
+    public void testHandleGetRequest_IdsAndFields() throws Exception {
+        for (int i = 1; i <= 3; i++) {
+            aggregationServer.processPutRequest("{\"id\":\"IDS6090" + i + "\", \"name\":\"Station " + i
+                    + "\", \"air_temp\":\"1" + i + ".5\", \"press\":\"101" + i + "\", \"rel_hum\":\"60\"}", mockOut);
+        }
+
+        StringWriter response = new StringWriter();
+        AggregationServer.handleGetRequest(new HttpRequest("GET /weather?ids=IDS60903,IDS60901,IDS99999&fields=air_temp,press HTTP/1.1",
+                new LinkedHashMap<>(), new byte[0]), new PrintWriter(response, true));
+        String body = response.toString().substring(response.toString().indexOf("\n\n") + 2).trim();
+        Map<String, Object> stations = (Map<String, Object>) new JSONParser().parse(body);
+
+        assertEquals(List.of("IDS60903", "IDS60901"), new ArrayList<>(stations.keySet()));  // In the order asked for
+        assertEquals(Map.of("air_temp", "13.5", "press", "1013"), stations.get("IDS60903"));
+        assertEquals(Map.of("air_temp", "11.5", "press", "1011"), stations.get("IDS60901"));
+
+        // A single station can be projected too
+        response = new StringWriter();
+        AggregationServer.handleGetRequest(new HttpRequest("GET /weather/IDS60902?fields=name HTTP/1.1",
+                new LinkedHashMap<>(), new byte[0]), new PrintWriter(response, true));
+        assertTrue(response.toString().endsWith("{\"name\":\"Station 2\"}" + System.lineSeparator()), response.toString());
+    }
+
+    // Test that the change feed returns only the stations stored or removed since a version
+    @Test
+    public void testHandleChangesRequest() throws Exception {
+        aggregationServer.processPutRequest("{\"id\":\"IDC00001\", \"air_temp\":\"10.0\"}", mockOut);
+        Map<String, Object> snapshot = getJson("GET /weather/changes HTTP/1.1");
+        assertEquals(true, snapshot.get("full"));
+        assertTrue(((Map<String, Object>) snapshot.get("upserts")).containsKey("IDC00001"));
+        long version = ((Number) snapshot.get("version")).longValue();
+
+        aggregationServer.processPutRequest("{\"id\":\"IDC00002\", \"air_temp\":\"20.0\"}", mockOut);
+        AggregationServer.removeWeatherEntry("IDC00001");
+        Map<String, Object> changes = getJson("GET /weather/changes?since=" + version + "&fields=air_temp HTTP/1.1");
+
+        assertEquals(false, changes.get("full"));
+        assertEquals(Map.of("IDC00002", Map.of("air_temp", "20.0")), changes.get("upserts"));
+        assertEquals(List.of("IDC00001"), changes.get("removed"));
+        long next = ((Number) changes.get("version")).longValue();
+        assertTrue(next > version);
+
+        // Nothing has changed since, and a version the server never issued gets a full snapshot
+        changes = getJson("GET /weather/changes?since=" + next + " HTTP/1.1");
+        assertEquals(Map.of(), changes.get("upserts"));
+        assertEquals(List.of(), changes.get("removed"));
+        assertEquals(true, getJson("GET /weather/changes?since=" + (next + 1000) + " HTTP/1.1").get("full"));
+
+        AggregationServer.removeWeatherEntry("IDC00002");
+    }
+
+    // Test that a station's history returns its earlier observations within a time range
+    @Test
+    public void testHandleHistoryRequest() throws Exception {
+        long start = System.currentTimeMillis();
+        for (int i = 0; i < 3; i++) {
+            aggregationServer.processPutRequest("{\"id\":\"IDH00001\", \"air_temp\":\"1" + i + ".0\", \"press\":\"1010\"}", mockOut);
+        }
+
+        Map<String, Object> response = getJson("GET /weather/IDH00001/history?since=" + start + " HTTP/1.1");
+        List<Map<String, Object>> history = (List<Map<String, Object>>) response.get("history");
+
+        assertEquals("IDH00001", response.get("id"));
+        assertEquals(3, history.size());
+        assertEquals(10.0, ((Number) history.get(0).get("air_temp")).doubleValue(), 1e-6);
+        assertEquals(12.0, ((Number) history.get(2).get("air_temp")).doubleValue(), 1e-6);
+        assertEquals(1010.0, ((Number) history.get(2).get("press")).doubleValue(), 1e-6);
+        assertEquals(List.of(), getJson("GET /weather/IDH00001/history?until=" + (start - 1) + " HTTP/1.1").get("history"));
+
+        // Removing the station frees its history
+        AggregationServer.removeWeatherEntry("IDH00001");
+        assertEquals(List.of(), getJson("GET /weather/IDH00001/history HTTP/1.1").get("history"));
+    }
+
+    // Test that the aggregate endpoint summarizes a measurement per state as stations are stored, replaced and removed
+    @Test
+    public void testHandleAggregateRequest() throws Exception {
+        aggregationServer.processPutRequest("{\"id\":\"IDA00001\", \"state\":\"ZZ\", \"air_temp\":\"10.0\"}", mockOut);
+        aggregationServer.processPutRequest("{\"id\":\"IDA00002\", \"state\":\"ZZ\", \"air_temp\":\"4.0\"}", mockOut);
+        aggregationServer.processPutRequest("{\"id\":\"IDA00001\", \"state\":\"ZZ\", \"air_temp\":\"20.0\"}", mockOut);
+
+        Map<String, Object> response = getJson("GET /weather/aggregate?field=air_temp&groupBy=state HTTP/1.1");
+        Map<String, Object> zz = (Map<String, Object>) ((Map<String, Object>) response.get("groups")).get("ZZ");
+
+        assertEquals("air_temp", response.get("field"));
+        assertEquals("state", response.get("groupBy"));
+        assertEquals(2L, ((Number) zz.get("count")).longValue());  // The replaced observation is no longer counted
+        assertEquals(4.0, ((Number) zz.get("min")).doubleValue(), 1e-9);
+        assertEquals(20.0, ((Number) zz.get("max")).doubleValue(), 1e-9);
+        assertEquals(12.0, ((Number) zz.get("mean")).doubleValue(), 1e-9);
+
+        AggregationServer.removeWeatherEntry("IDA00001");
+        AggregationServer.removeWeatherEntry("IDA00002");
+        response = getJson("GET /weather/aggregate?field=air_temp&groupBy=state HTTP/1.1");
+        assertNull(((Map<String, Object>) response.get("groups")).get("ZZ"));
+
+        StringWriter badRequest = new StringWriter();
+        AggregationServer.handleGetRequest(new HttpRequest("GET /weather/aggregate?field=name HTTP/1.1",
+                new LinkedHashMap<>(), new byte[0]), new PrintWriter(badRequest, true));
+        assertTrue(badRequest.toString().startsWith("HTTP/1.1 400"));
+    }
+
+    // Test that stations are found by distance from a point and by bounding box
+    @Test
+    public void testHandleSpatialRequests() throws Exception {
+        aggregationServer.processPutRequest("{\"id\":\"IDG00001\", \"lat\":\"-89.1\", \"lon\":\"10.0\"}", mockOut);
+        aggregationServer.processPutRequest("{\"id\":\"IDG00002\", \"lat\":\"-89.5\", \"lon\":\"10.0\"}", mockOut);
+        aggregationServer.processPutRequest("{\"id\":\"IDG00003\", \"lat\":\"-85.0\", \"lon\":\"10.0\"}", mockOut);
+
+        StringWriter response = new StringWriter();
+        AggregationServer.handleGetRequest(new HttpRequest("GET /weather/near?lat=-89.6&lon=10&k=2&fields=lat HTTP/1.1",
+                new LinkedHashMap<>(), new byte[0]), new PrintWriter(response, true));
+        assertTrue(response.toString().endsWith("{\"IDG00002\":{\"lat\":\"-89.5\"},\"IDG00001\":{\"lat\":\"-89.1\"}}"
+                + System.lineSeparator()), response.toString());  // Nearest first
+
+        Map<String, Object> within = getJson("GET /weather/within?south=-90&west=0&north=-86&east=20 HTTP/1.1");
+        assertEquals(2, within.size());
+        assertTrue(within.containsKey("IDG00001") && within.containsKey("IDG00002"));
+
+        AggregationServer.removeWeatherEntry("IDG00002");
+        assertEquals(List.of("IDG00001"), List.copyOf(getJson("GET /weather/near?lat=-89.6&lon=10&k=1 HTTP/1.1").keySet()));
+        AggregationServer.removeWeatherEntry("IDG00001");
+        AggregationServer.removeWeatherEntry("IDG00003");
+    }
+
+    // Test that a filter selects stations through a secondary index and checks its other conditions
+    @Test
+    public void testHandleFilteredRequest() throws Exception {
+        AggregationServer.addSecondaryIndex(WeatherObservation.Field.STATE);
+        try {
+            aggregationServer.processPutRequest("{\"id\":\"IDF00001\", \"state\":\"YY\", \"wind_spd_kmh\":\"60\"}", mockOut);
+            aggregationServer.processPutRequest("{\"id\":\"IDF00002\", \"state\":\"YY\", \"wind_spd_kmh\":\"5\"}", mockOut);
+            aggregationServer.processPutRequest("{\"id\":\"IDF00003\", \"state\":\"XX\", \"wind_spd_kmh\":\"90\"}", mockOut);
+
+            Map<String, Object> windy = getJson("GET /weather?filter=state=YY,wind_spd_kmh%3E50&fields=wind_spd_kmh HTTP/1.1");
+            assertEquals(Map.of("IDF00001", Map.of("wind_spd_kmh", "60")), windy);
+
+            aggregationServer.processPutRequest("{\"id\":\"IDF00001\", \"state\":\"XX\", \"wind_spd_kmh\":\"60\"}", mockOut);
+            assertEquals(List.of("IDF00002"), List.copyOf(getJson("GET /weather?filter=state=YY HTTP/1.1").keySet()));
+
+            StringWriter badRequest = new StringWriter();
+            AggregationServer.handleGetRequest(new HttpRequest("GET /weather?filter=colour=red HTTP/1.1",
+                    new LinkedHashMap<>(), new byte[0]), new PrintWriter(badRequest, true));
+            assertTrue(badRequest.toString().startsWith("HTTP/1.1 400"));
+        } finally {
+            AggregationServer.removeWeatherEntry("IDF00001");
+            AggregationServer.removeWeatherEntry("IDF00002");
+            AggregationServer.removeWeatherEntry("IDF00003");
+            AggregationServer.secondaryIndexes.remove(WeatherObservation.Field.STATE);
+        }
+    }
+
+    // Test that paging with a cursor returns every station once, newest first, while stations are being stored
+    @Test
+    public void testHandlePageRequest() throws Exception {
+        for (int i = 0; i < 5; i++) {
+            aggregationServer.processPutRequest("{\"id\":\"IDP0000" + i + "\", \"air_temp\":\"" + i + "\"}", mockOut);
+        }
+
+        Map<String, Object> page = getJson("GET /weather?limit=2&fields=air_temp HTTP/1.1");
+        assertEquals(Map.of("IDP00004", Map.of("air_temp", "4"), "IDP00003", Map.of("air_temp", "3")), page.get("stations"));
+        Map<String, Object> times = (Map<String, Object>) page.get("lamportTimes");
+        assertTrue(((Number) times.get("IDP00004")).intValue() > ((Number) times.get("IDP00003")).intValue());
+
+        aggregationServer.processPutRequest("{\"id\":\"IDP00001\", \"air_temp\":\"10\"}", mockOut);  // Moves ahead of the cursor
+        List<String> rest = new ArrayList<>();
+        while (page.get("next") != null) {
+            page = getJson("GET /weather?limit=2&cursor=" + page.get("next") + " HTTP/1.1");
+            assertTrue(((Map<String, Object>) page.get("stations")).size() <= 2);
+            rest.addAll(((Map<String, Object>) page.get("stations")).keySet());
+        }
+        assertTrue(rest.contains("IDP00002") && rest.contains("IDP00000"));
+        assertTrue(!rest.contains("IDP00001") && !rest.contains("IDP00003"));
+
+        StringWriter badRequest = new StringWriter();
+        AggregationServer.handleGetRequest(new HttpRequest("GET /weather?limit=2&cursor=bogus! HTTP/1.1",
+                new LinkedHashMap<>(), new byte[0]), new PrintWriter(badRequest, true));
+        assertTrue(badRequest.toString().startsWith("HTTP/1.1 400"));
+        for (int i = 0; i < 5; i++) {
+            AggregationServer.removeWeatherEntry("IDP0000" + i);
+        }
+    }
+
+    // Test that a cursor stays valid when the server saves and reloads its data in the middle of paging
+    @Test
+    public void testPageCursorSurvivesReload() throws Exception {
+        String savedDataFilePath = AggregationServer.dataFilePath;
+        AggregationServer.dataFilePath = Files.createTempDirectory("paging").resolve("weatherData.json").toString();
+        try {
+            for (int i = 0; i < 5; i++) {
+                aggregationServer.processPutRequest("{\"id\":\"IDQ0000" + i + "\", \"air_temp\":\"" + i + "\"}", mockOut);
+            }
+
+            Map<String, Object> page = getJson("GET /weather?limit=2 HTTP/1.1");
+            List<String> seen = new ArrayList<>(((Map<String, Object>) page.get("stations")).keySet());
+            assertEquals(Set.of("IDQ00004", "IDQ00003"), Set.copyOf(seen));
+
+            AggregationServer.saveDataToFile();
+            AggregationServer.loadDataFromFile();  // As after a restart
+
+            while (page.get("next") != null) {
+                page = getJson("GET /weather?limit=2&cursor=" + page.get("next") + " HTTP/1.1");
+                seen.addAll(((Map<String, Object>) page.get("stations")).keySet());
+            }
+            seen.removeIf(id -> !id.startsWith("IDQ"));  // Stations left in the store by other tests
+            assertEquals(5, seen.size());  // None skipped or repeated
+            assertEquals(Set.of("IDQ00004", "IDQ00003", "IDQ00002", "IDQ00001", "IDQ00000"), Set.copyOf(seen));
+        } finally {
+            for (int i = 0; i < 5; i++) {
+                AggregationServer.removeWeatherEntry("IDQ0000" + i);
+            }
+            AggregationServer.dataFilePath = savedDataFilePath;
+        }
+    }
+
+    private static Map<String, Object> getJson(String requestLine) throws Exception {
+        StringWriter response = new StringWriter();
+        AggregationServer.handleGetRequest(new HttpRequest(requestLine, new LinkedHashMap<>(), new byte[0]),
+                new PrintWriter(response, true));
+        String body = response.toString().substring(response.toString().indexOf("\n\n") + 2).trim();
+        return (Map<String, Object>) new JSONParser().parse(body);
+    }
 }
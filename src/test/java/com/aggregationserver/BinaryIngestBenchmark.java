@@ -0,0 +1,29 @@
+package com.aggregationserver;
+
+import java.nio.charset.StandardCharsets;
+
+/**
+ * Compares the cost of a PUT body in the binary observation format with the same observation
+ * as JSON: decoding it as the server does, and encoding it as a content server does. Not a
+ * unit test; run with:
+ * <pre>
+ * mvn test-compile exec:java -Dexec.classpathScope=test -Dexec.mainClass=com.aggregationserver.BinaryIngestBenchmark
+ * </pre>
+ */
+public class BinaryIngestBenchmark {
+
+    private static final int ITERATIONS = 1_000_000;
+
+    public static void main(String[] args) throws Exception {
+        byte[] json = JSONParserBenchmark.observationJson(0).getBytes(StandardCharsets.UTF_8);
+        WeatherObservation observation = WeatherCodec.decode(json);
+        byte[] frame = BinaryWeatherCodec.encode(observation);
+
+        System.out.println("Decoding a PUT body (JSON " + json.length + " bytes, binary " + frame.length + " bytes):");
+        JSONParserBenchmark.time("JSON", json.length, ITERATIONS, () -> WeatherCodec.decode(json));
+        JSONParserBenchmark.time("binary", frame.length, ITERATIONS, () -> BinaryWeatherCodec.decode(frame));
+        System.out.println("Encoding a PUT body:");
+        JSONParserBenchmark.time("JSON", json.length, ITERATIONS, () -> JSONWriter.toJson(observation, false));
+        JSONParserBenchmark.time("binary", frame.length, ITERATIONS, () -> BinaryWeatherCodec.encode(observation));
+    }
+}
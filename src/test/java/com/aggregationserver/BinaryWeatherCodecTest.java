@@ -0,0 +1,85 @@
+package com.aggregationserver;
+
+import java.nio.ByteBuffer;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+import org.junit.jupiter.api.Test;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+public class BinaryWeatherCodecTest {
+
+    private static Map<String, Object> weatherData() {
+        Map<String, Object> data = new LinkedHashMap<>();
+        data.put("id", "IDS60901");
+        data.put("name", "Adelaide (West Terrace /  ngayirdapira)");
+        data.put("state", "SA");
+        data.put("lat", -34.9);
+        data.put("air_temp", "13.3");
+        data.put("rel_hum", 60);
+        data.put("wind_dir", "S");
+        data.put("tags", List.of("coastal", "\u00e9t\u00e9"));
+        data.put("lamportTime", 12345678901L);
+        return data;
+    }
+
+    // Test that an observation decodes to the same fields, types and Lamport time it was encoded with
+    @Test
+    public void testRoundTrip() throws Exception {
+        WeatherObservation observation = BinaryWeatherCodec.decode(BinaryWeatherCodec.encode(weatherData()));
+
+        assertEquals("IDS60901", observation.getId());
+        assertEquals("13.3", observation.get(WeatherObservation.Field.AIR_TEMP));
+        assertFalse(observation.isNumeric(WeatherObservation.Field.AIR_TEMP));
+        assertEquals("-34.9", observation.get(WeatherObservation.Field.LAT));
+        assertTrue(observation.isNumeric(WeatherObservation.Field.LAT));
+        assertEquals(12345678901L, observation.getLamportTime());
+        assertEquals(List.of("coastal", "\u00e9t\u00e9"), observation.getExtra().get("tags"));
+
+        // It writes the same JSON as the observation decoded from JSON
+        WeatherObservation fromJson = WeatherCodec.decode(JSONWriter.toJson(weatherData(), false).getBytes("UTF-8"));
+        assertEquals(JSONWriter.toJson(fromJson.toMap(), false), JSONWriter.toJson(observation.toMap(), false));
+    }
+
+    // Test that frames that are cut short, padded, of a newer version or with invalid numbers are rejected
+    @Test
+    public void testRejectsMalformedFrames() {
+        byte[] frame = BinaryWeatherCodec.encode(weatherData());
+
+        byte[] truncated = new byte[frame.length - 3];
+        System.arraycopy(frame, 0, truncated, 0, truncated.length);
+        ByteBuffer.wrap(truncated).putInt(0, truncated.length - Integer.BYTES);
+        assertThrows(Exception.class, () -> BinaryWeatherCodec.decode(truncated));
+        assertThrows(Exception.class, () -> BinaryWeatherCodec.decode(new byte[] {0, 0}));
+
+        byte[] longer = new byte[frame.length + 1];
+        System.arraycopy(frame, 0, longer, 0, frame.length);
+        assertThrows(Exception.class, () -> BinaryWeatherCodec.decode(longer));
+
+        byte[] newer = frame.clone();
+        newer[Integer.BYTES] = (byte) (BinaryWeatherCodec.VERSION + 1);
+        assertThrows(Exception.class, () -> BinaryWeatherCodec.decode(newer));
+
+        Map<String, Object> data = new LinkedHashMap<>();
+        data.put("id", "IDS60901");
+        data.put("air_temp", "13.3");
+        byte[] badNumber = BinaryWeatherCodec.encode(data);
+        int numericBitmap = Integer.BYTES + 1 + Integer.BYTES;
+        ByteBuffer.wrap(badNumber).putInt(numericBitmap, 1 << WeatherObservation.Field.ID.ordinal());  // "IDS60901" as a number
+        assertThrows(Exception.class, () -> BinaryWeatherCodec.decode(badNumber));
+    }
+
+    // Test matching the Content-Type with and without parameters
+    @Test
+    public void testIsBinary() {
+        assertTrue(BinaryWeatherCodec.isBinary(BinaryWeatherCodec.CONTENT_TYPE));
+        assertTrue(BinaryWeatherCodec.isBinary("Application/X-Weather-Observation; version=1"));
+        assertFalse(BinaryWeatherCodec.isBinary("application/json"));
+        assertFalse(BinaryWeatherCodec.isBinary(null));
+    }
+}
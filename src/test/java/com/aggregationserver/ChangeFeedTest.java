@@ -0,0 +1,64 @@
+package com.aggregationserver;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+
+import static org.junit.jupiter.api.Assertions.*;
+import org.junit.jupiter.api.Test;
+
+public class ChangeFeedTest {
+
+    // Test that each station is returned once, with its latest change, in the order of those changes
+    @Test
+    public void testReturnsLatestChangePerStation() {
+        ChangeFeed feed = new ChangeFeed(16);
+        long start = feed.getVersion();
+        feed.recordUpsert("IDS60901");
+        feed.recordUpsert("IDS60902");
+        long seen = feed.getVersion();
+        feed.recordRemoval("IDS60901");
+        feed.recordUpsert("IDS60903");
+        feed.recordUpsert("IDS60902");
+
+        Map<String, Boolean> changes = feed.since(seen);
+
+        assertEquals(List.of("IDS60901", "IDS60903", "IDS60902"), new ArrayList<>(changes.keySet()));
+        assertTrue(changes.get("IDS60901"));
+        assertFalse(changes.get("IDS60902"));
+        assertEquals(3, feed.since(start).size());
+        assertEquals(start + 5, feed.getVersion());
+        assertTrue(feed.since(feed.getVersion()).isEmpty());
+        assertNull(feed.since(feed.getVersion() + 1));  // Not a version this feed has issued
+    }
+
+    // Test that a version whose later changes have been overwritten must take a full snapshot
+    @Test
+    public void testOverwrittenChangesNeedSnapshot() {
+        ChangeFeed feed = new ChangeFeed(4);
+        long start = feed.getVersion();
+        for (int i = 0; i < 10; i++) {
+            feed.recordUpsert("IDS6090" + i);
+        }
+
+        assertNull(feed.since(start));
+        assertNull(feed.since(start + 5));  // Change 6 was overwritten
+        assertEquals(List.of("IDS60906", "IDS60907", "IDS60908", "IDS60909"),
+                new ArrayList<>(feed.since(start + 6).keySet()));
+    }
+
+    // Test that a reset sends every earlier version to a full snapshot
+    @Test
+    public void testResetNeedsSnapshot() {
+        ChangeFeed feed = new ChangeFeed(16);
+        feed.recordUpsert("IDS60901");
+        long seen = feed.getVersion();
+        feed.reset();
+
+        assertNull(feed.since(seen));
+        assertTrue(feed.since(feed.getVersion()).isEmpty());
+        long version = feed.getVersion();
+        feed.recordUpsert("IDS60902");
+        assertEquals(List.of("IDS60902"), new ArrayList<>(feed.since(version).keySet()));
+    }
+}
@@ -0,0 +1,128 @@
+package com.aggregationserver;
+
+import java.io.PrintWriter;
+import java.io.StringWriter;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+import static org.junit.jupiter.api.Assertions.*;
+import org.junit.jupiter.api.Test;
+
+public class ClusterManagerTest {
+
+    // Test that every station is local to exactly one node of the cluster
+    @Test
+    public void testEachStationHasOneOwner() {
+        ClusterManager node1 = new ClusterManager("localhost:4567", Arrays.asList("localhost:4568", "localhost:4569"));
+        ClusterManager node2 = new ClusterManager("localhost:4568", Arrays.asList("localhost:4567", "localhost:4569"));
+        ClusterManager node3 = new ClusterManager("localhost:4569", Arrays.asList("localhost:4567", "localhost:4568"));
+
+        for (int i = 0; i < 500; i++) {
+            String stationID = "IDS" + (60000 + i);
+            int owners = (node1.isLocal(stationID) ? 1 : 0) + (node2.isLocal(stationID) ? 1 : 0) + (node3.isLocal(stationID) ? 1 : 0);
+            assertEquals(1, owners, "Station " + stationID + " has " + owners + " owners");
+            assertEquals(node1.ownerOf(stationID), node2.ownerOf(stationID));
+        }
+    }
+
+    // Test that stations of a node that goes down are taken over by the others
+    @Test
+    public void testMarkDownMovesOwnership() {
+        ClusterManager node = new ClusterManager("localhost:4567", Arrays.asList("localhost:4568"));
+        assertEquals(1, node.getLivePeers().size());
+
+        node.markDown("localhost:4568");
+
+        assertTrue(node.getLivePeers().isEmpty());
+        assertTrue(node.isLocal("IDS60901"));
+        assertTrue(node.isLocal("IDS60902"));
+
+        node.nodeJoined("localhost:4568");
+        assertEquals(1, node.getLivePeers().size());
+    }
+
+    // Test that the forwarding marker is only trusted from a known peer's host
+    @Test
+    public void testIsFromPeer() {
+        ClusterManager node = new ClusterManager("localhost:4567", Arrays.asList("localhost:4568"));
+
+        assertTrue(node.isFromPeer("localhost:4568", "127.0.0.1"));
+        assertFalse(node.isFromPeer("localhost:4568", "192.0.2.1"));  // A client naming a peer
+        assertFalse(node.isFromPeer("localhost:4569", "127.0.0.1"));  // Not a member of the cluster
+        assertFalse(node.isFromPeer(null, "127.0.0.1"));
+        assertFalse(node.isFromPeer("localhost:4568", null));
+    }
+
+    // Test extracting the body from a relayed response
+    @Test
+    public void testResponseBody() {
+        assertEquals("{}\n", ClusterManager.responseBody("HTTP/1.1 200 OK\nContent-Type: application/json\n\n{}\n"));
+        assertEquals("{}", ClusterManager.responseBody("HTTP/1.1 200 OK\r\nContent-Length: 2\r\n\r\n{}"));
+        assertEquals("", ClusterManager.responseBody("HTTP/1.1 201 Created\n"));
+    }
+
+    // Test that gathered bodies are parsed in full, including escaped characters
+    @Test
+    public void testGatherParsesEscapes() {
+        ClusterManager node = new ClusterManager("localhost:4567", Arrays.asList("localhost:4568")) {
+            @Override
+            protected String exchange(String peer, HttpRequest request) {
+                return "HTTP/1.1 200 OK\r\nContent-Type: application/json\r\n\r\n"
+                        + "{\"IDS60902\": {\"id\": \"IDS60902\", \"name\": \"Say \\\"hi\\\"\\nA\\u00e9\"}}\n";
+            }
+        };
+
+        Map<String, Object> merged = node.gather(new LinkedHashMap<>());
+        assertEquals(Map.of("id", "IDS60902", "name", "Say \"hi\"\nA\u00e9"), merged.get("IDS60902"));
+    }
+
+    // Test that unreachable peers are skipped when gathering
+    @Test
+    public void testGatherSkipsUnreachablePeers() {
+        ClusterManager node = new ClusterManager("localhost:4567", Arrays.asList("localhost:1"));
+        Map<String, Object> localData = new LinkedHashMap<>();
+        localData.put("IDS60901", Map.of("id", "IDS60901"));
+
+        Map<String, Object> merged = node.gather(localData);
+        assertEquals(1, merged.size());
+        assertTrue(merged.containsKey("IDS60901"));
+    }
+
+    // Test that a client's keep-alive PUT is relayed to its owner and answered at once, not after a timeout
+    @Test
+    public void testForwardsKeepAlivePut() throws Exception {
+        try (ServerSocket owner = new ServerSocket(0)) {
+            Thread server = new Thread(() -> {
+                try {
+                    Socket socket = owner.accept();
+                    AggregationServer.handleConnection(socket);
+                } catch (Exception e) {
+                    // The test fails on the response below
+                }
+            });
+            server.start();
+
+            String peer = "localhost:" + owner.getLocalPort();
+            ClusterManager node = new ClusterManager("localhost:1", Arrays.asList(peer));
+            byte[] body = "{\"id\":\"IDF00001\", \"air_temp\":\"10.0\"}".getBytes(StandardCharsets.UTF_8);
+            Map<String, String> headers = new LinkedHashMap<>();
+            headers.put("Content-Type", "application/json");
+            headers.put("Content-Length", String.valueOf(body.length));
+            headers.put("Connection", "keep-alive");
+            StringWriter response = new StringWriter();
+            long start = System.nanoTime();
+            node.forward(peer, new HttpRequest("PUT /weather.json HTTP/1.1", headers, body), new PrintWriter(response));
+
+            assertTrue(response.toString().startsWith("HTTP/1.1 201 Created"), response.toString());
+            assertTrue(System.nanoTime() - start < ClusterManager.READ_TIMEOUT * 1_000_000L);
+            assertEquals(Arrays.asList(peer), node.getLivePeers());  // The owner was not marked down
+            server.join();
+        } finally {
+            AggregationServer.removeWeatherEntry("IDF00001");
+        }
+    }
+}
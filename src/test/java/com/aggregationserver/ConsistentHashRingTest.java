@@ -0,0 +1,87 @@
+package com.aggregationserver;
+
+import java.util.HashMap;
+import java.util.Map;
+
+import static org.junit.jupiter.api.Assertions.*;
+import org.junit.jupiter.api.Test;
+
+public class ConsistentHashRingTest {
+
+    // Test that an empty ring has no owner
+    @Test
+    public void testEmptyRing() {
+        ConsistentHashRing ring = new ConsistentHashRing();
+        assertNull(ring.ownerOf("IDS60901"));
+    }
+
+    // Test that a lookup always returns the same owner
+    @Test
+    public void testOwnerIsStable() {
+        ConsistentHashRing ring = new ConsistentHashRing();
+        ring.addNode("localhost:4567");
+        ring.addNode("localhost:4568");
+        ring.addNode("localhost:4569");
+
+        String owner = ring.ownerOf("IDS60901");
+        assertNotNull(owner);
+        for (int i = 0; i < 10; i++) {
+            assertEquals(owner, ring.ownerOf("IDS60901"));
+        }
+    }
+
+    // Test that stations are spread over every node
+    @Test
+    public void testStationsAreSpreadOverNodes() {
+        ConsistentHashRing ring = new ConsistentHashRing();
+        ring.addNode("localhost:4567");
+        ring.addNode("localhost:4568");
+        ring.addNode("localhost:4569");
+
+        Map<String, Integer> counts = new HashMap<>();
+        for (int i = 0; i < 3000; i++) {
+            counts.merge(ring.ownerOf("IDS" + (60000 + i)), 1, Integer::sum);
+        }
+
+        assertEquals(3, counts.size());
+        for (int count : counts.values()) {
+            assertTrue(count > 500, "Uneven spread: " + counts);
+        }
+    }
+
+    // Test that removing a node only moves the stations it owned
+    @Test
+    public void testRemovingNodeOnlyMovesItsStations() {
+        ConsistentHashRing ring = new ConsistentHashRing();
+        ring.addNode("localhost:4567");
+        ring.addNode("localhost:4568");
+        ring.addNode("localhost:4569");
+
+        Map<String, String> before = new HashMap<>();
+        for (int i = 0; i < 1000; i++) {
+            before.put("IDS" + i, ring.ownerOf("IDS" + i));
+        }
+
+        assertTrue(ring.removeNode("localhost:4568"));
+        assertFalse(ring.containsNode("localhost:4568"));
+
+        for (Map.Entry<String, String> entry : before.entrySet()) {
+            String owner = ring.ownerOf(entry.getKey());
+            assertNotEquals("localhost:4568", owner);
+            if (!entry.getValue().equals("localhost:4568")) {
+                assertEquals(entry.getValue(), owner);
+            }
+        }
+    }
+
+    // Test that each node holds the configured number of virtual nodes
+    @Test
+    public void testVirtualNodes() {
+        ConsistentHashRing ring = new ConsistentHashRing(16);
+        assertTrue(ring.addNode("localhost:4567"));
+        assertFalse(ring.addNode("localhost:4567"));  // Adding twice has no effect
+
+        assertEquals(16, ring.pointsPerNode().get("localhost:4567"));
+        assertEquals(1, ring.getNodes().size());
+    }
+}
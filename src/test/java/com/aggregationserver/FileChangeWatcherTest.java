@@ -0,0 +1,75 @@
+package com.aggregationserver;
+
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
+
+import static org.junit.jupiter.api.Assertions.*;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+public class FileChangeWatcherTest {
+
+    @TempDir
+    Path tempDir;
+
+    private final List<Path> changes = new CopyOnWriteArrayList<>();
+    private FileChangeWatcher watcher;
+
+    @BeforeEach
+    public void setup() throws Exception {
+        watcher = new FileChangeWatcher(changes::add);
+        watcher.watchDirectory(tempDir);
+        watcher.watchDirectory(tempDir);  // Watching twice is harmless
+        watcher.start();
+    }
+
+    @AfterEach
+    public void tearDown() {
+        watcher.close();
+    }
+
+    /**
+     * Waits until at least the given number of changes have been reported, or times out.
+     */
+    private void awaitChanges(int count) throws InterruptedException {
+        long deadline = System.currentTimeMillis() + 10000;
+        while (changes.size() < count && System.currentTimeMillis() < deadline) {
+            Thread.sleep(20);
+        }
+    }
+
+    // Test that a burst of writes to one file is reported once, after the file goes quiet
+    @Test
+    public void testDebouncesBurstOfWrites() throws Exception {
+        Path file = tempDir.resolve("station.txt");
+        for (int i = 0; i < 5; i++) {
+            Files.write(file, ("id:IDS60901\nair_temp:" + i + "\n").getBytes(StandardCharsets.UTF_8));
+            Thread.sleep(20);
+        }
+        awaitChanges(1);
+        Thread.sleep(FileChangeWatcher.DEBOUNCE_MILLIS * 2);  // Allow for any extra report
+
+        assertEquals(List.of(file.toAbsolutePath().normalize()), changes);
+    }
+
+    // Test that changes to different files are reported separately
+    @Test
+    public void testReportsEachChangedFile() throws Exception {
+        Path first = tempDir.resolve("a.txt");
+        Path second = tempDir.resolve("b.txt");
+        Files.write(first, "id:A\n".getBytes(StandardCharsets.UTF_8));
+        Files.write(second, "id:B\n".getBytes(StandardCharsets.UTF_8));
+        awaitChanges(2);
+        Files.delete(first);
+        awaitChanges(3);
+
+        assertEquals(3, changes.size());
+        assertTrue(changes.subList(0, 2).containsAll(List.of(first, second)));
+        assertEquals(first, changes.get(2));
+    }
+}
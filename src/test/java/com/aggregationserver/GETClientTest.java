@@ -4,20 +4,33 @@ import java.io.BufferedReader;
 import java.io.ByteArrayInputStream;
 import java.io.ByteArrayOutputStream;
 import java.io.File;
+import java.io.IOException;
 import java.io.InputStream;
 import java.io.OutputStream;
 import java.io.PrintStream;
 import java.io.PrintWriter;
 import java.io.StringReader;
+import java.net.ServerSocket;
 import java.net.Socket;
 import java.nio.charset.StandardCharsets;
 import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
 
 import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertNull;
 import static org.junit.jupiter.api.Assertions.assertThrows;
 import static org.junit.jupiter.api.Assertions.assertTrue;
 import org.junit.jupiter.api.BeforeEach;
 import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
 import static org.mockito.Mockito.mock;
 import static org.mockito.Mockito.verify;
 import static org.mockito.Mockito.when;
@@ -124,4 +137,117 @@ public class GETClientTest {
         getClient.sendGetRequest("localhost:4567", "IDS60901");
         assertEquals(1, clock.getTime());
     }
+
+    // Test that many stations are fetched in parallel over a few pooled connections
+    @Test
+    public void testFetchStationsAsync_Pooled(@TempDir Path tempDir) throws Exception {
+        String savedDataFilePath = AggregationServer.dataFilePath;
+        AggregationServer.dataFilePath = tempDir.resolve("weatherData.json").toString();
+        AtomicInteger accepted = new AtomicInteger();
+        ExecutorService acceptor = Executors.newCachedThreadPool();
+        List<String> ids = new ArrayList<>();
+        try (ServerSocket serverSocket = new ServerSocket(0)) {
+            acceptor.execute(() -> {
+                try {
+                    while (true) {
+                        Socket socket = serverSocket.accept();
+                        accepted.incrementAndGet();
+                        acceptor.execute(() -> AggregationServer.handleConnection(socket));
+                    }
+                } catch (Exception e) {
+                    // Server socket closed
+                }
+            });
+
+            // Store the stations through a keep-alive connection of their own
+            HttpConnectionPool uploads = new HttpConnectionPool("localhost", serverSocket.getLocalPort());
+            List<byte[]> bodies = new ArrayList<>();
+            for (int i = 0; i < AggregationServer.MAX_ENTRIES; i++) {
+                ids.add("IDG" + (10000 + i));
+                bodies.add(("{\"id\":\"" + ids.get(i) + "\",\"air_temp\":\"" + i + "\"}").getBytes(StandardCharsets.UTF_8));
+            }
+            uploads.sendAll("PUT /weather.json HTTP/1.1", new String[0], bodies);
+            uploads.close();
+
+            GETClient client = new GETClient("localhost:" + serverSocket.getLocalPort(), 3);
+            List<String> requested = new ArrayList<>(ids);
+            requested.add(10, "IDG99999");  // A station the server does not have
+            Map<String, Map<String, Object>> stations = client.fetchStationsAsync(requested).get(10, TimeUnit.SECONDS);
+
+            assertEquals(ids, new ArrayList<>(stations.keySet()));  // In the order requested, without the missing one
+            assertEquals("7", stations.get("IDG10007").get("air_temp"));
+            assertEquals("IDG10019", client.fetchStationAsync("IDG10019").get(10, TimeUnit.SECONDS).get("id"));
+            assertNull(client.fetchStationAsync("IDG99999").get(10, TimeUnit.SECONDS));
+            assertTrue(client.fetchAllAsync().get(10, TimeUnit.SECONDS).keySet().containsAll(ids));
+            assertTrue(accepted.get() <= 4, "Opened " + accepted.get() + " connections");  // 3 for the client
+            client.close();
+        } finally {
+            acceptor.shutdownNow();
+            for (String id : ids) {
+                AggregationServer.removeWeatherEntry(id);  // Leave the shared store as other tests expect it
+            }
+            AggregationServer.dataFilePath = savedDataFilePath;
+        }
+    }
+
+    // Test that sync mode keeps a mirror up to date with only the changes since the last sync
+    @Test
+    public void testSyncAsync_Mirror(@TempDir Path tempDir) throws Exception {
+        String savedDataFilePath = AggregationServer.dataFilePath;
+        AggregationServer.dataFilePath = tempDir.resolve("weatherData.json").toString();
+        ExecutorService acceptor = Executors.newCachedThreadPool();
+        try (ServerSocket serverSocket = new ServerSocket(0)) {
+            acceptor.execute(() -> {
+                try {
+                    while (true) {
+                        Socket socket = serverSocket.accept();
+                        acceptor.execute(() -> AggregationServer.handleConnection(socket));
+                    }
+                } catch (Exception e) {
+                    // Server socket closed
+                }
+            });
+            HttpConnectionPool uploads = new HttpConnectionPool("localhost", serverSocket.getLocalPort());
+            uploads.send("PUT /weather.json HTTP/1.1", new String[0], "{\"id\":\"IDY00001\",\"air_temp\":\"1.0\"}".getBytes(StandardCharsets.UTF_8));
+            uploads.send("PUT /weather.json HTTP/1.1", new String[0], "{\"id\":\"IDY00002\",\"air_temp\":\"2.0\"}".getBytes(StandardCharsets.UTF_8));
+
+            GETClient client = new GETClient("localhost:" + serverSocket.getLocalPort(), 1);
+            client.syncAsync().get(10, TimeUnit.SECONDS);
+            assertEquals("1.0", client.getMirror().get("IDY00001").get("air_temp"));
+            assertTrue(client.getMirror().containsKey("IDY00002"));
+            long version = client.getMirrorVersion();
+
+            uploads.send("PUT /weather.json HTTP/1.1", new String[0], "{\"id\":\"IDY00001\",\"air_temp\":\"1.5\"}".getBytes(StandardCharsets.UTF_8));
+            AggregationServer.removeWeatherEntry("IDY00002");
+            Map<String, Map<String, Object>> changes = client.syncAsync().get(10, TimeUnit.SECONDS);
+
+            assertEquals(List.of("IDY00001", "IDY00002"), new ArrayList<>(changes.keySet()));  // Only what changed
+            assertNull(changes.get("IDY00002"));
+            assertEquals("1.5", client.getMirror().get("IDY00001").get("air_temp"));
+            assertTrue(!client.getMirror().containsKey("IDY00002"));
+            assertTrue(client.getMirrorVersion() > version);
+            assertTrue(client.syncAsync().get(10, TimeUnit.SECONDS).isEmpty());
+            uploads.close();
+            client.close();
+        } finally {
+            acceptor.shutdownNow();
+            AggregationServer.removeWeatherEntry("IDY00001");  // Leave the shared store as other tests expect it
+            AggregationServer.dataFilePath = savedDataFilePath;
+        }
+    }
+
+    // Test that a client for an unreachable server fails its futures instead of blocking
+    @Test
+    public void testFetchStationAsync_Unreachable() throws Exception {
+        int port;
+        try (ServerSocket closed = new ServerSocket(0)) {
+            port = closed.getLocalPort();
+        }
+        GETClient client = new GETClient("localhost:" + port);
+
+        ExecutionException exception = assertThrows(ExecutionException.class,
+                () -> client.fetchStationAsync("IDS60901").get(10, TimeUnit.SECONDS));
+        assertTrue(exception.getCause() instanceof IOException);
+        client.close();
+    }
 }
@@ -0,0 +1,153 @@
+package com.aggregationserver;
+
+import java.io.BufferedInputStream;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.junit.jupiter.api.Assertions.*;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+public class HttpConnectionPoolTest {
+
+    private static final String[] JSON_HEADERS = {"Content-Type: application/json"};
+
+    @TempDir
+    Path tempDir;
+
+    private ServerSocket serverSocket;
+    private ExecutorService acceptor;
+    private final AtomicInteger accepted = new AtomicInteger();
+    private String savedDataFilePath;
+
+    @BeforeEach
+    public void setup() throws Exception {
+        savedDataFilePath = AggregationServer.dataFilePath;
+        AggregationServer.dataFilePath = tempDir.resolve("weatherData.json").toString();
+        serverSocket = new ServerSocket(0);
+        acceptor = Executors.newCachedThreadPool();
+    }
+
+    @AfterEach
+    public void tearDown() throws Exception {
+        serverSocket.close();
+        acceptor.shutdownNow();
+        AggregationServer.removeWeatherEntry("IDP00001");  // Leave the shared store as other tests expect it
+        AggregationServer.dataFilePath = savedDataFilePath;
+    }
+
+    /**
+     * Serves connections with the given handler, counting them.
+     */
+    private void serve(ConnectionHandler handler) {
+        acceptor.execute(() -> {
+            try {
+                while (true) {
+                    Socket socket = serverSocket.accept();
+                    accepted.incrementAndGet();
+                    acceptor.execute(() -> {
+                        try {
+                            handler.handle(socket);
+                        } catch (Exception e) {
+                            // Connection closed by the test
+                        }
+                    });
+                }
+            } catch (Exception e) {
+                // Server socket closed
+            }
+        });
+    }
+
+    interface ConnectionHandler {
+        void handle(Socket socket) throws Exception;
+    }
+
+    // Test that consecutive requests reuse one keep-alive connection to the AggregationServer
+    @Test
+    public void testRequestsShareConnection() throws Exception {
+        serve(AggregationServer::handleConnection);
+        HttpConnectionPool pool = new HttpConnectionPool("localhost", serverSocket.getLocalPort());
+        byte[] body = "{\"id\":\"IDP00001\",\"air_temp\":\"13.3\"}".getBytes(StandardCharsets.UTF_8);
+
+        assertEquals(201, pool.send("PUT /weather.json HTTP/1.1", JSON_HEADERS, body).getStatus());
+        assertEquals(200, pool.send("PUT /weather.json HTTP/1.1", JSON_HEADERS, body).getStatus());
+        HttpConnectionPool.Response response = pool.send("GET /weather/IDP00001 HTTP/1.1", new String[0], new byte[0]);
+
+        assertEquals(200, response.getStatus());
+        assertTrue(response.getBodyAsString().startsWith("{\"id\":\"IDP00001\""));
+        assertEquals(1, accepted.get());
+        assertEquals(1, pool.idleConnections());
+        pool.close();
+    }
+
+    // Test that pipelined requests are all answered, in order, on one connection
+    @Test
+    public void testPipelinedRequests() throws Exception {
+        serve(AggregationServer::handleConnection);
+        HttpConnectionPool pool = new HttpConnectionPool("localhost", serverSocket.getLocalPort());
+        List<byte[]> bodies = new ArrayList<>();
+        for (int i = 0; i < 10; i++) {
+            bodies.add(("{\"id\":\"IDP00001\",\"air_temp\":\"" + i + "\"}").getBytes(StandardCharsets.UTF_8));
+        }
+
+        List<HttpConnectionPool.Response> responses = pool.sendAll("PUT /weather.json HTTP/1.1", JSON_HEADERS, bodies);
+
+        assertEquals(10, responses.size());
+        assertEquals(201, responses.get(0).getStatus());
+        for (int i = 1; i < 10; i++) {
+            assertEquals(200, responses.get(i).getStatus());
+        }
+        HttpConnectionPool.Response latest = pool.send("GET /weather/IDP00001 HTTP/1.1", new String[0], new byte[0]);
+        assertTrue(latest.getBodyAsString().contains("\"air_temp\":\"9\""), latest.getBodyAsString());
+        assertEquals(1, accepted.get());
+        pool.close();
+    }
+
+    // Test that a request on a connection the server has closed is retried on a new one
+    @Test
+    public void testReconnectsAfterServerClosesConnection() throws Exception {
+        serve(socket -> {
+            try (Socket s = socket) {
+                InputStream in = new BufferedInputStream(s.getInputStream());
+                OutputStream out = s.getOutputStream();
+                HttpRequest request = HttpRequest.read(in);
+                request.discardBody();
+                AggregationServer.writeKeepAliveResponse(out, "HTTP/1.1 201 Created\n");
+            }  // Closes after one response, like a server dropping an idle connection
+        });
+        HttpConnectionPool pool = new HttpConnectionPool("localhost", serverSocket.getLocalPort());
+
+        assertEquals(201, pool.send("PUT /weather.json HTTP/1.1", JSON_HEADERS, new byte[]{'{', '}'}).getStatus());
+        Thread.sleep(100);  // Let the server close its end
+        assertEquals(201, pool.send("PUT /weather.json HTTP/1.1", JSON_HEADERS, new byte[]{'{', '}'}).getStatus());
+        assertEquals(2, accepted.get());
+        pool.close();
+    }
+
+    // Test that a server which closes instead of keeping the connection alive is reported
+    @Test
+    public void testRejectsServerWithoutKeepAlive() throws Exception {
+        serve(socket -> {
+            try (Socket s = socket) {
+                HttpRequest.read(new BufferedInputStream(s.getInputStream())).discardBody();
+                s.getOutputStream().write("HTTP/1.1 200 OK\n".getBytes(StandardCharsets.UTF_8));
+            }
+        });
+        HttpConnectionPool pool = new HttpConnectionPool("localhost", serverSocket.getLocalPort());
+
+        assertThrows(Exception.class, () -> pool.send("GET /weather HTTP/1.1", new String[0], new byte[0]));
+        assertEquals(0, pool.idleConnections());
+    }
+}
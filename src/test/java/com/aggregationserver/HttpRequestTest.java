@@ -0,0 +1,74 @@
+package com.aggregationserver;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+import static org.junit.jupiter.api.Assertions.*;
+import org.junit.jupiter.api.Test;
+
+public class HttpRequestTest {
+
+    // Test reading a PUT request with a body
+    @Test
+    public void testReadPutRequest() throws Exception {
+        String raw = "PUT /weather.json HTTP/1.1\r\nContent-Type: application/json\r\nContent-Length: 17\r\n\r\n{\"id\":\"IDS60901\"}";
+        HttpRequest request = HttpRequest.read(new ByteArrayInputStream(raw.getBytes(StandardCharsets.UTF_8)));
+
+        assertEquals("PUT", request.getMethod());
+        assertEquals("/weather.json", request.getPath());
+        assertEquals("application/json", request.getHeader("content-type"));
+        assertEquals("{\"id\":\"IDS60901\"}", request.getBodyAsString());
+        assertFalse(request.isForwarded());
+    }
+
+    // Test reading a GET request terminated by plain newlines
+    @Test
+    public void testReadGetRequest() throws Exception {
+        String raw = "GET /weather/IDS60901 HTTP/1.1\nUser-Agent: GETClient/1.0\n\n";
+        HttpRequest request = HttpRequest.read(new ByteArrayInputStream(raw.getBytes(StandardCharsets.UTF_8)));
+
+        assertEquals("GET", request.getMethod());
+        assertEquals("/weather/IDS60901", request.getPath());
+        assertEquals(0, request.getBody().length);
+    }
+
+    // Test that an empty stream yields no request
+    @Test
+    public void testReadEmptyStream() throws Exception {
+        assertNull(HttpRequest.read(new ByteArrayInputStream(new byte[0])));
+    }
+
+    // Test writing a request with an added forwarding header
+    @Test
+    public void testWriteToAddsHeaders() throws Exception {
+        Map<String, String> headers = new LinkedHashMap<>();
+        headers.put("Content-Length", "2");
+        HttpRequest request = new HttpRequest("PUT /weather.json HTTP/1.1", headers, "{}".getBytes(StandardCharsets.UTF_8));
+
+        Map<String, String> extraHeaders = new LinkedHashMap<>();
+        extraHeaders.put(HttpRequest.FORWARDED_HEADER, "localhost:4567");
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        request.writeTo(out, extraHeaders);
+
+        HttpRequest copy = HttpRequest.read(new ByteArrayInputStream(out.toByteArray()));
+        assertTrue(copy.isForwarded());
+        assertEquals("{}", copy.getBodyAsString());
+    }
+
+    // Test that the query string is split off the path and its parameters are decoded
+    @Test
+    public void testQueryParameters() throws Exception {
+        String raw = "GET /weather?ids=IDS60901%2CIDS60902&fields=air_temp,press&flag HTTP/1.1\n\n";
+        HttpRequest request = HttpRequest.read(new ByteArrayInputStream(raw.getBytes(StandardCharsets.UTF_8)));
+
+        assertEquals("/weather", request.getPath());
+        assertEquals("IDS60901,IDS60902", request.getQueryParameter("ids"));
+        assertEquals("air_temp,press", request.getQueryParameter("fields"));
+        assertEquals("", request.getQueryParameter("flag"));
+        assertNull(request.getQueryParameter("other"));
+        assertNull(new HttpRequest("GET /weather HTTP/1.1", new LinkedHashMap<>(), new byte[0]).getQueryParameter("ids"));
+    }
+}
@@ -0,0 +1,227 @@
+package com.aggregationserver;
+
+import java.io.ByteArrayInputStream;
+import java.lang.management.ManagementFactory;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * Micro-benchmarks for JSONParser and JSONWriter on typical BoM weather payloads.
+ * Not a unit test; run it with:
+ * <pre>
+ * mvn test-compile exec:java -Dexec.classpathScope=test -Dexec.mainClass=com.aggregationserver.JSONParserBenchmark
+ * </pre>
+ * The bulk SIMD cases only run when the JVM has the Vector API, e.g. with
+ * {@code MAVEN_OPTS="--add-modules jdk.incubator.vector"}.
+ * Each case is warmed up first, then timed over a fixed number of iterations; the bytes
+ * allocated per operation are measured with the HotSpot thread allocation counter.
+ */
+public class JSONParserBenchmark {
+
+    private static final int WARMUP_ITERATIONS = 200_000;
+    private static final int ITERATIONS = 500_000;
+
+    // Accumulates results so that the JIT cannot discard the parsing work
+    private static long sink;
+
+    public static void main(String[] args) throws Exception {
+        byte[] observation = observationJson(0).getBytes(StandardCharsets.UTF_8);
+        byte[] snapshot = snapshotJson(20).getBytes(StandardCharsets.UTF_8);
+
+        System.out.println("Single observation (" + observation.length + " bytes):");
+        runCases(observation, ITERATIONS);
+        System.out.println("Snapshot of 20 stations (" + snapshot.length + " bytes):");
+        runCases(snapshot, ITERATIONS / 20);
+        System.out.println("PUT handling of a single observation (id lookup + lastUpdated):");
+        runPutCases(observation, ITERATIONS);
+        System.out.println("Writing the snapshot of 20 stations (" + snapshot.length + " bytes):");
+        runWriteCases(snapshot, ITERATIONS / 20);
+        byte[] bulk = snapshotJson(10_000).getBytes(StandardCharsets.UTF_8);
+        System.out.println("Bulk snapshot of 10000 stations (" + bulk.length + " bytes, SIMD "
+                + (StructuralIndex.isVectorized() ? "available" : "not available") + "):");
+        runBulkCases(bulk, 40);
+        System.out.println("(ignore) " + sink);
+    }
+
+    private static void runCases(byte[] json, int iterations) throws Exception {
+        JSONParser parser = new JSONParser();
+
+        time("decode + parse(String)", json.length, iterations, () -> {
+            String text = new String(json, StandardCharsets.UTF_8);
+            return parser.parse(text);
+        });
+        time("parse(byte[])", json.length, iterations, () -> parser.parse(json));
+        time("stream InputStream", json.length, iterations, () -> {
+            JSONParser streaming = new JSONParser(new ByteArrayInputStream(json));
+            streaming.nextToken();
+            return streaming.readValue();
+        });
+    }
+
+    private static void runBulkCases(byte[] json, int iterations) throws Exception {
+        JSONParser parser = new JSONParser();
+        StructuralScanner scalar = new ScalarStructuralScanner();
+
+        time("token parse(byte[])", json.length, iterations, () -> {
+            parser.reset(json, 0, json.length);  // Bypasses the index
+            parser.nextToken();
+            return ((Map<?, ?>) parser.readValue()).size();  // Hashing the whole result would dominate
+        });
+        time("index, scalar", json.length, iterations, () -> StructuralIndex.build(json, 0, json.length, scalar).size());
+        time("index + parse, scalar", json.length, iterations,
+                () -> ((Map<?, ?>) StructuralIndex.build(json, 0, json.length, scalar).parse()).size());
+        if (StructuralIndex.isVectorized()) {
+            StructuralScanner vector = new VectorStructuralScanner();
+            time("index, SIMD", json.length, iterations, () -> StructuralIndex.build(json, 0, json.length, vector).size());
+            time("index + parse, SIMD", json.length, iterations,
+                    () -> ((Map<?, ?>) StructuralIndex.build(json, 0, json.length, vector).parse()).size());
+        }
+        time("parse(byte[])", json.length, iterations, () -> ((Map<?, ?>) parser.parse(json)).size());
+    }
+
+    private static void runPutCases(byte[] json, int iterations) throws Exception {
+        JSONParser parser = new JSONParser();
+
+        time("Map: parse + put", json.length, iterations, () -> {
+            Map<String, Object> data = (Map<String, Object>) parser.parse(json);
+            data.put("lastUpdated", 1696000000000L);
+            return data.get("id");
+        });
+        time("codec: decode + set", json.length, iterations, () -> {
+            WeatherObservation observation = WeatherCodec.decode(json);
+            observation.setLastUpdated(1696000000000L);
+            return observation.getId();
+        });
+
+        // Every PUT also re-serializes the whole store to persist it
+        Map<String, Object> mapStore = new LinkedHashMap<>();
+        Map<String, Object> codecStore = new LinkedHashMap<>();
+        for (int i = 0; i < 20; i++) {
+            byte[] station = observationJson(i).getBytes(StandardCharsets.UTF_8);
+            mapStore.put("IDS" + (60901 + i), parser.parse(station));
+            codecStore.put("IDS" + (60901 + i), WeatherCodec.decode(station));
+        }
+        ByteBuffer[] file = {ByteBuffer.allocate(16 * 1024)};  // Stands in for the snapshot file
+        time("Map: PUT + persist 20", json.length, iterations / 20, () -> {
+            Map<String, Object> data = (Map<String, Object>) parser.parse(json);
+            data.put("lastUpdated", 1696000000000L);
+            mapStore.put((String) data.get("id"), data);
+            return persist(mapStore, file);
+        });
+        time("codec: PUT + persist 20", json.length, iterations / 20, () -> {
+            WeatherObservation observation = WeatherCodec.decode(json);
+            observation.setLastUpdated(1696000000000L);
+            codecStore.put(observation.getId(), observation);
+            return persist(codecStore, file);
+        });
+    }
+
+    /**
+     * Writes a store the way saveDataToFile does, into a reused buffer.
+     */
+    private static int persist(Map<String, Object> store, ByteBuffer[] file) throws Exception {
+        file[0].clear();
+        JSONWriter writer = new JSONWriter(file[0], true);
+        writer.write(store);
+        file[0] = writer.getByteBuffer();
+        return file[0].position();
+    }
+
+    @SuppressWarnings("unchecked")
+    private static void runWriteCases(byte[] json, int iterations) throws Exception {
+        JSONParser parser = new JSONParser();
+        Map<String, Object> snapshot = (Map<String, Object>) parser.parse(json);
+
+        time("stringify compact", json.length, iterations, () -> parser.stringify(snapshot));
+        time("stringify pretty", json.length, iterations, () -> parser.stringify(snapshot, 2));
+        StringBuilder text = new StringBuilder(json.length);
+        time("writer -> StringBuilder", json.length, iterations, () -> {
+            text.setLength(0);
+            new JSONWriter(text, true).write(snapshot).flush();
+            return text.length();
+        });
+        ByteBuffer[] buffer = {ByteBuffer.allocate(1024)};
+        time("writer -> ByteBuffer", json.length, iterations, () -> {
+            buffer[0].clear();
+            JSONWriter writer = new JSONWriter(buffer[0], true);
+            writer.write(snapshot);
+            buffer[0] = writer.getByteBuffer();  // Keep the grown buffer for the next run
+            return buffer[0].position();
+        });
+    }
+
+    /**
+     * A case to time; returns the parse result.
+     */
+    interface Case {
+        Object run() throws Exception;
+    }
+
+    protected static void time(String name, int bytes, int iterations, Case benchmark) throws Exception {
+        for (int i = 0; i < Math.min(WARMUP_ITERATIONS / 10, iterations); i++) {
+            sink += benchmark.run().hashCode();
+        }
+        long allocatedBefore = allocatedBytes();
+        long start = System.nanoTime();
+        for (int i = 0; i < iterations; i++) {
+            sink += benchmark.run().hashCode();
+        }
+        long elapsed = System.nanoTime() - start;
+        long allocated = allocatedBytes() - allocatedBefore;
+        double nsPerOp = (double) elapsed / iterations;
+        double mbPerSecond = (double) bytes * iterations / (elapsed / 1e9) / (1024 * 1024);
+        System.out.printf("  %-24s %10.0f ns/op %10.1f MB/s %10d B/op%n", name, nsPerOp, mbPerSecond, allocated / iterations);
+    }
+
+    /**
+     * Returns the bytes allocated so far by the current thread.
+     */
+    private static long allocatedBytes() {
+        return ((com.sun.management.ThreadMXBean) ManagementFactory.getThreadMXBean()).getCurrentThreadAllocatedBytes();
+    }
+
+    /**
+     * Builds an observation as sent by ContentServer (all values as strings).
+     */
+    protected static String observationJson(int station) {
+        return new JSONParser().stringify(observation(station));
+    }
+
+    /**
+     * Builds a snapshot as written by AggregationServer.saveDataToFile.
+     */
+    protected static String snapshotJson(int stations) {
+        Map<String, Object> snapshot = new LinkedHashMap<>();
+        for (int i = 0; i < stations; i++) {
+            Map<String, Object> data = observation(i);
+            data.put("lastUpdated", 1696000000000L + i);
+            snapshot.put((String) data.get("id"), data);
+        }
+        return new JSONParser().stringify(snapshot, 2);
+    }
+
+    private static Map<String, Object> observation(int station) {
+        Map<String, Object> data = new LinkedHashMap<>();
+        data.put("id", "IDS" + (60901 + station));
+        data.put("name", "Adelaide (West Terrace / ngayirdapira)");
+        data.put("state", "SA");
+        data.put("time_zone", "CST");
+        data.put("lat", "-34.9");
+        data.put("lon", "138.6");
+        data.put("local_date_time", "15/04:00pm");
+        data.put("local_date_time_full", "20230715160000");
+        data.put("air_temp", "13.3");
+        data.put("apparent_t", "9.5");
+        data.put("cloud", "Partly cloudy");
+        data.put("dewpt", "5.7");
+        data.put("press", "1023.9");
+        data.put("rel_hum", "60");
+        data.put("wind_dir", "S");
+        data.put("wind_spd_kmh", "15");
+        data.put("wind_spd_kt", "8");
+        data.put("lamportTime", station);
+        return data;
+    }
+}
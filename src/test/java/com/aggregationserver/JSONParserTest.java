@@ -2,6 +2,13 @@ package com.aggregationserver;
 
 import org.junit.jupiter.api.Test;
 import static org.junit.jupiter.api.Assertions.*;
+import java.io.ByteArrayInputStream;
+import java.io.StringReader;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
 import java.util.Map;
 import java.util.List;
 
@@ -47,4 +54,198 @@ public class JSONParserTest {
         String jsonString = parser.stringify(array);
         assertEquals("[\"Red\",\"Green\",\"Blue\"]", jsonString);
     }
+
+    @Test
+    public void testStreamingTokens() throws Exception {
+        JSONParser parser = new JSONParser(new StringReader("{\"id\":\"IDS60901\", \"lamportTime\": 3, \"tags\": [true, null, -1.5]}"));
+
+        assertEquals(JSONParser.Token.START_OBJECT, parser.nextToken());
+        assertEquals(JSONParser.Token.FIELD_NAME, parser.nextToken());
+        assertEquals("id", parser.currentString());
+        assertEquals(JSONParser.Token.STRING, parser.nextToken());
+        assertEquals("IDS60901", parser.currentString());
+        assertEquals(JSONParser.Token.FIELD_NAME, parser.nextToken());
+        assertEquals(JSONParser.Token.NUMBER, parser.nextToken());
+        assertEquals(3, parser.currentNumber());
+        assertEquals(JSONParser.Token.FIELD_NAME, parser.nextToken());
+        assertEquals(JSONParser.Token.START_ARRAY, parser.nextToken());
+        assertEquals(JSONParser.Token.TRUE, parser.nextToken());
+        assertEquals(JSONParser.Token.NULL, parser.nextToken());
+        assertEquals(JSONParser.Token.NUMBER, parser.nextToken());
+        assertEquals(-1.5, parser.currentNumber());
+        assertEquals(JSONParser.Token.END_ARRAY, parser.nextToken());
+        assertEquals(JSONParser.Token.END_OBJECT, parser.nextToken());
+        assertEquals(JSONParser.Token.END_DOCUMENT, parser.nextToken());
+    }
+
+    @Test
+    public void testStreamingReadValueAcrossBufferRefills() throws Exception {
+        // Build a document several times larger than the stream buffer
+        StringBuilder json = new StringBuilder("{");
+        for (int i = 0; i < 200; i++) {
+            json.append(i > 0 ? "," : "").append("\"IDS").append(60000 + i).append("\":{\"air_temp\":\"13.3\",\"lamportTime\":").append(i).append("}");
+        }
+        json.append("}");
+        assertTrue(json.length() > 4 * JSONParser.STREAM_BUFFER_SIZE);
+
+        JSONParser parser = new JSONParser(new StringReader(json.toString()));
+        parser.nextToken();
+        Map<String, Object> result = (Map<String, Object>) parser.readValue();
+
+        assertEquals(200, result.size());
+        assertEquals(199, ((Map<String, Object>) result.get("IDS60199")).get("lamportTime"));
+    }
+
+    @Test
+    public void testStreamingFromInputStream() throws Exception {
+        String json = "{\"name\":\"Adelaide (West Terrace / ngayirdapira) \u00b0C\",\"quote\":\"say \\\"hi\\\"\\n\",\"code\":\"\\u0041\"}";
+        JSONParser parser = new JSONParser(new ByteArrayInputStream(json.getBytes(StandardCharsets.UTF_8)));
+        parser.nextToken();
+        Map<String, Object> result = (Map<String, Object>) parser.readValue();
+
+        assertEquals("Adelaide (West Terrace / ngayirdapira) \u00b0C", result.get("name"));
+        assertEquals("say \"hi\"\n", result.get("quote"));
+        assertEquals("A", result.get("code"));
+    }
+
+    @Test
+    public void testStreamingSkipChildren() throws Exception {
+        JSONParser parser = new JSONParser(new StringReader("{\"skip\":{\"a\":[1,{\"b\":2}]},\"keep\":\"yes\"}"));
+        parser.nextToken();
+        parser.nextToken();  // "skip"
+        parser.nextToken();  // {
+        parser.skipChildren();
+
+        assertEquals(JSONParser.Token.FIELD_NAME, parser.nextToken());
+        assertEquals("keep", parser.currentString());
+    }
+
+    @Test
+    public void testStreamingRejectsTruncatedInput() {
+        JSONParser parser = new JSONParser(new StringReader("{\"id\":\"IDS60901\""));
+        assertThrows(Exception.class, () -> {
+            parser.nextToken();
+            parser.readValue();
+        });
+    }
+
+    @Test
+    public void testParseUtf8BytesMatchesStringParse() throws Exception {
+        String json = "{\"id\":\"IDS60901\",\"name\":\"Adelaide (West Terrace / ngayirdapira)\",\"lat\":-34.9,"
+                + "\"wind_spd_kmh\":15,\"lastUpdated\":1696000000000,\"subjects\":[\"Math\",\"Science\"],\"score\":null}";
+        JSONParser parser = new JSONParser();
+
+        Object fromString = parser.parse(json);
+        Object fromBytes = parser.parse(json.getBytes(StandardCharsets.UTF_8));
+
+        assertEquals(fromString, fromBytes);
+        assertEquals(1696000000000L, ((Map<String, Object>) fromBytes).get("lastUpdated"));
+    }
+
+    @Test
+    public void testParseUtf8NonAsciiAndEscapes() throws Exception {
+        // Raw multi-byte characters, an escaped surrogate pair and escaped control characters
+        String json = "{\"name\":\"M\u00fcnster \u00b0C\",\"emoji\":\"\\ud83c\\udf27\",\"text\":\"a\\tb\\\"c\"}";
+        Map<String, Object> result = (Map<String, Object>) new JSONParser().parse(json.getBytes(StandardCharsets.UTF_8));
+
+        assertEquals("M\u00fcnster \u00b0C", result.get("name"));
+        assertEquals("\ud83c\udf27", result.get("emoji"));
+        assertEquals("a\tb\"c", result.get("text"));
+    }
+
+    @Test
+    public void testParseUtf8UnpairedSurrogates() throws Exception {
+        // An unpaired surrogate becomes U+FFFD whatever follows it, and a following escape is still decoded
+        String json = "[\"\\uD83D\\n\", \"\\uD83Dx\", \"\\uD83D\", \"\\uDE00y\", \"\\uD83D\\u0041\", \"\\uD83D\\uD83D\\uDE00\"]";
+        List<Object> result = (List<Object>) new JSONParser().parse(json.getBytes(StandardCharsets.UTF_8));
+
+        assertEquals(Arrays.asList("\ufffd\n", "\ufffdx", "\ufffd", "\ufffdy", "\ufffdA", "\ufffd\ud83d\ude00"), result);
+    }
+
+    @Test
+    public void testParseByteBuffers() throws Exception {
+        byte[] json = "[1, 2.5, \"three\", true]".getBytes(StandardCharsets.UTF_8);
+        ByteBuffer direct = ByteBuffer.allocateDirect(json.length);
+        direct.put(json).flip();
+
+        assertEquals(List.of(1, 2.5, "three", true), new JSONParser().parse(direct));
+        assertFalse(direct.hasRemaining());
+        assertEquals(List.of(1, 2.5, "three", true), new JSONParser().parse(ByteBuffer.wrap(json)));
+    }
+
+    @Test
+    public void testParseByteArrayRegion() throws Exception {
+        byte[] json = "xx{\"a\":1}yy".getBytes(StandardCharsets.UTF_8);
+        assertEquals(Map.of("a", 1), new JSONParser().parse(json, 2, 7));
+    }
+
+    @Test
+    public void testAsciiFieldNamesAreShared() throws Exception {
+        JSONParser parser = new JSONParser();
+        Map<String, Object> first = (Map<String, Object>) parser.parse("{\"air_temp\":1}".getBytes(StandardCharsets.UTF_8));
+        Map<String, Object> second = (Map<String, Object>) parser.parse("{\"air_temp\":2}".getBytes(StandardCharsets.UTF_8));
+
+        assertSame(first.keySet().iterator().next(), second.keySet().iterator().next());
+    }
+
+    @Test
+    public void testCurrentStringEquals() throws Exception {
+        JSONParser parser = new JSONParser(new ByteArrayInputStream("{\"lamportTime\":7}".getBytes(StandardCharsets.UTF_8)));
+        parser.nextToken();
+        parser.nextToken();
+
+        assertTrue(parser.currentStringEquals("lamportTime"));
+        assertFalse(parser.currentStringEquals("lamportTim"));
+        assertFalse(parser.currentStringEquals("id"));
+    }
+
+    @Test
+    public void testStreamingRejectsMissingSeparators() {
+        for (String json : List.of("{\"a\" \"b\" \"c\":1}", "{\"a\" 1}", "{\"a\":1 \"b\":2}", "[1 2]", "[{} []]")) {
+            assertThrows(Exception.class, () -> new JSONParser().parse(json.getBytes(StandardCharsets.UTF_8)), json);
+        }
+    }
+
+    @Test
+    public void testStreamingRejectsExtraSeparators() {
+        for (String json : List.of("{\"id\":\"X1\",,\"air_temp\":\"1\",}", "{\"a\":1,}", "{,\"a\":1}", "{\"a\"::1}",
+                "[1,,2]", "[1,]", "[,1]", "[1:2]", "{\"a\":1,:\"b\":2}", ",{}")) {
+            assertThrows(Exception.class, () -> new JSONParser().parse(json.getBytes(StandardCharsets.UTF_8)), json);
+        }
+    }
+
+    @Test
+    public void testTokenPositions() throws Exception {
+        byte[] json = "xx{\"a\": \"b\\\"c\", \"d\":-1.5e3}".getBytes(StandardCharsets.UTF_8);
+        JSONParser parser = new JSONParser();
+        parser.reset(json, 2, json.length - 2);
+        assertEquals(JSONParser.Token.START_OBJECT, parser.nextToken());
+        assertEquals(JSONParser.Token.FIELD_NAME, parser.nextToken());
+        assertEquals(JSONParser.Token.STRING, parser.nextToken());
+        assertEquals("\"b\\\"c\"", new String(json, parser.currentTokenStart(),
+                parser.currentTokenEnd() - parser.currentTokenStart(), StandardCharsets.UTF_8));
+        assertEquals(JSONParser.Token.FIELD_NAME, parser.nextToken());
+        assertEquals(JSONParser.Token.NUMBER, parser.nextToken());
+        assertEquals("-1.5e3", new String(json, parser.currentTokenStart(),
+                parser.currentTokenEnd() - parser.currentTokenStart(), StandardCharsets.UTF_8));
+    }
+
+    @Test
+    public void testStreamingFollowsNumberGrammar() throws Exception {
+        for (String json : List.of("[1.2.3]", "[-]", "[01]", "[1.]", "[.5]", "[1e]", "[1e+]", "[1-2]", "[--1]", "[1.5e3e4]")) {
+            assertThrows(Exception.class, () -> new JSONParser().parse(json.getBytes(StandardCharsets.UTF_8)), json);
+        }
+        assertEquals(Arrays.asList(0, -1, 1.5, -0.25, 1000.0, 0.02, 12345678901L),
+                new JSONParser().parse("[0, -1, 1.5, -0.25, 1e3, 2E-2, 12345678901]".getBytes(StandardCharsets.UTF_8)));
+    }
+
+    @Test
+    public void testStreamingAcceptsSeparatorsWithWhitespace() throws Exception {
+        String json = "{ \"a\" : [ 1 , { \"b\" : null } , [ ] ] , \"c\" : \"d\" , \"e\" : { } }";
+        Map<String, Object> expected = new HashMap<>();
+        expected.put("a", Arrays.asList(1, Collections.singletonMap("b", null), List.of()));
+        expected.put("c", "d");
+        expected.put("e", Map.of());
+        assertEquals(expected, new JSONParser().parse(json.getBytes(StandardCharsets.UTF_8)));
+    }
 }
@@ -0,0 +1,120 @@
+package com.aggregationserver;
+
+import java.io.ByteArrayOutputStream;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+import static org.junit.jupiter.api.Assertions.*;
+import org.junit.jupiter.api.Test;
+
+public class JSONWriterTest {
+
+    private static Map<String, Object> station() {
+        Map<String, Object> data = new LinkedHashMap<>();
+        data.put("id", "IDS60901");
+        data.put("air_temp", 13.3);
+        data.put("lamportTime", 3);
+        data.put("lastUpdated", 1696000000000L);
+        data.put("tags", List.of("a", true));
+        data.put("empty", new LinkedHashMap<>());
+        data.put("gust", null);
+        return data;
+    }
+
+    // Test that compact output has no whitespace at all
+    @Test
+    public void testCompactOutput() throws Exception {
+        StringBuilder out = new StringBuilder();
+        new JSONWriter(out).write(station()).flush();
+
+        assertEquals("{\"id\":\"IDS60901\",\"air_temp\":13.3,\"lamportTime\":3,\"lastUpdated\":1696000000000,"
+                + "\"tags\":[\"a\",true],\"empty\":{},\"gust\":null}", out.toString());
+    }
+
+    // Test that streamed arrays and objects are separated and indented like written ones
+    @Test
+    public void testStreamedArray() throws Exception {
+        StringBuilder out = new StringBuilder();
+        JSONWriter writer = new JSONWriter(out, true);
+        writer.beginArray();
+        for (int i = 0; i < 2; i++) {
+            writer.element();
+            writer.beginObject();
+            writer.name("n");
+            writer.write(i);
+            writer.endObject();
+        }
+        writer.endArray();
+        writer.flush();
+
+        assertEquals(JSONWriter.toJson(List.of(Map.of("n", 0), Map.of("n", 1)), true), out.toString());
+    }
+
+    // Test indentation in pretty mode
+    @Test
+    public void testPrettyOutput() {
+        Map<String, Object> data = new LinkedHashMap<>();
+        data.put("id", "IDS60901");
+        data.put("tags", List.of(1, 2));
+
+        assertEquals("{\n  \"id\": \"IDS60901\",\n  \"tags\": [\n    1,\n    2\n  ]\n}", JSONWriter.toJson(data, true));
+    }
+
+    // Test escaping of quotes, backslashes and control characters
+    @Test
+    public void testEscaping() throws Exception {
+        String text = "say \"hi\"\\\n\t\u0001";
+        String json = JSONWriter.toJson(text, false);
+
+        assertEquals("\"say \\\"hi\\\"\\\\\\n\\t\\u0001\"", json);
+        assertEquals(text, new JSONParser().parse(json.getBytes(StandardCharsets.UTF_8)));
+    }
+
+    // Test that non-ASCII text is encoded as UTF-8 for byte destinations
+    @Test
+    public void testUtf8Output() throws Exception {
+        String name = "Mt \u00b0 \u20ac \ud83c\udf27";  // Degree sign, euro sign and a supplementary character
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        JSONWriter writer = new JSONWriter(out, false);
+        writer.write(Map.of("name", name));
+        writer.flush();
+
+        assertArrayEquals(("{\"name\":\"" + name + "\"}").getBytes(StandardCharsets.UTF_8), out.toByteArray());
+    }
+
+    // Test that a ByteBuffer that is too small is replaced by a larger one holding all the output
+    @Test
+    public void testByteBufferGrows() throws Exception {
+        JSONWriter writer = new JSONWriter(ByteBuffer.allocate(4), false);
+        writer.write(station());
+        ByteBuffer buffer = writer.getByteBuffer();
+
+        String json = new String(Arrays.copyOf(buffer.array(), buffer.position()), StandardCharsets.UTF_8);
+        assertEquals(JSONWriter.toJson(station(), false), json);
+    }
+
+    // Test that raw JSON larger than the staging array is written whole into a direct buffer
+    @Test
+    public void testLargeRawValueIntoDirectBuffer() throws Exception {
+        char[] text = new char[20_000];
+        Arrays.fill(text, 'x');
+        byte[] raw = ("\"" + new String(text) + "\"").getBytes(StandardCharsets.UTF_8);
+
+        JSONWriter writer = new JSONWriter(ByteBuffer.allocateDirect(16), false);
+        writer.beginArray();
+        writer.element();
+        writer.write(1);
+        writer.element();
+        writer.writeRaw(raw, 0, raw.length);
+        writer.endArray();
+        ByteBuffer buffer = writer.getByteBuffer();
+
+        byte[] json = new byte[buffer.position()];
+        buffer.flip().get(json);
+        assertEquals("[1," + new String(raw, StandardCharsets.UTF_8) + "]", new String(json, StandardCharsets.UTF_8));
+    }
+}
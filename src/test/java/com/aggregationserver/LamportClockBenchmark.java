@@ -0,0 +1,88 @@
+package com.aggregationserver;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.function.LongSupplier;
+
+/**
+ * Measures Lamport clock throughput under contention: the lock-free clock against a clock
+ * whose methods are synchronized, as LamportClock used to be, and the hybrid clock, with
+ * from 1 up to 2 x the available processors (or the count given) ticking one clock at once.
+ * Not a unit test; run with:
+ * <pre>
+ * mvn test-compile exec:java -Dexec.classpathScope=test -Dexec.mainClass=com.aggregationserver.LamportClockBenchmark
+ * </pre>
+ */
+public class LamportClockBenchmark {
+
+    private static final int EVENTS_PER_THREAD = 2_000_000;
+    private static final int ROUNDS = 3;  // Best of, after a warm-up round
+
+    /**
+     * A clock guarded by its monitor, for comparison.
+     */
+    private static class SynchronizedClock {
+        private long clock;
+
+        synchronized long tick() {
+            return ++clock;
+        }
+
+        synchronized long update(long receivedClock) {
+            clock = Math.max(clock, receivedClock) + 1;
+            return clock;
+        }
+    }
+
+    public static void main(String[] args) throws Exception {
+        int processors = Runtime.getRuntime().availableProcessors();
+        System.out.printf("%d processors, %,d events per thread, half ticks and half updates%n",
+                processors, EVENTS_PER_THREAD);
+        int maxThreads = args.length > 0 ? Integer.parseInt(args[0]) : 2 * processors;
+        for (int threads = 1; threads <= maxThreads; threads *= 2) {
+            SynchronizedClock locked = new SynchronizedClock();
+            LamportClock lockFree = new LamportClock();
+            LamportClock hybrid = new LamportClock(true);
+            double lockedRate = run(threads, locked::tick, () -> locked.update(1));
+            double lockFreeRate = run(threads, lockFree::tick, () -> lockFree.update(1));
+            double hybridRate = run(threads, hybrid::tick, () -> hybrid.update(1));
+            System.out.printf("%3d threads: synchronized %7.1f M/s, lock-free %7.1f M/s, hybrid %7.1f M/s%n",
+                    threads, lockedRate, lockFreeRate, hybridRate);
+        }
+    }
+
+    // Returns the best rate seen in millions of events per second
+    private static double run(int threads, LongSupplier tick, LongSupplier update) throws Exception {
+        double best = 0;
+        for (int round = 0; round <= ROUNDS; round++) {
+            CountDownLatch start = new CountDownLatch(1);
+            List<Thread> workers = new ArrayList<>();
+            for (int t = 0; t < threads; t++) {
+                Thread worker = new Thread(() -> {
+                    try {
+                        start.await();
+                    } catch (InterruptedException e) {
+                        return;
+                    }
+                    for (int i = 0; i < EVENTS_PER_THREAD; i += 2) {
+                        tick.getAsLong();
+                        update.getAsLong();
+                    }
+                });
+                workers.add(worker);
+                worker.start();
+            }
+            long begin = System.nanoTime();
+            start.countDown();
+            for (Thread worker : workers) {
+                worker.join();
+            }
+            double rate = (double) threads * EVENTS_PER_THREAD / (System.nanoTime() - begin) * 1000;
+            if (round > 0) {
+                best = Math.max(best, rate);
+            }
+        }
+        return best;
+    }
+}
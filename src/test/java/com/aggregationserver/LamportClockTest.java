@@ -3,6 +3,9 @@ package com.aggregationserver;
 import org.junit.jupiter.api.Test;
 import static org.junit.jupiter.api.Assertions.*;
 
+import java.util.ArrayList;
+import java.util.List;
+
 public class LamportClockTest {
 
     @Test
@@ -31,5 +34,72 @@ public class LamportClockTest {
         LamportClock clock = new LamportClock();
         clock.updateTime(100);
         assertEquals(100, clock.getTime());
+        clock.updateTime(50);  // Never moves back
+        assertEquals(100, clock.getTime());
+    }
+
+    // Test that a received time moves the clock past both clocks
+    @Test
+    public void testUpdate() {
+        LamportClock clock = new LamportClock();
+        assertEquals(8, clock.update(7));
+        assertEquals(9, clock.update(3));
+        assertEquals(9, clock.getTime());
+    }
+
+    // Test that the clock counts past the range of an int
+    @Test
+    public void testTimePastIntRange() {
+        LamportClock clock = new LamportClock();
+        clock.setTime(Integer.MAX_VALUE);
+        assertEquals(Integer.MAX_VALUE + 1L, clock.tick());
+    }
+
+    // Test that concurrent ticks are neither lost nor repeated
+    @Test
+    public void testConcurrentTicks() throws Exception {
+        LamportClock clock = new LamportClock();
+        List<Thread> threads = new ArrayList<>();
+        for (int t = 0; t < 8; t++) {
+            Thread thread = new Thread(() -> {
+                for (int i = 0; i < 10_000; i++) {
+                    if (i % 2 == 0) {
+                        clock.tick();
+                    } else {
+                        clock.update(0);
+                    }
+                }
+            });
+            threads.add(thread);
+            thread.start();
+        }
+        for (Thread thread : threads) {
+            thread.join();
+        }
+        assertEquals(80_000, clock.getTime());
+    }
+
+    // Test that a hybrid clock follows the wall clock and counts events within a millisecond
+    @Test
+    public void testHybridTime() {
+        LamportClock clock = new LamportClock(true);
+        long before = System.currentTimeMillis();
+        long first = clock.tick();
+        long second = clock.tick();
+        long after = System.currentTimeMillis();
+
+        assertTrue(second > first);
+        assertTrue(LamportClock.physicalTime(first) >= before);
+        assertTrue(LamportClock.physicalTime(second) <= after);
+    }
+
+    // Test that a hybrid clock ahead of the wall clock stays ahead and keeps counting
+    @Test
+    public void testHybridUpdateFromAhead() {
+        LamportClock clock = new LamportClock(true);
+        long ahead = (System.currentTimeMillis() + 60_000) << LamportClock.LOGICAL_BITS;
+        assertEquals(ahead + 1, clock.update(ahead));
+        assertEquals(ahead + 2, clock.tick());
+        assertEquals(LamportClock.physicalTime(ahead), LamportClock.physicalTime(clock.getTime()));
     }
 }
@@ -0,0 +1,60 @@
+package com.aggregationserver;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import static org.junit.jupiter.api.Assertions.*;
+import org.junit.jupiter.api.Test;
+
+public class LamportOrderTest {
+
+    private static List<String> ids(List<LamportOrder.Key> keys) {
+        List<String> ids = new ArrayList<>();
+        for (LamportOrder.Key key : keys) {
+            ids.add(key.id);
+        }
+        return ids;
+    }
+
+    // Test that stations are ordered newest first, then by ID, and paged after a cursor
+    @Test
+    public void testPages() {
+        LamportOrder order = new LamportOrder();
+        order.add("B", 1);
+        order.add("A", 1);
+        order.add("C", 3);
+        order.add("D", 2);
+
+        List<LamportOrder.Key> first = order.page(null, 2);
+        LamportOrder.Key after = LamportOrder.Key.fromCursor(first.get(1).toCursor());
+
+        assertEquals(List.of("C", "D"), ids(first));
+        assertEquals(List.of("A", "B"), ids(order.page(after, 10)));
+        assertEquals(List.of("C", "D", "A", "B"), order.ids());
+    }
+
+    // Test that a cursor stays valid when stations are stored and removed between pages
+    @Test
+    public void testCursorSurvivesWrites() {
+        LamportOrder order = new LamportOrder();
+        for (int i = 0; i < 6; i++) {
+            order.add("S" + i, i);
+        }
+        List<LamportOrder.Key> first = order.page(null, 2);  // S5, S4
+        String cursor = first.get(1).toCursor();
+
+        order.remove("S4", 4);  // The cursor's own station goes
+        order.remove("S1", 1);
+        order.add("S1", 6);  // Stored again, so it moves to the front
+        order.add("S9", 7);
+
+        assertEquals(List.of("S3", "S2", "S0"), ids(order.page(LamportOrder.Key.fromCursor(cursor), 10)));
+    }
+
+    // Test that a cursor not issued by the server is rejected
+    @Test
+    public void testInvalidCursor() {
+        assertThrows(IllegalArgumentException.class, () -> LamportOrder.Key.fromCursor("not a cursor!"));
+        assertThrows(IllegalArgumentException.class, () -> LamportOrder.Key.fromCursor("bm9jb2xvbg"));  // "nocolon"
+    }
+}
@@ -0,0 +1,186 @@
+package com.aggregationserver;
+
+import java.io.BufferedInputStream;
+import java.io.File;
+import java.io.InputStream;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.junit.jupiter.api.Assertions.*;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+public class MultiStationContentServerTest {
+
+    private static final int STATIONS = 30;
+
+    @TempDir
+    Path tempDir;
+
+    private ServerSocket serverSocket;
+    private ExecutorService acceptor;
+    private final AtomicInteger accepted = new AtomicInteger();
+    private final Map<String, List<Integer>> received = new ConcurrentHashMap<>();  // Station ID -> Lamport times sent
+    private final Map<String, List<String>> temperatures = new ConcurrentHashMap<>();  // Station ID -> air_temp values sent
+    private volatile int heldTime = -1;  // Lamport time of data the server claims to hold, rejecting older PUTs with 409
+
+    @BeforeEach
+    public void setup() throws Exception {
+        serverSocket = new ServerSocket(0);
+        acceptor = Executors.newCachedThreadPool();
+        acceptor.execute(() -> {
+            try {
+                while (true) {
+                    Socket socket = serverSocket.accept();
+                    accepted.incrementAndGet();
+                    acceptor.execute(() -> record(socket));
+                }
+            } catch (Exception e) {
+                // Server socket closed
+            }
+        });
+    }
+
+    @AfterEach
+    public void tearDown() throws Exception {
+        serverSocket.close();
+        acceptor.shutdownNow();
+    }
+
+    /**
+     * Serves a keep-alive connection, recording the Lamport time of every PUT per station.
+     */
+    @SuppressWarnings("unchecked")
+    private void record(Socket socket) {
+        try (Socket s = socket) {
+            InputStream in = new BufferedInputStream(s.getInputStream());
+            HttpRequest request;
+            while ((request = HttpRequest.read(in)) != null) {
+                Map<String, Object> data = (Map<String, Object>) new JSONParser().parse(request.getBody());
+                received.computeIfAbsent((String) data.get("id"), id -> new ArrayList<>()).add((Integer) data.get("lamportTime"));
+                temperatures.computeIfAbsent((String) data.get("id"), id -> new ArrayList<>()).add((String) data.get("air_temp"));
+                if ((Integer) data.get("lamportTime") <= heldTime) {
+                    AggregationServer.writeKeepAliveResponse(s.getOutputStream(),
+                            "HTTP/1.1 409 Conflict\n\n{\"lamportTime\":" + heldTime + "}\n");
+                } else {
+                    AggregationServer.writeKeepAliveResponse(s.getOutputStream(), "HTTP/1.1 201 Created\n");
+                }
+            }
+        } catch (Exception e) {
+            // Connection closed by the client
+        }
+    }
+
+    private File writeStation(Path dir, int station) throws Exception {
+        return writeStation(dir, station, "13.3");
+    }
+
+    private File writeStation(Path dir, int station, String airTemp) throws Exception {
+        Path file = dir.resolve("station" + station + ".txt");
+        Files.write(file, ("id:IDM" + (10000 + station) + "\nname:Station " + station + "\nair_temp:" + airTemp + "\n")
+                .getBytes(StandardCharsets.UTF_8));
+        return file.toFile();
+    }
+
+    /**
+     * Waits until the station has sent the given number of updates, or times out.
+     */
+    private List<String> awaitUploads(String id, int count) throws InterruptedException {
+        long deadline = System.currentTimeMillis() + 10000;
+        while (temperatures.getOrDefault(id, List.of()).size() < count && System.currentTimeMillis() < deadline) {
+            Thread.sleep(20);
+        }
+        return temperatures.getOrDefault(id, List.of());
+    }
+
+    // Test that every station in a directory is uploaded over a few shared connections, each with its own clock
+    @Test
+    public void testFeedsDirectoryOverSharedConnections() throws Exception {
+        for (int i = 0; i < STATIONS; i++) {
+            writeStation(tempDir, i);
+        }
+        MultiStationContentServer feeder = new MultiStationContentServer("localhost", serverSocket.getLocalPort(),
+                tempDir.toFile(), 2, 1);
+        feeder.start();
+        Thread.sleep(2500);  // At least two uploads per station with a 1 s interval
+        feeder.stop();
+
+        assertEquals(STATIONS, received.size());
+        for (List<Integer> lamportTimes : received.values()) {
+            assertTrue(lamportTimes.size() >= 2);
+            for (int i = 0; i < lamportTimes.size(); i++) {
+                assertEquals(i, lamportTimes.get(i));  // Each station counts its own uploads
+            }
+        }
+        assertTrue(accepted.get() <= 2, "Opened " + accepted.get() + " connections");
+    }
+
+    // Test that a manifest lists stations relative to itself and that removed stations stop being fed
+    @Test
+    public void testManifestIsReread() throws Exception {
+        Path data = Files.createDirectory(tempDir.resolve("data"));
+        writeStation(data, 1);
+        writeStation(data, 2);
+        Path manifest = tempDir.resolve("stations.txt");
+        Files.write(manifest, "# Stations\ndata/station1.txt\n\ndata/station2.txt\n".getBytes(StandardCharsets.UTF_8));
+
+        MultiStationContentServer feeder = new MultiStationContentServer("localhost", serverSocket.getLocalPort(),
+                manifest.toFile(), 1, 60);
+        assertEquals(List.of(data.resolve("station1.txt").toString(), data.resolve("station2.txt").toString()),
+                feeder.listStationFiles());
+
+        feeder.refreshStations();
+        assertEquals(2, feeder.getStationCount());
+        Files.write(manifest, "data/station2.txt\n".getBytes(StandardCharsets.UTF_8));
+        feeder.refreshStations();
+        assertEquals(1, feeder.getStationCount());
+        feeder.stop();
+    }
+
+    // Test that a changed station is uploaded at once, long before its next heartbeat
+    @Test
+    public void testUploadsChangedStationImmediately() throws Exception {
+        writeStation(tempDir, 1);
+        writeStation(tempDir, 2);
+        MultiStationContentServer feeder = new MultiStationContentServer("localhost", serverSocket.getLocalPort(),
+                tempDir.toFile(), 1, 60);
+        feeder.start();
+
+        writeStation(tempDir, 1, "21.5");
+        assertEquals(List.of("21.5"), awaitUploads("IDM10001", 1));
+
+        writeStation(tempDir, 3);  // A new file in the station directory is picked up without waiting
+        assertEquals(List.of("13.3"), awaitUploads("IDM10003", 1));
+        feeder.stop();
+
+        assertFalse(received.containsKey("IDM10002"));  // Unchanged, and its first heartbeat is not yet due
+    }
+
+    // Test that a change rejected as older than the server's data is sent again past the server's time
+    @Test
+    public void testResendsChangeRejectedAsStale() throws Exception {
+        heldTime = 5;  // As if the server kept data from before the feeder restarted
+        writeStation(tempDir, 1);
+        MultiStationContentServer feeder = new MultiStationContentServer("localhost", serverSocket.getLocalPort(),
+                tempDir.toFile(), 1, 60);
+        feeder.start();
+
+        writeStation(tempDir, 1, "21.5");
+        assertEquals(List.of("21.5", "21.5"), awaitUploads("IDM10001", 2));
+        feeder.stop();
+
+        assertEquals(List.of(0, 6), received.get("IDM10001"));  // Rejected at 0, then taken at the server's time plus one
+    }
+}
@@ -0,0 +1,216 @@
+package com.aggregationserver;
+
+import java.io.BufferedInputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.junit.jupiter.api.Assertions.*;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+public class OfflineSpoolTest {
+
+    @TempDir
+    Path tempDir;
+
+    private ServerSocket serverSocket;
+    private ExecutorService acceptor;
+    private ScheduledExecutorService scheduler;
+    private final AtomicInteger accepted = new AtomicInteger();
+    private final AtomicInteger refusals = new AtomicInteger();  // Requests still to answer with 503
+    private final List<String> delivered = new CopyOnWriteArrayList<>();  // Bodies answered with 201, in order
+
+    @BeforeEach
+    public void setup() throws Exception {
+        serverSocket = new ServerSocket(0);
+        acceptor = Executors.newCachedThreadPool();
+        scheduler = Executors.newSingleThreadScheduledExecutor();
+        acceptor.execute(() -> {
+            try {
+                while (true) {
+                    Socket socket = serverSocket.accept();
+                    accepted.incrementAndGet();
+                    acceptor.execute(() -> serve(socket));
+                }
+            } catch (Exception e) {
+                // Server socket closed
+            }
+        });
+    }
+
+    @AfterEach
+    public void tearDown() throws Exception {
+        scheduler.shutdownNow();
+        serverSocket.close();
+        acceptor.shutdownNow();
+    }
+
+    /**
+     * Serves a keep-alive connection, refusing the first requests with 503 and accepting the rest.
+     */
+    private void serve(Socket socket) {
+        try (Socket s = socket) {
+            InputStream in = new BufferedInputStream(s.getInputStream());
+            HttpRequest request;
+            while ((request = HttpRequest.read(in)) != null) {
+                String body = new String(request.getBody(), StandardCharsets.UTF_8);
+                if (refusals.getAndDecrement() > 0) {
+                    AggregationServer.writeKeepAliveResponse(s.getOutputStream(), "HTTP/1.1 503 Service Unavailable\n");
+                } else if (body.contains("\"bad\"")) {
+                    AggregationServer.writeKeepAliveResponse(s.getOutputStream(), "HTTP/1.1 400 Bad Request\n");
+                } else {
+                    delivered.add(body);
+                    AggregationServer.writeKeepAliveResponse(s.getOutputStream(), "HTTP/1.1 201 Created\n");
+                }
+            }
+        } catch (Exception e) {
+            // Connection closed by the client
+        }
+    }
+
+    private static byte[] update(int lamportTime) {
+        return ("{\"id\":\"IDS60901\",\"lamportTime\":" + lamportTime + "}").getBytes(StandardCharsets.UTF_8);
+    }
+
+    /**
+     * Returns a pool for a port nothing listens on, so that every request fails.
+     */
+    private static HttpConnectionPool unreachablePool() throws IOException {
+        try (ServerSocket closed = new ServerSocket(0)) {
+            return new HttpConnectionPool("localhost", closed.getLocalPort());
+        }
+    }
+
+    private void awaitEmpty(OfflineSpool spool) throws InterruptedException {
+        long deadline = System.currentTimeMillis() + 20000;
+        while (spool.size() > 0 && System.currentTimeMillis() < deadline) {
+            Thread.sleep(20);
+        }
+    }
+
+    // Test that refused updates, and those sent after them, are replayed in order once the server recovers
+    @Test
+    public void testReplaysInOrderAfterRefusal() throws Exception {
+        File file = tempDir.resolve("spool.jsonl").toFile();
+        OfflineSpool spool = new OfflineSpool(file, 100, new HttpConnectionPool("localhost", serverSocket.getLocalPort()),
+                scheduler);
+        refusals.set(2);  // The first send and the first replay are refused
+
+        assertEquals(503, spool.send(update(0), true).getStatus());
+        assertNull(spool.send(update(1), true));  // Queued behind the spooled update
+        assertNull(spool.send(update(2), false));  // A heartbeat is not spooled
+        assertNull(spool.send(update(3), true));
+        assertEquals(3, spool.size());
+        assertTrue(file.exists());
+
+        awaitEmpty(spool);
+        assertEquals(0, spool.size());
+        List<String> expected = List.of(new String(update(0), StandardCharsets.UTF_8),
+                new String(update(1), StandardCharsets.UTF_8), new String(update(3), StandardCharsets.UTF_8));
+        assertEquals(expected, delivered.subList(delivered.size() - 3, delivered.size()));
+        assertFalse(file.exists());  // Removed once replayed
+        assertEquals(1, accepted.get());  // Replays are pipelined on the same keep-alive connection
+
+        assertEquals(201, spool.send(update(4), true).getStatus());  // Sent directly again
+    }
+
+    // Test that updates the server rejects outright are dropped rather than blocking the spool
+    @Test
+    public void testDropsRejectedUpdates() throws Exception {
+        OfflineSpool spool = new OfflineSpool(tempDir.resolve("spool.jsonl").toFile(), 100,
+                new HttpConnectionPool("localhost", serverSocket.getLocalPort()), scheduler);
+        refusals.set(1);
+
+        spool.send(update(0), true);
+        spool.send("{\"id\":\"bad\"}".getBytes(StandardCharsets.UTF_8), true);
+        spool.send(update(1), true);
+        awaitEmpty(spool);
+
+        assertEquals(List.of(new String(update(0), StandardCharsets.UTF_8), new String(update(1), StandardCharsets.UTF_8)),
+                delivered);
+    }
+
+    // Test that the spool survives a restart and keeps only the newest updates when full
+    @Test
+    public void testPersistsAndBoundsSpool() throws Exception {
+        File file = tempDir.resolve("spool.jsonl").toFile();
+        OfflineSpool spool = new OfflineSpool(file, 3, unreachablePool(), scheduler);
+        for (int i = 0; i < 5; i++) {
+            if (i == 0) {
+                assertThrows(IOException.class, () -> spool.send(update(0), true));
+            } else {
+                assertNull(spool.send(update(i), true));
+            }
+        }
+        assertEquals(3, spool.size());
+        assertEquals(5, Files.readAllLines(file.toPath()).size());
+
+        // A new process reads the file back, keeping the newest updates, and replays them
+        scheduler.shutdownNow();
+        scheduler = Executors.newSingleThreadScheduledExecutor();
+        OfflineSpool restarted = new OfflineSpool(file, 3, new HttpConnectionPool("localhost", serverSocket.getLocalPort()),
+                scheduler);
+        assertEquals(3, restarted.size());
+        awaitEmpty(restarted);
+        assertEquals(List.of(new String(update(2), StandardCharsets.UTF_8), new String(update(3), StandardCharsets.UTF_8),
+                new String(update(4), StandardCharsets.UTF_8)), delivered);
+    }
+
+    // Test that binary updates, which carry their own length, survive a restart and are replayed
+    @Test
+    public void testPersistsBinarySpool() throws Exception {
+        File file = tempDir.resolve("spool.bin").toFile();
+        OfflineSpool spool = new OfflineSpool(file, 100, unreachablePool(), scheduler, true);
+        byte[][] frames = new byte[3][];
+        for (int i = 0; i < 3; i++) {
+            frames[i] = BinaryWeatherCodec.encode(Map.of("id", "IDS60901", "air_temp", "1" + i + ".5\n", "lamportTime", i));
+            if (i == 0) {
+                int first = i;
+                assertThrows(IOException.class, () -> spool.send(frames[first], true));
+            } else {
+                assertNull(spool.send(frames[i], true));
+            }
+        }
+
+        scheduler.shutdownNow();
+        scheduler = Executors.newSingleThreadScheduledExecutor();
+        OfflineSpool restarted = new OfflineSpool(file, 100, new HttpConnectionPool("localhost", serverSocket.getLocalPort()),
+                scheduler, true);
+        assertEquals(3, restarted.size());
+        awaitEmpty(restarted);
+        assertEquals(3, delivered.size());
+        for (int i = 0; i < 3; i++) {
+            assertEquals(new String(frames[i], StandardCharsets.UTF_8), delivered.get(i));
+        }
+    }
+
+    // Test that the backoff grows exponentially up to its limit and is randomized
+    @Test
+    public void testBackoffIsJitteredAndBounded() {
+        long total = 0;
+        for (int i = 0; i < 1000; i++) {
+            long first = OfflineSpool.backoff(1);
+            assertTrue(first >= 0 && first <= OfflineSpool.INITIAL_BACKOFF);
+            assertTrue(OfflineSpool.backoff(3) <= 4 * OfflineSpool.INITIAL_BACKOFF);
+            assertTrue(OfflineSpool.backoff(40) <= OfflineSpool.MAX_BACKOFF);
+            total += first;
+        }
+        long mean = total / 1000;
+        assertTrue(mean > OfflineSpool.INITIAL_BACKOFF / 4 && mean < OfflineSpool.INITIAL_BACKOFF * 3 / 4, "Mean " + mean);
+    }
+}
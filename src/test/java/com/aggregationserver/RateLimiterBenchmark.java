@@ -0,0 +1,66 @@
+package com.aggregationserver;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Measures the cost of a rate limit check, as made for every PUT: one thread and then several
+ * threads at once, each cycling over many station IDs with a limit high enough that every
+ * request is allowed, and over a single ID that is mostly refused. Not a unit test; run with:
+ * <pre>
+ * mvn test-compile exec:java -Dexec.classpathScope=test -Dexec.mainClass=com.aggregationserver.RateLimiterBenchmark
+ * </pre>
+ */
+public class RateLimiterBenchmark {
+
+    private static final int CHECKS = 20_000_000;  // Per thread
+    private static final int STATIONS = 1000;
+
+    public static void main(String[] args) throws Exception {
+        String[] ids = new String[STATIONS];
+        for (int i = 0; i < STATIONS; i++) {
+            ids[i] = "IDS" + (60000 + i);
+            ids[i].hashCode();  // Cached, as for IDs parsed once per request
+        }
+        int maxThreads = args.length > 0 ? Integer.parseInt(args[0]) : Runtime.getRuntime().availableProcessors();
+        for (int threads = 1; threads <= maxThreads; threads *= 2) {
+            RateLimiter allowing = new RateLimiter(1e9, 1_000_000, RateLimiter.DEFAULT_SLOTS);
+            RateLimiter refusing = new RateLimiter(1, 1, RateLimiter.DEFAULT_SLOTS);
+            for (int round = 0; round < 3; round++) {  // The last round is reported, after warming up
+                double allowed = run(threads, t -> allowing.acquire(ids[t % STATIONS]));
+                double refused = run(threads, t -> refusing.acquire(ids[0]));
+                if (round == 2) {
+                    System.out.printf("%2d threads: %5.1f ns per allowed check, %5.1f ns per refused check%n",
+                            threads, allowed, refused);
+                }
+            }
+        }
+    }
+
+    private interface Check {
+        long run(int i);
+    }
+
+    // Returns the wall-clock nanoseconds per check, over the checks of every thread
+    private static double run(int threads, Check check) throws Exception {
+        List<Thread> workers = new ArrayList<>();
+        long[] sinks = new long[threads];
+        long start = System.nanoTime();
+        for (int t = 0; t < threads; t++) {
+            int worker = t;
+            Thread thread = new Thread(() -> {
+                long sink = 0;
+                for (int i = worker; i < CHECKS + worker; i++) {
+                    sink += check.run(i);
+                }
+                sinks[worker] = sink;
+            });
+            workers.add(thread);
+            thread.start();
+        }
+        for (Thread worker : workers) {
+            worker.join();
+        }
+        return (double) (System.nanoTime() - start) / ((long) threads * CHECKS);
+    }
+}
@@ -0,0 +1,49 @@
+package com.aggregationserver;
+
+import org.junit.jupiter.api.Test;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+public class RateLimiterTest {
+
+    // Test that a full bucket allows a burst and then refuses until a token refills
+    @Test
+    public void testBurstThenRefill() throws Exception {
+        RateLimiter limiter = new RateLimiter(20, 3, 16);  // A token every 50 ms
+        for (int i = 0; i < 3; i++) {
+            assertEquals(0, limiter.acquire("IDS60901"));
+        }
+        long wait = limiter.acquire("IDS60901");
+        assertTrue(wait > 0 && wait <= 50_000_000L);
+
+        Thread.sleep(wait / 1_000_000 + 5);
+        assertEquals(0, limiter.acquire("IDS60901"));
+        assertTrue(limiter.acquire("IDS60901") > 0);  // Only one token refilled
+    }
+
+    // Test that each source has its own bucket
+    @Test
+    public void testSourcesLimitedSeparately() {
+        RateLimiter limiter = new RateLimiter(1, 1, RateLimiter.DEFAULT_SLOTS);
+        assertEquals(0, limiter.acquire("10.0.0.1"));
+        assertTrue(limiter.acquire("10.0.0.1") > 0);
+        assertEquals(0, limiter.acquire("10.0.0.2"));
+    }
+
+    // Test parsing limits and rounding waits up to whole seconds
+    @Test
+    public void testParseAndRetryAfter() {
+        RateLimiter limiter = RateLimiter.parse("0.5:2");
+        assertEquals(0, limiter.acquire("a"));
+        assertEquals(0, limiter.acquire("a"));
+        assertEquals(2, RateLimiter.retryAfterSeconds(limiter.acquire("a")));  // A token every 2 s
+
+        assertEquals(1, RateLimiter.retryAfterSeconds(1));
+        assertEquals(1, RateLimiter.retryAfterSeconds(1_000_000_000L));
+        assertEquals(2, RateLimiter.retryAfterSeconds(1_000_000_001L));
+        assertThrows(IllegalArgumentException.class, () -> RateLimiter.parse("0"));
+        assertThrows(IllegalArgumentException.class, () -> RateLimiter.parse("fast"));
+    }
+}
@@ -0,0 +1,60 @@
+package com.aggregationserver;
+
+import java.nio.charset.StandardCharsets;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+
+import static org.junit.jupiter.api.Assertions.*;
+import org.junit.jupiter.api.Test;
+
+public class SecondaryIndexTest {
+
+    private static WeatherObservation observation(String state, String windSpeed) throws Exception {
+        return WeatherCodec.decode(("{\"state\":\"" + state + "\",\"wind_spd_kmh\":\"" + windSpeed + "\"}")
+                .getBytes(StandardCharsets.UTF_8));
+    }
+
+    private static StationFilter.Condition condition(String text) {
+        return StationFilter.parse(text).getConditions().get(0);
+    }
+
+    // Test that a hash index answers equality on text and leaves other conditions to a scan
+    @Test
+    public void testHashIndex() throws Exception {
+        SecondaryIndex index = new SecondaryIndex(WeatherObservation.Field.STATE);
+        WeatherObservation adelaide = observation("SA", "10");
+        index.add("ADELAIDE", adelaide);
+        index.add("MOUNT_GAMBIER", observation("SA", "20"));
+        index.add("MELBOURNE", observation("VIC", "30"));
+
+        assertFalse(index.isSorted());
+        assertEquals(Set.of("ADELAIDE", "MOUNT_GAMBIER"), new HashSet<>(index.lookup(condition("state=SA"))));
+        assertEquals(List.of(), index.lookup(condition("state=NSW")));
+        assertNull(index.lookup(condition("state!=SA")));
+
+        index.remove("ADELAIDE", adelaide);
+        assertEquals(List.of("MOUNT_GAMBIER"), index.lookup(condition("state=SA")));
+    }
+
+    // Test that a sorted index answers numeric equality and ranges
+    @Test
+    public void testSortedIndex() throws Exception {
+        SecondaryIndex index = new SecondaryIndex(WeatherObservation.Field.WIND_SPD_KMH);
+        WeatherObservation gale = observation("SA", "75");
+        index.add("ADELAIDE", observation("SA", "10"));
+        index.add("MOUNT_GAMBIER", observation("SA", "50"));
+        index.add("CEDUNA", gale);
+        index.add("NOWHERE", observation("SA", "-"));  // Not numeric, so not indexed
+
+        assertTrue(index.isSorted());
+        assertEquals(Set.of("CEDUNA"), new HashSet<>(index.lookup(condition("wind_spd_kmh>50"))));
+        assertEquals(Set.of("MOUNT_GAMBIER", "CEDUNA"), new HashSet<>(index.lookup(condition("wind_spd_kmh>=50"))));
+        assertEquals(List.of("ADELAIDE"), index.lookup(condition("wind_spd_kmh<50.0")));
+        assertEquals(List.of("MOUNT_GAMBIER"), index.lookup(condition("wind_spd_kmh=50.0")));
+        assertNull(index.lookup(condition("wind_spd_kmh=calm")));
+
+        index.remove("CEDUNA", gale);
+        assertEquals(List.of(), index.lookup(condition("wind_spd_kmh>50")));
+    }
+}
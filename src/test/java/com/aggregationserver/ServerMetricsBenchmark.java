@@ -0,0 +1,30 @@
+package com.aggregationserver;
+
+/**
+ * Measures the cost of recording a request in ServerMetrics, as done for every request, and
+ * checks that it allocates nothing once the histogram for its method and status exists. Not a
+ * unit test; run with:
+ * <pre>
+ * mvn test-compile exec:java -Dexec.classpathScope=test -Dexec.mainClass=com.aggregationserver.ServerMetricsBenchmark
+ * </pre>
+ */
+public class ServerMetricsBenchmark {
+
+    private static final int ITERATIONS = 10_000_000;
+
+    public static void main(String[] args) throws Exception {
+        ServerMetrics metrics = new ServerMetrics();
+        String response = "HTTP/1.1 201 Created\n";
+        System.out.println("Recording a request:");
+        JSONParserBenchmark.time("recordRequest", 0, ITERATIONS, () -> {
+            metrics.recordRequest("PUT", ServerMetrics.statusOf(response), 1_500_000);
+            return metrics;
+        });
+        JSONParserBenchmark.time("recordPutParse", 0, ITERATIONS, () -> {
+            metrics.recordPutParse(20_000);
+            return metrics;
+        });
+        System.out.println("Writing the metrics:");
+        JSONParserBenchmark.time("toText", 0, 100_000, () -> metrics.toText(20, 1000));
+    }
+}
@@ -0,0 +1,66 @@
+package com.aggregationserver;
+
+import org.junit.jupiter.api.Test;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+public class ServerMetricsTest {
+
+    // Test that durations land in the right buckets, and that the buckets are written cumulatively
+    @Test
+    public void testHistogramBuckets() {
+        ServerMetrics.Histogram histogram = new ServerMetrics.Histogram();
+        histogram.observe(50_000);  // 0.05 ms
+        histogram.observe(100_000);  // On the 0.1 ms bound, which is inclusive
+        histogram.observe(3_000_000);  // 3 ms
+        histogram.observe(10_000_000_000L);  // 10 s, past the last bound
+        assertEquals(4, histogram.count());
+
+        StringBuilder text = new StringBuilder();
+        histogram.write(text, "test_seconds", "method=\"PUT\"");
+        String written = text.toString();
+        assertTrue(written.contains("test_seconds_bucket{method=\"PUT\",le=\"1.0E-4\"} 2\n"));
+        assertTrue(written.contains("test_seconds_bucket{method=\"PUT\",le=\"0.0025\"} 2\n"));
+        assertTrue(written.contains("test_seconds_bucket{method=\"PUT\",le=\"0.005\"} 3\n"));
+        assertTrue(written.contains("test_seconds_bucket{method=\"PUT\",le=\"2.5\"} 3\n"));
+        assertTrue(written.contains("test_seconds_bucket{method=\"PUT\",le=\"+Inf\"} 4\n"));
+        assertTrue(written.contains("test_seconds_sum{method=\"PUT\"} 10.00315\n"));
+        assertTrue(written.contains("test_seconds_count{method=\"PUT\"} 4\n"));
+    }
+
+    // Test that requests are counted by method and status, and counters and gauges are written
+    @Test
+    public void testToText() {
+        ServerMetrics metrics = new ServerMetrics();
+        metrics.recordRequest("GET", 200, 1_000_000);
+        metrics.recordRequest("GET", 200, 2_000_000);
+        metrics.recordRequest("PUT", 201, 1_000_000);
+        metrics.recordRequest("DELETE", 400, 1_000_000);
+        metrics.recordRequest("GET", 0, 1_000_000);  // No status line; not recorded
+        metrics.recordExpirations(3);
+        metrics.recordEviction();
+
+        String text = metrics.toText(20, 42);
+        assertTrue(text.contains("# TYPE aggregation_http_request_duration_seconds histogram\n"));
+        assertTrue(text.contains("aggregation_http_request_duration_seconds_count{method=\"GET\",status=\"200\"} 2\n"));
+        assertTrue(text.contains("aggregation_http_request_duration_seconds_count{method=\"PUT\",status=\"201\"} 1\n"));
+        assertTrue(text.contains("aggregation_http_request_duration_seconds_count{method=\"other\",status=\"400\"} 1\n"));
+        assertFalse(text.contains("status=\"404\""));
+        assertTrue(text.contains("aggregation_put_parse_duration_seconds_count 0\n"));
+        assertTrue(text.contains("aggregation_expirations_total 3\n"));
+        assertTrue(text.contains("aggregation_evictions_total 1\n"));
+        assertTrue(text.contains("aggregation_stations 20\n"));
+        assertTrue(text.contains("aggregation_lamport_time 42\n"));
+    }
+
+    // Test reading the status code from a handler's response
+    @Test
+    public void testStatusOf() {
+        assertEquals(201, ServerMetrics.statusOf("HTTP/1.1 201 Created\n"));
+        assertEquals(429, ServerMetrics.statusOf("HTTP/1.1 429 Too Many Requests\nRetry-After: 1\n"));
+        assertEquals(0, ServerMetrics.statusOf(""));
+        assertEquals(0, ServerMetrics.statusOf("HTTP/1.1 OK"));
+    }
+}
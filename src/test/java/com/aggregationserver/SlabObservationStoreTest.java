@@ -0,0 +1,70 @@
+package com.aggregationserver;
+
+import java.nio.charset.StandardCharsets;
+
+import static org.junit.jupiter.api.Assertions.*;
+import org.junit.jupiter.api.Test;
+
+public class SlabObservationStoreTest {
+
+    private static WeatherObservation observation(String id, String airTemp) throws Exception {
+        WeatherObservation observation = WeatherCodec.decode(("{\"id\":\"" + id + "\",\"air_temp\":\"" + airTemp
+                + "\",\"lamportTime\":7}").getBytes(StandardCharsets.UTF_8));
+        observation.setLastUpdated(1234);
+        return observation;
+    }
+
+    // Test that an observation reads back as stored, without the lastUpdated kept by the server
+    @Test
+    public void testPutAndGet() throws Exception {
+        SlabObservationStore store = new SlabObservationStore();
+        WeatherObservation changed = observation("IDS60902", "1.0");
+        changed.set(WeatherObservation.Field.AIR_TEMP, "2.0");  // No longer has its source JSON
+
+        WeatherObservation first = store.get(store.put(observation("IDS60901", "13.3")));
+        WeatherObservation second = store.get(store.put(changed));
+
+        assertEquals("IDS60901", first.getId());
+        assertEquals("13.3", first.get(WeatherObservation.Field.AIR_TEMP));
+        assertEquals(7, first.getLamportTime().intValue());
+        assertEquals(0, first.getLastUpdated());
+        assertEquals("2.0", second.get(WeatherObservation.Field.AIR_TEMP));
+        assertEquals(1234, changed.getLastUpdated());  // The stored observation is left as it was
+    }
+
+    // Test that freed blocks are reused rather than growing the slabs
+    @Test
+    public void testFreeReusesBlocks() throws Exception {
+        SlabObservationStore store = new SlabObservationStore();
+        Object handle = store.put(observation("IDS60901", "13.3"));
+        long used = store.getUsedBytes();
+        long allocated = store.getAllocatedBytes();
+
+        for (int i = 0; i < 10_000; i++) {
+            store.free(handle);
+            handle = store.put(observation("IDS60901", String.valueOf(i % 100)));
+        }
+
+        assertEquals(used, store.getUsedBytes());
+        assertEquals(allocated, store.getAllocatedBytes());
+        assertEquals("99", store.get(handle).get(WeatherObservation.Field.AIR_TEMP));
+        store.free(handle);
+        assertEquals(0, store.getUsedBytes());
+    }
+
+    // Test that an observation larger than a slab gets a buffer of its own
+    @Test
+    public void testOversizedObservation() throws Exception {
+        SlabObservationStore store = new SlabObservationStore();
+        String name = "x".repeat(SlabObservationStore.SLAB_SIZE);
+        WeatherObservation large = WeatherCodec.decode(("{\"id\":\"IDS60901\",\"name\":\"" + name + "\"}")
+                .getBytes(StandardCharsets.UTF_8));
+
+        Object handle = store.put(large);
+
+        assertEquals(name, store.get(handle).get(WeatherObservation.Field.NAME));
+        store.free(handle);
+        assertEquals(0, store.getAllocatedBytes());
+        assertEquals(0, store.getUsedBytes());
+    }
+}
@@ -0,0 +1,79 @@
+package com.aggregationserver;
+
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Random;
+import java.util.Set;
+import java.util.stream.Collectors;
+
+import static org.junit.jupiter.api.Assertions.*;
+import org.junit.jupiter.api.Test;
+
+public class SpatialIndexTest {
+
+    private static WeatherObservation at(double lat, double lon) throws Exception {
+        return WeatherCodec.decode(("{\"lat\":\"" + lat + "\",\"lon\":\"" + lon + "\"}").getBytes(StandardCharsets.UTF_8));
+    }
+
+    // Test that nearest queries match a full scan, including near the poles and across the antimeridian
+    @Test
+    public void testNearestMatchesFullScan() throws Exception {
+        Random random = new Random(42);
+        SpatialIndex index = new SpatialIndex(SpatialIndex.DEFAULT_CELL_DEGREES);
+        List<double[]> positions = new ArrayList<>();
+        for (int i = 0; i < 2000; i++) {
+            double lat = i % 10 == 0 ? 85 + random.nextDouble() * 5 : random.nextDouble() * 180 - 90;
+            double lon = random.nextDouble() * 360 - 180;
+            positions.add(new double[]{lat, lon});
+            index.put("S" + i, at(lat, lon));
+        }
+
+        double[][] queries = {{-34.9, 138.6}, {89.5, 0}, {0, 179.9}, {-10, -179.95}, {45, 90}};
+        for (double[] query : queries) {
+            List<String> expected = new ArrayList<>();
+            for (int i = 0; i < positions.size(); i++) {
+                expected.add("S" + i);
+            }
+            expected.sort(Comparator.comparingDouble(id -> {
+                double[] p = positions.get(Integer.parseInt(id.substring(1)));
+                return SpatialIndex.distanceKm(query[0], query[1], p[0], p[1]);
+            }));
+            assertEquals(expected.subList(0, 10), index.nearest(query[0], query[1], 10));
+        }
+    }
+
+    // Test that a bounding box returns exactly the stations inside it, also across the antimeridian
+    @Test
+    public void testWithin() throws Exception {
+        SpatialIndex index = new SpatialIndex(SpatialIndex.DEFAULT_CELL_DEGREES);
+        index.put("ADELAIDE", at(-34.9, 138.6));
+        index.put("MELBOURNE", at(-37.8, 144.9));
+        index.put("SUVA", at(-18.1, 178.4));
+        index.put("APIA", at(-13.8, -171.8));
+
+        assertEquals(Set.of("ADELAIDE", "MELBOURNE"), new HashSet<>(index.within(-40, 135, -30, 150)));
+        assertEquals(Set.of("SUVA", "APIA"), new HashSet<>(index.within(-20, 175, -10, -170)));
+        assertEquals(List.of(), index.within(0, 0, 10, 10));
+    }
+
+    // Test that moved and removed stations are found only where they are now
+    @Test
+    public void testMoveAndRemove() throws Exception {
+        SpatialIndex index = new SpatialIndex(SpatialIndex.DEFAULT_CELL_DEGREES);
+        index.put("A", at(10, 10));
+        index.put("B", at(10.5, 10.5));
+        index.put("A", at(50, 50));
+        index.put("C", WeatherCodec.decode("{\"id\":\"C\"}".getBytes(StandardCharsets.UTF_8)));  // No position
+
+        assertEquals(List.of("B"), index.within(9, 9, 11, 11));
+        assertEquals(List.of("A"), index.nearest(49, 49, 1));
+        assertEquals(2, index.size());
+
+        index.remove("A");
+        assertEquals(List.of("B"), index.nearest(49, 49, 5).stream().collect(Collectors.toList()));
+        assertEquals(1, index.size());
+    }
+}
@@ -0,0 +1,75 @@
+package com.aggregationserver;
+
+import java.io.FileNotFoundException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.attribute.FileTime;
+import java.util.Map;
+
+import static org.junit.jupiter.api.Assertions.*;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+public class StationFileTest {
+
+    @TempDir
+    Path tempDir;
+
+    private Path write(String contents) throws Exception {
+        return Files.write(tempDir.resolve("station.txt"), contents.getBytes(StandardCharsets.UTF_8));
+    }
+
+    // Test that the file is parsed again only when its modification time or size changes
+    @Test
+    public void testParsesOnlyWhenChanged() throws Exception {
+        Path path = write("id:IDS60901\nair_temp:13.3\n");
+        StationFile station = new StationFile(path.toString());
+
+        assertTrue(station.refresh(false));
+        assertFalse(station.refresh(false));
+
+        write("id:IDS60901\nair_temp:14.25\n");
+        assertTrue(station.refresh(false));
+        assertEquals("14.25", station.snapshot(new LamportClock()).get("air_temp"));
+
+        // Same size and modification time: only a forced refresh sees the change
+        FileTime modified = Files.getLastModifiedTime(path);
+        write("id:IDS60901\nair_temp:15.75\n");
+        Files.setLastModifiedTime(path, modified);
+        assertFalse(station.refresh(false));
+        assertTrue(station.refresh(true));
+        assertEquals("15.75", station.snapshot(new LamportClock()).get("air_temp"));
+    }
+
+    // Test that each snapshot is a copy stamped with the clock's current time
+    @Test
+    public void testSnapshotCarriesLamportTime() throws Exception {
+        StationFile station = new StationFile(write("id:IDS60901\n").toString());
+        LamportClock clock = new LamportClock();
+        station.refresh(false);
+
+        Map<String, Object> first = station.snapshot(clock);
+        clock.tick();
+        Map<String, Object> second = station.snapshot(clock);
+
+        assertEquals(0L, first.get("lamportTime"));
+        assertEquals(1L, second.get("lamportTime"));
+        assertEquals("IDS60901", second.get("id"));
+    }
+
+    // Test that a file which fails to parse keeps the previous contents and is retried
+    @Test
+    public void testKeepsLastGoodContents() throws Exception {
+        StationFile station = new StationFile(write("id:IDS60901\nair_temp:13.3\n").toString());
+        station.refresh(false);
+
+        write("air_temp:99\n");
+        assertThrows(IllegalArgumentException.class, () -> station.refresh(false));
+        assertEquals("13.3", station.snapshot(new LamportClock()).get("air_temp"));
+        assertThrows(IllegalArgumentException.class, () -> station.refresh(false));
+
+        Files.delete(tempDir.resolve("station.txt"));
+        assertThrows(FileNotFoundException.class, () -> station.refresh(false));
+    }
+}
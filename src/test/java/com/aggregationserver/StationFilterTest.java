@@ -0,0 +1,38 @@
+package com.aggregationserver;
+
+import java.nio.charset.StandardCharsets;
+
+import static org.junit.jupiter.api.Assertions.*;
+import org.junit.jupiter.api.Test;
+
+public class StationFilterTest {
+
+    private static WeatherObservation observation(String json) throws Exception {
+        return WeatherCodec.decode(json.getBytes(StandardCharsets.UTF_8));
+    }
+
+    // Test that numeric values compare as numbers and text values as text
+    @Test
+    public void testMatches() throws Exception {
+        WeatherObservation windy = observation("{\"id\":\"IDS60901\",\"state\":\"SA\",\"wind_spd_kmh\":\"55\"}");
+        WeatherObservation calm = observation("{\"id\":\"IDS60902\",\"state\":\"SA\",\"wind_spd_kmh\":9}");
+
+        StationFilter filter = StationFilter.parse("state=SA, wind_spd_kmh>50");
+
+        assertEquals(2, filter.getConditions().size());
+        assertTrue(filter.matches(windy));
+        assertFalse(filter.matches(calm));  // 9 < 50 numerically, though "9" > "50" as text
+        assertTrue(StationFilter.parse("wind_spd_kmh<=9,state!=VIC").matches(calm));
+        assertFalse(StationFilter.parse("air_temp>=0").matches(calm));  // Absent fields never match
+    }
+
+    // Test that malformed filters are rejected
+    @Test
+    public void testParseErrors() {
+        assertNull(StationFilter.parse(null));
+        assertNull(StationFilter.parse(" , "));
+        assertThrows(IllegalArgumentException.class, () -> StationFilter.parse("state"));
+        assertThrows(IllegalArgumentException.class, () -> StationFilter.parse("colour=red"));
+        assertThrows(IllegalArgumentException.class, () -> StationFilter.parse("air_temp=>1"));
+    }
+}
@@ -0,0 +1,74 @@
+package com.aggregationserver;
+
+import java.nio.charset.StandardCharsets;
+import java.util.List;
+import java.util.Map;
+
+import static org.junit.jupiter.api.Assertions.*;
+import org.junit.jupiter.api.Test;
+
+public class StationHistoryTest {
+
+    private static WeatherObservation observation(String airTemp, long lastUpdated) throws Exception {
+        WeatherObservation observation = WeatherCodec.decode(("{\"id\":\"IDS60901\",\"air_temp\":\"" + airTemp
+                + "\",\"wind_dir\":\"S\"}").getBytes(StandardCharsets.UTF_8));
+        observation.setLastUpdated(lastUpdated);
+        return observation;
+    }
+
+    @SuppressWarnings("unchecked")
+    private static List<Map<String, Object>> range(StationHistory history, long since, long until) throws Exception {
+        StringBuilder json = new StringBuilder();
+        JSONWriter writer = new JSONWriter(json);
+        history.writeRange(since, until, writer);
+        writer.flush();
+        return (List<Map<String, Object>>) new JSONParser().parse(json.toString());
+    }
+
+    // Test that a range returns the rows stored within it, oldest first, with their numeric measurements
+    @Test
+    public void testReturnsRange() throws Exception {
+        StationHistory history = new StationHistory(10, 0);
+        for (int i = 0; i < 5; i++) {
+            history.add(observation("1" + i + ".5", 1000 + i * 100), i);
+        }
+
+        List<Map<String, Object>> rows = range(history, 1100, 1300);
+
+        assertEquals(3, rows.size());
+        assertEquals(1100L, ((Number) rows.get(0).get("lastUpdated")).longValue());
+        assertEquals(11.5, ((Number) rows.get(0).get("air_temp")).doubleValue(), 1e-6);
+        assertEquals(3, ((Number) rows.get(2).get("lamportTime")).intValue());
+        assertFalse(rows.get(0).containsKey("wind_dir"));  // Text fields are not kept
+        assertFalse(rows.get(0).containsKey("press"));  // Absent measurements are left out
+        assertTrue(range(history, 2000, Long.MAX_VALUE).isEmpty());
+    }
+
+    // Test that a full ring overwrites its oldest rows
+    @Test
+    public void testKeepsLastRows() throws Exception {
+        StationHistory history = new StationHistory(3, 0);
+        for (int i = 0; i < 5; i++) {
+            history.add(observation(String.valueOf(i), 1000 + i), i);
+        }
+
+        List<Map<String, Object>> rows = range(history, Long.MIN_VALUE, Long.MAX_VALUE);
+
+        assertEquals(3, history.size());
+        assertEquals(List.of(2.0, 3.0, 4.0), List.of(((Number) rows.get(0).get("air_temp")).doubleValue(),
+                ((Number) rows.get(1).get("air_temp")).doubleValue(), ((Number) rows.get(2).get("air_temp")).doubleValue()));
+    }
+
+    // Test that rows older than the maximum age are dropped
+    @Test
+    public void testDropsOldRows() throws Exception {
+        StationHistory history = new StationHistory(10, 60000);
+        long now = System.currentTimeMillis();
+        history.add(observation("1.0", now - 120000), 0);
+        history.add(observation("2.0", now - 90000), 1);
+        history.add(observation("3.0", now), 2);
+
+        assertEquals(1, history.size());
+        assertEquals(1, range(history, Long.MIN_VALUE, Long.MAX_VALUE).size());
+    }
+}
@@ -0,0 +1,110 @@
+package com.aggregationserver;
+
+import com.sun.management.GarbageCollectionNotificationInfo;
+
+import java.lang.management.GarbageCollectorMXBean;
+import java.lang.management.ManagementFactory;
+import java.lang.management.MemoryMXBean;
+import java.nio.charset.StandardCharsets;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.Random;
+import javax.management.NotificationEmitter;
+import javax.management.openmbean.CompositeData;
+
+/**
+ * Compares garbage collection with observations kept on the heap and off the heap in slabs.
+ * Fills a store with many stations, then keeps replacing random stations as a busy server
+ * would, and reports the pauses the collector took and the heap left in use. The stores are
+ * measured on their own; a server only holds this many stations when started with a large
+ * --max-entries (or 0 for no limit). Not a unit test;
+ * run each store in its own JVM, so that one does not inherit the other's heap, e.g.:
+ * <pre>
+ * mvn test-compile exec:exec -Dexec.executable=java -Dexec.classpathScope=test \
+ *     "-Dexec.args=-Xmx4g -cp %classpath com.aggregationserver.StoreGCBenchmark heap 1000000"
+ * </pre>
+ * with "offheap" in place of "heap" for the slab store. Add -XX:MaxDirectMemorySize if the
+ * slabs need more than the default (the -Xmx value).
+ */
+public class StoreGCBenchmark {
+
+    private static final int UPDATES = 2_000_000;
+
+    private static long pauses;
+    private static long totalPauseMillis;
+    private static long maxPauseMillis;
+
+    public static void main(String[] args) throws Exception {
+        String storeName = args.length > 0 ? args[0] : "heap";
+        int stations = args.length > 1 ? Integer.parseInt(args[1]) : 1_000_000;
+        ObservationStore store = storeName.equals("offheap") ? new SlabObservationStore() : new HeapObservationStore();
+        listenForPauses();
+
+        Map<String, Object> handles = new HashMap<>(stations * 2);
+        long start = System.nanoTime();
+        for (int i = 0; i < stations; i++) {
+            handles.put(stationID(i), store.put(observation(i, i)));
+        }
+        report(storeName + ": filled " + stations + " stations", start);
+
+        Random random = new Random(42);
+        start = System.nanoTime();
+        for (int u = 0; u < UPDATES; u++) {
+            int i = random.nextInt(stations);
+            Object previous = handles.put(stationID(i), store.put(observation(i, u)));
+            store.free(previous);
+        }
+        report(storeName + ": " + UPDATES + " updates", start);
+
+        System.gc();
+        MemoryMXBean memory = ManagementFactory.getMemoryMXBean();
+        System.out.printf("%s: heap in use after full GC %d MB%s%n", storeName,
+                memory.getHeapMemoryUsage().getUsed() >> 20,
+                store instanceof SlabObservationStore
+                        ? ", off-heap " + (((SlabObservationStore) store).getAllocatedBytes() >> 20) + " MB" : "");
+    }
+
+    private static String stationID(int i) {
+        return "ID" + (100_000_000 + i);
+    }
+
+    private static WeatherObservation observation(int i, int update) throws Exception {
+        String json = "{\"id\":\"" + stationID(i) + "\",\"name\":\"Station " + i + "\",\"state\":\"SA\","
+                + "\"time_zone\":\"CST\",\"lat\":-34.9,\"lon\":138.6,\"local_date_time\":\"15/04:00pm\","
+                + "\"local_date_time_full\":\"20230715160000\",\"air_temp\":" + (update % 400) / 10.0 + ","
+                + "\"apparent_t\":9.5,\"cloud\":\"Partly cloudy\",\"dewpt\":5.7,\"press\":1023.9,"
+                + "\"rel_hum\":60,\"wind_dir\":\"S\",\"wind_spd_kmh\":15,\"wind_spd_kt\":8,\"lamportTime\":" + update + "}";
+        return WeatherCodec.decode(json.getBytes(StandardCharsets.UTF_8));
+    }
+
+    private static void listenForPauses() {
+        for (GarbageCollectorMXBean collector : ManagementFactory.getGarbageCollectorMXBeans()) {
+            ((NotificationEmitter) collector).addNotificationListener((notification, handback) -> {
+                if (notification.getType().equals(GarbageCollectionNotificationInfo.GARBAGE_COLLECTION_NOTIFICATION)) {
+                    long millis = GarbageCollectionNotificationInfo.from((CompositeData) notification.getUserData())
+                            .getGcInfo().getDuration();
+                    synchronized (StoreGCBenchmark.class) {
+                        pauses++;
+                        totalPauseMillis += millis;
+                        maxPauseMillis = Math.max(maxPauseMillis, millis);
+                    }
+                }
+            }, null, null);
+        }
+    }
+
+    private static synchronized void resetPauses() {
+        pauses = 0;
+        totalPauseMillis = 0;
+        maxPauseMillis = 0;
+    }
+
+    private static void report(String phase, long startNanos) throws InterruptedException {
+        Thread.sleep(200);  // Let the last notifications arrive
+        synchronized (StoreGCBenchmark.class) {
+            System.out.printf("%-40s %6d ms, %4d collections, %6d ms collecting, longest %4d ms%n", phase,
+                    (System.nanoTime() - startNanos) / 1_000_000, pauses, totalPauseMillis, maxPauseMillis);
+        }
+        resetPauses();
+    }
+}
@@ -0,0 +1,154 @@
+package com.aggregationserver;
+
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+
+import static org.junit.jupiter.api.Assertions.*;
+import static org.junit.jupiter.api.Assumptions.assumeTrue;
+import org.junit.jupiter.api.Test;
+
+public class StructuralIndexTest {
+
+    private static final String DOCUMENT = "{\"IDS60901\": {\"id\": \"IDS60901\", \"name\": \"Mt \u00b0 \\\"Lofty\\\" \\\\\","
+            + " \"lat\": -34.9, \"air_temp\": \"13.3\", \"lamportTime\": 12345678901, \"ok\": true, \"gust\": null,"
+            + " \"tags\": [1, 2.5e3, false, [], {}, \"a,b:{c}\"]}, \"empty\": { }, \"list\": [ ]}";
+
+    private static byte[] bytes(String json) {
+        return json.getBytes(StandardCharsets.UTF_8);
+    }
+
+    /**
+     * Finds the structural characters one byte at a time, for comparison.
+     */
+    private static List<Integer> referencePositions(byte[] json) {
+        List<Integer> positions = new ArrayList<>();
+        boolean escaped = false;
+        boolean inString = false;
+        for (int i = 0; i < json.length; i++) {
+            byte b = json[i];
+            if (b == '"' && !escaped) {
+                positions.add(i);
+                inString = !inString;
+            } else if (!inString && "{}[]:,".indexOf(b) >= 0) {
+                positions.add(i);
+            }
+            escaped = b == '\\' && !escaped;
+        }
+        return inString ? null : positions;
+    }
+
+    private static List<Integer> positions(byte[] json, StructuralScanner scanner) {
+        try {
+            StructuralIndex index = StructuralIndex.build(json, 0, json.length, scanner);
+            List<Integer> positions = new ArrayList<>();
+            for (int i = 0; i < index.size(); i++) {
+                positions.add(index.position(i));
+            }
+            return positions;
+        } catch (Exception e) {
+            return null;  // Unterminated string
+        }
+    }
+
+    // Test that the scalar scanner finds exactly the structural characters, including across blocks
+    @Test
+    public void testScalarIndexMatchesReference() {
+        Random random = new Random(42);
+        for (int round = 0; round < 2000; round++) {
+            byte[] json = randomBytes(random);
+            assertEquals(referencePositions(json), positions(json, new ScalarStructuralScanner()), new String(json));
+        }
+    }
+
+    // Test that the SIMD scanner produces the same index as the scalar one
+    @Test
+    public void testVectorIndexMatchesScalar() {
+        assumeTrue(StructuralIndex.isVectorized(), "Vector API not available");
+        Random random = new Random(7);
+        for (int round = 0; round < 2000; round++) {
+            byte[] json = randomBytes(random);
+            assertEquals(positions(json, new ScalarStructuralScanner()), positions(json, new VectorStructuralScanner()),
+                    new String(json));
+        }
+    }
+
+    // Test the SIMD scanner once the JIT has compiled it, on a document spanning many blocks
+    @Test
+    public void testVectorIndexMatchesScalarWhenCompiled() throws Exception {
+        assumeTrue(StructuralIndex.isVectorized(), "Vector API not available");
+        byte[] data = largeDocument();
+        for (int round = 0; round < 5; round++) {
+            assertEquals(positions(data, new ScalarStructuralScanner()), positions(data, new VectorStructuralScanner()));
+        }
+    }
+
+    // Test backslash runs and quotes that straddle the 64-byte block boundaries
+    @Test
+    public void testEscapesAcrossBlocks() throws Exception {
+        for (int pad = 50; pad < 70; pad++) {
+            for (int slashes = 1; slashes <= 4; slashes++) {
+                String json = "[\"" + "x".repeat(pad) + "\\".repeat(slashes * 2) + "\\\"\", \"" + "\\\\".repeat(slashes) + "\"]";
+                byte[] data = bytes(json);
+                assertEquals(referencePositions(data), positions(data, new ScalarStructuralScanner()), json);
+                assertEquals(new JSONParser().parse(data), StructuralIndex.build(data, 0, data.length).parse(), json);
+            }
+        }
+    }
+
+    // Test that stage 2 builds the same values as the byte parser
+    @Test
+    public void testParseMatchesByteParser() throws Exception {
+        String[] documents = {DOCUMENT, "  42 ", "-7", "3.25", "\"plain\"", "true", "null", "[]", "{}",
+                "[9223372036854775807, -2147483649]"};
+        for (String document : documents) {
+            byte[] data = bytes(document);
+            assertEquals(new JSONParser().parse(data), StructuralIndex.build(data, 0, data.length).parse(), document);
+        }
+
+        byte[] padded = bytes("xx" + DOCUMENT + "yy");  // A region of a larger array
+        assertEquals(new JSONParser().parse(bytes(DOCUMENT)),
+                StructuralIndex.build(padded, 2, padded.length - 4).parse());
+    }
+
+    // Test that large byte inputs go through the index and give the same result
+    @Test
+    public void testLargeDocumentThroughParser() throws Exception {
+        byte[] data = largeDocument();
+        assertTrue(data.length >= JSONParser.INDEXED_PARSE_THRESHOLD);
+
+        JSONParser streaming = new JSONParser();
+        streaming.reset(data, 0, data.length);  // The token API never uses the index
+        streaming.nextToken();
+        assertEquals(streaming.readValue(), new JSONParser().parse(data));
+    }
+
+    // Test that malformed input is rejected
+    @Test
+    public void testRejectsMalformedInput() {
+        String[] documents = {"", "  ", "{\"a\": 1", "{\"a\" 1}", "{\"a\": 1,}", "[1 2]", "[1,]", "{\"a\": \"b}",
+                "{} {}", "[tru]", "[01x]", "{1: 2}", "[\"a\" \"b\"]", "{\"a\": }"};
+        for (String document : documents) {
+            byte[] data = bytes(document);
+            assertThrows(Exception.class, () -> StructuralIndex.build(data, 0, data.length).parse(), document);
+        }
+    }
+
+    private static byte[] largeDocument() {
+        StringBuilder json = new StringBuilder("{");
+        for (int i = 0; i < 5000; i++) {
+            json.append(i == 0 ? "" : ",").append("\"IDS").append(i).append("\": ").append(DOCUMENT);
+        }
+        return bytes(json.append('}').toString());
+    }
+
+    private static byte[] randomBytes(Random random) {
+        byte[] alphabet = bytes("\\\"{}[]:,a \u00e9");
+        byte[] json = new byte[random.nextInt(300)];
+        for (int i = 0; i < json.length; i++) {
+            json[i] = alphabet[random.nextInt(alphabet.length)];
+        }
+        return json;
+    }
+}
@@ -0,0 +1,144 @@
+package com.aggregationserver;
+
+import java.io.BufferedReader;
+import java.io.InputStreamReader;
+import java.io.PrintWriter;
+import java.io.StringWriter;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Path;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+import static org.junit.jupiter.api.Assertions.*;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+public class SubscriptionHubTest {
+
+    @TempDir
+    Path tempDir;
+
+    private ServerSocket serverSocket;
+    private ExecutorService acceptor;
+    private String savedDataFilePath;
+
+    @BeforeEach
+    public void setup() throws Exception {
+        savedDataFilePath = AggregationServer.dataFilePath;
+        AggregationServer.dataFilePath = tempDir.resolve("weatherData.json").toString();
+        serverSocket = new ServerSocket(0);
+        acceptor = Executors.newCachedThreadPool();
+        acceptor.execute(() -> {
+            try {
+                while (true) {
+                    Socket socket = serverSocket.accept();
+                    acceptor.execute(() -> AggregationServer.handleConnection(socket));
+                }
+            } catch (Exception e) {
+                // Server socket closed
+            }
+        });
+    }
+
+    @AfterEach
+    public void tearDown() throws Exception {
+        serverSocket.close();
+        acceptor.shutdownNow();
+        AggregationServer.removeWeatherEntry("IDU00001");  // Leave the shared store as other tests expect it
+        AggregationServer.removeWeatherEntry("IDU00002");
+        AggregationServer.dataFilePath = savedDataFilePath;
+    }
+
+    /**
+     * Opens a subscription and checks the response headers.
+     */
+    private BufferedReader subscribe(Socket socket, String query, String lastEventID) throws Exception {
+        socket.setSoTimeout(5000);
+        PrintWriter out = new PrintWriter(socket.getOutputStream(), true);
+        out.print("GET /weather/subscribe" + query + " HTTP/1.1\r\nHost: localhost\r\n"
+                + (lastEventID != null ? "Last-Event-ID: " + lastEventID + "\r\n" : "") + "\r\n");
+        out.flush();
+        BufferedReader in = new BufferedReader(new InputStreamReader(socket.getInputStream(), StandardCharsets.UTF_8));
+        assertEquals("HTTP/1.1 200 OK", in.readLine());
+        String line;
+        boolean eventStream = false;
+        while (!(line = in.readLine()).isEmpty()) {
+            eventStream |= line.equals("Content-Type: text/event-stream");
+        }
+        assertTrue(eventStream);
+        return in;
+    }
+
+    private static void put(String json) {
+        AggregationServer.processPutRequest(json, new PrintWriter(new StringWriter()));
+    }
+
+    /**
+     * Reads the data of the next event, skipping heartbeats.
+     */
+    @SuppressWarnings("unchecked")
+    private static Map<String, Object> nextEvent(BufferedReader in) throws Exception {
+        String data = null;
+        String line;
+        while ((line = in.readLine()) != null) {
+            if (line.startsWith("data: ")) {
+                data = line.substring("data: ".length());
+            } else if (line.isEmpty() && data != null) {
+                return (Map<String, Object>) new JSONParser().parse(data);
+            }
+        }
+        throw new AssertionError("Subscription closed");
+    }
+
+    // Test that a subscriber receives a snapshot, then each update and removal of its stations as it happens
+    @Test
+    public void testPushesUpdatesAndRemovals() throws Exception {
+        put("{\"id\":\"IDU00001\",\"air_temp\":\"1.0\"}");
+        try (Socket socket = new Socket("localhost", serverSocket.getLocalPort())) {
+            BufferedReader in = subscribe(socket, "?ids=IDU00001,IDU00002&fields=air_temp", null);
+
+            Map<String, Object> snapshot = nextEvent(in);
+            assertEquals(true, snapshot.get("full"));
+            assertEquals(Map.of("IDU00001", Map.of("air_temp", "1.0")), snapshot.get("upserts"));
+
+            put("{\"id\":\"IDS60999\",\"air_temp\":\"9.0\"}");
+            put("{\"id\":\"IDU00002\",\"air_temp\":\"2.0\"}");
+            Map<String, Object> update = nextEvent(in);
+            assertEquals(false, update.get("full"));
+            assertEquals(Map.of("IDU00002", Map.of("air_temp", "2.0")), update.get("upserts"));  // Not the unfollowed station
+
+            AggregationServer.removeWeatherEntry("IDU00001");
+            Map<String, Object> removal = nextEvent(in);
+            assertEquals(List.of("IDU00001"), removal.get("removed"));
+            assertTrue(((Number) removal.get("version")).longValue() > ((Number) update.get("version")).longValue());
+        } finally {
+            AggregationServer.removeWeatherEntry("IDS60999");
+        }
+    }
+
+    // Test that a subscriber reconnecting with the last event id receives only what it missed
+    @Test
+    public void testResumesFromLastEventID() throws Exception {
+        long lastEventID;
+        try (Socket socket = new Socket("localhost", serverSocket.getLocalPort())) {
+            lastEventID = ((Number) nextEvent(subscribe(socket, "?ids=IDU00001,IDU00002", null)).get("version")).longValue();
+        }
+
+        put("{\"id\":\"IDU00001\",\"air_temp\":\"1.0\"}");
+        put("{\"id\":\"IDU00001\",\"air_temp\":\"1.5\"}");
+        try (Socket socket = new Socket("localhost", serverSocket.getLocalPort())) {
+            Map<String, Object> missed = nextEvent(subscribe(socket, "?ids=IDU00001,IDU00002", String.valueOf(lastEventID)));
+
+            assertEquals(false, missed.get("full"));
+            Map<String, Object> upserts = (Map<String, Object>) missed.get("upserts");
+            assertEquals(List.of("IDU00001"), List.copyOf(upserts.keySet()));  // Both updates, coalesced
+            assertEquals("1.5", ((Map<String, Object>) upserts.get("IDU00001")).get("air_temp"));
+        }
+    }
+}
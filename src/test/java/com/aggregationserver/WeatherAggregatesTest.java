@@ -0,0 +1,77 @@
+package com.aggregationserver;
+
+import java.nio.charset.StandardCharsets;
+import java.util.Map;
+
+import static org.junit.jupiter.api.Assertions.*;
+import org.junit.jupiter.api.Test;
+
+public class WeatherAggregatesTest {
+
+    private static WeatherObservation observation(String id, String state, String airTemp) throws Exception {
+        return WeatherCodec.decode(("{\"id\":\"" + id + "\",\"state\":\"" + state + "\",\"air_temp\":\"" + airTemp
+                + "\"}").getBytes(StandardCharsets.UTF_8));
+    }
+
+    // Test that each group summarizes the stations added to it
+    @Test
+    public void testSummarizesByGroup() throws Exception {
+        WeatherAggregates aggregates = new WeatherAggregates();
+        aggregates.add(observation("IDS60901", "SA", "10.0"));
+        aggregates.add(observation("IDS60902", "SA", "20.0"));
+        aggregates.add(observation("IDV60901", "VIC", "5.0"));
+
+        Map<String, WeatherAggregates.Summary> byState = aggregates.summarize(WeatherObservation.Field.AIR_TEMP,
+                WeatherObservation.Field.STATE);
+        WeatherAggregates.Summary all = aggregates.summarize(WeatherObservation.Field.AIR_TEMP, null).get(WeatherAggregates.ALL);
+
+        assertEquals(2, byState.size());
+        assertEquals(2, byState.get("SA").count);
+        assertEquals(30.0, byState.get("SA").sum, 1e-9);
+        assertEquals(10.0, byState.get("SA").min, 1e-9);
+        assertEquals(20.0, byState.get("SA").max, 1e-9);
+        assertEquals(3, all.count);
+        assertEquals(5.0, all.min, 1e-9);
+        assertTrue(aggregates.summarize(WeatherObservation.Field.PRESS, null).isEmpty());
+    }
+
+    // Test that removing the current extreme restores the next one, and an emptied group disappears
+    @Test
+    public void testRemoveUpdatesMinAndMax() throws Exception {
+        WeatherAggregates aggregates = new WeatherAggregates();
+        WeatherObservation cold = observation("IDS60901", "SA", "1.0");
+        WeatherObservation hot = observation("IDS60902", "SA", "30.0");
+        WeatherObservation vic = observation("IDV60901", "VIC", "15.0");
+        aggregates.add(cold);
+        aggregates.add(hot);
+        aggregates.add(observation("IDS60903", "SA", "30.0"));
+        aggregates.add(vic);
+
+        aggregates.remove(cold);
+        aggregates.remove(hot);
+        aggregates.remove(vic);
+
+        Map<String, WeatherAggregates.Summary> byState = aggregates.summarize(WeatherObservation.Field.AIR_TEMP,
+                WeatherObservation.Field.STATE);
+        assertEquals(1, byState.get("SA").count);
+        assertFalse(byState.containsKey("VIC"));
+        assertEquals(30.0, byState.get("SA").min, 1e-9);  // The other station at 30.0 is still counted
+        assertEquals(30.0, byState.get("SA").max, 1e-9);
+    }
+
+    // Test that summaries from different nodes merge into one
+    @Test
+    public void testMergeSummaries() throws Exception {
+        WeatherAggregates aggregates = new WeatherAggregates();
+        aggregates.add(observation("IDS60901", "SA", "10.0"));
+        WeatherAggregates.Summary local = aggregates.summarize(WeatherObservation.Field.AIR_TEMP, null).get(WeatherAggregates.ALL);
+        WeatherAggregates.Summary peer = WeatherAggregates.Summary.fromJson(Map.of("count", 2L, "sum", 4.0, "min", -1.0, "max", 5.0));
+
+        WeatherAggregates.Summary merged = local.merge(peer);
+
+        assertEquals(3, merged.count);
+        assertEquals(14.0, merged.sum, 1e-9);
+        assertEquals(-1.0, merged.min, 1e-9);
+        assertEquals(10.0, merged.max, 1e-9);
+    }
+}
@@ -0,0 +1,185 @@
+package com.aggregationserver;
+
+import java.io.ByteArrayInputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.List;
+import java.util.Map;
+
+import static org.junit.jupiter.api.Assertions.*;
+import org.junit.jupiter.api.Test;
+
+public class WeatherCodecTest {
+
+    private static final String OBSERVATION = "{\"id\":\"IDS60901\",\"name\":\"Adelaide (West Terrace / ngayirdapira)\","
+            + "\"state\":\"SA\",\"lat\":-34.9,\"air_temp\":\"13.3\",\"wind_dir\":\"S\",\"lamportTime\":3}";
+
+    private static WeatherObservation decode(String json) throws Exception {
+        return WeatherCodec.decode(json.getBytes(StandardCharsets.UTF_8));
+    }
+
+    private static String writeStored(WeatherObservation observation, long serverTime) throws Exception {
+        StringBuilder json = new StringBuilder();
+        JSONWriter writer = new JSONWriter(json);
+        WeatherCodec.writeStored(observation, serverTime, writer);
+        writer.flush();
+        return json.toString();
+    }
+
+    // Test that schema fields are bound to typed slots
+    @Test
+    public void testDecodeSchemaFields() throws Exception {
+        WeatherObservation observation = decode(OBSERVATION);
+
+        assertEquals("IDS60901", observation.getId());
+        assertEquals("13.3", observation.get(WeatherObservation.Field.AIR_TEMP));
+        assertFalse(observation.isNumeric(WeatherObservation.Field.AIR_TEMP));
+        assertEquals(13.3, observation.getDouble(WeatherObservation.Field.AIR_TEMP));
+        assertTrue(observation.isNumeric(WeatherObservation.Field.LAT));
+        assertEquals(-34.9, observation.getDouble(WeatherObservation.Field.LAT));
+        assertEquals(3, observation.getLamportTime());
+        assertNull(observation.get(WeatherObservation.Field.CLOUD));
+        assertTrue(observation.getExtra().isEmpty());
+    }
+
+    // Test that fields left in the bytes decode on first read, escapes and UTF-8 included, and give way to later changes
+    @Test
+    public void testDecodesFieldsOnFirstRead() throws Exception {
+        WeatherObservation observation = decode("{\"id\":\"IDS60901\",\"name\":\"Say \\\"hi\\\" \\u00e9\u00e9\","
+                + "\"press\":1023.9,\"cloud\":\"\",\"state\":\"SA\"}");
+
+        assertEquals("Say \"hi\" \u00e9\u00e9", observation.get(WeatherObservation.Field.NAME));
+        assertEquals("1023.9", observation.get(WeatherObservation.Field.PRESS));
+        assertTrue(observation.isNumeric(WeatherObservation.Field.PRESS));
+        assertEquals(1023.9, observation.getDouble(WeatherObservation.Field.PRESS));
+        assertEquals("", observation.get(WeatherObservation.Field.CLOUD));
+
+        observation.set(WeatherObservation.Field.STATE, null);  // Removed before it was ever read
+        assertNull(observation.get(WeatherObservation.Field.STATE));
+        observation.putExtra("cloud", List.of());
+        assertNull(observation.get(WeatherObservation.Field.CLOUD));
+        assertEquals("{\"id\":\"IDS60901\",\"name\":\"Say \\\"hi\\\" \u00e9\u00e9\",\"press\":1023.9,\"cloud\":[]}",
+                JSONWriter.toJson(observation, false));
+    }
+
+    // Test that fields outside the schema fall back to generic values
+    @Test
+    public void testUnknownFieldsFallBack() throws Exception {
+        WeatherObservation observation = decode("{\"id\":\"IDS60901\",\"temperature\":25.0,"
+                + "\"tags\":[\"a\",true],\"cloud\":{\"octas\":3}}");
+
+        assertEquals(25.0, observation.getExtra().get("temperature"));
+        assertEquals(List.of("a", true), observation.getExtra().get("tags"));
+        assertEquals(Map.of("octas", 3), observation.getExtra().get("cloud"));  // Not a string, so kept as is
+        assertNull(observation.get(WeatherObservation.Field.CLOUD));
+    }
+
+    // Test that an unchanged observation is written as received, with lastUpdated added
+    @Test
+    public void testWritesSourceWhenUnchanged() throws Exception {
+        WeatherObservation observation = decode(" {\"id\": \"IDS60901\", \"humidity\": \"60\"} ");
+        observation.setLastUpdated(1696000000000L);
+
+        assertEquals("{\"id\": \"IDS60901\", \"humidity\": \"60\",\"lastUpdated\":1696000000000}",
+                JSONWriter.toJson(observation, false));
+
+        WeatherObservation empty = decode("{ }");
+        empty.setLastUpdated(1L);
+        assertEquals("{\"lastUpdated\":1}", JSONWriter.toJson(empty, false));
+    }
+
+    // Test that the server's time is written after lastUpdated for the snapshot file, and read back as a separate member
+    @Test
+    public void testWritesServerTime() throws Exception {
+        WeatherObservation observation = decode("{\"id\": \"IDS60901\", \"lamportTime\": 5}");
+        observation.setLastUpdated(1696000000000L);
+        assertEquals("{\"id\": \"IDS60901\", \"lamportTime\": 5,\"lastUpdated\":1696000000000,\"serverLamportTime\":9}",
+                writeStored(observation, 9));
+
+        observation.set(WeatherObservation.Field.CLOUD, "Sunny");  // Re-encoded from here on
+        String json = writeStored(observation, 9);
+        assertEquals("{\"id\":\"IDS60901\",\"cloud\":\"Sunny\",\"lamportTime\":5,\"lastUpdated\":1696000000000,"
+                + "\"serverLamportTime\":9}", json);
+        WeatherObservation read = decode(json);
+        assertEquals(9, read.removeExtra(WeatherCodec.SERVER_TIME));
+        assertEquals(5, read.getLamportTime());
+
+        assertEquals("{\"serverLamportTime\":2}", writeStored(decode("{ }"), 2));
+    }
+
+    // Test that a changed observation is re-encoded field by field and decodes back the same
+    @Test
+    public void testRoundTrip() throws Exception {
+        WeatherObservation observation = decode("{\"id\":\"IDS60901\",\"humidity\":\"60\",\"air_temp\":13.30}");
+        observation.set(WeatherObservation.Field.CLOUD, "Sunny");
+        observation.setLastUpdated(1696000000000L);
+
+        String json = JSONWriter.toJson(observation, false);
+        assertEquals("{\"id\":\"IDS60901\",\"air_temp\":13.30,\"cloud\":\"Sunny\",\"humidity\":\"60\","
+                + "\"lastUpdated\":1696000000000}", json);
+        assertEquals(json, JSONWriter.toJson(decode(json), false));
+        assertEquals(Map.of("id", "IDS60901", "air_temp", 13.3, "cloud", "Sunny", "humidity", "60",
+                "lastUpdated", 1696000000000L), observation.toMap());
+    }
+
+    // Test reading one station at a time from a streamed snapshot
+    @Test
+    public void testReadFromStream() throws Exception {
+        String snapshot = "{\"IDS60901\": " + OBSERVATION + ", \"IDS60902\": {\"id\": \"IDS60902\"}}";
+        JSONParser parser = new JSONParser(new ByteArrayInputStream(snapshot.getBytes(StandardCharsets.UTF_8)));
+
+        assertEquals(JSONParser.Token.START_OBJECT, parser.nextToken());
+        assertEquals(JSONParser.Token.FIELD_NAME, parser.nextToken());
+        assertEquals(JSONParser.Token.START_OBJECT, parser.nextToken());
+        assertEquals("S", WeatherCodec.read(parser).get(WeatherObservation.Field.WIND_DIR));
+        assertEquals(JSONParser.Token.FIELD_NAME, parser.nextToken());
+        assertEquals(JSONParser.Token.START_OBJECT, parser.nextToken());
+        assertEquals("IDS60902", WeatherCodec.read(parser).getId());
+        assertEquals(JSONParser.Token.END_OBJECT, parser.nextToken());
+    }
+
+    // Test that malformed input is rejected
+    @Test
+    public void testRejectsMalformedInput() {
+        assertThrows(Exception.class, () -> decode("[1, 2]"));
+        assertThrows(Exception.class, () -> decode("{\"id\": \"IDS60901\""));
+        assertThrows(Exception.class, () -> decode("{\"id\": \"IDS60901\"} {}"));
+    }
+
+    // Test that bodies with stray separators or malformed numbers are rejected rather than kept as source
+    @Test
+    public void testRejectsMalformedMembers() {
+        for (String json : List.of("{\"id\":\"X1\",,\"air_temp\":\"1\",}", "{\"id\":\"X1\" \"air_temp\":\"1\"}",
+                "{\"id\":\"X1\",\"press\":1.2.3}", "{\"id\":\"X1\",\"press\":-}", "{\"id\":\"X1\",\"press\":01}",
+                "{\"id\":\"X1\",\"press\":1e}", "{\"id\":\"X1\",\"lamportTime\":1+2}")) {
+            assertThrows(Exception.class, () -> decode(json), json);
+        }
+    }
+
+    // Test that a projection writes only the selected members, including ones outside the schema
+    @Test
+    public void testWritesProjectedFields() throws Exception {
+        WeatherObservation observation = decode("{\"id\":\"IDS60901\",\"air_temp\":\"13.3\",\"press\":1023.9,"
+                + "\"uv\":\"4\",\"lamportTime\":3}");
+        StringBuilder json = new StringBuilder();
+        JSONWriter writer = new JSONWriter(json);
+
+        WeatherCodec.write(observation, writer, WeatherCodec.Projection.parse(" press, air_temp,uv,missing,"));
+        writer.flush();
+
+        assertEquals("{\"air_temp\":\"13.3\",\"press\":1023.9,\"uv\":\"4\"}", json.toString());
+        assertNull(WeatherCodec.Projection.parse(""));  // Nothing named: every member
+        assertNull(WeatherCodec.Projection.parse(null));
+    }
+
+    // Test that generic station data, e.g. gathered from another node, is projected too
+    @Test
+    public void testProjectsGenericStation() throws Exception {
+        StringBuilder json = new StringBuilder();
+        JSONWriter writer = new JSONWriter(json);
+
+        WeatherCodec.writeStation(Map.of("id", "IDS60901", "air_temp", "13.3"), writer, WeatherCodec.Projection.parse("air_temp"));
+        writer.flush();
+
+        assertEquals("{\"air_temp\":\"13.3\"}", json.toString());
+    }
+}